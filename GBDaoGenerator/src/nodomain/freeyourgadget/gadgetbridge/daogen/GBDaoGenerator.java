@@ -42,10 +42,11 @@ public class GBDaoGenerator {
     private static final String SAMPLE_HEART_RATE = "heartRate";
     private static final String TIMESTAMP_FROM = "timestampFrom";
     private static final String TIMESTAMP_TO = "timestampTo";
+    private static final String RAW_DATA_OFFSET = "rawDataOffset";
 
 
     public static void main(String[] args) throws Exception {
-        Schema schema = new Schema(18, MAIN_PACKAGE + ".entities");
+        Schema schema = new Schema(22, MAIN_PACKAGE + ".entities");
 
         Entity userAttributes = addUserAttributes(schema);
         Entity user = addUserInfo(schema, userAttributes);
@@ -74,6 +75,8 @@ public class GBDaoGenerator {
 
         addBipActivitySummary(schema, user, device);
 
+        addSleepSession(schema, user, device);
+
         new DaoGenerator().generateAll(schema, "app/src/main/java");
     }
 
@@ -194,6 +197,12 @@ public class GBDaoGenerator {
         activitySample.addIntProperty(SAMPLE_HEART_RATE).notNull().codeBeforeGetterAndSetter(OVERRIDE);
     }
 
+    private static void addRawDataOffsetProperty(Entity entity) {
+        // the raw byte array columns are kept for compatibility, but new raw data only goes
+        // to the RawSampleArchive, so that the sample tables stay narrow
+        entity.addLongProperty(RAW_DATA_OFFSET).javaDocGetterAndSetter("Offset of the raw record in the RawSampleArchive, if any.");
+    }
+
     private static Entity addPebbleHealthActivitySample(Schema schema, Entity user, Entity device) {
         Entity activitySample = addEntity(schema, "PebbleHealthActivitySample");
         addCommonActivitySampleProperties("AbstractPebbleHealthActivitySample", activitySample, user, device);
@@ -201,6 +210,7 @@ public class GBDaoGenerator {
         activitySample.addIntProperty(SAMPLE_RAW_INTENSITY).notNull().codeBeforeGetterAndSetter(OVERRIDE);
         activitySample.addIntProperty(SAMPLE_STEPS).notNull().codeBeforeGetterAndSetter(OVERRIDE);
         addHeartRateProperties(activitySample);
+        addRawDataOffsetProperty(activitySample);
         return activitySample;
     }
 
@@ -216,6 +226,7 @@ public class GBDaoGenerator {
         Property userId = activityOverlay.addLongProperty("userId").notNull().getProperty();
         activityOverlay.addToOne(user, userId);
         activityOverlay.addByteArrayProperty("rawPebbleHealthData");
+        addRawDataOffsetProperty(activityOverlay);
 
         return activityOverlay;
     }
@@ -245,6 +256,7 @@ public class GBDaoGenerator {
         addHeartRateProperties(activitySample);
         activitySample.addIntProperty("distance");
         activitySample.addIntProperty("calories");
+        addRawDataOffsetProperty(activitySample);
 
         return activitySample;
     }
@@ -261,6 +273,7 @@ public class GBDaoGenerator {
         Property userId = activityOverlay.addLongProperty("userId").notNull().getProperty();
         activityOverlay.addToOne(user, userId);
         activityOverlay.addByteArrayProperty("rawHPlusHealthData");
+        addRawDataOffsetProperty(activityOverlay);
         return activityOverlay;
     }
 
@@ -323,7 +336,7 @@ public class GBDaoGenerator {
                 "This class represents the summary of a user's activity event. I.e. a walk, hike, a bicycle tour, etc.");
 
         summary.addStringProperty("name").codeBeforeGetter(OVERRIDE);
-        summary.addDateProperty("startTime").notNull().codeBeforeGetter(OVERRIDE);
+        Property startTime = summary.addDateProperty("startTime").notNull().codeBeforeGetter(OVERRIDE).getProperty();
         summary.addDateProperty("endTime").notNull().codeBeforeGetter(OVERRIDE);
         summary.addIntProperty("activityKind").notNull().codeBeforeGetter(OVERRIDE);
 
@@ -332,11 +345,50 @@ public class GBDaoGenerator {
         summary.addIntProperty("baseAltitude").javaDocGetterAndSetter("Temporary, bip-specific");
 
         summary.addStringProperty("gpxTrack").codeBeforeGetter(OVERRIDE);
+        summary.addStringProperty("binaryTrack").javaDocGetterAndSetter("Path of the track in the format of BinaryTrackExporter.");
+
+        summary.addFloatProperty("distanceMeters").javaDocGetterAndSetter("Distance in meters, computed from the track.");
+        summary.addFloatProperty("elevationGain").javaDocGetterAndSetter("Elevation gain in meters.");
+        summary.addFloatProperty("averagePace").javaDocGetterAndSetter("Average pace in seconds per kilometer.");
+        summary.addFloatProperty("maxPace").javaDocGetterAndSetter("Best pace in seconds per kilometer.");
+        summary.addStringProperty("heartRateZones").javaDocGetterAndSetter("Comma separated seconds spent in each heart rate zone.");
+        summary.addStringProperty("splits").javaDocGetterAndSetter("Comma separated seconds of each full kilometer.");
 
         Property deviceId = summary.addLongProperty("deviceId").notNull().codeBeforeGetter(OVERRIDE).getProperty();
         summary.addToOne(device, deviceId);
         Property userId = summary.addLongProperty("userId").notNull().codeBeforeGetter(OVERRIDE).getProperty();
         summary.addToOne(user, userId);
+
+        // the summaries list is paged by start time per device
+        Index indexDeviceStartTime = new Index();
+        indexDeviceStartTime.setName("IDX_BASE_ACTIVITY_SUMMARY_DEVICE_ID_START_TIME");
+        indexDeviceStartTime.addProperty(deviceId);
+        indexDeviceStartTime.addProperty(startTime);
+        summary.addIndex(indexDeviceStartTime);
+    }
+
+    private static void addSleepSession(Schema schema, Entity user, Entity device) {
+        Entity session = addEntity(schema, "SleepSession");
+        session.setJavaDoc(
+                "A night (or nap) of sleep, detected from the activity samples by SleepSessionStore.");
+        session.addIdProperty();
+        session.addIntProperty("startTime").notNull().javaDocGetterAndSetter("Timestamp of falling asleep, in seconds.");
+        Property endTime = session.addIntProperty("endTime").notNull().javaDocGetterAndSetter("Timestamp of waking up, in seconds.");
+        session.addIntProperty("lightSleepSeconds").notNull();
+        session.addIntProperty("deepSleepSeconds").notNull();
+        session.addIntProperty("awakeSeconds").notNull().javaDocGetterAndSetter("Time spent awake between falling asleep and waking up.");
+
+        Property deviceId = session.addLongProperty("deviceId").notNull().getProperty();
+        session.addToOne(device, deviceId);
+        Property userId = session.addLongProperty("userId").notNull().getProperty();
+        session.addToOne(user, userId);
+
+        // sessions are looked up by the time they ended per device
+        Index indexDeviceEndTime = new Index();
+        indexDeviceEndTime.setName("IDX_SLEEP_SESSION_DEVICE_ID_END_TIME");
+        indexDeviceEndTime.addProperty(deviceId);
+        indexDeviceEndTime.addProperty(endTime);
+        session.addIndex(indexDeviceEndTime);
     }
 
     private static Property findProperty(Entity entity, String propertyName) {
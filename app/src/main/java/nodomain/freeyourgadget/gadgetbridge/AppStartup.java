@@ -0,0 +1,208 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the initialization tasks of the application in dependency order.
+ * <p/>
+ * Tasks that are needed before the first frame (or the first broadcast) can be handled
+ * run on the calling thread, in the order they are added. Deferred tasks run on a small
+ * thread pool as soon as all their dependencies are done, independent deferred tasks run
+ * in parallel. Code that needs the result of a deferred task waits for it with
+ * {@link Task#await()}.
+ * <p/>
+ * The duration of every task and of both phases is logged.
+ */
+public class AppStartup {
+    // Since this class runs before logging is set up, we use plain android.util.Log
+    private static final String TAG = "AppStartup";
+    private static final int THREADS = 3;
+
+    private final List<Task> tasks = new ArrayList<>();
+    private final boolean inline;
+    private final AtomicInteger pendingDeferred = new AtomicInteger();
+    private ExecutorService executor;
+    private long startTime;
+
+    /**
+     * @param inline if true, deferred tasks run on the calling thread as well, e.g. for local tests
+     */
+    public AppStartup(boolean inline) {
+        this.inline = inline;
+    }
+
+    public abstract static class Task {
+        private final String name;
+        private final boolean deferred;
+        private final Task[] dependencies;
+        private final List<Task> dependents = new ArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger pendingDependencies = new AtomicInteger();
+        private AppStartup startup;
+
+        /**
+         * @param deferred true if the task is not needed for the first frame and may run in the background
+         * @param dependencies tasks that must be done before this one is run
+         */
+        public Task(String name, boolean deferred, Task... dependencies) {
+            this.name = name;
+            this.deferred = deferred;
+            this.dependencies = dependencies;
+        }
+
+        protected abstract void run() throws Exception;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits until the task is done (or failed), returns immediately if it was never started.
+         */
+        public void await() {
+            if (startup == null) {
+                return;
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for " + name);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void execute() {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                run();
+            } catch (Throwable t) {
+                Log.e(TAG, "Startup task " + name + " failed", t);
+            } finally {
+                done.countDown();
+            }
+            Log.i(TAG, "Startup task " + name + " took " + (SystemClock.elapsedRealtime() - start) + "ms on " + Thread.currentThread().getName());
+            for (Task dependent : dependents) {
+                if (dependent.pendingDependencies.decrementAndGet() == 0) {
+                    startup.schedule(dependent);
+                }
+            }
+            if (deferred) {
+                startup.deferredDone();
+            }
+        }
+    }
+
+    /**
+     * Adds a task, its dependencies must have been added before.
+     */
+    public AppStartup add(Task task) {
+        for (Task dependency : task.dependencies) {
+            if (!tasks.contains(dependency)) {
+                throw new IllegalArgumentException(task.name + " depends on " + dependency.name + ", which was not added before");
+            }
+            if (!task.deferred && dependency.deferred) {
+                throw new IllegalArgumentException(task.name + " must not wait for the deferred task " + dependency.name);
+            }
+        }
+        tasks.add(task);
+        return this;
+    }
+
+    /**
+     * Runs the immediate tasks on the calling thread and starts the deferred ones.
+     */
+    public void run() {
+        startTime = SystemClock.elapsedRealtime();
+        for (Task task : tasks) {
+            task.startup = this;
+            if (task.deferred) {
+                pendingDeferred.incrementAndGet();
+            }
+            for (Task dependency : task.dependencies) {
+                if (dependency.deferred) {
+                    task.pendingDependencies.incrementAndGet();
+                    dependency.dependents.add(task);
+                }
+            }
+        }
+        if (pendingDeferred.get() > 0 && !inline) {
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Startup " + count.incrementAndGet());
+                }
+            });
+        }
+
+        for (Task task : tasks) {
+            if (!task.deferred) {
+                task.execute();
+            }
+        }
+        Log.i(TAG, "Immediate startup took " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+
+        // collected first, scheduled tasks may already release their dependents
+        List<Task> ready = new ArrayList<>();
+        for (Task task : tasks) {
+            if (task.deferred && task.pendingDependencies.get() == 0) {
+                ready.add(task);
+            }
+        }
+        for (Task task : ready) {
+            schedule(task);
+        }
+    }
+
+    private void schedule(final Task task) {
+        if (executor == null) {
+            task.execute();
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.execute();
+            }
+        });
+    }
+
+    private void deferredDone() {
+        if (pendingDeferred.decrementAndGet() == 0) {
+            Log.i(TAG, "Deferred startup finished after " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -46,6 +46,7 @@ import android.util.TypedValue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -57,6 +58,10 @@ import java.util.concurrent.locks.ReentrantLock;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.database.DBOpenHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.HeartRateStore;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
+import nodomain.freeyourgadget.gadgetbridge.database.SampleLog;
+import nodomain.freeyourgadget.gadgetbridge.database.SleepSessionStore;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothStateChangeReceiver;
@@ -64,6 +69,7 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
+import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.service.NotificationCollectorMonitorService;
 import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
@@ -71,6 +77,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 import nodomain.freeyourgadget.gadgetbridge.util.LimitedQueue;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
 
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
@@ -98,6 +105,10 @@ public class GBApplication extends Application {
     private static Prefs prefs;
     private static GBPrefs gbPrefs;
     private static LockHandler lockHandler;
+    private static volatile AppStartup.Task databaseTask;
+    private static volatile AppStartup.Task appsNotifBlackListTask;
+    private static volatile AppStartup.Task appsPebbleBlackListTask;
+    private static volatile AppStartup.Task calendarsBlackListTask;
     /**
      * Note: is null on Lollipop and Kitkat
      */
@@ -158,33 +169,104 @@ public class GBApplication extends Application {
         sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         prefs = new Prefs(sharedPrefs);
         gbPrefs = new GBPrefs(prefs);
+        PrefsSnapshot.install(prefs);
 
+        boolean setupDatabase = false;
         if (!GBEnvironment.isEnvironmentSetup()) {
             GBEnvironment.setupEnvironment(GBEnvironment.createDeviceEnvironment());
             // setup db after the environment is set up, but don't do it in test mode
             // in test mode, it's done individually, see TestBase
-            setupDatabase();
+            setupDatabase = true;
         }
 
-        // don't do anything here before we set up logging, otherwise
-        // slf4j may be implicitly initialized before we properly configured it.
-        setupLogging(isFileLoggingEnabled());
+        AppStartup startup = new AppStartup(GBEnvironment.env().isLocalTest());
+        AppStartup.Task loggingTask = new AppStartup.Task("logging", false) {
+            @Override
+            protected void run() {
+                // don't do anything here before we set up logging, otherwise
+                // slf4j may be implicitly initialized before we properly configured it.
+                setupLogging(isFileLoggingEnabled());
 
-        if (getPrefsFileVersion() != CURRENT_PREFS_VERSION) {
-            migratePrefs(getPrefsFileVersion());
-        }
+                if (getPrefsFileVersion() != CURRENT_PREFS_VERSION) {
+                    migratePrefs(getPrefsFileVersion());
+                }
 
-        setupExceptionHandler();
+                setupExceptionHandler();
+            }
+        };
+        AppStartup.Task languageTask = new AppStartup.Task("language", false, loggingTask) {
+            @Override
+            protected void run() {
+                String language = prefs.getString("language", "default");
+                setLanguage(language);
+            }
+        };
+        AppStartup.Task servicesTask = new AppStartup.Task("services", false, loggingTask) {
+            @Override
+            protected void run() {
+                deviceManager = new DeviceManager(GBApplication.this);
+                deviceService = createDeviceService();
+                setupNotificationChannel();
+            }
+        };
+        startup.add(loggingTask).add(languageTask).add(servicesTask);
+
+        // everything below is not needed for the first frame and is done in the background
+        if (setupDatabase) {
+            databaseTask = new AppStartup.Task("database", true, loggingTask) {
+                @Override
+                protected void run() {
+                    setupDatabase();
+                }
+            };
+            startup.add(databaseTask);
+        }
+        AppStartup.Task pairedDevicesTask = new AppStartup.Task("paired devices", true, dependencies(servicesTask, databaseTask)) {
+            @Override
+            protected void run() {
+                deviceManager.loadPairedDevices();
+            }
+        };
+        appsNotifBlackListTask = new AppStartup.Task("apps_notification_blacklist", true, loggingTask) {
+            @Override
+            protected void run() {
+                loadAppsNotifBlackList();
+            }
+        };
+        appsPebbleBlackListTask = new AppStartup.Task("apps_pebblemsg_blacklist", true, loggingTask) {
+            @Override
+            protected void run() {
+                loadAppsPebbleBlackList();
+            }
+        };
+        calendarsBlackListTask = new AppStartup.Task("calendars_blacklist", true, loggingTask) {
+            @Override
+            protected void run() {
+                loadCalendarsBlackList();
+            }
+        };
+        AppStartup.Task weatherTask = new AppStartup.Task("weather", true, loggingTask) {
+            @Override
+            protected void run() {
+                Weather.getInstance().load(new File(getFilesDir(), "weather"));
+            }
+        };
+        startup.add(pairedDevicesTask).add(appsNotifBlackListTask).add(appsPebbleBlackListTask).add(calendarsBlackListTask).add(weatherTask);
 
-        deviceManager = new DeviceManager(this);
-        String language = prefs.getString("language", "default");
-        setLanguage(language);
+        startup.run();
+    }
 
-        deviceService = createDeviceService();
-        loadAppsNotifBlackList();
-        loadAppsPebbleBlackList();
-        loadCalendarsBlackList();
+    private static AppStartup.Task[] dependencies(AppStartup.Task... tasks) {
+        List<AppStartup.Task> result = new ArrayList<>();
+        for (AppStartup.Task task : tasks) {
+            if (task != null) {
+                result.add(task);
+            }
+        }
+        return result.toArray(new AppStartup.Task[result.size()]);
+    }
 
+    private void setupNotificationChannel() {
         if (isRunningMarshmallowOrLater()) {
             notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
             //the following will ensure the notification manager is kept alive
@@ -204,6 +286,15 @@ public class GBApplication extends Application {
         }
     }
 
+    /**
+     * Waits until the given deferred startup task is done, if it was started at all.
+     */
+    private static void awaitStartup(AppStartup.Task task) {
+        if (task != null) {
+            task.await();
+        }
+    }
+
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
@@ -290,8 +381,10 @@ public class GBApplication extends Application {
      * @see #releaseDB()
      */
     public static DBHandler acquireDB() throws GBException {
+        // the database is opened in the background during startup
+        awaitStartup(databaseTask);
         try {
-            if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
+            if (lockHandler != null && dbLock.tryLock(30, TimeUnit.SECONDS)) {
                 return lockHandler;
             }
         } catch (InterruptedException ex) {
@@ -381,6 +474,7 @@ public class GBApplication extends Application {
     private static HashSet<String> apps_notification_blacklist = null;
 
     public static boolean appIsNotifBlacklisted(String packageName) {
+        awaitStartup(appsNotifBlackListTask);
         if (apps_notification_blacklist == null) {
             GB.log("appIsNotifBlacklisted: apps_notification_blacklist is null!", GB.INFO, null);
         }
@@ -388,6 +482,7 @@ public class GBApplication extends Application {
     }
 
     public static void setAppsNotifBlackList(Set<String> packageNames) {
+        awaitStartup(appsNotifBlackListTask);
         if (packageNames == null) {
             GB.log("Set null apps_notification_blacklist", GB.INFO, null);
             apps_notification_blacklist = new HashSet<>();
@@ -399,11 +494,9 @@ public class GBApplication extends Application {
     }
 
     private static void loadAppsNotifBlackList() {
-        GB.log("Loading apps_notification_blacklist", GB.INFO, null);
-        apps_notification_blacklist = (HashSet<String>) sharedPrefs.getStringSet(GBPrefs.PACKAGE_BLACKLIST, null);
-        if (apps_notification_blacklist == null) {
-            apps_notification_blacklist = new HashSet<>();
-        }
+        Set<String> stored = sharedPrefs.getStringSet(GBPrefs.PACKAGE_BLACKLIST, null);
+        // copied, the set returned by SharedPreferences must not be modified
+        apps_notification_blacklist = stored != null ? new HashSet<>(stored) : new HashSet<String>();
         GB.log("Loaded apps_notification_blacklist has " + apps_notification_blacklist.size() + " entries", GB.INFO, null);
     }
 
@@ -419,12 +512,14 @@ public class GBApplication extends Application {
     }
 
     public static void addAppToNotifBlacklist(String packageName) {
+        awaitStartup(appsNotifBlackListTask);
         if (apps_notification_blacklist.add(packageName)) {
             saveAppsNotifBlackList();
         }
     }
 
     public static synchronized void removeFromAppsNotifBlacklist(String packageName) {
+        awaitStartup(appsNotifBlackListTask);
         GB.log("Removing from apps_notification_blacklist: " + packageName, GB.INFO, null);
         apps_notification_blacklist.remove(packageName);
         saveAppsNotifBlackList();
@@ -433,6 +528,7 @@ public class GBApplication extends Application {
     private static HashSet<String> apps_pebblemsg_blacklist = null;
 
     public static boolean appIsPebbleBlacklisted(String sender) {
+        awaitStartup(appsPebbleBlackListTask);
         if (apps_pebblemsg_blacklist == null) {
             GB.log("appIsPebbleBlacklisted: apps_pebblemsg_blacklist is null!", GB.INFO, null);
         }
@@ -440,6 +536,7 @@ public class GBApplication extends Application {
     }
 
     public static void setAppsPebbleBlackList(Set<String> packageNames) {
+        awaitStartup(appsPebbleBlackListTask);
         if (packageNames == null) {
             GB.log("Set null apps_pebblemsg_blacklist", GB.INFO, null);
             apps_pebblemsg_blacklist = new HashSet<>();
@@ -451,11 +548,9 @@ public class GBApplication extends Application {
     }
 
     private static void loadAppsPebbleBlackList() {
-        GB.log("Loading apps_pebblemsg_blacklist", GB.INFO, null);
-        apps_pebblemsg_blacklist = (HashSet<String>) sharedPrefs.getStringSet(GBPrefs.PACKAGE_PEBBLEMSG_BLACKLIST, null);
-        if (apps_pebblemsg_blacklist == null) {
-            apps_pebblemsg_blacklist = new HashSet<>();
-        }
+        Set<String> stored = sharedPrefs.getStringSet(GBPrefs.PACKAGE_PEBBLEMSG_BLACKLIST, null);
+        // copied, the set returned by SharedPreferences must not be modified
+        apps_pebblemsg_blacklist = stored != null ? new HashSet<>(stored) : new HashSet<String>();
         GB.log("Loaded apps_pebblemsg_blacklist has " + apps_pebblemsg_blacklist.size() + " entries", GB.INFO, null);
     }
 
@@ -471,12 +566,14 @@ public class GBApplication extends Application {
     }
 
     public static void addAppToPebbleBlacklist(String packageName) {
+        awaitStartup(appsPebbleBlackListTask);
         if (apps_pebblemsg_blacklist.add(packageNameToPebbleMsgSender(packageName))) {
             saveAppsPebbleBlackList();
         }
     }
 
     public static synchronized void removeFromAppsPebbleBlacklist(String packageName) {
+        awaitStartup(appsPebbleBlackListTask);
         GB.log("Removing from apps_pebblemsg_blacklist: " + packageName, GB.INFO, null);
         apps_pebblemsg_blacklist.remove(packageNameToPebbleMsgSender(packageName));
         saveAppsPebbleBlackList();
@@ -494,6 +591,7 @@ public static String packageNameToPebbleMsgSender(String packageName) {
     private static HashSet<String> calendars_blacklist = null;
 
     public static boolean calendarIsBlacklisted(String calendarDisplayName) {
+        awaitStartup(calendarsBlackListTask);
         if (calendars_blacklist == null) {
             GB.log("calendarIsBlacklisted: calendars_blacklist is null!", GB.INFO, null);
         }
@@ -501,6 +599,7 @@ public static String packageNameToPebbleMsgSender(String packageName) {
     }
 
     public static void setCalendarsBlackList(Set<String> calendarNames) {
+        awaitStartup(calendarsBlackListTask);
         if (calendarNames == null) {
             GB.log("Set null apps_notification_blacklist", GB.INFO, null);
             calendars_blacklist = new HashSet<>();
@@ -512,22 +611,22 @@ public static String packageNameToPebbleMsgSender(String packageName) {
     }
 
     public static void addCalendarToBlacklist(String calendarDisplayName) {
+        awaitStartup(calendarsBlackListTask);
         if (calendars_blacklist.add(calendarDisplayName)) {
             saveCalendarsBlackList();
         }
     }
 
     public static void removeFromCalendarBlacklist(String calendarDisplayName) {
+        awaitStartup(calendarsBlackListTask);
         calendars_blacklist.remove(calendarDisplayName);
         saveCalendarsBlackList();
     }
 
     private static void loadCalendarsBlackList() {
-        GB.log("Loading calendars_blacklist", GB.INFO, null);
-        calendars_blacklist = (HashSet<String>) sharedPrefs.getStringSet(GBPrefs.CALENDAR_BLACKLIST, null);
-        if (calendars_blacklist == null) {
-            calendars_blacklist = new HashSet<>();
-        }
+        Set<String> stored = sharedPrefs.getStringSet(GBPrefs.CALENDAR_BLACKLIST, null);
+        // copied, the set returned by SharedPreferences must not be modified
+        calendars_blacklist = stored != null ? new HashSet<>(stored) : new HashSet<String>();
         GB.log("Loaded calendars_blacklist has " + calendars_blacklist.size() + " entries", GB.INFO, null);
     }
 
@@ -552,8 +651,13 @@ public static String packageNameToPebbleMsgSender(String packageName) {
         if (lockHandler != null) {
             lockHandler.closeDb();
         }
+        DBHelper.clearIdentityCache();
         boolean result = deleteOldActivityDatabase(context);
         result &= getContext().deleteDatabase(DATABASE_NAME);
+        result &= RawSampleArchive.deleteArchive(getContext());
+        result &= HeartRateStore.deleteStore(getContext());
+        result &= SampleLog.deleteStore(getContext());
+        SleepSessionStore.invalidate(getContext());
         return result;
     }
 
@@ -27,10 +27,17 @@ import android.os.Build;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.activities.ConfigureAlarms;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.SleepSessionStore;
+import nodomain.freeyourgadget.gadgetbridge.entities.SleepSession;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBAlarm;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
@@ -38,9 +45,14 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 /**
  * Implementation of SleepAlarmWidget functionality. When pressing the widget, an alarm will be set
  * to trigger after a predefined number of hours. A toast will confirm the user about this. The
- * value is retrieved using ActivityUser.().getSleepDuration().
+ * value is retrieved using ActivityUser.().getSleepDuration(). The time the user typically
+ * spends awake during a night, according to the recent sleep sessions, is added to it.
  */
 public class SleepAlarmWidget extends AppWidgetProvider {
+    private static final Logger LOG = LoggerFactory.getLogger(SleepAlarmWidget.class);
+
+    private static final int RECENT_SLEEP_SESSIONS = 7;
+    private static final int MAX_AWAKE_MINUTES = 60;
 
     /**
      * This is our dedicated action to detect when the widget has been clicked.
@@ -91,6 +103,8 @@ public class SleepAlarmWidget extends AppWidgetProvider {
             GregorianCalendar calendar = new GregorianCalendar();
             // add preferred sleep duration
             calendar.add(Calendar.HOUR_OF_DAY, userSleepDuration);
+            // and the time it takes to get it
+            calendar.add(Calendar.MINUTE, getTypicalAwakeMinutes());
 
 
             // overwrite the first alarm and activate it
@@ -110,6 +124,26 @@ public class SleepAlarmWidget extends AppWidgetProvider {
         }
     }
 
+    /**
+     * Returns the average time spent awake during the recent sleep sessions, in minutes.
+     */
+    private int getTypicalAwakeMinutes() {
+        try (DBHandler db = GBApplication.acquireDB()) {
+            List<SleepSession> sessions = SleepSessionStore.getLatestSessions(db.getDaoSession(), RECENT_SLEEP_SESSIONS);
+            if (sessions.isEmpty()) {
+                return 0;
+            }
+            long awakeSeconds = 0;
+            for (SleepSession session : sessions) {
+                awakeSeconds += session.getAwakeSeconds();
+            }
+            return (int) Math.min(awakeSeconds / sessions.size() / 60, MAX_AWAKE_MINUTES);
+        } catch (Exception ex) {
+            LOG.warn("Unable to get the recent sleep sessions", ex);
+            return 0;
+        }
+    }
+
     /**
      * Use the Android alarm manager to create the alarm icon in the status bar.
      *
@@ -80,6 +80,9 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
                         }
                     }
                     break;
+                case ActivitySummary.ACTION_SUMMARIES_CHANGED:
+                    refresh();
+                    break;
             }
         }
     };
@@ -116,6 +119,7 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
 
         IntentFilter filterLocal = new IntentFilter();
         filterLocal.addAction(GBDevice.ACTION_DEVICE_CHANGED);
+        filterLocal.addAction(ActivitySummary.ACTION_SUMMARIES_CHANGED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, filterLocal);
 
         super.onCreate(savedInstanceState);
@@ -230,6 +234,12 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
         });
     }
 
+    @Override
+    protected void refresh() {
+        // only pick up new summaries, the pages loaded so far stay valid
+        ((ActivitySummariesAdapter) getItemAdapter()).loadNewer();
+    }
+
     public void resetFetchTimestampToChosenDate() {
         final Calendar currentDate = Calendar.getInstance();
         new DatePickerDialog(this, new DatePickerDialog.OnDateSetListener() {
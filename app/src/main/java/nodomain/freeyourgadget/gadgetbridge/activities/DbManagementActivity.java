@@ -18,12 +18,17 @@
 package nodomain.freeyourgadget.gadgetbridge.activities;
 
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NavUtils;
+import android.support.v4.content.LocalBroadcastManager;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
@@ -38,8 +43,17 @@ import java.io.IOException;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.database.ActivityDataImporter;
+import nodomain.freeyourgadget.gadgetbridge.database.ColumnarExporter;
+import nodomain.freeyourgadget.gadgetbridge.database.DBAccess;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.ImportExportSharedPreferences;
@@ -52,6 +66,10 @@ public class DbManagementActivity extends AbstractGBActivity {
 
     private Button exportDBButton;
     private Button importDBButton;
+    private Button exportColumnarButton;
+    private Button mergeDataButton;
+    private Button moveToSampleLogButton;
+    private Button moveToDatabaseButton;
     private Button deleteOldActivityDBButton;
     private Button deleteDBButton;
     private TextView dbPath;
@@ -79,6 +97,37 @@ public class DbManagementActivity extends AbstractGBActivity {
             }
         });
 
+        exportColumnarButton = (Button) findViewById(R.id.exportColumnarButton);
+        exportColumnarButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportForAnalysis();
+            }
+        });
+
+        mergeDataButton = (Button) findViewById(R.id.mergeDataButton);
+        mergeDataButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mergeData();
+            }
+        });
+
+        moveToSampleLogButton = (Button) findViewById(R.id.moveToSampleLogButton);
+        moveToSampleLogButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                moveSamples(true);
+            }
+        });
+        moveToDatabaseButton = (Button) findViewById(R.id.moveToDatabaseButton);
+        moveToDatabaseButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                moveSamples(false);
+            }
+        });
+
         int oldDBVisibility = hasOldActivityDatabase() ? View.VISIBLE : View.GONE;
 
         deleteOldActivityDBButton = (Button) findViewById(R.id.deleteOldActivityDB);
@@ -150,6 +199,197 @@ public class DbManagementActivity extends AbstractGBActivity {
         }
     }
 
+    /**
+     * Exports all tables into columnar files in the background, while the database stays open.
+     */
+    private void exportForAnalysis() {
+        exportColumnarButton.setEnabled(false);
+        new DBAccess("export for analysis", this) {
+            private File exportDir;
+
+            @Override
+            protected void doInBackground(DBHandler handler) {
+                try {
+                    exportDir = new ColumnarExporter(handler.getDaoSession()).export(FileUtils.getExternalFilesDir());
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Object o) {
+                super.onPostExecute(o);
+                exportColumnarButton.setEnabled(true);
+                if (exportDir != null) {
+                    GB.toast(DbManagementActivity.this, getString(R.string.dbmanagementactivity_exported_to, exportDir.getAbsolutePath()), Toast.LENGTH_LONG, GB.INFO);
+                }
+            }
+
+            @Override
+            protected void displayError(Throwable error) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                GB.toast(DbManagementActivity.this, getString(R.string.dbmanagementactivity_error_exporting_db, cause.getMessage()), Toast.LENGTH_LONG, GB.ERROR, cause);
+            }
+        }.execute();
+    }
+
+    /**
+     * Moves the activity samples of all devices that support it into the binary sample log,
+     * or back into the database.
+     */
+    private void moveSamples(final boolean toSampleLog) {
+        moveToSampleLogButton.setEnabled(false);
+        moveToDatabaseButton.setEnabled(false);
+        new DBAccess("move samples", this) {
+            private int moved;
+
+            @Override
+            protected void doInBackground(DBHandler handler) {
+                try {
+                    for (GBDevice device : GBApplication.app().getDeviceManager().getDevices()) {
+                        DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(device);
+                        SampleProvider<?> provider = coordinator.getSampleProvider(device, handler.getDaoSession());
+                        if (provider instanceof AbstractSampleProvider && ((AbstractSampleProvider<?>) provider).supportsSampleLog()) {
+                            AbstractSampleProvider<?> sampleProvider = (AbstractSampleProvider<?>) provider;
+                            moved += toSampleLog ? sampleProvider.moveToSampleLog() : sampleProvider.moveToDatabase();
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Object o) {
+                super.onPostExecute(o);
+                moveToSampleLogButton.setEnabled(true);
+                moveToDatabaseButton.setEnabled(true);
+                GB.toast(DbManagementActivity.this, getString(R.string.dbmanagementactivity_moved_samples, moved), Toast.LENGTH_LONG, GB.INFO);
+            }
+
+            @Override
+            protected void displayError(Throwable error) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                GB.toast(DbManagementActivity.this, getString(R.string.dbmanagementactivity_error_moving_samples, cause.getMessage()), Toast.LENGTH_LONG, GB.ERROR, cause);
+            }
+        }.execute();
+    }
+
+    /**
+     * Returns the newer one of the exported database file in the export directory and the
+     * most recent export for analysis.
+     */
+    @Nullable
+    private File findMergeSource() throws IOException {
+        File dir = FileUtils.getExternalFilesDir();
+        File dbFile = new File(dir, GBApplication.DATABASE_NAME);
+        File latest = null;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith("gadgetbridge-export-")
+                        && (latest == null || file.getName().compareTo(latest.getName()) > 0)) {
+                    latest = file;
+                }
+            }
+        }
+        if (!dbFile.isFile()) {
+            return latest;
+        }
+        // the directory is modified when the export is finished and its manifest is written
+        if (latest == null || dbFile.lastModified() >= latest.lastModified()) {
+            return dbFile;
+        }
+        return latest;
+    }
+
+    private void mergeData() {
+        final File source;
+        try {
+            source = findMergeSource();
+        } catch (IOException ex) {
+            GB.toast(this, getString(R.string.dbmanagementactivity_error_merging, ex.getMessage()), Toast.LENGTH_LONG, GB.ERROR, ex);
+            return;
+        }
+        if (source == null) {
+            GB.toast(this, getString(R.string.dbmanagementactivity_merge_nothing_found, getExternalPath()), Toast.LENGTH_LONG, GB.INFO);
+            return;
+        }
+        final ActivityDataImporter importer = new ActivityDataImporter(this);
+        String message = importer.isResumable(source)
+                ? getString(R.string.dbmanagementactivity_merge_data_resume_confirmation, source.getName())
+                : getString(R.string.dbmanagementactivity_merge_data_confirmation, source.getName());
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle(R.string.dbmanagementactivity_merge_data_title)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        new MergeDataTask(getApplicationContext(), importer).execute(source);
+                    }
+                })
+                .setNegativeButton(R.string.Cancel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Merges in the background and reports its progress in a notification, so that it
+     * may outlive this activity. Unlike DBAccess, it does not hold the database while
+     * running, the importer acquires it for every batch.
+     */
+    private static class MergeDataTask extends AsyncTask<File, Integer, Long> {
+        private final Context context;
+        private final ActivityDataImporter importer;
+        private Exception error;
+
+        MergeDataTask(Context context, ActivityDataImporter importer) {
+            this.context = context;
+            this.importer = importer;
+        }
+
+        @Override
+        protected Long doInBackground(File... sources) {
+            try {
+                return importer.importFrom(sources[0], new ActivityDataImporter.ProgressListener() {
+                    private int lastPercentage = -1;
+
+                    @Override
+                    public void onProgress(long importedRows, long totalRows) {
+                        int percentage = totalRows > 0 ? (int) (importedRows * 100 / totalRows) : 0;
+                        if (percentage != lastPercentage && percentage < 100) {
+                            lastPercentage = percentage;
+                            publishProgress(percentage);
+                        }
+                    }
+                });
+            } catch (Exception ex) {
+                error = ex;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            GB.updateTransferNotification(context.getString(R.string.dbmanagementactivity_merging), "", true, values[0], context);
+        }
+
+        @Override
+        protected void onPostExecute(Long rows) {
+            GB.updateTransferNotification(null, "", false, 100, context);
+            if (error != null) {
+                GB.toast(context, context.getString(R.string.dbmanagementactivity_error_merging, error.getMessage()), Toast.LENGTH_LONG, GB.ERROR, error);
+                return;
+            }
+            GB.toast(context, context.getString(R.string.dbmanagementactivity_merged_rows, rows), Toast.LENGTH_LONG, GB.INFO);
+            LocalBroadcastManager.getInstance(context).sendBroadcast(new Intent(ActivitySummary.ACTION_SUMMARIES_CHANGED));
+        }
+    }
+
     private void importDB() {
         new AlertDialog.Builder(this)
                 .setCancelable(true)
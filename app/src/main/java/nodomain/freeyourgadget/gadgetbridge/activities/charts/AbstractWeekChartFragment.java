@@ -234,17 +234,8 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
     }
 
     private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
-        int startTs;
-        int endTs;
-
-        day = (Calendar) day.clone(); // do not modify the caller's argument
-        day.set(Calendar.HOUR_OF_DAY, 0);
-        day.set(Calendar.MINUTE, 0);
-        day.set(Calendar.SECOND, 0);
-        day.add(Calendar.HOUR, offsetHours);
-
-        startTs = (int) (day.getTimeInMillis() / 1000);
-        endTs = startTs + 24 * 60 * 60 - 1;
+        int startTs = getDayStart(day, offsetHours);
+        int endTs = startTs + 24 * 60 * 60 - 1;
 
         return getSamples(db, device, startTs, endTs);
     }
@@ -295,8 +286,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         }
 
         if (amounts == null) {
-            ActivityAnalysis analysis = new ActivityAnalysis();
-            amounts = analysis.calculateActivityAmounts(getSamplesOfDay(db, day, mOffsetHours, device));
+            amounts = calculateActivityAmountsForDay(db, day, mOffsetHours, device);
             if (activityAmountCache != null) {
                 activityAmountCache.add(key, amounts);
             }
@@ -305,6 +295,27 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         return amounts;
     }
 
+    /**
+     * Calculates the amounts of the day that starts offsetHours after the midnight of the given day.
+     * To be called from a background thread.
+     */
+    protected ActivityAmounts calculateActivityAmountsForDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+        ActivityAnalysis analysis = new ActivityAnalysis();
+        return analysis.calculateActivityAmounts(getSamplesOfDay(db, day, offsetHours, device));
+    }
+
+    /**
+     * Returns the timestamp of the start of the day that starts offsetHours after the midnight of the given day.
+     */
+    protected static int getDayStart(Calendar day, int offsetHours) {
+        day = (Calendar) day.clone(); // do not modify the caller's argument
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.add(Calendar.HOUR, offsetHours);
+        return (int) (day.getTimeInMillis() / 1000);
+    }
+
     abstract int getGoal();
 
     abstract int getOffsetHours();
@@ -25,11 +25,19 @@ import com.github.mikephil.charting.formatter.IValueFormatter;
 import com.github.mikephil.charting.utils.ViewPortHandler;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.SleepSessionStore;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.SleepSession;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
@@ -57,6 +65,37 @@ public class WeekSleepChartFragment extends AbstractWeekChartFragment {
         return -12;
     }
 
+    /**
+     * Sums up the sleep sessions that ended on the given day, instead of analyzing all samples of it.
+     */
+    @Override
+    protected ActivityAmounts calculateActivityAmountsForDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+        ActivityAmounts amounts = new ActivityAmounts();
+        DaoSession session = db.getDaoSession();
+        Device dbDevice = DBHelper.findDevice(device, session);
+        if (dbDevice == null) {
+            return amounts;
+        }
+        int dayStart = getDayStart(day, offsetHours);
+        int dayEnd = dayStart + 24 * 60 * 60 - 1;
+        SleepSessionStore.ensureAnalyzed(session, getProvider(db, device), dbDevice, dayStart, dayEnd);
+
+        ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
+        ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
+        for (SleepSession sleepSession : SleepSessionStore.getSessionsEndingBetween(session, dbDevice.getId(), dayStart, dayEnd)) {
+            deepSleep.addSeconds(sleepSession.getDeepSleepSeconds());
+            lightSleep.addSeconds(sleepSession.getLightSleepSeconds());
+        }
+        if (deepSleep.getTotalSeconds() > 0) {
+            amounts.addAmount(deepSleep);
+        }
+        if (lightSleep.getTotalSeconds() > 0) {
+            amounts.addAmount(lightSleep);
+        }
+        amounts.calculatePercentages();
+        return amounts;
+    }
+
     @Override
     float[] getTotalsForActivityAmounts(ActivityAmounts activityAmounts) {
         long totalSecondsDeepSleep = 0;
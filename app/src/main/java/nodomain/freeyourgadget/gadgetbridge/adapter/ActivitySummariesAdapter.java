@@ -17,13 +17,16 @@
 package nodomain.freeyourgadget.gadgetbridge.adapter;
 
 import android.content.Context;
-import android.widget.Toast;
+import android.support.annotation.Nullable;
+import android.view.View;
+import android.view.ViewGroup;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import de.greenrobot.dao.query.QueryBuilder;
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBAccess;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
@@ -32,10 +35,25 @@ import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
+/**
+ * Shows the activity summaries of a device, newest first. Summaries are loaded page by
+ * page in the background, using the (startTime, id) of the last loaded summary as the
+ * key for the next page, so that opening the list does not depend on the size of the
+ * history. {@link #loadNewer()} picks up summaries that were added in the meantime.
+ */
 public class ActivitySummariesAdapter extends AbstractItemAdapter<BaseActivitySummary> {
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10;
+
     private final GBDevice device;
+    // incremented on every reload, results of older loads are discarded
+    private int generation;
+    private boolean loadingPage;
+    private boolean hasMorePages;
+    // only one load of newer summaries at a time, both would use the same anchor
+    private boolean loadingNewer;
+    private boolean newerPending;
 
     public ActivitySummariesAdapter(Context context, GBDevice device) {
         super(context);
@@ -43,18 +61,139 @@ public class ActivitySummariesAdapter extends AbstractItemAdapter<BaseActivitySu
         loadItems();
     }
 
+    /**
+     * Reloads the list, starting with the first page.
+     */
     @Override
     public void loadItems() {
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        generation++;
+        loadingPage = true;
+        hasMorePages = true;
+        loadingNewer = false;
+        newerPending = false;
+        new LoadSummariesTask(generation, null, false).execute();
+    }
+
+    /**
+     * Loads the summaries that are newer than the newest one in the list. If such a load
+     * is still running, another one follows once it is done.
+     */
+    public void loadNewer() {
+        if (loadingNewer) {
+            newerPending = true;
+            return;
+        }
+        List<BaseActivitySummary> items = getItems();
+        if (items.isEmpty()) {
+            if (!loadingPage) {
+                loadItems();
+            }
+            return;
+        }
+        loadingNewer = true;
+        new LoadSummariesTask(generation, items.get(0), true).execute();
+    }
+
+    private void loadNextPage() {
+        List<BaseActivitySummary> items = getItems();
+        if (loadingPage || !hasMorePages || items.isEmpty()) {
+            return;
+        }
+        loadingPage = true;
+        new LoadSummariesTask(generation, items.get(items.size() - 1), false).execute();
+    }
+
+    @Override
+    public View getView(int position, View view, ViewGroup parent) {
+        if (position >= getCount() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+        return super.getView(position, view, parent);
+    }
+
+    private void onPageLoaded(LoadSummariesTask task, @Nullable List<BaseActivitySummary> result) {
+        if (task.generation != generation) {
+            return;
+        }
+        if (task.newer) {
+            loadingNewer = false;
+            if (result != null && !result.isEmpty()) {
+                getItems().addAll(0, result);
+                notifyDataSetChanged();
+            }
+            if (newerPending) {
+                newerPending = false;
+                loadNewer();
+            }
+            return;
+        }
+        loadingPage = false;
+        if (result == null) {
+            hasMorePages = false;
+            return;
+        }
+        hasMorePages = result.size() == PAGE_SIZE;
+        if (task.anchor == null) {
+            setItems(result, true);
+        } else {
+            getItems().addAll(result);
+            notifyDataSetChanged();
+        }
+    }
+
+    private class LoadSummariesTask extends DBAccess {
+        private final int generation;
+        @Nullable
+        private final BaseActivitySummary anchor;
+        private final boolean newer;
+        private List<BaseActivitySummary> result;
+
+        /**
+         * @param anchor the summary to continue after, or null to load the first page
+         * @param newer  if true, all summaries newer than the anchor are loaded,
+         *               otherwise the page of older summaries
+         */
+        LoadSummariesTask(int generation, @Nullable BaseActivitySummary anchor, boolean newer) {
+            super("Loading activity summaries", ActivitySummariesAdapter.this.getContext());
+            this.generation = generation;
+            this.anchor = anchor;
+            this.newer = newer;
+        }
+
+        @Override
+        protected void doInBackground(DBHandler handler) {
             BaseActivitySummaryDao summaryDao = handler.getDaoSession().getBaseActivitySummaryDao();
             Device dbDevice = DBHelper.findDevice(device, handler.getDaoSession());
+            if (dbDevice == null) {
+                result = new ArrayList<>();
+                return;
+            }
 
             QueryBuilder<BaseActivitySummary> qb = summaryDao.queryBuilder();
-            qb.where(BaseActivitySummaryDao.Properties.DeviceId.eq(dbDevice.getId())).orderDesc(BaseActivitySummaryDao.Properties.StartTime);
-            List<BaseActivitySummary> allSummaries = qb.build().list();
-            setItems(allSummaries, true);
-        } catch (Exception e) {
-            GB.toast("Error loading activity summaries.", Toast.LENGTH_SHORT, GB.ERROR, e);
+            qb.where(BaseActivitySummaryDao.Properties.DeviceId.eq(dbDevice.getId()));
+            if (anchor != null) {
+                Date startTime = anchor.getStartTime();
+                if (newer) {
+                    qb.whereOr(BaseActivitySummaryDao.Properties.StartTime.gt(startTime),
+                            qb.and(BaseActivitySummaryDao.Properties.StartTime.eq(startTime),
+                                    BaseActivitySummaryDao.Properties.Id.gt(anchor.getId())));
+                } else {
+                    qb.whereOr(BaseActivitySummaryDao.Properties.StartTime.lt(startTime),
+                            qb.and(BaseActivitySummaryDao.Properties.StartTime.eq(startTime),
+                                    BaseActivitySummaryDao.Properties.Id.lt(anchor.getId())));
+                }
+            }
+            qb.orderDesc(BaseActivitySummaryDao.Properties.StartTime, BaseActivitySummaryDao.Properties.Id);
+            if (!newer) {
+                qb.limit(PAGE_SIZE);
+            }
+            result = qb.build().list();
+        }
+
+        @Override
+        protected void onPostExecute(Object o) {
+            super.onPostExecute(o);
+            onPageLoaded(this, result);
         }
     }
 
@@ -0,0 +1,425 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummaryDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.DeviceDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+
+/**
+ * Merges the activity data (samples, overlays and activity summaries) of an exported
+ * database into the live database, which stays open and usable meanwhile: the database
+ * is only acquired for one batch at a time. The source
+ * may be a database file as written by {@link DBHelper#exportDB} or a directory written
+ * by {@link ColumnarExporter}.
+ * <p/>
+ * Devices are matched by their identifier (MAC address) and created if unknown, all data
+ * is attributed to the current user. Rows are streamed from the source and written with
+ * INSERT OR REPLACE in transactions of {@link #BATCH_ROWS} rows, so that rows from the
+ * source win over existing rows with the same key. Summaries are matched by device and
+ * start time. The position after every committed batch is remembered, so an interrupted
+ * import of the same source resumes where it stopped.
+ */
+public class ActivityDataImporter {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityDataImporter.class);
+
+    private static final int BATCH_ROWS = 10000;
+    private static final String PREFS_NAME = "activity_data_import";
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_TABLE = "table";
+    private static final String KEY_ROWS = "rows";
+
+    public interface ProgressListener {
+        void onProgress(long importedRows, long totalRows);
+    }
+
+    private final Context context;
+    private final SharedPreferences state;
+
+    public ActivityDataImporter(Context context) {
+        this.context = context;
+        state = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns true if an import of the given source was interrupted and would be resumed.
+     */
+    public boolean isResumable(File source) {
+        return getFingerprint(source).equals(state.getString(KEY_SOURCE, null));
+    }
+
+    /**
+     * Merges the given source into the database.
+     *
+     * @return the number of rows merged by this call, without rows of unknown devices and
+     * without rows that were merged before the import was interrupted
+     */
+    public long importFrom(File source, ProgressListener listener) throws Exception {
+        if (!SampleLog.getInstance().getDeviceIds().isEmpty()) {
+            // merged samples of those devices would end up in the database, where they are not read
+            throw new IOException("Samples are stored in the sample log, move them back to the database before merging");
+        }
+        String fingerprint = getFingerprint(source);
+        String resumeTable = null;
+        long resumeRows = 0;
+        if (fingerprint.equals(state.getString(KEY_SOURCE, null))) {
+            resumeTable = state.getString(KEY_TABLE, null);
+            resumeRows = state.getLong(KEY_ROWS, 0);
+            LOG.info("Resuming import of " + source + " at " + resumeTable + ", row " + resumeRows);
+        } else {
+            state.edit().clear().putString(KEY_SOURCE, fingerprint).apply();
+        }
+
+        try (ImportSource importSource = ImportSource.open(source)) {
+            Map<Long, Long> deviceIds;
+            long userId;
+            List<TableImport> tables;
+            try (DBHandler handler = GBApplication.acquireDB()) {
+                DaoSession session = handler.getDaoSession();
+                if (importSource.getSchemaVersion() > handler.getDatabase().getVersion()) {
+                    throw new IOException("The source is from a newer version of Gadgetbridge (schema " + importSource.getSchemaVersion() + ")");
+                }
+                deviceIds = mapDevices(importSource, session);
+                User user = DBHelper.getUser(session);
+                userId = user.getId();
+                tables = getTables(importSource, session);
+            }
+            long totalRows = 0;
+            for (TableImport table : tables) {
+                totalRows += table.rowCount;
+            }
+
+            long doneRows = 0;
+            long mergedRows = 0;
+            boolean resuming = resumeTable != null;
+            for (TableImport table : tables) {
+                long skipRows = 0;
+                if (resuming) {
+                    if (!table.name.equals(resumeTable)) {
+                        doneRows += table.rowCount;
+                        continue;
+                    }
+                    skipRows = resumeRows;
+                    resuming = false;
+                }
+                doneRows += skipRows;
+                doneRows = table.run(importSource, skipRows, doneRows, totalRows, deviceIds, userId, listener);
+                mergedRows += table.mergedRows;
+            }
+            LOG.info("Merged " + mergedRows + " of " + totalRows + " rows from " + source);
+            state.edit().clear().apply();
+            SleepSessionStore.invalidate(context);
+            return mergedRows;
+        }
+    }
+
+    /**
+     * Returns the ids of the target devices, keyed by the ids of the source devices.
+     */
+    private Map<Long, Long> mapDevices(ImportSource importSource, DaoSession session) throws IOException {
+        DeviceDao deviceDao = session.getDeviceDao();
+        String[] columns = new String[]{
+                DeviceDao.Properties.Id.columnName,
+                DeviceDao.Properties.Identifier.columnName,
+                DeviceDao.Properties.Name.columnName,
+                DeviceDao.Properties.Manufacturer.columnName,
+                DeviceDao.Properties.Type.columnName,
+                DeviceDao.Properties.Model.columnName
+        };
+        Map<Long, Long> deviceIds = new HashMap<>();
+        if (importSource.getColumns(deviceDao.getTablename()) == null) {
+            return deviceIds;
+        }
+        try (ImportSource.RowReader rows = importSource.read(deviceDao.getTablename(), columns, 0)) {
+            while (rows.next()) {
+                String identifier = rows.getString(1);
+                Device device = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(identifier)).unique();
+                if (device == null) {
+                    device = new Device();
+                    device.setIdentifier(identifier);
+                    device.setName(rows.getString(2));
+                    device.setManufacturer(rows.getString(3));
+                    device.setType((int) rows.getLong(4));
+                    device.setModel(rows.isNull(5) ? null : rows.getString(5));
+                    deviceDao.insert(device);
+                    LOG.info("Created device " + identifier + " for the import");
+                }
+                deviceIds.put(rows.getLong(0), device.getId());
+            }
+        }
+        return deviceIds;
+    }
+
+    /**
+     * Returns all tables with activity data, i.e. with device and user ids, that the source has.
+     * Sleep sessions are not imported, they are derived from the samples.
+     */
+    private List<TableImport> getTables(ImportSource importSource, DaoSession session) throws IOException {
+        List<TableImport> tables = new ArrayList<>();
+        for (AbstractDao<?, ?> dao : session.getAllDaos()) {
+            if (dao == session.getSleepSessionDao()) {
+                continue; // detected again from the imported samples
+            }
+            String[] sourceColumns = importSource.getColumns(dao.getTablename());
+            if (sourceColumns == null) {
+                continue;
+            }
+            TableImport table = new TableImport(dao, Arrays.asList(sourceColumns), session);
+            if (table.deviceColumn >= 0 && table.userColumn >= 0) {
+                table.rowCount = importSource.getRowCount(table.name);
+                tables.add(table);
+            }
+        }
+        Collections.sort(tables, new Comparator<TableImport>() {
+            @Override
+            public int compare(TableImport lhs, TableImport rhs) {
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        return tables;
+    }
+
+    private void saveProgress(String table, long rows) {
+        // committed synchronously, the position must not be ahead of the data after a crash
+        state.edit().putString(KEY_TABLE, table).putLong(KEY_ROWS, rows).commit();
+    }
+
+    private static String getFingerprint(File source) {
+        File file = source.isDirectory() ? new File(source, ColumnarFormat.MANIFEST_FILE_NAME) : source;
+        return source.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+    }
+
+    private class TableImport {
+        final String name;
+        final String[] columns;
+        final byte[] types;
+        final int deviceColumn;
+        final int userColumn;
+        // only set for the summaries, which have an autoincrement id
+        final int startTimeColumn;
+        // only set for tables whose raw blobs are kept in the RawSampleArchive
+        final RawSampleArchive.RawTable rawTable;
+        final int rawBlobColumn;
+        final int rawTimestampColumn;
+        long rowCount;
+        long mergedRows;
+
+        TableImport(AbstractDao<?, ?> dao, List<String> sourceColumns, DaoSession session) {
+            name = dao.getTablename();
+            boolean isSummary = name.equals(session.getBaseActivitySummaryDao().getTablename());
+            List<String> columnList = new ArrayList<>();
+            List<Byte> typeList = new ArrayList<>();
+            int device = -1;
+            int user = -1;
+            int startTime = -1;
+            for (Property property : dao.getProperties()) {
+                if (!sourceColumns.contains(property.columnName)) {
+                    continue; // older schema, the column keeps its default
+                }
+                if (isSummary && property.primaryKey) {
+                    continue; // the id of the source is meaningless here
+                }
+                if (property.name.equals("rawDataOffset")) {
+                    continue; // points into the RawSampleArchive of the source, exports have the blobs inline
+                }
+                if (property.name.equals("deviceId")) {
+                    device = columnList.size();
+                } else if (property.name.equals("userId")) {
+                    user = columnList.size();
+                } else if (isSummary && property.name.equals(BaseActivitySummaryDao.Properties.StartTime.name)) {
+                    startTime = columnList.size();
+                }
+                columnList.add(property.columnName);
+                typeList.add(ColumnarFormat.getColumnType(property.type));
+            }
+            columns = columnList.toArray(new String[columnList.size()]);
+            types = new byte[typeList.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = typeList.get(i);
+            }
+            deviceColumn = device;
+            userColumn = user;
+            startTimeColumn = startTime;
+
+            RawSampleArchive.RawTable raw = null;
+            for (RawSampleArchive.RawTable candidate : RawSampleArchive.getRawTables()) {
+                if (candidate.getTableName().equals(name)) {
+                    raw = candidate;
+                }
+            }
+            rawTable = raw;
+            rawBlobColumn = raw != null ? columnList.indexOf(raw.getBlobColumn()) : -1;
+            rawTimestampColumn = raw != null ? columnList.indexOf(raw.getTimestampColumn()) : -1;
+        }
+
+        private boolean isArchivingRawData() {
+            return rawBlobColumn >= 0 && rawTimestampColumn >= 0;
+        }
+
+        long run(ImportSource importSource, long skipRows, long doneRows, long totalRows,
+                 Map<Long, Long> deviceIds, long userId, ProgressListener listener) throws Exception {
+            StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO \"").append(name).append("\" (");
+            StringBuilder values = new StringBuilder();
+            if (startTimeColumn >= 0) {
+                sql.append('"').append(BaseActivitySummaryDao.Properties.Id.columnName).append("\",");
+                values.append("?,");
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                    values.append(',');
+                }
+                sql.append('"').append(columns[i]).append('"');
+                values.append('?');
+            }
+            if (isArchivingRawData()) {
+                // the raw blobs go to the archive, like those of freshly synced samples
+                sql.append(",\"").append(rawTable.getOffsetColumn()).append('"');
+                values.append(",?");
+            }
+            sql.append(") VALUES (").append(values).append(')');
+            int firstColumnIndex = startTimeColumn >= 0 ? 2 : 1;
+            RawSampleArchive archive = isArchivingRawData() ? RawSampleArchive.getInstance() : null;
+
+            long tableRows = skipRows;
+            try (ImportSource.RowReader rows = importSource.read(name, columns, skipRows)) {
+                boolean hasMore = true;
+                while (hasMore) {
+                    int batchRows = 0;
+                    // the database is released between batches, so that others get access to it
+                    try (DBHandler handler = GBApplication.acquireDB()) {
+                        SQLiteDatabase db = handler.getDatabase();
+                        SQLiteStatement insert = db.compileStatement(sql.toString());
+                        db.beginTransaction();
+                        try {
+                            while (batchRows < BATCH_ROWS && (hasMore = rows.next())) {
+                                Long deviceId = deviceIds.get(rows.getLong(deviceColumn));
+                                if (deviceId == null) {
+                                    LOG.warn("Skipping row of unknown device " + rows.getLong(deviceColumn) + " in " + name);
+                                } else {
+                                    insert.clearBindings();
+                                    if (startTimeColumn >= 0) {
+                                        bindExistingSummaryId(db, insert, deviceId, rows.getLong(startTimeColumn));
+                                    }
+                                    Long rawDataOffset = null;
+                                    if (archive != null && !rows.isNull(rawBlobColumn)) {
+                                        rawDataOffset = archive.append(deviceId, (int) rows.getLong(rawTimestampColumn), rawTable.getType(), rows.getBlob(rawBlobColumn));
+                                    }
+                                    for (int i = 0; i < columns.length; i++) {
+                                        int index = firstColumnIndex + i;
+                                        if (i == deviceColumn) {
+                                            insert.bindLong(index, deviceId);
+                                        } else if (i == userColumn) {
+                                            insert.bindLong(index, userId);
+                                        } else if (i == rawBlobColumn && rawDataOffset != null) {
+                                            insert.bindNull(index);
+                                        } else {
+                                            bind(insert, index, rows, i, types[i]);
+                                        }
+                                    }
+                                    if (archive != null) {
+                                        int index = firstColumnIndex + columns.length;
+                                        if (rawDataOffset != null) {
+                                            insert.bindLong(index, rawDataOffset);
+                                        } else {
+                                            insert.bindNull(index);
+                                        }
+                                    }
+                                    insert.executeInsert();
+                                    mergedRows++;
+                                }
+                                batchRows++;
+                            }
+                            if (archive != null) {
+                                // the rows must not point beyond the archive after a crash
+                                archive.flush();
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                            insert.close();
+                        }
+                    }
+                    tableRows += batchRows;
+                    doneRows += batchRows;
+                    saveProgress(name, tableRows);
+                    if (listener != null) {
+                        listener.onProgress(doneRows, totalRows);
+                    }
+                }
+            }
+            return doneRows;
+        }
+
+        private void bindExistingSummaryId(SQLiteDatabase db, SQLiteStatement insert, long deviceId, long startTime) {
+            try (Cursor cursor = db.rawQuery("SELECT \"" + BaseActivitySummaryDao.Properties.Id.columnName + "\" FROM \"" + name
+                    + "\" WHERE \"" + BaseActivitySummaryDao.Properties.DeviceId.columnName + "\"=? AND \""
+                    + BaseActivitySummaryDao.Properties.StartTime.columnName + "\"=?",
+                    new String[]{String.valueOf(deviceId), String.valueOf(startTime)})) {
+                if (cursor.moveToFirst()) {
+                    insert.bindLong(1, cursor.getLong(0));
+                } else {
+                    insert.bindNull(1);
+                }
+            }
+        }
+
+        private void bind(SQLiteStatement insert, int index, ImportSource.RowReader rows, int column, byte type) {
+            if (rows.isNull(column)) {
+                insert.bindNull(index);
+                return;
+            }
+            switch (type) {
+                case ColumnarFormat.TYPE_INTEGER:
+                    insert.bindLong(index, rows.getLong(column));
+                    break;
+                case ColumnarFormat.TYPE_REAL:
+                    insert.bindDouble(index, rows.getDouble(column));
+                    break;
+                case ColumnarFormat.TYPE_TEXT:
+                    insert.bindString(index, rows.getString(column));
+                    break;
+                default:
+                    insert.bindBlob(index, rows.getBlob(column));
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * Exports all tables (samples, overlays, summaries and the devices and users they refer
+ * to) into compressed columnar files for analysis tools, without closing the database
+ * and without creating entity objects. See {@link ColumnarFormat} for the file format.
+ * <p/>
+ * All tables are read from the same snapshot, inside one transaction on the calling
+ * thread (Android binds a transaction to its thread, so the cursors cannot be spread over
+ * several threads). The rows are handed over in blocks to one worker per table, which
+ * encodes and deflates them while the next blocks and tables are being read. Writes to
+ * the database wait until all tables were read.
+ */
+public class ColumnarExporter {
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarExporter.class);
+
+    private static final int MAX_WORKERS = 4;
+    private static final int QUEUE_BLOCKS = 4;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final DaoSession session;
+
+    public ColumnarExporter(DaoSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Exports all tables into a new directory inside the given one.
+     *
+     * @return the new export directory
+     */
+    public File export(File toDir) throws IOException {
+        if (!SampleLog.getInstance().getDeviceIds().isEmpty()) {
+            // the sample tables would be exported without the samples of those devices
+            throw new IOException("Samples are stored in the sample log, move them back to the database before exporting");
+        }
+        File dir = new File(toDir, "gadgetbridge-export-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+
+        List<AbstractDao<?, ?>> daos = new ArrayList<>(session.getAllDaos());
+        Collections.sort(daos, new Comparator<AbstractDao<?, ?>>() {
+            @Override
+            public int compare(AbstractDao<?, ?> lhs, AbstractDao<?, ?> rhs) {
+                return lhs.getTablename().compareTo(rhs.getTablename());
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        List<TableExport> exports = new ArrayList<>(daos.size());
+        SQLiteDatabase db = session.getDatabase();
+        int schemaVersion;
+        boolean success = false;
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                schemaVersion = db.getVersion();
+                for (AbstractDao<?, ?> dao : daos) {
+                    TableExport export = new TableExport(dao, dir);
+                    exports.add(export);
+                    export.future = workers.submit(export);
+                    export.readRows(db);
+                }
+            } finally {
+                // nothing was written, so there is nothing to commit
+                db.endTransaction();
+            }
+
+            JSONArray tables = new JSONArray();
+            long totalRows = 0;
+            for (TableExport export : exports) {
+                long rows = await(export.future);
+                tables.put(export.toJson(rows));
+                totalRows += rows;
+            }
+            writeManifest(dir, schemaVersion, tables);
+            LOG.info("Exported " + totalRows + " rows of " + exports.size() + " tables in " + (System.currentTimeMillis() - start) + "ms");
+            success = true;
+        } finally {
+            if (success) {
+                workers.shutdown();
+            } else {
+                workers.shutdownNow();
+            }
+        }
+        return dir;
+    }
+
+    private static void writeManifest(File dir, int schemaVersion, JSONArray tables) throws IOException {
+        JSONObject manifest = new JSONObject();
+        try {
+            manifest.put("format", "gbcol");
+            manifest.put("version", ColumnarFormat.VERSION);
+            manifest.put("schemaVersion", schemaVersion);
+            manifest.put("exported", System.currentTimeMillis());
+            manifest.put("blockRows", ColumnarFormat.BLOCK_ROWS);
+            manifest.put("tables", tables);
+            try (OutputStream out = new FileOutputStream(new File(dir, ColumnarFormat.MANIFEST_FILE_NAME))) {
+                out.write(manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (JSONException ex) {
+            throw new IOException("Unable to create manifest", ex);
+        }
+    }
+
+    private static long await(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Export failed", ex.getCause());
+        }
+    }
+
+    /**
+     * The rows of one block, column by column, as read from the cursor.
+     */
+    private static class Block {
+        final byte[] types;
+        final long[][] longs;
+        final double[][] doubles;
+        final Object[][] objects;
+        final boolean[][] nulls;
+        int rows;
+
+        Block(byte[] types) {
+            this.types = types;
+            longs = new long[types.length][];
+            doubles = new double[types.length][];
+            objects = new Object[types.length][];
+            nulls = new boolean[types.length][ColumnarFormat.BLOCK_ROWS];
+            for (int c = 0; c < types.length; c++) {
+                switch (types[c]) {
+                    case ColumnarFormat.TYPE_INTEGER:
+                        longs[c] = new long[ColumnarFormat.BLOCK_ROWS];
+                        break;
+                    case ColumnarFormat.TYPE_REAL:
+                        doubles[c] = new double[ColumnarFormat.BLOCK_ROWS];
+                        break;
+                    default:
+                        objects[c] = new Object[ColumnarFormat.BLOCK_ROWS];
+                }
+            }
+        }
+
+        void readRow(Cursor cursor) {
+            for (int c = 0; c < types.length; c++) {
+                boolean isNull = cursor.isNull(c);
+                nulls[c][rows] = isNull;
+                if (isNull) {
+                    continue;
+                }
+                switch (types[c]) {
+                    case ColumnarFormat.TYPE_INTEGER:
+                        longs[c][rows] = cursor.getLong(c);
+                        break;
+                    case ColumnarFormat.TYPE_REAL:
+                        doubles[c][rows] = cursor.getDouble(c);
+                        break;
+                    case ColumnarFormat.TYPE_TEXT:
+                        objects[c][rows] = cursor.getString(c);
+                        break;
+                    default:
+                        objects[c][rows] = cursor.getBlob(c);
+                }
+            }
+            rows++;
+        }
+    }
+
+    private static final Block END = new Block(new byte[0]);
+
+    /**
+     * Reads one table on the exporting thread and writes its file on a worker thread.
+     */
+    private static class TableExport implements Callable<Long> {
+        private final String table;
+        private final String[] columns;
+        private final Class<?>[] propertyTypes;
+        private final byte[] types;
+        private final File file;
+        // the columns of tables whose raw blobs are kept in the RawSampleArchive, -1 otherwise
+        private int blobColumn = -1;
+        private int offsetColumn = -1;
+        private int deviceColumn = -1;
+        private int timestampColumn = -1;
+        private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        // blocks are recycled, so that a large table does not churn through arrays
+        private final BlockingQueue<Block> free = new ArrayBlockingQueue<>(QUEUE_BLOCKS + 2);
+        Future<Long> future;
+
+        TableExport(AbstractDao<?, ?> dao, File dir) {
+            table = dao.getTablename();
+            Property[] properties = dao.getProperties();
+            columns = new String[properties.length];
+            propertyTypes = new Class<?>[properties.length];
+            types = new byte[properties.length];
+            for (int i = 0; i < properties.length; i++) {
+                columns[i] = properties[i].columnName;
+                propertyTypes[i] = properties[i].type;
+                types[i] = ColumnarFormat.getColumnType(properties[i].type);
+            }
+            file = new File(dir, table + ColumnarFormat.TABLE_FILE_EXTENSION);
+
+            for (RawSampleArchive.RawTable rawTable : RawSampleArchive.getRawTables()) {
+                if (rawTable.getTableName().equals(table)) {
+                    List<String> columnList = Arrays.asList(columns);
+                    blobColumn = columnList.indexOf(rawTable.getBlobColumn());
+                    offsetColumn = columnList.indexOf(rawTable.getOffsetColumn());
+                    deviceColumn = columnList.indexOf(rawTable.getDeviceColumn());
+                    timestampColumn = columnList.indexOf(rawTable.getTimestampColumn());
+                }
+            }
+        }
+
+        void readRows(SQLiteDatabase db) throws IOException {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                }
+                sql.append('"').append(columns[i]).append('"');
+            }
+            sql.append(" FROM \"").append(table).append('"');
+
+            RawSampleArchive archive = offsetColumn >= 0 ? RawSampleArchive.getInstance() : null;
+            try (Cursor cursor = db.rawQuery(sql.toString(), null)) {
+                Block block = newBlock();
+                while (cursor.moveToNext()) {
+                    block.readRow(cursor);
+                    if (archive != null) {
+                        inlineRawData(block, archive);
+                    }
+                    if (block.rows == ColumnarFormat.BLOCK_ROWS) {
+                        put(block);
+                        block = newBlock();
+                    }
+                }
+                if (block.rows > 0) {
+                    put(block);
+                }
+                put(END);
+            }
+        }
+
+        /**
+         * Replaces the archive offset of the last row of the block with the raw record itself,
+         * the offset is meaningless outside of this installation.
+         */
+        private void inlineRawData(Block block, RawSampleArchive archive) throws IOException {
+            int row = block.rows - 1;
+            if (block.nulls[offsetColumn][row]) {
+                return;
+            }
+            byte[] data = archive.read(block.longs[offsetColumn][row], block.longs[deviceColumn][row], (int) block.longs[timestampColumn][row]);
+            block.nulls[offsetColumn][row] = true;
+            if (data != null) {
+                block.objects[blobColumn][row] = data;
+                block.nulls[blobColumn][row] = false;
+            }
+        }
+
+        private Block newBlock() {
+            Block block = free.poll();
+            if (block == null) {
+                return new Block(types);
+            }
+            block.rows = 0;
+            return block;
+        }
+
+        private void put(Block block) throws IOException {
+            try {
+                while (!queue.offer(block, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (future.isDone()) {
+                        await(future);
+                        throw new IOException("Export of " + table + " stopped unexpectedly");
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Export interrupted");
+            }
+        }
+
+        @Override
+        public Long call() throws IOException, InterruptedException {
+            long rowCount = 0;
+            long[] previous = new long[columns.length];
+            ColumnarFormat.ByteSink header = new ColumnarFormat.ByteSink();
+            ColumnarFormat.ByteSink chunk = new ColumnarFormat.ByteSink();
+            ColumnarFormat.ByteSink deflated = new ColumnarFormat.ByteSink();
+            byte[] buffer = new byte[8192];
+            Deflater deflater = new Deflater();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+                writeHeader(header);
+                out.write(header.array(), 0, header.size());
+
+                Block block;
+                while ((block = queue.take()) != END) {
+                    header.reset();
+                    header.writeVarint(block.rows);
+                    out.write(header.array(), 0, header.size());
+                    for (int c = 0; c < columns.length; c++) {
+                        encodeColumn(block, c, previous, chunk);
+
+                        deflater.reset();
+                        deflater.setInput(chunk.array(), 0, chunk.size());
+                        deflater.finish();
+                        deflated.reset();
+                        while (!deflater.finished()) {
+                            int length = deflater.deflate(buffer);
+                            deflated.writeBytes(buffer, 0, length);
+                        }
+
+                        header.reset();
+                        header.writeVarint(chunk.size());
+                        header.writeVarint(deflated.size());
+                        out.write(header.array(), 0, header.size());
+                        out.write(deflated.array(), 0, deflated.size());
+                    }
+                    rowCount += block.rows;
+                    free.offer(block);
+                }
+
+                header.reset();
+                header.writeVarint(0);
+                out.write(header.array(), 0, header.size());
+            } finally {
+                deflater.end();
+            }
+            return rowCount;
+        }
+
+        private void writeHeader(ColumnarFormat.ByteSink sink) {
+            sink.writeByte(ColumnarFormat.MAGIC >>> 24);
+            sink.writeByte(ColumnarFormat.MAGIC >>> 16);
+            sink.writeByte(ColumnarFormat.MAGIC >>> 8);
+            sink.writeByte(ColumnarFormat.MAGIC);
+            sink.writeByte(ColumnarFormat.VERSION);
+            sink.writeVarint(columns.length);
+            for (int c = 0; c < columns.length; c++) {
+                byte[] name = columns[c].getBytes(StandardCharsets.UTF_8);
+                sink.writeVarint(name.length);
+                sink.writeBytes(name, 0, name.length);
+                sink.writeByte(types[c]);
+            }
+        }
+
+        private void encodeColumn(Block block, int c, long[] previous, ColumnarFormat.ByteSink sink) {
+            sink.reset();
+            boolean[] nulls = block.nulls[c];
+            boolean hasNulls = false;
+            for (int i = 0; i < block.rows && !hasNulls; i++) {
+                hasNulls = nulls[i];
+            }
+            sink.writeByte(hasNulls ? 1 : 0);
+            if (hasNulls) {
+                for (int i = 0; i < block.rows; i += 8) {
+                    int bits = 0;
+                    for (int j = 0; j < 8 && i + j < block.rows; j++) {
+                        if (nulls[i + j]) {
+                            bits |= 1 << j;
+                        }
+                    }
+                    sink.writeByte(bits);
+                }
+            }
+
+            switch (types[c]) {
+                case ColumnarFormat.TYPE_INTEGER:
+                    long last = previous[c];
+                    long[] longs = block.longs[c];
+                    for (int i = 0; i < block.rows; i++) {
+                        if (!nulls[i]) {
+                            sink.writeVarint(ColumnarFormat.zigzag(longs[i] - last));
+                            last = longs[i];
+                        }
+                    }
+                    previous[c] = last;
+                    break;
+                case ColumnarFormat.TYPE_REAL:
+                    double[] doubles = block.doubles[c];
+                    for (int i = 0; i < block.rows; i++) {
+                        if (!nulls[i]) {
+                            sink.writeLongLE(Double.doubleToRawLongBits(doubles[i]));
+                        }
+                    }
+                    break;
+                default:
+                    Object[] objects = block.objects[c];
+                    for (int i = 0; i < block.rows; i++) {
+                        if (!nulls[i]) {
+                            byte[] bytes = types[c] == ColumnarFormat.TYPE_TEXT
+                                    ? ((String) objects[i]).getBytes(StandardCharsets.UTF_8)
+                                    : (byte[]) objects[i];
+                            sink.writeVarint(bytes.length);
+                            sink.writeBytes(bytes, 0, bytes.length);
+                        }
+                    }
+            }
+        }
+
+        JSONObject toJson(long rows) throws IOException {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("name", table);
+                json.put("file", file.getName());
+                json.put("rows", rows);
+                JSONArray columnsJson = new JSONArray();
+                for (int c = 0; c < columns.length; c++) {
+                    JSONObject column = new JSONObject();
+                    column.put("name", columns[c]);
+                    column.put("type", getTypeName(types[c]));
+                    column.put("javaType", propertyTypes[c].getSimpleName());
+                    columnsJson.put(column);
+                }
+                json.put("columns", columnsJson);
+                return json;
+            } catch (JSONException ex) {
+                throw new IOException("Unable to describe table " + table, ex);
+            }
+        }
+
+        private static String getTypeName(byte type) {
+            switch (type) {
+                case ColumnarFormat.TYPE_INTEGER:
+                    return "integer";
+                case ColumnarFormat.TYPE_REAL:
+                    return "real";
+                case ColumnarFormat.TYPE_TEXT:
+                    return "text";
+                default:
+                    return "blob";
+            }
+        }
+    }
+}
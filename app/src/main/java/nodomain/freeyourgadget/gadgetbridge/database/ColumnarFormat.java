@@ -0,0 +1,148 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Constants and encoding primitives of the columnar export format.
+ * <p/>
+ * An export is a directory with one file per table and a {@link #MANIFEST_FILE_NAME}
+ * describing them; the manifest is written last, so an export without one is incomplete.
+ * A table file starts with {@link #MAGIC}, the format version, the number of columns and
+ * the name and type of every column, followed by blocks of up to {@link #BLOCK_ROWS} rows
+ * and a terminating row count of 0. A block is the varint row count and one chunk per
+ * column: varint raw length, varint deflated length, deflated data. The raw data of a chunk
+ * is a null flag byte, a null bitmap (only if the flag is set) and the non-null values:
+ * <ul>
+ * <li>{@link #TYPE_INTEGER}: zigzag varint of the difference to the previous value of the column</li>
+ * <li>{@link #TYPE_REAL}: 8 bytes IEEE 754 little endian</li>
+ * <li>{@link #TYPE_TEXT}, {@link #TYPE_BLOB}: varint length and the (UTF-8) bytes</li>
+ * </ul>
+ */
+final class ColumnarFormat {
+    static final String MANIFEST_FILE_NAME = "manifest.json";
+    static final String TABLE_FILE_EXTENSION = ".gbcol";
+    static final int MAGIC = 0x4742434c; // "GBCL"
+    static final int VERSION = 1;
+    static final int BLOCK_ROWS = 4096;
+
+    static final byte TYPE_INTEGER = 1;
+    static final byte TYPE_REAL = 2;
+    static final byte TYPE_TEXT = 3;
+    static final byte TYPE_BLOB = 4;
+
+    private ColumnarFormat() {
+    }
+
+    /**
+     * Returns the column type for the given greenDAO property type.
+     */
+    static byte getColumnType(Class<?> propertyType) {
+        if (propertyType == String.class) {
+            return TYPE_TEXT;
+        }
+        if (propertyType == byte[].class) {
+            return TYPE_BLOB;
+        }
+        if (propertyType == float.class || propertyType == Float.class
+                || propertyType == double.class || propertyType == Double.class) {
+            return TYPE_REAL;
+        }
+        // all integral types, booleans and dates (stored as milliseconds)
+        return TYPE_INTEGER;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * A growable byte buffer with the writers needed for the format; reused across chunks.
+     */
+    static class ByteSink {
+        private byte[] data = new byte[8192];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] array() {
+            return data;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            data[size++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeLongLE(long value) {
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++) {
+                data[size++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, data, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + additional));
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -51,6 +52,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.DeviceAttributes;
 import nodomain.freeyourgadget.gadgetbridge.entities.DeviceAttributesDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.DeviceDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.Tag;
 import nodomain.freeyourgadget.gadgetbridge.entities.TagDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
@@ -114,19 +116,70 @@ public class DBHelper {
             }
 
             FileUtils.copyFile(sourceFile, destFile);
-            return destFile;
         } finally {
             dbHandler.openDb();
         }
+        inlineExternalSamples(destFile);
+        return destFile;
     }
 
     public void exportDB(DBHandler dbHandler, OutputStream dest) throws IOException {
         String dbPath = getClosedDBPath(dbHandler);
+        File copy = File.createTempFile("export", ".db", context.getCacheDir());
         try {
-            File source = new File(dbPath);
-            FileUtils.copyFileToStream(source, dest);
+            try {
+                FileUtils.copyFile(new File(dbPath), copy);
+            } finally {
+                dbHandler.openDb();
+            }
+            inlineExternalSamples(copy);
+            FileUtils.copyFileToStream(copy, dest);
         } finally {
-            dbHandler.openDb();
+            if (!copy.delete()) {
+                LOG.warn("Unable to delete temporary export " + copy);
+            }
+        }
+    }
+
+    /**
+     * Copies the raw sample records from the RawSampleArchive and the samples from the
+     * SampleLog into the exported database, so that the export does not depend on the
+     * files of this installation.
+     */
+    private void inlineExternalSamples(File exportedDb) throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(exportedDb.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            db.beginTransaction();
+            try {
+                RawSampleArchive.getInstance().restoreFromArchive(db);
+                inlineSampleLog(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void inlineSampleLog(SQLiteDatabase db) throws IOException {
+        SampleLog log = SampleLog.getInstance();
+        if (log.getDeviceIds().isEmpty()) {
+            return;
+        }
+        // only the Mi Band / Huami samples can be stored in the log
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + MiBandActivitySampleDao.TABLENAME + " ("
+                + MiBandActivitySampleDao.Properties.Timestamp.columnName + ", "
+                + MiBandActivitySampleDao.Properties.DeviceId.columnName + ", "
+                + MiBandActivitySampleDao.Properties.UserId.columnName + ", "
+                + MiBandActivitySampleDao.Properties.RawIntensity.columnName + ", "
+                + MiBandActivitySampleDao.Properties.Steps.columnName + ", "
+                + MiBandActivitySampleDao.Properties.RawKind.columnName + ", "
+                + MiBandActivitySampleDao.Properties.HeartRate.columnName + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            LOG.info("Exported " + log.exportTo(insert) + " records from the sample log");
+        } finally {
+            insert.close();
         }
     }
 
@@ -139,7 +192,11 @@ public class DBHelper {
         try {
             File toFile = new File(dbPath);
             FileUtils.copyFile(fromFile, toFile);
+            // the imported database has all samples, including those exported from a log
+            SampleLog.deleteStore(context);
         } finally {
+            IdentityCache.invalidate();
+            SleepSessionStore.invalidate(context);
             dbHandler.openDb();
         }
     }
@@ -198,11 +255,16 @@ public class DBHelper {
      * be created in the database.
      *
      * Note: so far there is only ever a single user; there is no multi-user support yet
+     * Note: the user is cached until the user preferences change
      * @param session
      * @return the User entity
      */
     @NonNull
     public static User getUser(DaoSession session) {
+        User cachedUser = IdentityCache.getUser(session);
+        if (cachedUser != null) {
+            return cachedUser;
+        }
         ActivityUser prefsUser = new ActivityUser();
         UserDao userDao = session.getUserDao();
         User user;
@@ -214,6 +276,7 @@ public class DBHelper {
             ensureUserUpToDate(user, prefsUser, session);
         }
         ensureUserAttributes(user, prefsUser, session);
+        IdentityCache.putUser(session, user);
 
         return user;
     }
@@ -363,11 +426,17 @@ public class DBHelper {
     }
 
     public static Device findDevice(GBDevice gbDevice, DaoSession session) {
+        Device cachedDevice = IdentityCache.findDevice(session, gbDevice);
+        if (cachedDevice != null) {
+            return cachedDevice;
+        }
         DeviceDao deviceDao = session.getDeviceDao();
         Query<Device> query = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(gbDevice.getAddress())).build();
         List<Device> devices = query.list();
         if (devices.size() > 0) {
-            return devices.get(0);
+            Device device = devices.get(0);
+            IdentityCache.putDevice(session, gbDevice, device, false);
+            return device;
         }
         return null;
     }
@@ -390,7 +459,11 @@ public class DBHelper {
      * @return the device entity corresponding to the given GBDevice
      */
     public static Device getDevice(GBDevice gbDevice, DaoSession session) {
-        Device device = findDevice(gbDevice, session);
+        Device device = IdentityCache.getDevice(session, gbDevice);
+        if (device != null) {
+            return device;
+        }
+        device = findDevice(gbDevice, session);
         if (device == null) {
             device = createDevice(gbDevice, session);
         } else {
@@ -399,6 +472,7 @@ public class DBHelper {
         if (gbDevice.isInitialized()) {
             ensureDeviceAttributes(device, gbDevice, session);
         }
+        IdentityCache.putDevice(session, gbDevice, device, true);
 
         return device;
     }
@@ -561,6 +635,13 @@ public class DBHelper {
         return tag;
     }
 
+    /**
+     * Drops the cached user and device entities, e.g. after the database was replaced.
+     */
+    public static void clearIdentityCache() {
+        IdentityCache.invalidate();
+    }
+
     public static void clearSession() {
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
             DaoSession session = dbHandler.getDaoSession();
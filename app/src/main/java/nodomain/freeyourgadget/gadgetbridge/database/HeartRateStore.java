@@ -0,0 +1,374 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+/**
+ * Stores heart rate measurements with a resolution of one second, outside of the
+ * activity sample tables. Each device has one segment file per (UTC) day, that
+ * contains run-length encoded runs of consecutive seconds with the same heart rate:
+ * <pre>
+ * run: varint gap (seconds since the end of the previous run, or since the start of the day),
+ *      byte heart rate, varint length (number of seconds)
+ * </pre>
+ * A steady heart rate measured once per second therefore takes about 3 bytes per
+ * run instead of one activity sample row per second.
+ * <p/>
+ * Measurements must be added in time ascending order per device; measurements that
+ * are not newer than the last one of the device are ignored. Completed runs are
+ * buffered and appended to the segment file in chunks, and at least every
+ * {@link #FLUSH_INTERVAL_SECONDS} of measurements, see {@link #flush()}. Buffered
+ * measurements are lost if the process dies before they are flushed.
+ */
+public class HeartRateStore {
+    private static final Logger LOG = LoggerFactory.getLogger(HeartRateStore.class);
+
+    public static final String DIRECTORY_NAME = "heart_rate";
+
+    static final int SECONDS_PER_SEGMENT = 24 * 60 * 60;
+    private static final String SEGMENT_EXTENSION = ".hr";
+    // keeps the runs short, so that a gap between two measurements is noticed early
+    private static final int MAX_RUN_LENGTH = 60;
+    // bounds the measurements lost if the process dies before the buffer is flushed otherwise
+    static final int FLUSH_INTERVAL_SECONDS = 5 * 60;
+    private static final int WRITE_THRESHOLD_BYTES = 512;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static HeartRateStore instance;
+
+    private final File directory;
+    private final Map<String, SegmentWriter> writers = new HashMap<>();
+
+    public static synchronized HeartRateStore getInstance() {
+        if (instance == null) {
+            instance = new HeartRateStore(new File(GBApplication.getContext().getFilesDir(), DIRECTORY_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Deletes all stored heart rate measurements, e.g. when the activity database is deleted.
+     */
+    public static synchronized boolean deleteStore(Context context) {
+        instance = null;
+        return deleteRecursively(new File(context.getFilesDir(), DIRECTORY_NAME));
+    }
+
+    HeartRateStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Adds a measurement.
+     *
+     * @param timestamp the time of the measurement in seconds since the epoch
+     */
+    public synchronized void add(String deviceAddress, int timestamp, int heartRate) throws IOException {
+        if (heartRate <= 0 || heartRate > 0xff) {
+            return;
+        }
+        SegmentWriter writer = writers.get(deviceAddress);
+        int segment = timestamp / SECONDS_PER_SEGMENT;
+        if (writer == null || writer.segment != segment) {
+            if (writer != null) {
+                if (segment < writer.segment) {
+                    return; // older than the last measurement
+                }
+                writer.close();
+            }
+            writer = new SegmentWriter(getSegmentFile(deviceAddress, segment), segment);
+            writers.put(deviceAddress, writer);
+        }
+        writer.add(timestamp, heartRate);
+    }
+
+    /**
+     * Writes all buffered measurements, including the currently open runs, to the segment files.
+     */
+    public synchronized void flush() throws IOException {
+        for (SegmentWriter writer : writers.values()) {
+            writer.flush(true);
+        }
+    }
+
+    /**
+     * Returns the measurements between from (inclusive) and to (exclusive), downsampled
+     * into buckets of the given number of seconds. Buckets without measurements are omitted.
+     */
+    public synchronized List<Bucket> query(String deviceAddress, int from, int to, int bucketSeconds) throws IOException {
+        SegmentWriter writer = writers.get(deviceAddress);
+        if (writer != null) {
+            writer.flush(true);
+        }
+
+        List<Bucket> result = new ArrayList<>();
+        Bucket current = null;
+        for (int segment = from / SECONDS_PER_SEGMENT; segment <= (to - 1) / SECONDS_PER_SEGMENT; segment++) {
+            File file = getSegmentFile(deviceAddress, segment);
+            if (!file.exists()) {
+                continue;
+            }
+            byte[] data;
+            try (InputStream in = new FileInputStream(file)) {
+                data = FileUtils.readAll(in, MAX_SEGMENT_SIZE);
+            }
+            RunDecoder decoder = new RunDecoder(data, segment * SECONDS_PER_SEGMENT);
+            while (decoder.next()) {
+                int start = Math.max(decoder.start, from);
+                int end = Math.min(decoder.start + decoder.length, to);
+                // a run may span several buckets
+                while (start < end) {
+                    int bucketStart = from + (start - from) / bucketSeconds * bucketSeconds;
+                    int bucketEnd = Math.min(bucketStart + bucketSeconds, end);
+                    if (current == null || current.timestamp != bucketStart) {
+                        current = new Bucket(bucketStart);
+                        result.add(current);
+                    }
+                    current.add(decoder.heartRate, bucketEnd - start);
+                    start = bucketEnd;
+                }
+            }
+        }
+        return result;
+    }
+
+    private File getSegmentFile(String deviceAddress, int segment) {
+        File deviceDirectory = new File(directory, FileUtils.makeValidFileName(deviceAddress.replace(':', '_')));
+        return new File(deviceDirectory, segment + SEGMENT_EXTENSION);
+    }
+
+    private static boolean deleteRecursively(File file) {
+        boolean result = true;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                result &= deleteRecursively(child);
+            }
+        }
+        return (!file.exists() || file.delete()) && result;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * The heart rate values of one time bucket.
+     */
+    public static class Bucket {
+        private final int timestamp;
+        private int min = Integer.MAX_VALUE;
+        private int max;
+        private long sum;
+        private int seconds;
+
+        Bucket(int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        void add(int heartRate, int seconds) {
+            min = Math.min(min, heartRate);
+            max = Math.max(max, heartRate);
+            sum += (long) heartRate * seconds;
+            this.seconds += seconds;
+        }
+
+        /**
+         * The start of the bucket in seconds since the epoch.
+         */
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        /**
+         * The time weighted average heart rate.
+         */
+        public int getAverage() {
+            return (int) Math.round((double) sum / seconds);
+        }
+
+        /**
+         * The number of seconds with measurements in this bucket.
+         */
+        public int getSeconds() {
+            return seconds;
+        }
+    }
+
+    private static class RunDecoder {
+        private final byte[] data;
+        private int position;
+        private int end;
+        int start;
+        int heartRate;
+        int length;
+
+        RunDecoder(byte[] data, int segmentStart) {
+            this.data = data;
+            this.end = segmentStart;
+        }
+
+        boolean next() {
+            if (position >= data.length) {
+                return false;
+            }
+            try {
+                start = end + readVarint();
+                heartRate = data[position++] & 0xff;
+                length = readVarint();
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                LOG.warn("Truncated heart rate segment, ignoring the last run");
+                return false;
+            }
+            end = start + length;
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static class SegmentWriter {
+        private final File file;
+        private final int segment;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(WRITE_THRESHOLD_BYTES * 2);
+        // the end of the last written run
+        private int end;
+        private int runStart;
+        private int runHeartRate;
+        private int runLength;
+        // the time of the measurement that was flushed last, or of the first one
+        private int flushed = Integer.MIN_VALUE;
+
+        SegmentWriter(File file, int segment) throws IOException {
+            this.file = file;
+            this.segment = segment;
+            this.end = segment * SECONDS_PER_SEGMENT;
+            if (file.exists()) {
+                // continue after the last run that was written before
+                byte[] data;
+                try (InputStream in = new FileInputStream(file)) {
+                    data = FileUtils.readAll(in, MAX_SEGMENT_SIZE);
+                }
+                RunDecoder decoder = new RunDecoder(data, end);
+                while (decoder.next()) {
+                    end = decoder.start + decoder.length;
+                }
+            }
+        }
+
+        void add(int timestamp, int heartRate) throws IOException {
+            addToRun(timestamp, heartRate);
+            if (flushed == Integer.MIN_VALUE) {
+                flushed = timestamp;
+            } else if (timestamp - flushed >= FLUSH_INTERVAL_SECONDS) {
+                flush(true);
+                flushed = timestamp;
+            }
+        }
+
+        private void addToRun(int timestamp, int heartRate) throws IOException {
+            if (runLength > 0) {
+                int runEnd = runStart + runLength;
+                if (timestamp < runEnd) {
+                    return;
+                }
+                if (timestamp == runEnd && heartRate == runHeartRate && runLength < MAX_RUN_LENGTH) {
+                    runLength++;
+                    return;
+                }
+                closeRun();
+            } else if (timestamp < end) {
+                return;
+            }
+            runStart = timestamp;
+            runHeartRate = heartRate;
+            runLength = 1;
+        }
+
+        private void closeRun() throws IOException {
+            writeVarint(pending, runStart - end);
+            pending.write(runHeartRate);
+            writeVarint(pending, runLength);
+            end = runStart + runLength;
+            runLength = 0;
+            if (pending.size() >= WRITE_THRESHOLD_BYTES) {
+                flush(false);
+            }
+        }
+
+        void flush(boolean closeRun) throws IOException {
+            if (closeRun && runLength > 0) {
+                closeRun();
+            }
+            if (pending.size() == 0) {
+                return;
+            }
+            File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory " + parent);
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                pending.writeTo(out);
+            }
+            pending.reset();
+        }
+
+        void close() throws IOException {
+            flush(true);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+/**
+ * Keeps the User and Device entities that DBHelper resolved in memory, so that
+ * sample queries and inserts do not have to look them up (and compare them with
+ * the preferences and the GBDevice) over and over again.
+ * <p/>
+ * A cached device is only returned as long as the GBDevice properties that are
+ * persisted with the device (name, model, firmware versions, ...) did not change.
+ * The user is dropped whenever one of the user preferences changes. Everything
+ * is dropped when the database session changes, e.g. after a database import.
+ */
+class IdentityCache {
+    private static final String[] USER_PREFERENCES = new String[] {
+            ActivityUser.PREF_USER_NAME,
+            ActivityUser.PREF_USER_YEAR_OF_BIRTH,
+            ActivityUser.PREF_USER_GENDER,
+            ActivityUser.PREF_USER_HEIGHT_CM,
+            ActivityUser.PREF_USER_WEIGHT_KG,
+            ActivityUser.PREF_USER_SLEEP_DURATION,
+            ActivityUser.PREF_USER_STEPS_GOAL
+    };
+
+    private static DaoSession session;
+    private static User user;
+    private static final Map<String, CachedDevice> devices = new HashMap<>();
+    private static boolean listenerRegistered;
+
+    // strongly referenced, SharedPreferences only keeps weak references to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (Arrays.asList(USER_PREFERENCES).contains(key)) {
+                invalidateUser();
+            }
+        }
+    };
+
+    private IdentityCache() {
+    }
+
+    @Nullable
+    static synchronized User getUser(DaoSession daoSession) {
+        checkSession(daoSession);
+        return user;
+    }
+
+    static synchronized void putUser(DaoSession daoSession, User newUser) {
+        checkSession(daoSession);
+        registerListener();
+        user = newUser;
+    }
+
+    /**
+     * Returns the cached device entity, or null if there is none or if it does
+     * not match the current state of the given GBDevice anymore.
+     */
+    @Nullable
+    static synchronized Device getDevice(DaoSession daoSession, GBDevice gbDevice) {
+        checkSession(daoSession);
+        CachedDevice cached = devices.get(gbDevice.getAddress());
+        if (cached != null && cached.matches(gbDevice)) {
+            return cached.device;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached device entity regardless of the state of the GBDevice.
+     * Suitable for read-only lookups that only need the device id.
+     */
+    @Nullable
+    static synchronized Device findDevice(DaoSession daoSession, GBDevice gbDevice) {
+        checkSession(daoSession);
+        CachedDevice cached = devices.get(gbDevice.getAddress());
+        return cached != null ? cached.device : null;
+    }
+
+    static synchronized void putDevice(DaoSession daoSession, GBDevice gbDevice, Device device, boolean upToDate) {
+        checkSession(daoSession);
+        devices.put(gbDevice.getAddress(), new CachedDevice(device, upToDate ? createKey(gbDevice) : null));
+    }
+
+    static synchronized void invalidateUser() {
+        user = null;
+    }
+
+    static synchronized void invalidate() {
+        session = null;
+        user = null;
+        devices.clear();
+    }
+
+    private static void checkSession(DaoSession daoSession) {
+        if (session != daoSession) {
+            invalidate();
+            session = daoSession;
+        }
+    }
+
+    private static void registerListener() {
+        if (!listenerRegistered) {
+            Prefs prefs = GBApplication.getPrefs();
+            if (prefs != null) {
+                prefs.getPreferences().registerOnSharedPreferenceChangeListener(prefsListener);
+                listenerRegistered = true;
+            }
+        }
+    }
+
+    /**
+     * Everything of a GBDevice that DBHelper persists with the device or its attributes.
+     */
+    private static String createKey(GBDevice gbDevice) {
+        return gbDevice.getName() + '\n'
+                + gbDevice.getModel() + '\n'
+                + gbDevice.getType() + '\n'
+                + gbDevice.getFirmwareVersion() + '\n'
+                + gbDevice.getFirmwareVersion2() + '\n'
+                + gbDevice.getVolatileAddress() + '\n'
+                + gbDevice.isInitialized();
+    }
+
+    private static class CachedDevice {
+        private final Device device;
+        @Nullable
+        private final String key;
+
+        CachedDevice(Device device, @Nullable String key) {
+            this.device = device;
+            this.key = key;
+        }
+
+        boolean matches(GBDevice gbDevice) {
+            return key != null && key.equals(createKey(gbDevice));
+        }
+    }
+}
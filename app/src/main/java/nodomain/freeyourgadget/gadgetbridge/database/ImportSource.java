@@ -0,0 +1,495 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only access to the tables of an exported database, either a database file as
+ * written by {@link DBHelper#exportDB} or a directory written by {@link ColumnarExporter}.
+ * Rows are streamed, nothing is loaded as a whole.
+ */
+abstract class ImportSource implements Closeable {
+
+    /**
+     * Iterates over the rows of a table; the column indexes are those of the columns
+     * that were requested.
+     */
+    interface RowReader extends Closeable {
+        boolean next() throws IOException;
+
+        boolean isNull(int column);
+
+        long getLong(int column);
+
+        double getDouble(int column);
+
+        String getString(int column);
+
+        byte[] getBlob(int column);
+    }
+
+    static ImportSource open(File file) throws IOException {
+        if (file.isDirectory()) {
+            return new Columnar(file);
+        }
+        return new Database(file);
+    }
+
+    abstract int getSchemaVersion();
+
+    /**
+     * Returns the column names of the given table, or null if there is no such table.
+     */
+    abstract String[] getColumns(String table) throws IOException;
+
+    abstract long getRowCount(String table) throws IOException;
+
+    /**
+     * Reads the given columns of the given table, skipping the first rows.
+     */
+    abstract RowReader read(String table, String[] columns, long skipRows) throws IOException;
+
+    private static class Database extends ImportSource {
+        private final SQLiteDatabase db;
+
+        Database(File file) throws IOException {
+            try {
+                db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+            } catch (SQLiteException ex) {
+                throw new IOException("Unable to open " + file, ex);
+            }
+        }
+
+        @Override
+        int getSchemaVersion() {
+            return db.getVersion();
+        }
+
+        @Override
+        String[] getColumns(String table) {
+            List<String> columns = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("PRAGMA table_info('" + table + "')", null)) {
+                int nameIndex = cursor.getColumnIndex("name");
+                while (cursor.moveToNext()) {
+                    columns.add(cursor.getString(nameIndex));
+                }
+            }
+            return columns.isEmpty() ? null : columns.toArray(new String[columns.size()]);
+        }
+
+        @Override
+        long getRowCount(String table) {
+            try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM \"" + table + "\"", null)) {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            }
+        }
+
+        /**
+         * Returns the primary key columns of the given table, or its rowid if it has none.
+         * Both are indexed, so ordering by them does not need a sort.
+         */
+        private String getOrderBy(String table) {
+            SortedMap<Integer, String> keyColumns = new TreeMap<>();
+            try (Cursor cursor = db.rawQuery("PRAGMA table_info('" + table + "')", null)) {
+                int nameIndex = cursor.getColumnIndex("name");
+                int pkIndex = cursor.getColumnIndex("pk");
+                while (cursor.moveToNext()) {
+                    int pk = cursor.getInt(pkIndex);
+                    if (pk > 0) {
+                        keyColumns.put(pk, cursor.getString(nameIndex));
+                    }
+                }
+            }
+            if (keyColumns.isEmpty()) {
+                return "rowid";
+            }
+            StringBuilder orderBy = new StringBuilder();
+            for (String column : keyColumns.values()) {
+                if (orderBy.length() > 0) {
+                    orderBy.append(',');
+                }
+                orderBy.append('"').append(column).append('"');
+            }
+            return orderBy.toString();
+        }
+
+        @Override
+        RowReader read(String table, String[] columns, long skipRows) {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                }
+                sql.append('"').append(columns[i]).append('"');
+            }
+            // the order must be defined for OFFSET to continue an interrupted import at the same row
+            sql.append(" FROM \"").append(table).append("\" ORDER BY ").append(getOrderBy(table))
+                    .append(" LIMIT -1 OFFSET ").append(skipRows);
+            final Cursor cursor = db.rawQuery(sql.toString(), null);
+            return new RowReader() {
+                @Override
+                public boolean next() {
+                    return cursor.moveToNext();
+                }
+
+                @Override
+                public boolean isNull(int column) {
+                    return cursor.isNull(column);
+                }
+
+                @Override
+                public long getLong(int column) {
+                    return cursor.getLong(column);
+                }
+
+                @Override
+                public double getDouble(int column) {
+                    return cursor.getDouble(column);
+                }
+
+                @Override
+                public String getString(int column) {
+                    return cursor.getString(column);
+                }
+
+                @Override
+                public byte[] getBlob(int column) {
+                    return cursor.getBlob(column);
+                }
+
+                @Override
+                public void close() {
+                    cursor.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            db.close();
+        }
+    }
+
+    private static class Columnar extends ImportSource {
+        private final File dir;
+        private final int schemaVersion;
+        private final Map<String, JSONObject> tables = new HashMap<>();
+
+        Columnar(File dir) throws IOException {
+            this.dir = dir;
+            File manifestFile = new File(dir, ColumnarFormat.MANIFEST_FILE_NAME);
+            if (!manifestFile.exists()) {
+                throw new IOException("Incomplete export, " + ColumnarFormat.MANIFEST_FILE_NAME + " is missing in " + dir);
+            }
+            byte[] data = new byte[(int) manifestFile.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(manifestFile))) {
+                in.readFully(data);
+            }
+            try {
+                JSONObject manifest = new JSONObject(new String(data, StandardCharsets.UTF_8));
+                if (manifest.getInt("version") > ColumnarFormat.VERSION) {
+                    throw new IOException("Unsupported export version " + manifest.getInt("version"));
+                }
+                schemaVersion = manifest.getInt("schemaVersion");
+                JSONArray tableArray = manifest.getJSONArray("tables");
+                for (int i = 0; i < tableArray.length(); i++) {
+                    JSONObject table = tableArray.getJSONObject(i);
+                    tables.put(table.getString("name"), table);
+                }
+            } catch (JSONException ex) {
+                throw new IOException("Invalid manifest in " + dir, ex);
+            }
+        }
+
+        @Override
+        int getSchemaVersion() {
+            return schemaVersion;
+        }
+
+        @Override
+        String[] getColumns(String table) throws IOException {
+            JSONObject json = tables.get(table);
+            if (json == null) {
+                return null;
+            }
+            try {
+                JSONArray columns = json.getJSONArray("columns");
+                String[] names = new String[columns.length()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = columns.getJSONObject(i).getString("name");
+                }
+                return names;
+            } catch (JSONException ex) {
+                throw new IOException("Invalid manifest entry for " + table, ex);
+            }
+        }
+
+        @Override
+        long getRowCount(String table) {
+            JSONObject json = tables.get(table);
+            return json != null ? json.optLong("rows") : 0;
+        }
+
+        @Override
+        RowReader read(String table, String[] columns, long skipRows) throws IOException {
+            JSONObject json = tables.get(table);
+            if (json == null) {
+                throw new IOException("No table " + table + " in " + dir);
+            }
+            TableReader reader = new TableReader(new File(dir, json.optString("file", table + ColumnarFormat.TABLE_FILE_EXTENSION)), columns);
+            try {
+                for (long i = 0; i < skipRows && reader.next(); i++) {
+                    // skipped
+                }
+            } catch (IOException ex) {
+                reader.close();
+                throw ex;
+            }
+            return reader;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Decodes a table file of a columnar export block by block.
+     */
+    static class TableReader implements RowReader {
+        private final InputStream in;
+        private final String[] fileColumns;
+        private final byte[] types;
+        // the file column of each requested column, -1 if the file does not have it
+        private final int[] mapping;
+        private final long[] previous;
+        private final Inflater inflater = new Inflater();
+
+        private final long[][] longs;
+        private final double[][] doubles;
+        private final Object[][] objects;
+        private final boolean[][] nulls;
+        private int blockRows;
+        private int row;
+        private boolean finished;
+
+        TableReader(File file, String[] columns) throws IOException {
+            in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                DataInputStream header = new DataInputStream(in);
+                if (header.readInt() != ColumnarFormat.MAGIC) {
+                    throw new IOException("Not a columnar table file: " + file);
+                }
+                int version = header.read();
+                if (version > ColumnarFormat.VERSION) {
+                    throw new IOException("Unsupported table file version " + version + ": " + file);
+                }
+                int columnCount = (int) ColumnarFormat.readVarint(in);
+                fileColumns = new String[columnCount];
+                types = new byte[columnCount];
+                for (int c = 0; c < columnCount; c++) {
+                    byte[] name = new byte[(int) ColumnarFormat.readVarint(in)];
+                    header.readFully(name);
+                    fileColumns[c] = new String(name, StandardCharsets.UTF_8);
+                    types[c] = header.readByte();
+                }
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+
+            List<String> names = Arrays.asList(fileColumns);
+            mapping = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                mapping[i] = names.indexOf(columns[i]);
+            }
+            previous = new long[types.length];
+            longs = new long[types.length][];
+            doubles = new double[types.length][];
+            objects = new Object[types.length][];
+            nulls = new boolean[types.length][];
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            row++;
+            while (row >= blockRows) {
+                if (finished || !readBlock()) {
+                    finished = true;
+                    return false;
+                }
+                row = 0;
+            }
+            return true;
+        }
+
+        private boolean readBlock() throws IOException {
+            blockRows = (int) ColumnarFormat.readVarint(in);
+            if (blockRows == 0) {
+                return false;
+            }
+            DataInputStream data = new DataInputStream(in);
+            for (int c = 0; c < types.length; c++) {
+                byte[] raw = new byte[(int) ColumnarFormat.readVarint(in)];
+                byte[] deflated = new byte[(int) ColumnarFormat.readVarint(in)];
+                data.readFully(deflated);
+                inflater.reset();
+                inflater.setInput(deflated);
+                try {
+                    if (inflater.inflate(raw) != raw.length) {
+                        throw new IOException("Truncated column chunk");
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Corrupt column chunk", ex);
+                }
+                decodeColumn(c, new ByteArrayInputStream(raw));
+            }
+            return true;
+        }
+
+        private void decodeColumn(int c, ByteArrayInputStream chunk) throws IOException {
+            boolean[] columnNulls = ensureNulls(c);
+            Arrays.fill(columnNulls, 0, blockRows, false);
+            if (chunk.read() != 0) {
+                for (int i = 0; i < blockRows; i += 8) {
+                    int bits = chunk.read();
+                    for (int j = 0; j < 8 && i + j < blockRows; j++) {
+                        columnNulls[i + j] = (bits & (1 << j)) != 0;
+                    }
+                }
+            }
+            switch (types[c]) {
+                case ColumnarFormat.TYPE_INTEGER:
+                    if (longs[c] == null || longs[c].length < blockRows) {
+                        longs[c] = new long[Math.max(blockRows, ColumnarFormat.BLOCK_ROWS)];
+                    }
+                    for (int i = 0; i < blockRows; i++) {
+                        if (!columnNulls[i]) {
+                            previous[c] += ColumnarFormat.unzigzag(ColumnarFormat.readVarint(chunk));
+                            longs[c][i] = previous[c];
+                        }
+                    }
+                    break;
+                case ColumnarFormat.TYPE_REAL:
+                    if (doubles[c] == null || doubles[c].length < blockRows) {
+                        doubles[c] = new double[Math.max(blockRows, ColumnarFormat.BLOCK_ROWS)];
+                    }
+                    for (int i = 0; i < blockRows; i++) {
+                        if (!columnNulls[i]) {
+                            long bits = 0;
+                            for (int b = 0; b < 8; b++) {
+                                bits |= (long) chunk.read() << (b * 8);
+                            }
+                            doubles[c][i] = Double.longBitsToDouble(bits);
+                        }
+                    }
+                    break;
+                default:
+                    if (objects[c] == null || objects[c].length < blockRows) {
+                        objects[c] = new Object[Math.max(blockRows, ColumnarFormat.BLOCK_ROWS)];
+                    }
+                    for (int i = 0; i < blockRows; i++) {
+                        if (!columnNulls[i]) {
+                            byte[] bytes = new byte[(int) ColumnarFormat.readVarint(chunk)];
+                            if (chunk.read(bytes, 0, bytes.length) != bytes.length && bytes.length > 0) {
+                                throw new IOException("Truncated column chunk");
+                            }
+                            objects[c][i] = types[c] == ColumnarFormat.TYPE_TEXT ? new String(bytes, StandardCharsets.UTF_8) : bytes;
+                        }
+                    }
+            }
+        }
+
+        private boolean[] ensureNulls(int c) {
+            if (nulls[c] == null || nulls[c].length < blockRows) {
+                nulls[c] = new boolean[Math.max(blockRows, ColumnarFormat.BLOCK_ROWS)];
+            }
+            return nulls[c];
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mapping[column] < 0 || nulls[mapping[column]][row];
+        }
+
+        @Override
+        public long getLong(int column) {
+            int c = mapping[column];
+            return types[c] == ColumnarFormat.TYPE_REAL ? (long) doubles[c][row] : longs[c][row];
+        }
+
+        @Override
+        public double getDouble(int column) {
+            int c = mapping[column];
+            return types[c] == ColumnarFormat.TYPE_INTEGER ? longs[c][row] : doubles[c][row];
+        }
+
+        @Override
+        public String getString(int column) {
+            int c = mapping[column];
+            switch (types[c]) {
+                case ColumnarFormat.TYPE_INTEGER:
+                    return String.valueOf(longs[c][row]);
+                case ColumnarFormat.TYPE_REAL:
+                    return String.valueOf(doubles[c][row]);
+                case ColumnarFormat.TYPE_TEXT:
+                    return (String) objects[c][row];
+                default:
+                    return new String((byte[]) objects[c][row], StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            int c = mapping[column];
+            Object value = objects[c][row];
+            return value instanceof String ? ((String) value).getBytes(StandardCharsets.UTF_8) : (byte[]) value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivityOverlayDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivitySampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlayDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySampleDao;
+
+/**
+ * Append-only side archive for the raw payloads of device samples (e.g. the
+ * raw Pebble Health records). The sample tables only store the offset of the
+ * record in this archive, so that range queries over the samples do not have
+ * to carry the blobs through the cursor window.
+ * <p/>
+ * Each record consists of a small header (magic, deviceId, timestamp, type,
+ * payload length) and the payload itself. Reads go through a read-only memory
+ * mapping of the file, which is extended whenever an offset beyond the mapped
+ * region is requested. The header is verified on every read, so that offsets
+ * from a foreign (e.g. imported) database will not return unrelated data.
+ * <p/>
+ * The archive only exists in this installation, so exports get the raw records
+ * copied back into the blob columns ({@link #restoreFromArchive(SQLiteDatabase)}),
+ * and merged data is appended to the archive again.
+ */
+public class RawSampleArchive implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RawSampleArchive.class);
+
+    public static final String ARCHIVE_FILE_NAME = "raw_samples.bin";
+
+    public static final byte TYPE_PEBBLE_HEALTH_SAMPLE = 1;
+    public static final byte TYPE_PEBBLE_HEALTH_OVERLAY = 2;
+    public static final byte TYPE_HPLUS_HEALTH_SAMPLE = 3;
+    public static final byte TYPE_HPLUS_HEALTH_OVERLAY = 4;
+
+    private static final int MAGIC = 0x47425241; // "GBRA"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 1 + 2;
+    private static final int MAX_PAYLOAD_SIZE = 0xffff;
+    private static final int BATCH_SIZE = 500;
+
+    private static RawSampleArchive instance;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    public static synchronized RawSampleArchive getInstance() throws IOException {
+        if (instance == null) {
+            Context context = GBApplication.getContext();
+            instance = new RawSampleArchive(new File(context.getFilesDir(), ARCHIVE_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Closes and deletes the shared archive, e.g. when the activity database is deleted.
+     */
+    public static synchronized boolean deleteArchive(Context context) {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        File archive = new File(context.getFilesDir(), ARCHIVE_FILE_NAME);
+        return !archive.exists() || archive.delete();
+    }
+
+    public RawSampleArchive(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends the given payload to the archive.
+     *
+     * @return the offset of the new record, to be stored with the sample row
+     */
+    public synchronized long append(long deviceId, int timestamp, byte type, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Raw payload too large: " + payload.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putLong(deviceId);
+        buffer.putInt(timestamp);
+        buffer.put(type);
+        buffer.putShort((short) payload.length);
+        buffer.put(payload);
+        buffer.flip();
+
+        long offset = channel.size();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the payload stored at the given offset. Returns null if there is
+     * no valid record for the given device and timestamp at that offset.
+     */
+    @Nullable
+    public synchronized byte[] read(long offset, long deviceId, int timestamp) throws IOException {
+        if (offset < 0 || offset + HEADER_SIZE > channel.size()) {
+            return null;
+        }
+        ensureMapped(offset + HEADER_SIZE);
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position((int) offset);
+        if (buffer.getInt() != MAGIC) {
+            LOG.warn("No raw sample record at offset " + offset);
+            return null;
+        }
+        if (buffer.getLong() != deviceId || buffer.getInt() != timestamp) {
+            LOG.warn("Raw sample record at offset " + offset + " belongs to a different sample");
+            return null;
+        }
+        buffer.get(); // type
+        int length = buffer.getShort() & 0xffff;
+        ensureMapped(offset + HEADER_SIZE + length);
+        buffer = mapped.duplicate();
+        buffer.position((int) offset + HEADER_SIZE);
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return payload;
+    }
+
+    private void ensureMapped(long end) throws IOException {
+        if (mapped == null || mapped.capacity() < end) {
+            long size = channel.size();
+            if (size < end) {
+                throw new IOException("Raw sample archive truncated, expected at least " + end + " bytes, but has " + size);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Moves the raw blobs of all tables of the given database into the archive, e.g.
+     * after a database with inline raw data was imported.
+     */
+    public void moveToArchive(SQLiteDatabase db) throws IOException {
+        for (RawTable table : getRawTables()) {
+            if (table.hasOffsetColumn(db)) {
+                table.moveToArchive(db, this);
+            }
+        }
+    }
+
+    /**
+     * Copies the archived raw records back into the blob columns of the given database
+     * and clears the offsets. Used for exports, which must not depend on this archive.
+     */
+    public void restoreFromArchive(SQLiteDatabase db) throws IOException {
+        for (RawTable table : getRawTables()) {
+            if (table.hasOffsetColumn(db)) {
+                table.restoreFromArchive(db, this);
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() {
+        mapped = null;
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            LOG.warn("Error closing raw sample archive", ex);
+        }
+    }
+
+    /**
+     * Returns the tables whose raw blobs are kept in the archive.
+     */
+    public static List<RawTable> getRawTables() {
+        List<RawTable> tables = new ArrayList<>(4);
+        tables.add(new RawTable(PebbleHealthActivitySampleDao.TABLENAME, TYPE_PEBBLE_HEALTH_SAMPLE,
+                PebbleHealthActivitySampleDao.Properties.RawPebbleHealthData.columnName,
+                PebbleHealthActivitySampleDao.Properties.RawDataOffset.columnName,
+                PebbleHealthActivitySampleDao.Properties.DeviceId.columnName,
+                PebbleHealthActivitySampleDao.Properties.Timestamp.columnName));
+        tables.add(new RawTable(PebbleHealthActivityOverlayDao.TABLENAME, TYPE_PEBBLE_HEALTH_OVERLAY,
+                PebbleHealthActivityOverlayDao.Properties.RawPebbleHealthData.columnName,
+                PebbleHealthActivityOverlayDao.Properties.RawDataOffset.columnName,
+                PebbleHealthActivityOverlayDao.Properties.DeviceId.columnName,
+                PebbleHealthActivityOverlayDao.Properties.TimestampFrom.columnName,
+                PebbleHealthActivityOverlayDao.Properties.TimestampTo.columnName,
+                PebbleHealthActivityOverlayDao.Properties.RawKind.columnName));
+        tables.add(new RawTable(HPlusHealthActivitySampleDao.TABLENAME, TYPE_HPLUS_HEALTH_SAMPLE,
+                HPlusHealthActivitySampleDao.Properties.RawHPlusHealthData.columnName,
+                HPlusHealthActivitySampleDao.Properties.RawDataOffset.columnName,
+                HPlusHealthActivitySampleDao.Properties.DeviceId.columnName,
+                HPlusHealthActivitySampleDao.Properties.Timestamp.columnName,
+                HPlusHealthActivitySampleDao.Properties.RawKind.columnName));
+        tables.add(new RawTable(HPlusHealthActivityOverlayDao.TABLENAME, TYPE_HPLUS_HEALTH_OVERLAY,
+                HPlusHealthActivityOverlayDao.Properties.RawHPlusHealthData.columnName,
+                HPlusHealthActivityOverlayDao.Properties.RawDataOffset.columnName,
+                HPlusHealthActivityOverlayDao.Properties.DeviceId.columnName,
+                HPlusHealthActivityOverlayDao.Properties.TimestampFrom.columnName,
+                HPlusHealthActivityOverlayDao.Properties.TimestampTo.columnName,
+                HPlusHealthActivityOverlayDao.Properties.RawKind.columnName));
+        return tables;
+    }
+
+    /**
+     * A table with a raw blob column. The first two key columns are the device id and the
+     * timestamp the archive record is indexed by, any further key columns are only needed
+     * to identify the row.
+     */
+    public static class RawTable {
+        private final String tableName;
+        private final byte type;
+        private final String blobColumn;
+        private final String offsetColumn;
+        private final String[] keyColumns;
+
+        RawTable(String tableName, byte type, String blobColumn, String offsetColumn, String... keyColumns) {
+            this.tableName = tableName;
+            this.type = type;
+            this.blobColumn = blobColumn;
+            this.offsetColumn = offsetColumn;
+            this.keyColumns = keyColumns;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getBlobColumn() {
+            return blobColumn;
+        }
+
+        public String getOffsetColumn() {
+            return offsetColumn;
+        }
+
+        public String getDeviceColumn() {
+            return keyColumns[0];
+        }
+
+        public String getTimestampColumn() {
+            return keyColumns[1];
+        }
+
+        boolean hasOffsetColumn(SQLiteDatabase db) {
+            return DBHelper.existsColumn(tableName, offsetColumn, db);
+        }
+
+        public void addOffsetColumn(SQLiteDatabase db) {
+            if (!DBHelper.existsColumn(tableName, offsetColumn, db)) {
+                db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + offsetColumn + " INTEGER;");
+            }
+        }
+
+        void moveToArchive(SQLiteDatabase db, RawSampleArchive archive) throws IOException {
+            SQLiteStatement update = db.compileStatement("UPDATE " + tableName + " SET " + offsetColumn + " = ?, " + blobColumn + " = NULL WHERE " + getKeyCondition());
+            int moved = 0;
+            List<Object[]> batch;
+            // rows leave the result set once they are updated, so always query from the start
+            while (!(batch = loadBatch(db, blobColumn + " IS NOT NULL", blobColumn)).isEmpty()) {
+                for (Object[] row : batch) {
+                    long[] keys = (long[]) row[0];
+                    long offset = archive.append(keys[0], (int) keys[1], type, (byte[]) row[1]);
+                    update.clearBindings();
+                    update.bindLong(1, offset);
+                    bindKeys(update, keys, 2);
+                    update.executeUpdateDelete();
+                }
+                moved += batch.size();
+            }
+            update.close();
+            LOG.info("Moved " + moved + " raw records of " + tableName + " to the raw sample archive");
+        }
+
+        void restoreFromArchive(SQLiteDatabase db, RawSampleArchive archive) throws IOException {
+            // without an index, every batch would scan the whole table
+            String index = "\"tmp_" + tableName + "_" + offsetColumn + "\"";
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + index + " ON " + tableName + " (" + offsetColumn + ")");
+            SQLiteStatement update = db.compileStatement("UPDATE " + tableName + " SET " + blobColumn + " = ?, " + offsetColumn + " = NULL WHERE " + getKeyCondition());
+            int restored = 0;
+            List<Object[]> batch;
+            // offsets are never negative, unlike IS NOT NULL this condition can use the index
+            while (!(batch = loadBatch(db, offsetColumn + " >= 0", offsetColumn)).isEmpty()) {
+                for (Object[] row : batch) {
+                    long[] keys = (long[]) row[0];
+                    byte[] data = archive.read((Long) row[1], keys[0], (int) keys[1]);
+                    update.clearBindings();
+                    if (data != null) {
+                        update.bindBlob(1, data);
+                        restored++;
+                    } else {
+                        update.bindNull(1);
+                    }
+                    bindKeys(update, keys, 2);
+                    update.executeUpdateDelete();
+                }
+            }
+            update.close();
+            db.execSQL("DROP INDEX IF EXISTS " + index);
+            LOG.info("Restored " + restored + " raw records of " + tableName + " from the raw sample archive");
+        }
+
+        private List<Object[]> loadBatch(SQLiteDatabase db, String selection, String valueColumn) {
+            StringBuilder query = new StringBuilder("SELECT ");
+            for (String key : keyColumns) {
+                query.append(key).append(", ");
+            }
+            query.append(valueColumn).append(" FROM ").append(tableName)
+                    .append(" WHERE ").append(selection).append(" LIMIT ").append(BATCH_SIZE);
+
+            List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+            try (Cursor cursor = db.rawQuery(query.toString(), null)) {
+                int valueIndex = keyColumns.length;
+                while (cursor.moveToNext()) {
+                    long[] keys = new long[keyColumns.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = cursor.getLong(i);
+                    }
+                    Object value = cursor.getType(valueIndex) == Cursor.FIELD_TYPE_BLOB ? cursor.getBlob(valueIndex) : cursor.getLong(valueIndex);
+                    rows.add(new Object[]{keys, value});
+                }
+            }
+            return rows;
+        }
+
+        private String getKeyCondition() {
+            StringBuilder condition = new StringBuilder();
+            for (int i = 0; i < keyColumns.length; i++) {
+                if (i > 0) {
+                    condition.append(" AND ");
+                }
+                condition.append(keyColumns[i]).append(" = ?");
+            }
+            return condition.toString();
+        }
+
+        private void bindKeys(SQLiteStatement statement, long[] keys, int firstIndex) {
+            for (int i = 0; i < keys.length; i++) {
+                statement.bindLong(firstIndex + i, keys[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,825 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+
+/**
+ * Append-only store for activity samples, as an alternative to the sample tables for
+ * devices that report a sample every minute. Each device (by database id) has its own
+ * directory with numbered segment files of fixed-width records:
+ * <pre>
+ * segment: int magic, short version, short record size, records...
+ * record:  int timestamp, int userId, int rawIntensity, int steps, short rawKind,
+ *          short heartRate, int check (all little endian)
+ * </pre>
+ * A segment holds up to {@link #RECORDS_PER_SEGMENT} records. The index file keeps the
+ * record count, the min and max timestamp and whether the records are in ascending
+ * order for each segment, so that range reads only open the segments that overlap and
+ * binary search the sorted ones. Appending a sample with the timestamp of an existing
+ * one replaces it, like insertOrReplace: the record appended last wins.
+ * <p/>
+ * Replaced records stay in the segment until it is compacted, i.e. rewritten sorted and
+ * without the replaced records. That happens when a segment is full and not sorted, and
+ * for the segment being written when {@link #compact(long)} is called after a batch of
+ * samples, so that the segment being written stays sorted even though fetches overlap.
+ * <p/>
+ * Segments are written without syncing. When a log is opened, segments whose length
+ * does not match the index are scanned, and a torn or corrupt tail (detected by the
+ * check value of each record) is truncated, so only the samples written last before a
+ * crash can get lost.
+ */
+public class SampleLog {
+    private static final Logger LOG = LoggerFactory.getLogger(SampleLog.class);
+
+    public static final String DIRECTORY_NAME = "sample_log";
+
+    static final int RECORD_SIZE = 24;
+    static final int RECORDS_PER_SEGMENT = 32768;
+    private static final int MAGIC = 0x4c534247; // "GBSL"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECK_SEED = 0x2f6b1d35;
+    private static final int CHUNK_RECORDS = 1024;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String INDEX_FILE_NAME = "segments.idx";
+    private static final String IMPORT_SUFFIX = ".import";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // a full segment that frees less than this when compacted is not written to anymore
+    private static final int MIN_COMPACTION_GAIN = RECORDS_PER_SEGMENT / 16;
+    private static final int INDEX_HEADER_SIZE = 4 + 2 + 4;
+    private static final int INDEX_ENTRY_SIZE = 4 + 4 + 4 + 4 + 1;
+
+    private static final Comparator<AbstractActivitySample> TIMESTAMP_ORDER = new Comparator<AbstractActivitySample>() {
+        @Override
+        public int compare(AbstractActivitySample lhs, AbstractActivitySample rhs) {
+            return lhs.getTimestamp() < rhs.getTimestamp() ? -1 : (lhs.getTimestamp() == rhs.getTimestamp() ? 0 : 1);
+        }
+    };
+
+    private static SampleLog instance;
+
+    private final File directory;
+    private final Map<Long, DeviceLog> logs = new HashMap<>();
+
+    public static synchronized SampleLog getInstance() {
+        if (instance == null) {
+            instance = new SampleLog(new File(GBApplication.getContext().getFilesDir(), DIRECTORY_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Deletes all logged samples, e.g. when the activity database is deleted.
+     */
+    public static synchronized boolean deleteStore(Context context) {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        return deleteRecursively(new File(context.getFilesDir(), DIRECTORY_NAME));
+    }
+
+    SampleLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns true if the samples of the given device are stored in this log instead of the database.
+     */
+    public synchronized boolean isEnabled(long deviceId) {
+        return logs.containsKey(deviceId) || getDeviceDirectory(deviceId).isDirectory();
+    }
+
+    /**
+     * Appends the given samples, replacing samples with the same timestamp.
+     */
+    public synchronized void append(long deviceId, List<? extends AbstractActivitySample> samples) throws IOException {
+        DeviceLog log = getLog(deviceId);
+        if (log == null) {
+            throw new IOException("No sample log for device " + deviceId);
+        }
+        log.append(samples);
+    }
+
+    /**
+     * Returns the samples between from and to (both inclusive) in ascending order,
+     * created by the given provider.
+     */
+    public synchronized <T extends AbstractActivitySample> List<T> read(long deviceId, int from, int to, SampleProvider<T> provider) throws IOException {
+        DeviceLog log = getLog(deviceId);
+        if (log == null) {
+            return new ArrayList<>();
+        }
+        return log.read(deviceId, from, to, provider);
+    }
+
+    @Nullable
+    public synchronized <T extends AbstractActivitySample> T readLatest(long deviceId, SampleProvider<T> provider) throws IOException {
+        int[] range = getTimeRange(deviceId);
+        if (range == null) {
+            return null;
+        }
+        List<T> samples = read(deviceId, range[1], range[1], provider);
+        return samples.isEmpty() ? null : samples.get(samples.size() - 1);
+    }
+
+    /**
+     * Returns the lowest and highest timestamp in the log of the given device, or null if it is empty.
+     */
+    @Nullable
+    public synchronized int[] getTimeRange(long deviceId) throws IOException {
+        DeviceLog log = getLog(deviceId);
+        if (log == null) {
+            return null;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (Segment segment : log.segments) {
+            if (segment.count > 0) {
+                min = Math.min(min, segment.min);
+                max = Math.max(max, segment.max);
+            }
+        }
+        return min <= max ? new int[]{min, max} : null;
+    }
+
+    /**
+     * Compacts the segment of the given device that is being written, if it contains
+     * replaced or unordered records.
+     */
+    public synchronized void compact(long deviceId) throws IOException {
+        DeviceLog log = getLog(deviceId);
+        if (log != null && !log.segments.isEmpty()) {
+            Segment last = log.segments.get(log.segments.size() - 1);
+            if (!last.sorted) {
+                log.compact(last);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of all devices whose samples are stored in this log.
+     */
+    public synchronized List<Long> getDeviceIds() {
+        List<Long> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    try {
+                        result.add(Long.parseLong(file.getName()));
+                    } catch (NumberFormatException ignore) {
+                        // an unfinished import
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Executes the given statement for every record of every device, in the order the records
+     * were appended, so that an "INSERT OR REPLACE" leaves the same samples as a read.
+     * The arguments are bound in the order timestamp, device id, user id, raw intensity,
+     * steps, raw kind and heart rate.
+     *
+     * @return the number of records
+     */
+    public synchronized int exportTo(SQLiteStatement insert) throws IOException {
+        int count = 0;
+        for (long deviceId : getDeviceIds()) {
+            DeviceLog log = getLog(deviceId);
+            if (log != null) {
+                count += log.exportTo(deviceId, insert);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the index of all logs, so that they can be opened without recovery.
+     */
+    public synchronized void flush() throws IOException {
+        for (DeviceLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Deletes the log of the given device, its samples go back to the database.
+     */
+    public synchronized void delete(long deviceId) {
+        DeviceLog log = logs.remove(deviceId);
+        if (log != null) {
+            log.close();
+        }
+        if (!deleteRecursively(getDeviceDirectory(deviceId))) {
+            LOG.warn("Unable to delete the sample log of device " + deviceId);
+        }
+    }
+
+    /**
+     * Starts building the log of the given device from scratch. The log is only used
+     * once {@link Importer#commit()} is called, and replaces an existing log then.
+     */
+    public synchronized Importer beginImport(long deviceId) throws IOException {
+        File staging = new File(directory, deviceId + IMPORT_SUFFIX);
+        deleteRecursively(staging);
+        return new Importer(deviceId, new DeviceLog(staging));
+    }
+
+    synchronized void close() {
+        for (DeviceLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+
+    @Nullable
+    private DeviceLog getLog(long deviceId) throws IOException {
+        DeviceLog log = logs.get(deviceId);
+        if (log == null) {
+            File deviceDirectory = getDeviceDirectory(deviceId);
+            if (!deviceDirectory.isDirectory()) {
+                return null;
+            }
+            log = new DeviceLog(deviceDirectory);
+            logs.put(deviceId, log);
+        }
+        return log;
+    }
+
+    private File getDeviceDirectory(long deviceId) {
+        return new File(directory, String.valueOf(deviceId));
+    }
+
+    private static boolean deleteRecursively(File file) {
+        boolean result = true;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                result &= deleteRecursively(child);
+            }
+        }
+        return (!file.exists() || file.delete()) && result;
+    }
+
+    static int computeCheck(ByteBuffer buffer, int start) {
+        int check = CHECK_SEED;
+        for (int i = 0; i < RECORD_SIZE - 4; i += 4) {
+            check = check * 31 + buffer.getInt(start + i);
+        }
+        return check;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    public class Importer {
+        private final long mDeviceId;
+        private final DeviceLog mLog;
+
+        private Importer(long deviceId, DeviceLog log) {
+            mDeviceId = deviceId;
+            mLog = log;
+        }
+
+        public void append(List<? extends AbstractActivitySample> samples) throws IOException {
+            synchronized (SampleLog.this) {
+                mLog.append(samples);
+            }
+        }
+
+        public void commit() throws IOException {
+            synchronized (SampleLog.this) {
+                mLog.flush();
+                mLog.close();
+                DeviceLog old = logs.remove(mDeviceId);
+                if (old != null) {
+                    old.close();
+                }
+                File target = getDeviceDirectory(mDeviceId);
+                if (!deleteRecursively(target) || !mLog.directory.renameTo(target)) {
+                    throw new IOException("Unable to move " + mLog.directory + " to " + target);
+                }
+            }
+        }
+
+        public void abort() {
+            synchronized (SampleLog.this) {
+                mLog.close();
+                deleteRecursively(mLog.directory);
+            }
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        int count;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        boolean sorted = true;
+        // not persisted, a reopened log writes to such a segment until it is full again
+        boolean sealed;
+
+        Segment(File directory, int number) {
+            this.number = number;
+            this.file = new File(directory, String.format(Locale.US, "%08d", number) + SEGMENT_EXTENSION);
+        }
+
+        void add(int timestamp) {
+            if (count > 0 && timestamp <= max) {
+                sorted = false;
+            }
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+            count++;
+        }
+
+        boolean overlaps(int from, int to) {
+            return count > 0 && min <= to && max >= from;
+        }
+    }
+
+    /**
+     * The segments of one device. All methods are called with the SampleLog locked.
+     */
+    private static class DeviceLog {
+        final File directory;
+        final List<Segment> segments = new ArrayList<>();
+        @Nullable
+        private RandomAccessFile writer;
+        @Nullable
+        private Segment writerSegment;
+        private boolean indexDirty;
+
+        DeviceLog(File directory) throws IOException {
+            this.directory = directory;
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            Map<Integer, Segment> indexed = readIndex();
+            List<Integer> numbers = new ArrayList<>();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(SEGMENT_EXTENSION)) {
+                        try {
+                            numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+                        } catch (NumberFormatException ex) {
+                            LOG.warn("Ignoring unexpected file " + file);
+                        }
+                    }
+                }
+            }
+            Collections.sort(numbers);
+            for (int number : numbers) {
+                Segment segment = indexed.get(number);
+                if (segment == null || segment.file.length() != HEADER_SIZE + (long) segment.count * RECORD_SIZE) {
+                    segment = recover(number);
+                    indexDirty = true;
+                }
+                segments.add(segment);
+            }
+        }
+
+        private Map<Integer, Segment> readIndex() {
+            Map<Integer, Segment> result = new HashMap<>();
+            File file = new File(directory, INDEX_FILE_NAME);
+            if (!file.exists()) {
+                return result;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                ByteBuffer buffer = allocate((int) raf.length());
+                readFully(raf.getChannel(), buffer, 0);
+                buffer.flip();
+                if (buffer.remaining() < INDEX_HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                    throw new IOException("Invalid index header");
+                }
+                int entries = buffer.getInt();
+                if (buffer.remaining() != entries * INDEX_ENTRY_SIZE) {
+                    throw new IOException("Invalid index size");
+                }
+                for (int i = 0; i < entries; i++) {
+                    Segment segment = new Segment(directory, buffer.getInt());
+                    segment.count = buffer.getInt();
+                    segment.min = buffer.getInt();
+                    segment.max = buffer.getInt();
+                    segment.sorted = buffer.get() != 0;
+                    result.put(segment.number, segment);
+                }
+            } catch (IOException ex) {
+                LOG.warn("Unable to read the sample log index of " + directory + ", recovering", ex);
+                result.clear();
+            }
+            return result;
+        }
+
+        private void writeIndex() throws IOException {
+            ByteBuffer buffer = allocate(INDEX_HEADER_SIZE + segments.size() * INDEX_ENTRY_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.putInt(segments.size());
+            for (Segment segment : segments) {
+                buffer.putInt(segment.number);
+                buffer.putInt(segment.count);
+                buffer.putInt(segment.min);
+                buffer.putInt(segment.max);
+                buffer.put((byte) (segment.sorted ? 1 : 0));
+            }
+            buffer.flip();
+            File file = new File(directory, INDEX_FILE_NAME);
+            File tempFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+            indexDirty = false;
+        }
+
+        /**
+         * Scans the given segment and truncates it after the last valid record.
+         */
+        private Segment recover(int number) throws IOException {
+            Segment segment = new Segment(directory, number);
+            try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                ByteBuffer header = allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if (size < HEADER_SIZE || header.getInt(0) != MAGIC || header.getShort(6) != RECORD_SIZE) {
+                    if (size > 0) {
+                        LOG.warn("Discarding sample log segment without valid header: " + segment.file);
+                    }
+                    channel.truncate(0);
+                    writeHeader(channel);
+                    return segment;
+                }
+                long valid = HEADER_SIZE;
+                ByteBuffer buffer = allocate(CHUNK_RECORDS * RECORD_SIZE);
+                scan:
+                while (valid + RECORD_SIZE <= size) {
+                    buffer.clear();
+                    readFully(channel, buffer, valid);
+                    int records = buffer.position() / RECORD_SIZE;
+                    for (int i = 0; i < records; i++) {
+                        int start = i * RECORD_SIZE;
+                        if (buffer.getInt(start + RECORD_SIZE - 4) != computeCheck(buffer, start)) {
+                            break scan;
+                        }
+                        segment.add(buffer.getInt(start));
+                        valid += RECORD_SIZE;
+                    }
+                    if (records < CHUNK_RECORDS) {
+                        break;
+                    }
+                }
+                if (valid < size) {
+                    LOG.warn("Truncating sample log segment " + segment.file + " from " + size + " to " + valid + " bytes");
+                    channel.truncate(valid);
+                }
+            }
+            return segment;
+        }
+
+        private static void writeHeader(FileChannel channel) throws IOException {
+            ByteBuffer header = allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) RECORD_SIZE);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+
+        void append(List<? extends AbstractActivitySample> samples) throws IOException {
+            ByteBuffer buffer = allocate(Math.min(samples.size(), CHUNK_RECORDS) * RECORD_SIZE);
+            int index = 0;
+            while (index < samples.size()) {
+                Segment segment = getWritableSegment();
+                int count = Math.min(Math.min(samples.size() - index, RECORDS_PER_SEGMENT - segment.count), CHUNK_RECORDS);
+                buffer.clear();
+                for (int i = 0; i < count; i++) {
+                    AbstractActivitySample sample = samples.get(index + i);
+                    int start = buffer.position();
+                    buffer.putInt(sample.getTimestamp());
+                    buffer.putInt((int) sample.getUserId());
+                    buffer.putInt(sample.getRawIntensity());
+                    buffer.putInt(sample.getSteps());
+                    buffer.putShort((short) sample.getRawKind());
+                    buffer.putShort((short) sample.getHeartRate());
+                    buffer.putInt(computeCheck(buffer, start));
+                }
+                buffer.flip();
+                FileChannel channel = writer.getChannel();
+                long position = HEADER_SIZE + (long) segment.count * RECORD_SIZE;
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                for (int i = 0; i < count; i++) {
+                    segment.add(samples.get(index + i).getTimestamp());
+                }
+                index += count;
+                indexDirty = true;
+                if (segment.count == RECORDS_PER_SEGMENT) {
+                    if (!segment.sorted && compact(segment) >= MIN_COMPACTION_GAIN) {
+                        continue;
+                    }
+                    // a full segment does not change anymore
+                    segment.sealed = true;
+                    writeIndex();
+                }
+            }
+        }
+
+        private Segment getWritableSegment() throws IOException {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last == null || last.count >= RECORDS_PER_SEGMENT || last.sealed) {
+                last = new Segment(directory, last == null ? 1 : last.number + 1);
+                closeWriter();
+                writer = new RandomAccessFile(last.file, "rw");
+                writer.setLength(0);
+                writeHeader(writer.getChannel());
+                writerSegment = last;
+                segments.add(last);
+            } else if (writerSegment != last) {
+                closeWriter();
+                writer = new RandomAccessFile(last.file, "rw");
+                writerSegment = last;
+            }
+            return last;
+        }
+
+        <T extends AbstractActivitySample> List<T> read(long deviceId, int from, int to, SampleProvider<T> provider) throws IOException {
+            List<T> result = new ArrayList<>();
+            boolean ascending = true;
+            int last = Integer.MIN_VALUE;
+            ByteBuffer buffer = allocate(CHUNK_RECORDS * RECORD_SIZE);
+            for (Segment segment : segments) {
+                if (!segment.overlaps(from, to)) {
+                    continue;
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r")) {
+                    FileChannel channel = raf.getChannel();
+                    int record = segment.sorted ? findFirst(channel, segment, from) : 0;
+                    read:
+                    while (record < segment.count) {
+                        buffer.clear();
+                        buffer.limit(Math.min(CHUNK_RECORDS, segment.count - record) * RECORD_SIZE);
+                        readFully(channel, buffer, HEADER_SIZE + (long) record * RECORD_SIZE);
+                        int records = buffer.position() / RECORD_SIZE;
+                        if (records == 0) {
+                            break;
+                        }
+                        for (int i = 0; i < records; i++) {
+                            int start = i * RECORD_SIZE;
+                            int timestamp = buffer.getInt(start);
+                            if (timestamp > to && segment.sorted) {
+                                break read;
+                            }
+                            if (timestamp < from || timestamp > to) {
+                                continue;
+                            }
+                            T sample = provider.createActivitySample();
+                            sample.setTimestamp(timestamp);
+                            sample.setDeviceId(deviceId);
+                            sample.setUserId(buffer.getInt(start + 4));
+                            sample.setRawIntensity(buffer.getInt(start + 8));
+                            sample.setSteps(buffer.getInt(start + 12));
+                            sample.setRawKind(buffer.getShort(start + 16));
+                            sample.setHeartRate(buffer.getShort(start + 18));
+                            sample.setProvider(provider);
+                            result.add(sample);
+                            ascending &= timestamp > last;
+                            last = timestamp;
+                        }
+                        record += records;
+                    }
+                }
+            }
+            if (!ascending) {
+                // stable, so samples appended later stay behind the ones they replace
+                Collections.sort(result, TIMESTAMP_ORDER);
+                int size = 0;
+                for (T sample : result) {
+                    if (size > 0 && result.get(size - 1).getTimestamp() == sample.getTimestamp()) {
+                        result.set(size - 1, sample);
+                    } else {
+                        result.set(size++, sample);
+                    }
+                }
+                result.subList(size, result.size()).clear();
+            }
+            return result;
+        }
+
+        /**
+         * Rewrites the given segment with its records sorted by timestamp, keeping only the
+         * record appended last for each timestamp. The new file replaces the old one by renaming,
+         * so a crash leaves either of them.
+         *
+         * @return the number of removed records
+         */
+        int compact(Segment segment) throws IOException {
+            ByteBuffer records = allocate(segment.count * RECORD_SIZE);
+            try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r")) {
+                readFully(raf.getChannel(), records, HEADER_SIZE);
+            }
+            int count = records.position() / RECORD_SIZE;
+            // timestamp in the upper, record index in the lower half, so equal timestamps keep their order
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long) records.getInt(i * RECORD_SIZE) << 32) | i;
+            }
+            Arrays.sort(keys);
+
+            ByteBuffer compacted = allocate(HEADER_SIZE + count * RECORD_SIZE);
+            compacted.putInt(MAGIC);
+            compacted.putShort(VERSION);
+            compacted.putShort((short) RECORD_SIZE);
+            Segment result = new Segment(directory, segment.number);
+            for (int i = 0; i < count; i++) {
+                int timestamp = (int) (keys[i] >> 32);
+                if (i + 1 < count && (int) (keys[i + 1] >> 32) == timestamp) {
+                    continue; // replaced by a record appended later
+                }
+                int start = (int) keys[i] * RECORD_SIZE;
+                records.limit(start + RECORD_SIZE).position(start);
+                compacted.put(records);
+                result.add(timestamp);
+            }
+            compacted.flip();
+
+            File tempFile = new File(directory, segment.file.getName() + TEMP_SUFFIX);
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                while (compacted.hasRemaining()) {
+                    channel.write(compacted, compacted.position());
+                }
+            }
+            if (writerSegment == segment) {
+                closeWriter();
+            }
+            if (!tempFile.renameTo(segment.file)) {
+                tempFile.delete();
+                throw new IOException("Unable to replace " + segment.file);
+            }
+            int removed = segment.count - result.count;
+            segment.count = result.count;
+            segment.min = result.min;
+            segment.max = result.max;
+            segment.sorted = true;
+            writeIndex();
+            LOG.debug("Compacted sample log segment " + segment.file + ", removed " + removed + " records");
+            return removed;
+        }
+
+        int exportTo(long deviceId, SQLiteStatement insert) throws IOException {
+            int exported = 0;
+            ByteBuffer buffer = allocate(CHUNK_RECORDS * RECORD_SIZE);
+            for (Segment segment : segments) {
+                try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r")) {
+                    FileChannel channel = raf.getChannel();
+                    int record = 0;
+                    while (record < segment.count) {
+                        buffer.clear();
+                        buffer.limit(Math.min(CHUNK_RECORDS, segment.count - record) * RECORD_SIZE);
+                        readFully(channel, buffer, HEADER_SIZE + (long) record * RECORD_SIZE);
+                        int records = buffer.position() / RECORD_SIZE;
+                        if (records == 0) {
+                            break;
+                        }
+                        for (int i = 0; i < records; i++) {
+                            int start = i * RECORD_SIZE;
+                            insert.clearBindings();
+                            insert.bindLong(1, buffer.getInt(start));
+                            insert.bindLong(2, deviceId);
+                            insert.bindLong(3, buffer.getInt(start + 4));
+                            insert.bindLong(4, buffer.getInt(start + 8));
+                            insert.bindLong(5, buffer.getInt(start + 12));
+                            insert.bindLong(6, buffer.getShort(start + 16));
+                            insert.bindLong(7, buffer.getShort(start + 18));
+                            insert.executeInsert();
+                        }
+                        record += records;
+                        exported += records;
+                    }
+                }
+            }
+            return exported;
+        }
+
+        /**
+         * Returns the index of the first record not older than the given timestamp in a sorted segment.
+         */
+        private static int findFirst(FileChannel channel, Segment segment, int timestamp) throws IOException {
+            if (segment.min >= timestamp) {
+                return 0;
+            }
+            ByteBuffer buffer = allocate(4);
+            int low = 0;
+            int high = segment.count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                buffer.clear();
+                readFully(channel, buffer, HEADER_SIZE + (long) mid * RECORD_SIZE);
+                if (buffer.getInt(0) < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void flush() throws IOException {
+            if (indexDirty) {
+                writeIndex();
+            }
+        }
+
+        private void closeWriter() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    LOG.warn("Error closing sample log segment", ex);
+                }
+                writer = null;
+                writerSegment = null;
+            }
+        }
+
+        void close() {
+            try {
+                flush();
+            } catch (IOException ex) {
+                LOG.warn("Unable to write the sample log index of " + directory, ex);
+            }
+            closeWriter();
+        }
+    }
+}
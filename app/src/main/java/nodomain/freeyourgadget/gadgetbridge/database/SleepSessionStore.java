@@ -0,0 +1,284 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.SleepSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.SleepSessionDao;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Detects sleep sessions in the activity samples and keeps them in the SleepSession
+ * table, so that the week charts and the sleep alarm do not have to go through all
+ * samples of a night (or of a week of nights) again.
+ * <p/>
+ * A session is a run of light and deep sleep samples. Awake phases of up to
+ * {@link #MAX_AWAKE_SECONDS} belong to the session, longer ones end it. Sessions with
+ * less than {@link #MIN_SLEEP_SECONDS} of sleep are dropped.
+ * <p/>
+ * The sessions are updated incrementally: AbstractSampleProvider re-analyzes the time
+ * around every batch of inserted samples, {@link #ensureAnalyzed} catches up with the
+ * history from before the sessions existed and with samples that were inserted one by one,
+ * which only shrink the analyzed range, see {@link #invalidateFrom}.
+ * All methods must be called while holding the database, see {@link GBApplication#acquireDB()}.
+ */
+public class SleepSessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SleepSessionStore.class);
+
+    static final int MAX_AWAKE_SECONDS = 60 * 60;
+    static final int MIN_SLEEP_SECONDS = 15 * 60;
+    // a sample lasts until the next one, but not longer than this (the device was off)
+    static final int MAX_SAMPLE_SECONDS = 10 * 60;
+    private static final int DEFAULT_SAMPLE_SECONDS = 60;
+    // sleep this far around the changed samples may belong to the same session
+    private static final int WINDOW_PADDING_SECONDS = 12 * 60 * 60;
+    private static final int ANALYSIS_CHUNK_SECONDS = 7 * 24 * 60 * 60;
+
+    private static final String PREFS_NAME = "sleep_sessions";
+    private static final String KEY_ANALYZED_FROM = "analyzed_from_";
+    private static final String KEY_ANALYZED_TO = "analyzed_to_";
+
+    private SleepSessionStore() {
+    }
+
+    /**
+     * Segments the given samples, which must be sorted by time, into sleep sessions.
+     * The returned sessions have neither a device nor a user yet.
+     */
+    static List<SleepSession> detect(List<? extends ActivitySample> samples) {
+        List<SleepSession> sessions = new ArrayList<>();
+        SleepSession current = null;
+        int lastSleepEnd = 0;
+        int pendingAwakeSeconds = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            ActivitySample sample = samples.get(i);
+            int timestamp = sample.getTimestamp();
+            int seconds = DEFAULT_SAMPLE_SECONDS;
+            if (i + 1 < samples.size()) {
+                seconds = Math.min(samples.get(i + 1).getTimestamp() - timestamp, MAX_SAMPLE_SECONDS);
+            }
+
+            int kind = sample.getKind();
+            if (kind != ActivityKind.TYPE_LIGHT_SLEEP && kind != ActivityKind.TYPE_DEEP_SLEEP) {
+                if (current != null) {
+                    // only counts if the sleep goes on, see below
+                    pendingAwakeSeconds += seconds;
+                }
+                continue;
+            }
+
+            if (current != null && timestamp - lastSleepEnd > MAX_AWAKE_SECONDS) {
+                finish(current, sessions);
+                current = null;
+            }
+            if (current == null) {
+                current = new SleepSession();
+                current.setStartTime(timestamp);
+            } else {
+                current.setAwakeSeconds(current.getAwakeSeconds() + pendingAwakeSeconds);
+            }
+            pendingAwakeSeconds = 0;
+
+            if (kind == ActivityKind.TYPE_DEEP_SLEEP) {
+                current.setDeepSleepSeconds(current.getDeepSleepSeconds() + seconds);
+            } else {
+                current.setLightSleepSeconds(current.getLightSleepSeconds() + seconds);
+            }
+            lastSleepEnd = timestamp + seconds;
+            current.setEndTime(lastSleepEnd);
+        }
+        if (current != null) {
+            finish(current, sessions);
+        }
+        return sessions;
+    }
+
+    private static void finish(SleepSession session, List<SleepSession> sessions) {
+        if (session.getLightSleepSeconds() + session.getDeepSleepSeconds() >= MIN_SLEEP_SECONDS) {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * Re-detects the sessions of the given device around the given time range, after its
+     * samples in that range have changed.
+     */
+    public static void update(DaoSession session, SampleProvider<?> provider, long deviceId, long userId, int from, int to) {
+        SleepSessionDao dao = session.getSleepSessionDao();
+        int windowFrom = from - WINDOW_PADDING_SECONDS;
+        int windowTo = to + WINDOW_PADDING_SECONDS;
+
+        // widen the window until it contains all sessions that the changed samples may be part of
+        List<SleepSession> stored;
+        boolean widened;
+        do {
+            stored = getSessions(session, deviceId, windowFrom, windowTo);
+            widened = false;
+            for (SleepSession sleepSession : stored) {
+                if (sleepSession.getStartTime() - MAX_AWAKE_SECONDS < windowFrom) {
+                    windowFrom = sleepSession.getStartTime() - MAX_AWAKE_SECONDS;
+                    widened = true;
+                }
+                if (sleepSession.getEndTime() + MAX_AWAKE_SECONDS > windowTo) {
+                    windowTo = sleepSession.getEndTime() + MAX_AWAKE_SECONDS;
+                    widened = true;
+                }
+            }
+        } while (widened);
+
+        List<SleepSession> detected = detect(provider.getAllActivitySamples(windowFrom, windowTo));
+        for (SleepSession sleepSession : detected) {
+            sleepSession.setDeviceId(deviceId);
+            sleepSession.setUserId(userId);
+        }
+        if (stored.isEmpty() && detected.isEmpty()) {
+            return;
+        }
+        session.getDatabase().beginTransaction();
+        try {
+            dao.deleteInTx(stored);
+            dao.insertInTx(detected);
+            session.getDatabase().setTransactionSuccessful();
+        } finally {
+            session.getDatabase().endTransaction();
+        }
+        dao.detachAll();
+    }
+
+    /**
+     * Makes sure that the sessions of the given device between the given times have been
+     * detected. Only the part of the range that was not analyzed before is analyzed.
+     */
+    public static void ensureAnalyzed(DaoSession session, SampleProvider<?> provider, Device device, int from, int to) {
+        SharedPreferences prefs = getPreferences(GBApplication.getContext());
+        String fromKey = KEY_ANALYZED_FROM + device.getId();
+        String toKey = KEY_ANALYZED_TO + device.getId();
+        to = Math.min(to, (int) (System.currentTimeMillis() / 1000));
+        if (from >= to) {
+            return;
+        }
+
+        long userId = DBHelper.getUser(session).getId();
+        int analyzedFrom = prefs.getInt(fromKey, 0);
+        int analyzedTo = prefs.getInt(toKey, 0);
+        if (analyzedTo == 0) {
+            analyze(session, provider, device.getId(), userId, from, to);
+            analyzedFrom = from;
+            analyzedTo = to;
+        } else {
+            if (from < analyzedFrom) {
+                analyze(session, provider, device.getId(), userId, from, analyzedFrom);
+                analyzedFrom = from;
+            }
+            if (to > analyzedTo) {
+                analyze(session, provider, device.getId(), userId, analyzedTo, to);
+                analyzedTo = to;
+            }
+        }
+        prefs.edit().putInt(fromKey, analyzedFrom).putInt(toKey, analyzedTo).apply();
+    }
+
+    /**
+     * Marks the sessions of the given device from the given time on as not analyzed, after
+     * a sample was inserted without updating them. The next {@link #ensureAnalyzed} call
+     * detects them again.
+     */
+    public static void invalidateFrom(long deviceId, int timestamp) {
+        SharedPreferences prefs = getPreferences(GBApplication.getContext());
+        String fromKey = KEY_ANALYZED_FROM + deviceId;
+        String toKey = KEY_ANALYZED_TO + deviceId;
+        int analyzedFrom = prefs.getInt(fromKey, 0);
+        int analyzedTo = prefs.getInt(toKey, 0);
+        if (analyzedTo == 0 || timestamp >= analyzedTo) {
+            // not analyzed yet, or the sessions after analyzedTo are detected anyway
+            return;
+        }
+        if (timestamp <= analyzedFrom) {
+            prefs.edit().remove(fromKey).remove(toKey).apply();
+        } else {
+            prefs.edit().putInt(toKey, timestamp).apply();
+        }
+    }
+
+    private static void analyze(DaoSession session, SampleProvider<?> provider, long deviceId, long userId, int from, int to) {
+        LOG.info("Detecting sleep sessions of device " + deviceId + " between " + from + " and " + to);
+        for (int chunkFrom = from; chunkFrom < to; chunkFrom += ANALYSIS_CHUNK_SECONDS) {
+            update(session, provider, deviceId, userId, chunkFrom, Math.min(chunkFrom + ANALYSIS_CHUNK_SECONDS, to));
+        }
+    }
+
+    /**
+     * Returns the sessions of the given device that overlap the given time range, by start time.
+     */
+    public static List<SleepSession> getSessions(DaoSession session, long deviceId, int from, int to) {
+        SleepSessionDao dao = session.getSleepSessionDao();
+        return dao.queryBuilder()
+                .where(SleepSessionDao.Properties.DeviceId.eq(deviceId),
+                        SleepSessionDao.Properties.EndTime.ge(from),
+                        SleepSessionDao.Properties.StartTime.le(to))
+                .orderAsc(SleepSessionDao.Properties.StartTime)
+                .list();
+    }
+
+    /**
+     * Returns the sessions of the given device that ended within the given time range, i.e.
+     * the nights that belong to a day.
+     */
+    public static List<SleepSession> getSessionsEndingBetween(DaoSession session, long deviceId, int from, int to) {
+        SleepSessionDao dao = session.getSleepSessionDao();
+        return dao.queryBuilder()
+                .where(SleepSessionDao.Properties.DeviceId.eq(deviceId),
+                        SleepSessionDao.Properties.EndTime.between(from, to))
+                .orderAsc(SleepSessionDao.Properties.EndTime)
+                .list();
+    }
+
+    /**
+     * Returns the most recent sessions of all devices, newest first.
+     */
+    public static List<SleepSession> getLatestSessions(DaoSession session, int count) {
+        SleepSessionDao dao = session.getSleepSessionDao();
+        return dao.queryBuilder()
+                .orderDesc(SleepSessionDao.Properties.EndTime)
+                .limit(count)
+                .list();
+    }
+
+    /**
+     * Makes the sessions be detected again, e.g. after the samples were imported.
+     */
+    public static void invalidate(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
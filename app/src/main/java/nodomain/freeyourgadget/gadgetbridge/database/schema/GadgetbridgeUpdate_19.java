@@ -0,0 +1,54 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database.schema;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.IOException;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBUpdateScript;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
+
+/*
+ * adds the raw data offset columns and moves the raw blobs into the RawSampleArchive
+ */
+
+public class GadgetbridgeUpdate_19 implements DBUpdateScript {
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        try {
+            RawSampleArchive archive = RawSampleArchive.getInstance();
+            for (RawSampleArchive.RawTable table : RawSampleArchive.getRawTables()) {
+                table.addOffsetColumn(db);
+            }
+            archive.moveToArchive(db);
+            archive.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to move raw sample data to the archive", ex);
+        }
+    }
+
+    @Override
+    public void downgradeSchema(SQLiteDatabase db) {
+        // the offset column may stay, older versions simply ignore it; restore the blobs though
+        try {
+            RawSampleArchive.getInstance().restoreFromArchive(db);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to restore raw sample data from the archive", ex);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database.schema;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBUpdateScript;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummaryDao;
+
+/*
+ * adds the index the activity summaries list is paged by
+ */
+
+public class GadgetbridgeUpdate_20 implements DBUpdateScript {
+    private static final String INDEX_NAME = "IDX_BASE_ACTIVITY_SUMMARY_DEVICE_ID_START_TIME";
+
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME + " ON " + BaseActivitySummaryDao.TABLENAME + " ("
+                + BaseActivitySummaryDao.Properties.DeviceId.columnName + ", "
+                + BaseActivitySummaryDao.Properties.StartTime.columnName + ");");
+    }
+
+    @Override
+    public void downgradeSchema(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_NAME + ";");
+    }
+}
@@ -0,0 +1,50 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database.schema;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBUpdateScript;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummaryDao;
+
+/*
+ * adds the workout analytics columns and the binary track path to the activity summaries
+ */
+
+public class GadgetbridgeUpdate_21 implements DBUpdateScript {
+    @Override
+    public void upgradeSchema(SQLiteDatabase db) {
+        addColumn(db, BaseActivitySummaryDao.Properties.BinaryTrack.columnName, "TEXT");
+        addColumn(db, BaseActivitySummaryDao.Properties.DistanceMeters.columnName, "REAL");
+        addColumn(db, BaseActivitySummaryDao.Properties.ElevationGain.columnName, "REAL");
+        addColumn(db, BaseActivitySummaryDao.Properties.AveragePace.columnName, "REAL");
+        addColumn(db, BaseActivitySummaryDao.Properties.MaxPace.columnName, "REAL");
+        addColumn(db, BaseActivitySummaryDao.Properties.HeartRateZones.columnName, "TEXT");
+        addColumn(db, BaseActivitySummaryDao.Properties.Splits.columnName, "TEXT");
+    }
+
+    @Override
+    public void downgradeSchema(SQLiteDatabase db) {
+    }
+
+    private void addColumn(SQLiteDatabase db, String column, String type) {
+        if (!DBHelper.existsColumn(BaseActivitySummaryDao.TABLENAME, column, db)) {
+            db.execSQL("ALTER TABLE " + BaseActivitySummaryDao.TABLENAME + " ADD COLUMN " + column + " " + type + ";");
+        }
+    }
+}
@@ -76,6 +76,7 @@ public abstract class AbstractDeviceCoordinator implements DeviceCoordinator {
                 QueryBuilder<?> qb = session.getDeviceAttributesDao().queryBuilder();
                 qb.where(DeviceAttributesDao.Properties.DeviceId.eq(device.getId())).buildDelete().executeDeleteWithoutDetachingEntities();
                 session.getDeviceDao().delete(device);
+                DBHelper.clearIdentityCache();
             } else {
                 LOG.info("device to delete not found in db: " + gbDevice);
             }
@@ -19,15 +19,23 @@ package nodomain.freeyourgadget.gadgetbridge.devices;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.DaoException;
 import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.QueryBuilder;
 import de.greenrobot.dao.query.WhereCondition;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.SampleLog;
+import nodomain.freeyourgadget.gadgetbridge.database.SleepSessionStore;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
@@ -40,7 +48,10 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
  * @param <T> the sample type
  */
 public abstract class AbstractSampleProvider<T extends AbstractActivitySample> implements SampleProvider<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractSampleProvider.class);
     private static final WhereCondition[] NO_CONDITIONS = new WhereCondition[0];
+    private static final int MIGRATION_PAGE_SIZE = 10000;
+    private static final int MIGRATION_WINDOW_SECONDS = 7 * 24 * 60 * 60;
     private final DaoSession mSession;
     private final GBDevice mDevice;
 
@@ -82,12 +93,159 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
 
     @Override
     public void addGBActivitySample(T activitySample) {
-        getSampleDao().insertOrReplace(activitySample);
+        if (isSampleLogEnabled(activitySample.getDeviceId())) {
+            appendToSampleLog(activitySample.getDeviceId(), Collections.singletonList(activitySample));
+        } else {
+            getSampleDao().insertOrReplace(activitySample);
+        }
+        // too costly for every single sample, the sessions are detected again when needed
+        SleepSessionStore.invalidateFrom(activitySample.getDeviceId(), activitySample.getTimestamp());
     }
 
     @Override
     public void addGBActivitySamples(T[] activitySamples) {
-        getSampleDao().insertOrReplaceInTx(activitySamples);
+        if (activitySamples.length > 0 && isSampleLogEnabled(activitySamples[0].getDeviceId())) {
+            appendToSampleLog(activitySamples[0].getDeviceId(), Arrays.asList(activitySamples));
+        } else {
+            getSampleDao().insertOrReplaceInTx(activitySamples);
+        }
+        updateSleepSessions(activitySamples);
+    }
+
+    /**
+     * Returns true if the samples of this provider only consist of the columns that the
+     * {@link SampleLog} stores (timestamp, device, user, raw intensity, steps, raw kind and
+     * heart rate), so that they can be moved there from the database.
+     */
+    public boolean supportsSampleLog() {
+        return false;
+    }
+
+    protected boolean isSampleLogEnabled(long deviceId) {
+        return supportsSampleLog() && SampleLog.getInstance().isEnabled(deviceId);
+    }
+
+    private void appendToSampleLog(long deviceId, List<T> samples) {
+        try {
+            SampleLog log = SampleLog.getInstance();
+            log.append(deviceId, samples);
+            if (samples.size() > 1) {
+                // fetches overlap with samples stored before, e.g. from realtime measurement
+                log.compact(deviceId);
+            }
+            log.flush();
+        } catch (IOException ex) {
+            throw new DaoException("Unable to append " + samples.size() + " samples to the sample log", ex);
+        }
+    }
+
+    /**
+     * Returns the samples between from and to (both inclusive) from the {@link SampleLog}.
+     */
+    protected List<T> getSampleLogSamples(long deviceId, int timestamp_from, int timestamp_to) {
+        try {
+            return SampleLog.getInstance().read(deviceId, timestamp_from, timestamp_to, this);
+        } catch (IOException ex) {
+            LOG.error("Unable to read samples from the sample log", ex);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Moves all samples of the device from the database into the {@link SampleLog}.
+     * Afterwards, all reads and writes of the samples of the device go to the log.
+     *
+     * @return the number of moved samples
+     */
+    public int moveToSampleLog() throws IOException {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (!supportsSampleLog() || dbDevice == null || isSampleLogEnabled(dbDevice.getId())) {
+            return 0;
+        }
+        long deviceId = dbDevice.getId();
+        Property timestampProperty = getTimestampSampleProperty();
+        Property deviceProperty = getDeviceIdentifierSampleProperty();
+        SampleLog.Importer importer = SampleLog.getInstance().beginImport(deviceId);
+        int moved = 0;
+        try {
+            int last = Integer.MIN_VALUE;
+            while (true) {
+                QueryBuilder<T> qb = getSampleDao().queryBuilder();
+                qb.where(deviceProperty.eq(deviceId), timestampProperty.gt(last)).orderAsc(timestampProperty).limit(MIGRATION_PAGE_SIZE);
+                List<T> samples = qb.build().list();
+                detachFromSession();
+                if (samples.isEmpty()) {
+                    break;
+                }
+                importer.append(samples);
+                moved += samples.size();
+                last = samples.get(samples.size() - 1).getTimestamp();
+            }
+            importer.commit();
+        } catch (IOException | RuntimeException ex) {
+            importer.abort();
+            throw ex;
+        }
+        // only now that the log is complete
+        getSampleDao().queryBuilder().where(deviceProperty.eq(deviceId)).buildDelete().executeDeleteWithoutDetachingEntities();
+        LOG.info("Moved " + moved + " samples of device " + deviceId + " to the sample log");
+        return moved;
+    }
+
+    /**
+     * Moves all samples of the device from the {@link SampleLog} back into the database.
+     *
+     * @return the number of moved samples
+     */
+    public int moveToDatabase() throws IOException {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null || !isSampleLogEnabled(dbDevice.getId())) {
+            return 0;
+        }
+        long deviceId = dbDevice.getId();
+        SampleLog log = SampleLog.getInstance();
+        int[] range = log.getTimeRange(deviceId);
+        int moved = 0;
+        if (range != null) {
+            for (long from = range[0]; from <= range[1]; from += MIGRATION_WINDOW_SECONDS) {
+                int to = (int) Math.min(range[1], from + MIGRATION_WINDOW_SECONDS - 1);
+                List<T> samples = log.read(deviceId, (int) from, to, this);
+                getSampleDao().insertOrReplaceInTx(samples);
+                detachFromSession();
+                moved += samples.size();
+            }
+        }
+        log.delete(deviceId);
+        LOG.info("Moved " + moved + " samples of device " + deviceId + " back to the database");
+        return moved;
+    }
+
+    /**
+     * Re-detects the sleep sessions around the given samples if they contain sleep or
+     * change the samples of a session.
+     */
+    private void updateSleepSessions(T[] activitySamples) {
+        if (activitySamples.length == 0) {
+            return;
+        }
+        int from = Integer.MAX_VALUE;
+        int to = Integer.MIN_VALUE;
+        boolean hasSleep = false;
+        for (T sample : activitySamples) {
+            from = Math.min(from, sample.getTimestamp());
+            to = Math.max(to, sample.getTimestamp());
+            int kind = normalizeType(sample.getRawKind());
+            hasSleep |= kind == ActivityKind.TYPE_LIGHT_SLEEP || kind == ActivityKind.TYPE_DEEP_SLEEP;
+        }
+        long deviceId = activitySamples[0].getDeviceId();
+        if (hasSleep || !SleepSessionStore.getSessions(mSession, deviceId, from, to).isEmpty()) {
+            try {
+                SleepSessionStore.update(mSession, this, deviceId, activitySamples[0].getUserId(), from, to);
+            } catch (Exception ex) {
+                // the samples are safe, the sessions will be detected again when they are needed
+                LOG.warn("Error updating sleep sessions", ex);
+            }
+        }
     }
 
     @Nullable
@@ -99,6 +257,14 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
             // no device, no sample
             return null;
         }
+        if (isSampleLogEnabled(dbDevice.getId())) {
+            try {
+                return SampleLog.getInstance().readLatest(dbDevice.getId(), this);
+            } catch (IOException ex) {
+                LOG.error("Unable to read the latest sample from the sample log", ex);
+                return null;
+            }
+        }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
         qb.where(deviceProperty.eq(dbDevice.getId())).orderDesc(getTimestampSampleProperty()).limit(1);
         List<T> samples = qb.build().list();
@@ -122,6 +288,9 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
             // no device, no samples
             return Collections.emptyList();
         }
+        if (isSampleLogEnabled(dbDevice.getId())) {
+            return filterByActivityType(getSampleLogSamples(dbDevice.getId(), timestamp_from, timestamp_to), activityType);
+        }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
         qb.where(deviceProperty.eq(dbDevice.getId()), timestampProperty.ge(timestamp_from))
             .where(timestampProperty.le(timestamp_to), getClauseForActivityType(qb, activityType));
@@ -133,6 +302,23 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         return samples;
     }
 
+    private List<T> filterByActivityType(List<T> samples, int activityType) {
+        if (activityType == ActivityKind.TYPE_ALL) {
+            return samples;
+        }
+        int[] rawKinds = ActivityKind.mapToDBActivityTypes(activityType, this);
+        List<T> result = new ArrayList<>(samples.size());
+        for (T sample : samples) {
+            for (int rawKind : rawKinds) {
+                if (sample.getRawKind() == rawKind) {
+                    result.add(sample);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Detaches all samples of this type from the session. Changes to them may not be
      * written back to the database.
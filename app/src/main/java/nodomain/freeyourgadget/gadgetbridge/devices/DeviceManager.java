@@ -22,6 +22,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 
@@ -120,8 +122,6 @@ public class DeviceManager {
         filterGlobal.addAction(BLUETOOTH_DEVICE_ACTION_ALIAS_CHANGED);
         filterGlobal.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         context.registerReceiver(mReceiver, filterGlobal);
-
-        refreshPairedDevices();
     }
 
     private void updateDeviceName(BluetoothDevice device, String newName) {
@@ -155,8 +155,29 @@ public class DeviceManager {
 
     }
 
+    /**
+     * Loads the paired devices (which needs the database) on the calling thread and
+     * updates the list of devices on the main thread. Used during startup.
+     */
+    public void loadPairedDevices() {
+        final Set<GBDevice> availableDevices = DeviceHelper.getInstance().getAvailableDevices(context);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            updatePairedDevices(availableDevices);
+        } else {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    updatePairedDevices(availableDevices);
+                }
+            });
+        }
+    }
+
     private void refreshPairedDevices() {
-        Set<GBDevice> availableDevices = DeviceHelper.getInstance().getAvailableDevices(context);
+        updatePairedDevices(DeviceHelper.getInstance().getAvailableDevices(context));
+    }
+
+    private void updatePairedDevices(Set<GBDevice> availableDevices) {
         deviceList.retainAll(availableDevices);
         for (GBDevice availableDevice : availableDevices) {
             if (!deviceList.contains(availableDevice)) {
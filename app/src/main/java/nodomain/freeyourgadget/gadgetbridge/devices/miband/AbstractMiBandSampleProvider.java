@@ -66,6 +66,11 @@ public abstract class AbstractMiBandSampleProvider extends AbstractSampleProvide
         return MiBandActivitySampleDao.Properties.RawKind;
     }
 
+    @Override
+    public boolean supportsSampleLog() {
+        return true;
+    }
+
     @Override
     public MiBandActivitySample createActivitySample() {
         return new MiBandActivitySample();
@@ -28,6 +28,8 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import static nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst.*;
 
 public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
+    // how far back the sample log is searched for the last valid activity type
+    private static final int SAMPLE_LOG_LOOKBACK_SECONDS = 24 * 60 * 60;
 
     public MiBand2SampleProvider(GBDevice device, DaoSession session) {
         super(device, session);
@@ -72,6 +74,16 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
     }
 
     private int determinePreviousValidActivityType(MiBandActivitySample sample) {
+        if (isSampleLogEnabled(sample.getDeviceId())) {
+            List<MiBandActivitySample> previous = getSampleLogSamples(sample.getDeviceId(), sample.getTimestamp() - SAMPLE_LOG_LOOKBACK_SECONDS, sample.getTimestamp() - 1);
+            for (int i = previous.size() - 1; i >= 0; i--) {
+                int rawKind = previous.get(i).getRawKind();
+                if (isValidPreviousActivityType(rawKind)) {
+                    return rawKind & 0xf;
+                }
+            }
+            return TYPE_UNSET;
+        }
         QueryBuilder<MiBandActivitySample> qb = getSampleDao().queryBuilder();
         qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(sample.getDeviceId()),
                 MiBandActivitySampleDao.Properties.UserId.eq(sample.getUserId()),
@@ -86,6 +98,24 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         return TYPE_UNSET;
     }
 
+    /**
+     * The same condition as the query above, for samples from the sample log.
+     */
+    private static boolean isValidPreviousActivityType(int rawKind) {
+        switch (rawKind) {
+            case TYPE_NO_CHANGE:
+            case TYPE_IGNORE:
+            case TYPE_UNSET:
+            case 16:
+            case 80:
+            case 96:
+            case 112:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     @Override
     public int normalizeType(int rawType) {
         return HuamiConst.toActivityKind(rawType);
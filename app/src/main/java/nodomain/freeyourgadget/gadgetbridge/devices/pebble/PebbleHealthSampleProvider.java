@@ -17,6 +17,10 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices.pebble;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -24,6 +28,7 @@ import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
@@ -35,6 +40,8 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 
 public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHealthActivitySample> {
+    private static final Logger LOG = LoggerFactory.getLogger(PebbleHealthSampleProvider.class);
+
     public static final int TYPE_LIGHT_SLEEP = 1;
     public static final int TYPE_DEEP_SLEEP = 2;
     public static final int TYPE_LIGHT_NAP = 3;
@@ -79,6 +86,26 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
         return samples;
     }
 
+    /**
+     * Returns the raw Pebble Health record of the given sample, either from the
+     * sample itself (legacy rows) or from the RawSampleArchive.
+     */
+    public byte[] getRawPebbleHealthData(PebbleHealthActivitySample sample) {
+        if (sample.getRawPebbleHealthData() != null) {
+            return sample.getRawPebbleHealthData();
+        }
+        Long offset = sample.getRawDataOffset();
+        if (offset == null) {
+            return null;
+        }
+        try {
+            return RawSampleArchive.getInstance().read(offset, sample.getDeviceId(), sample.getTimestamp());
+        } catch (IOException ex) {
+            LOG.warn("Unable to read raw health record at " + offset, ex);
+            return null;
+        }
+    }
+
     @Override
     public AbstractDao<PebbleHealthActivitySample, ?> getSampleDao() {
         return getSession().getPebbleHealthActivitySampleDao();
@@ -0,0 +1,47 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+/**
+ * Writes an ActivityTrack in its compact binary form, see {@link ActivityTrack#writeTo(File)}.
+ * Such files can be loaded again without any parsing with {@link ActivityTrack#map(File)}.
+ */
+public class BinaryTrackExporter implements ActivityTrackExporter {
+    public static final String FILE_EXTENSION = ".gbtrack";
+
+    @NonNull
+    @Override
+    public String getDefaultFileName(@NonNull ActivityTrack track) {
+        return FileUtils.makeValidFileName(track.getName() + FILE_EXTENSION);
+    }
+
+    @Override
+    public void performExport(ActivityTrack track, File targetFile) throws IOException, GPXTrackEmptyException {
+        if (track.size() == 0) {
+            throw new GPXTrackEmptyException();
+        }
+        track.writeTo(targetFile);
+    }
+}
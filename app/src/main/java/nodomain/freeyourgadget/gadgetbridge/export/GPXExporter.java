@@ -17,7 +17,6 @@
 package nodomain.freeyourgadget.gadgetbridge.export;
 
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -25,14 +24,10 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
@@ -103,11 +98,11 @@ public class GPXExporter implements ActivityTrackExporter {
         ser.startTag(NS_DEFAULT, "trk");
         ser.startTag(NS_DEFAULT, "trkseg");
 
-        List<ActivityPoint> trackPoints = track.getTrackPoints();
         String source = getSource(track);
         boolean atLeastOnePointExported = false;
-        for (ActivityPoint point : trackPoints) {
-            atLeastOnePointExported |= exportTrackPoint(ser, point, source, trackPoints);
+        ActivityTrack.Cursor cursor = track.cursor();
+        while (cursor.moveToNext()) {
+            atLeastOnePointExported |= exportTrackPoint(ser, track, cursor, source);
         }
 
         if(!atLeastOnePointExported) {
@@ -122,49 +117,46 @@ public class GPXExporter implements ActivityTrackExporter {
         return track.getDevice().getName();
     }
 
-    private boolean exportTrackPoint(XmlSerializer ser, ActivityPoint point, String source, List<ActivityPoint> trackPoints) throws IOException {
-        GPSCoordinate location = point.getLocation();
-        if (location == null) {
+    private boolean exportTrackPoint(XmlSerializer ser, ActivityTrack track, ActivityTrack.Cursor point, String source) throws IOException {
+        if (!point.hasLocation()) {
             return false; // skip invalid points, that just contain hr data, for example
         }
+        int index = point.getPosition();
         ser.startTag(NS_DEFAULT, "trkpt");
-        ser.attribute(NS_DEFAULT, "lon", formatLocation(location.getLongitude()));
-        ser.attribute(NS_DEFAULT, "lat", formatLocation(location.getLatitude()));
-        ser.startTag(NS_DEFAULT, "ele").text(formatLocation(location.getAltitude())).endTag(NS_DEFAULT, "ele");
-        ser.startTag(NS_DEFAULT, "time").text(formatTime(point.getTime())).endTag(NS_DEFAULT, "time");
+        ser.attribute(NS_DEFAULT, "lon", formatE6(track.getLongitudeE6(index)));
+        ser.attribute(NS_DEFAULT, "lat", formatE6(track.getLatitudeE6(index)));
+        ser.startTag(NS_DEFAULT, "ele").text(formatE6(point.getAltitude() * 1000000L)).endTag(NS_DEFAULT, "ele");
+        ser.startTag(NS_DEFAULT, "time").text(formatTime(new Date(point.getTime()))).endTag(NS_DEFAULT, "time");
         String description = point.getDescription();
         if (description != null) {
             ser.startTag(NS_DEFAULT, "desc").text(description).endTag(NS_DEFAULT, "desc");
         }
         //ser.startTag(NS_DEFAULT, "src").text(source).endTag(NS_DEFAULT, "src");
 
-        exportTrackpointExtensions(ser, point, trackPoints);
+        exportTrackpointExtensions(ser, track, index);
 
         ser.endTag(NS_DEFAULT, "trkpt");
 
         return true;
     }
 
-    private void exportTrackpointExtensions(XmlSerializer ser, ActivityPoint point, List<ActivityPoint> trackPoints) throws IOException {
+    private void exportTrackpointExtensions(XmlSerializer ser, ActivityTrack track, int index) throws IOException {
         if (!includeHeartRate) {
             return;
         }
 
-        int hr = point.getHeartRate();
+        int hr = track.getHeartRate(index);
         if (!HeartRateUtils.isValidHeartRateValue(hr)) {
             if (!includeHeartRateOfNearestSample) {
                 return;
             }
 
-            ActivityPoint closestPointItem = findClosestSensibleActivityPoint(point.getTime(), trackPoints);
-            if(closestPointItem == null) {
+            int closestIndex = findClosestSensibleActivityPoint(track, index);
+            if (closestIndex < 0) {
                 return;
             }
 
-            hr = closestPointItem.getHeartRate();
-            if (!HeartRateUtils.isValidHeartRateValue(hr)) {
-                return;
-            }
+            hr = track.getHeartRate(closestIndex);
         }
 
         ser.startTag(NS_DEFAULT, "extensions");
@@ -175,29 +167,41 @@ public class GPXExporter implements ActivityTrackExporter {
         ser.endTag(NS_DEFAULT, "extensions");
     }
 
-    private @Nullable ActivityPoint findClosestSensibleActivityPoint(Date time, List<ActivityPoint> trackPoints) {
-        ActivityPoint closestPointItem = null;
-
+    /**
+     * Returns the index of the latest point with a valid heart rate before the given point,
+     * or -1 if there is none within two minutes. Points are sorted in time ascending order
+     * (oldest first), so only the preceding two minutes need to be looked at.
+     */
+    private int findClosestSensibleActivityPoint(ActivityTrack track, int index) {
+        long time = track.getTime(index);
         long lowestDifference = 60 * 2 * 1000; // minimum distance is 2min
-        for (ActivityPoint pointItem : trackPoints) {
-            int hrItem = pointItem.getHeartRate();
-            if (HeartRateUtils.isValidHeartRateValue(hrItem)) {
-                Date timeItem = pointItem.getTime();
-                if (timeItem.after(time) || timeItem.equals(time)) {
-                    break; // we assume that the given trackPoints are sorted in time ascending order (oldest first)
-                }
-                long difference = time.getTime() - timeItem.getTime();
-                if (difference < lowestDifference) {
-                    lowestDifference = difference;
-                    closestPointItem = pointItem;
-                }
+        for (int i = index - 1; i >= 0; i--) {
+            long difference = time - track.getTime(i);
+            if (difference >= lowestDifference) {
+                break;
+            }
+            if (difference > 0 && HeartRateUtils.isValidHeartRateValue(track.getHeartRate(i))) {
+                return i;
             }
         }
-        return closestPointItem;
+        return -1;
     }
 
-    private String formatLocation(double value) {
-        return new BigDecimal(value).setScale(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP).toPlainString();
+    /**
+     * Formats a fixed point value in 1e-6 units with GPS_DECIMAL_DEGREES_SCALE decimals.
+     */
+    static String formatE6(long value) {
+        StringBuilder builder = new StringBuilder(16);
+        if (value < 0) {
+            builder.append('-');
+            value = -value;
+        }
+        builder.append(value / 1000000).append('.');
+        String fraction = String.valueOf(value % 1000000);
+        for (int i = fraction.length(); i < GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE; i++) {
+            builder.append('0');
+        }
+        return builder.append(fraction).toString();
     }
 
     public String getCreator() {
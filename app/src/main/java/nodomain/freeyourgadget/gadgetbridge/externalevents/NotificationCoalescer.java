@@ -0,0 +1,203 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+
+/**
+ * Sits between the NotificationListener and the device service. Notifications are
+ * keyed by package, tag and id (the same key Android uses for updates), so that
+ * <ul>
+ * <li>each notification gets a stable handle that survives updates,</li>
+ * <li>updates that do not change the forwarded content are dropped,</li>
+ * <li>a burst of updates is coalesced: the first update is delivered right away,
+ * further updates within {@link #COALESCE_WINDOW_MILLIS} are held back and only
+ * the latest of them is delivered when the window ends,</li>
+ * <li>a removal is forwarded exactly once, and only for notifications that were
+ * actually delivered.</li>
+ * </ul>
+ * Must only be used from the main thread.
+ */
+public class NotificationCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationCoalescer.class);
+
+    static final long COALESCE_WINDOW_MILLIS = 1500;
+    private static final int MAX_TRACKED = 256;
+
+    public interface Receiver {
+        void onNotification(NotificationSpec notificationSpec);
+
+        void onDeleteNotification(int handle);
+    }
+
+    private final Handler mHandler;
+    private final Receiver mReceiver;
+
+    // seeded from the clock like the post time based ids before, so that handles do not
+    // collide with those of notifications still shown on the device after a restart
+    private int mNextHandle = (int) System.currentTimeMillis() & Integer.MAX_VALUE;
+    private final Map<String, Tracked> mTracked = new LinkedHashMap<String, Tracked>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Tracked> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+    private final Map<String, NotificationSpec> mPending = new HashMap<>();
+
+    private static class Tracked {
+        final int handle;
+        int deliveredHash;
+        boolean delivered;
+        long lastDeliveryTime;
+
+        Tracked(int handle) {
+            this.handle = handle;
+        }
+    }
+
+    public NotificationCoalescer(Handler handler, Receiver receiver) {
+        mHandler = handler;
+        mReceiver = receiver;
+    }
+
+    public static String getKey(StatusBarNotification sbn) {
+        return sbn.getPackageName() + "|" + sbn.getTag() + "|" + sbn.getId();
+    }
+
+    /**
+     * Returns the stable handle for the given notification, allocating one if necessary.
+     */
+    public int getHandle(StatusBarNotification sbn) {
+        return getTracked(getKey(sbn)).handle;
+    }
+
+    /**
+     * Returns true if the given notification is known by the given handle.
+     */
+    public boolean hasHandle(StatusBarNotification sbn, int handle) {
+        Tracked tracked = mTracked.get(getKey(sbn));
+        return tracked != null && tracked.handle == handle;
+    }
+
+    /**
+     * Forwards the given notification, unless it is a no-op update or part of a burst.
+     * The id of the notificationSpec must have been set to {@link #getHandle(StatusBarNotification)}.
+     */
+    public void post(final String key, NotificationSpec notificationSpec) {
+        Tracked tracked = getTracked(key);
+        int hash = hashContent(notificationSpec);
+        if (tracked.delivered && tracked.deliveredHash == hash && !mPending.containsKey(key)) {
+            LOG.debug("Dropping unchanged update of notification " + tracked.handle);
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long windowEnd = tracked.lastDeliveryTime + COALESCE_WINDOW_MILLIS;
+        if (!tracked.delivered || now >= windowEnd) {
+            deliver(tracked, notificationSpec, hash);
+            return;
+        }
+
+        // inside the window: keep only the latest update and deliver it when the window ends
+        boolean scheduled = mPending.containsKey(key);
+        mPending.put(key, notificationSpec);
+        if (!scheduled) {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key);
+                }
+            }, windowEnd - now);
+        }
+    }
+
+    /**
+     * Forwards the removal of the given notification, if it was delivered before.
+     */
+    public void remove(String key) {
+        mPending.remove(key);
+        Tracked tracked = mTracked.remove(key);
+        if (tracked != null && tracked.delivered) {
+            mReceiver.onDeleteNotification(tracked.handle);
+        }
+    }
+
+    /**
+     * Forgets the given notification without forwarding a removal.
+     */
+    public void forget(String key) {
+        mPending.remove(key);
+        mTracked.remove(key);
+    }
+
+    private void flush(String key) {
+        NotificationSpec notificationSpec = mPending.remove(key);
+        Tracked tracked = mTracked.get(key);
+        if (notificationSpec == null || tracked == null) {
+            return; // removed in the meantime
+        }
+        int hash = hashContent(notificationSpec);
+        if (tracked.delivered && tracked.deliveredHash == hash) {
+            return;
+        }
+        deliver(tracked, notificationSpec, hash);
+    }
+
+    private void deliver(Tracked tracked, NotificationSpec notificationSpec, int hash) {
+        tracked.delivered = true;
+        tracked.deliveredHash = hash;
+        tracked.lastDeliveryTime = SystemClock.elapsedRealtime();
+        mReceiver.onNotification(notificationSpec);
+    }
+
+    private Tracked getTracked(String key) {
+        Tracked tracked = mTracked.get(key);
+        if (tracked == null) {
+            tracked = new Tracked(nextHandle());
+            mTracked.put(key, tracked);
+        }
+        return tracked;
+    }
+
+    private int nextHandle() {
+        int handle = mNextHandle;
+        // stay positive, -1 means "no handle" to the devices
+        mNextHandle = (mNextHandle + 1) & Integer.MAX_VALUE;
+        if (handle == 0) {
+            return nextHandle();
+        }
+        return handle;
+    }
+
+    private static int hashContent(NotificationSpec spec) {
+        return Arrays.hashCode(new Object[]{
+                spec.sourceName, spec.title, spec.subject, spec.body, spec.type, spec.flags
+        });
+    }
+}
@@ -33,6 +33,7 @@ import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.media.session.PlaybackState;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.service.notification.NotificationListenerService;
@@ -62,7 +63,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
 import nodomain.freeyourgadget.gadgetbridge.util.BitmapUtil;
 import nodomain.freeyourgadget.gadgetbridge.util.LimitedQueue;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
 
 import static android.support.v4.media.app.NotificationCompat.MediaStyle.getMediaSession;
 
@@ -83,6 +84,18 @@ public class NotificationListener extends NotificationListenerService {
 
     private LimitedQueue mActionLookup = new LimitedQueue(16);
 
+    private final NotificationCoalescer mCoalescer = new NotificationCoalescer(new Handler(), new NotificationCoalescer.Receiver() {
+        @Override
+        public void onNotification(NotificationSpec notificationSpec) {
+            GBApplication.deviceService().onNotification(notificationSpec);
+        }
+
+        @Override
+        public void onDeleteNotification(int handle) {
+            GBApplication.deviceService().onDeleteNotification(handle);
+        }
+    });
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
 
         @Override
@@ -97,7 +110,7 @@ public class NotificationListener extends NotificationListenerService {
                     StatusBarNotification[] sbns = NotificationListener.this.getActiveNotifications();
                     int handle = intent.getIntExtra("handle", -1);
                     for (StatusBarNotification sbn : sbns) {
-                        if ((int) sbn.getPostTime() == handle) {
+                        if (mCoalescer.hasHandle(sbn, handle)) {
                             if (action.equals(ACTION_OPEN)) {
                                 try {
                                     PendingIntent pi = sbn.getNotification().contentIntent;
@@ -120,7 +133,7 @@ public class NotificationListener extends NotificationListenerService {
                     StatusBarNotification[] sbns = NotificationListener.this.getActiveNotifications();
                     int handle = intent.getIntExtra("handle", -1);
                     for (StatusBarNotification sbn : sbns) {
-                        if ((int) sbn.getPostTime() == handle) {
+                        if (mCoalescer.hasHandle(sbn, handle)) {
                             if (GBApplication.isRunningLollipopOrLater()) {
                                 String key = sbn.getKey();
                                 NotificationListener.this.cancelNotification(key);
@@ -202,7 +215,7 @@ public class NotificationListener extends NotificationListenerService {
         String source = sbn.getPackageName().toLowerCase();
         Notification notification = sbn.getNotification();
         NotificationSpec notificationSpec = new NotificationSpec();
-        notificationSpec.id = (int) sbn.getPostTime(); //FIXME: a truly unique id would be better
+        notificationSpec.id = mCoalescer.getHandle(sbn);
 
         // determinate Source App Name ("Label")
         PackageManager pm = getPackageManager();
@@ -248,6 +261,8 @@ public class NotificationListener extends NotificationListenerService {
         NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender(notification);
         List<NotificationCompat.Action> actions = wearableExtender.getActions();
 
+        // the handle stays the same across updates, replace the action of the previous update
+        mActionLookup.remove(notificationSpec.id);
         for (NotificationCompat.Action act : actions) {
             if (act != null && act.getRemoteInputs() != null) {
                 LOG.info("found wearable action: " + act.getTitle() + "  " + sbn.getTag());
@@ -262,7 +277,7 @@ public class NotificationListener extends NotificationListenerService {
             return;
         }
 
-        GBApplication.deviceService().onNotification(notificationSpec);
+        mCoalescer.post(NotificationCoalescer.getKey(sbn), notificationSpec);
     }
 
     private void dissectNotificationTo(Notification notification, NotificationSpec notificationSpec, boolean preferBigText) {
@@ -333,10 +348,12 @@ public class NotificationListener extends NotificationListenerService {
         if (shouldIgnore(sbn))
             return;
 
-        Prefs prefs = GBApplication.getPrefs();
-        if (prefs.getBoolean("autoremove_notifications", false)) {
+        String key = NotificationCoalescer.getKey(sbn);
+        if (PrefsSnapshot.get().isAutoremoveNotifications()) {
             LOG.info("notification removed, will ask device to delete it");
-            GBApplication.deviceService().onDeleteNotification((int) sbn.getPostTime());
+            mCoalescer.remove(key);
+        } else {
+            mCoalescer.forget(key);
         }
     }
 
@@ -368,7 +385,6 @@ public class NotificationListener extends NotificationListenerService {
     }
 
     private boolean shouldIgnoreSource(String source) {
-        Prefs prefs = GBApplication.getPrefs();
 
         /* do not display messages from "android"
          * This includes keyboard selection message, usb connection messages, etc
@@ -388,7 +404,7 @@ public class NotificationListener extends NotificationListenerService {
                 source.equals("com.sonyericsson.conversations") ||
                 source.equals("com.android.messaging") ||
                 source.equals("org.smssecure.smssecure")) {
-            if (!"never".equals(prefs.getString("notification_mode_sms", "when_screen_off"))) {
+            if (!"never".equals(PrefsSnapshot.get().getNotificationModeSms())) {
                 return true;
             }
         }
@@ -418,8 +434,7 @@ public class NotificationListener extends NotificationListenerService {
             return true;
         }
 
-        Prefs prefs = GBApplication.getPrefs();
-        if (!prefs.getBoolean("notifications_generic_whenscreenon", false)) {
+        if (!PrefsSnapshot.get().isNotificationsWhenScreenOn()) {
             PowerManager powermanager = (PowerManager) getSystemService(POWER_SERVICE);
             if (powermanager.isScreenOn()) {
 //                LOG.info("Not forwarding notification, screen seems to be on and settings do not allow this");
@@ -20,9 +20,7 @@ package nodomain.freeyourgadget.gadgetbridge.impl;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
-import android.provider.ContactsContract;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
@@ -38,11 +36,14 @@ import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
+import nodomain.freeyourgadget.gadgetbridge.util.ContactResolver;
 import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
 
 import static nodomain.freeyourgadget.gadgetbridge.util.JavaExtensions.coalesce;
 
 public class GBDeviceService implements DeviceService {
+    private static final long CALLER_LOOKUP_TIMEOUT_MILLIS = 200;
+
     protected final Context mContext;
     private final Class<? extends Service> mServiceClass;
     private final String[] transliterationExtras = new String[]{
@@ -133,7 +134,7 @@ public class GBDeviceService implements DeviceService {
         Intent intent = createIntent().setAction(ACTION_NOTIFICATION)
                 .putExtra(EXTRA_NOTIFICATION_FLAGS, notificationSpec.flags)
                 .putExtra(EXTRA_NOTIFICATION_PHONENUMBER, notificationSpec.phoneNumber)
-                .putExtra(EXTRA_NOTIFICATION_SENDER, coalesce(notificationSpec.sender, getContactDisplayNameByNumber(notificationSpec.phoneNumber)))
+                .putExtra(EXTRA_NOTIFICATION_SENDER, coalesce(notificationSpec.sender, ContactResolver.getInstance(mContext).getDisplayName(notificationSpec.phoneNumber)))
                 .putExtra(EXTRA_NOTIFICATION_SUBJECT, notificationSpec.subject)
                 .putExtra(EXTRA_NOTIFICATION_TITLE, notificationSpec.title)
                 .putExtra(EXTRA_NOTIFICATION_BODY, notificationSpec.body)
@@ -175,12 +176,12 @@ public class GBDeviceService implements DeviceService {
             callSpec.number = null;
             callSpec.name = null;
         } else if (currentPrivacyMode.equals(context.getString(R.string.p_call_privacy_mode_number))){
-            callSpec.name = coalesce(callSpec.name, getContactDisplayNameByNumber(callSpec.number));
+            callSpec.name = coalesce(callSpec.name, getCallerName(callSpec.number));
             if (callSpec.name != null && !callSpec.name.equals(callSpec.number)) {
                 callSpec.number = null;
             }
         } else {
-            callSpec.name = coalesce(callSpec.name, getContactDisplayNameByNumber(callSpec.number));
+            callSpec.name = coalesce(callSpec.name, getCallerName(callSpec.number));
         }
 
         Intent intent = createIntent().setAction(ACTION_CALLSTATE)
@@ -355,28 +356,10 @@ public class GBDeviceService implements DeviceService {
     }
 
     /**
-     * Returns contact DisplayName by call number
-     *
-     * @param number contact number
-     * @return contact DisplayName, if found it
+     * Returns the contact name of the caller, or the number if the caller is not a contact
+     * or the lookup is too slow: the device should ring right away.
      */
-    private String getContactDisplayNameByNumber(String number) {
-        Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-        String name = number;
-
-        if (number == null || number.equals("")) {
-            return name;
-        }
-
-        try (Cursor contactLookup = mContext.getContentResolver().query(uri, null, null, null, null)) {
-            if (contactLookup != null && contactLookup.getCount() > 0) {
-                contactLookup.moveToNext();
-                name = contactLookup.getString(contactLookup.getColumnIndex(ContactsContract.Data.DISPLAY_NAME));
-            }
-        } catch (SecurityException e) {
-            // ignore, just return name below
-        }
-
-        return name;
+    private String getCallerName(String number) {
+        return ContactResolver.getInstance(mContext).getDisplayName(number, CALLER_LOOKUP_TIMEOUT_MILLIS);
     }
 }
@@ -25,6 +25,11 @@ import java.util.Date;
  * // TODO: split into separate entities?
  */
 public interface ActivitySummary extends Serializable {
+    /**
+     * Local broadcast sent when activity summaries were added or changed.
+     */
+    String ACTION_SUMMARIES_CHANGED = "nodomain.freeyourgadget.gadgetbridge.activitysummary.action.changed";
+
     String getName();
     Date getStartTime();
     Date getEndTime();
@@ -16,24 +16,80 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.model;
 
-import java.util.ArrayList;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 
+/**
+ * The points of an activity, stored in parallel primitive arrays instead of one object
+ * per point. Times are stored as seconds relative to the base time, coordinates as
+ * fixed point values in 1e-6 degrees ({@link GPSCoordinate#GPS_DECIMAL_DEGREES_SCALE}),
+ * altitudes in meters.
+ * <p/>
+ * Points are read with a {@link Cursor}. A track can be written to a file with
+ * {@link #writeTo(File)} and loaded again with {@link #map(File)}, which memory-maps the
+ * file, so that points are only paged in when they are accessed. Mapped tracks are read only.
+ * <p/>
+ * File format, all values big endian:
+ * <pre>
+ * header:  int magic, short version, long base time (ms), int point count
+ * point:   int time offset (s), int latitude, int longitude (both 1e-6 degrees,
+ *          NO_LOCATION if the point has no location), short altitude (m), short heart rate
+ * </pre>
+ */
 public class ActivityTrack {
+    public static final int NO_LOCATION = Integer.MIN_VALUE;
+
+    static final int FILE_MAGIC = 0x47425452; // "GBTR"
+    static final short FILE_VERSION = 1;
+    static final int FILE_HEADER_SIZE = 4 + 2 + 8 + 4;
+    static final int FILE_POINT_SIZE = 4 + 4 + 4 + 2 + 2;
+
+    private static final double E6 = 1000000d;
+    private static final int INITIAL_CAPACITY = 256;
+
     private Date baseTime;
     private Device device;
     private User user;
     private String name;
 
+    private int size;
+    private int[] timeOffsets = new int[0];
+    private int[] latitudes = new int[0];
+    private int[] longitudes = new int[0];
+    private int[] altitudes = new int[0];
+    private short[] heartRates = new short[0];
+    @Nullable
+    private Map<Integer, String> descriptions;
+
+    // set when the track was loaded with map(File)
+    @Nullable
+    private ByteBuffer mapped;
 
     public void setBaseTime(Date baseTime) {
         this.baseTime = baseTime;
     }
 
+    public Date getBaseTime() {
+        return baseTime;
+    }
+
     public Device getDevice() {
         return device;
     }
@@ -50,29 +106,275 @@ public class ActivityTrack {
         this.user = user;
     }
 
-    public void setTrackPoints(List<ActivityPoint> trackPoints) {
-        this.trackPoints = trackPoints;
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a point without location and heart rate.
+     *
+     * @param timeOffsetSeconds the time of the point, relative to the base time
+     * @return the index of the new point
+     */
+    public int appendPoint(int timeOffsetSeconds) {
+        checkWritable();
+        if (size == timeOffsets.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+            timeOffsets = Arrays.copyOf(timeOffsets, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            altitudes = Arrays.copyOf(altitudes, capacity);
+            heartRates = Arrays.copyOf(heartRates, capacity);
+        }
+        timeOffsets[size] = timeOffsetSeconds;
+        latitudes[size] = NO_LOCATION;
+        longitudes[size] = NO_LOCATION;
+        altitudes[size] = 0;
+        heartRates[size] = 0;
+        return size++;
+    }
+
+    public void setLocationE6(int index, int latitudeE6, int longitudeE6, int altitude) {
+        checkWritable();
+        latitudes[index] = latitudeE6;
+        longitudes[index] = longitudeE6;
+        altitudes[index] = altitude;
+    }
+
+    public void setHeartRate(int index, int heartRate) {
+        checkWritable();
+        heartRates[index] = (short) heartRate;
+    }
+
+    public void setDescription(int index, @Nullable String description) {
+        checkWritable();
+        if (descriptions == null) {
+            descriptions = new HashMap<>();
+        }
+        descriptions.put(index, description);
+    }
+
+    public int getTimeOffset(int index) {
+        return mapped != null ? mapped.getInt(pointPosition(index)) : timeOffsets[index];
+    }
+
+    public long getTime(int index) {
+        return baseTime.getTime() + getTimeOffset(index) * 1000L;
+    }
+
+    public boolean hasLocation(int index) {
+        return getLatitudeE6(index) != NO_LOCATION;
+    }
+
+    public int getLatitudeE6(int index) {
+        return mapped != null ? mapped.getInt(pointPosition(index) + 4) : latitudes[index];
+    }
+
+    public int getLongitudeE6(int index) {
+        return mapped != null ? mapped.getInt(pointPosition(index) + 8) : longitudes[index];
     }
 
-    private List<ActivityPoint> trackPoints = new ArrayList<>();
+    public int getAltitude(int index) {
+        return mapped != null ? mapped.getShort(pointPosition(index) + 12) : altitudes[index];
+    }
+
+    public int getHeartRate(int index) {
+        return mapped != null ? mapped.getShort(pointPosition(index) + 14) : heartRates[index];
+    }
+
+    @Nullable
+    public String getDescription(int index) {
+        return descriptions != null ? descriptions.get(index) : null;
+    }
 
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Appends the given point. Prefer {@link #appendPoint(int)}, this is meant for
+     * code that builds tracks point by point as objects.
+     */
     public void addTrackPoint(ActivityPoint point) {
-        trackPoints.add(point);
+        if (baseTime == null) {
+            baseTime = point.getTime();
+        }
+        int index = appendPoint((int) ((point.getTime().getTime() - baseTime.getTime()) / 1000));
+        GPSCoordinate location = point.getLocation();
+        if (location != null) {
+            setLocationE6(index, toE6(location.getLatitude()), toE6(location.getLongitude()), (int) Math.round(location.getAltitude()));
+        }
+        setHeartRate(index, point.getHeartRate());
+        if (point.getDescription() != null) {
+            setDescription(index, point.getDescription());
+        }
+    }
+
+    public void setTrackPoints(List<ActivityPoint> trackPoints) {
+        checkWritable();
+        size = 0;
+        descriptions = null;
+        for (ActivityPoint point : trackPoints) {
+            addTrackPoint(point);
+        }
     }
 
+    /**
+     * Returns a read only view of the points as ActivityPoint objects. Every access
+     * creates new objects, use {@link #cursor()} to iterate over many points.
+     */
     public List<ActivityPoint> getTrackPoints() {
-        return trackPoints;
+        return new AbstractList<ActivityPoint>() {
+            @Override
+            public ActivityPoint get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                }
+                ActivityPoint point = new ActivityPoint(new Date(getTime(index)));
+                if (hasLocation(index)) {
+                    point.setLocation(new GPSCoordinate(
+                            getLongitudeE6(index) / E6, getLatitudeE6(index) / E6, getAltitude(index)));
+                }
+                point.setHeartRate(getHeartRate(index));
+                point.setDescription(getDescription(index));
+                return point;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
-    public Date getBaseTime() {
-        return baseTime;
+    /**
+     * Writes the points of this track to the given file. Descriptions are not written.
+     */
+    public void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeShort(FILE_VERSION);
+            out.writeLong(baseTime.getTime());
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(getTimeOffset(i));
+                out.writeInt(getLatitudeE6(i));
+                out.writeInt(getLongitudeE6(i));
+                out.writeShort(clampToShort(getAltitude(i)));
+                out.writeShort(clampToShort(getHeartRate(i)));
+            }
+        }
     }
 
-    public String getName() {
-        return name;
+    /**
+     * Loads a track written by {@link #writeTo(File)} by memory-mapping the file.
+     * The returned track is read only and has neither device, user nor name.
+     */
+    public static ActivityTrack map(File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel was closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buffer.capacity() < FILE_HEADER_SIZE || buffer.getInt(0) != FILE_MAGIC) {
+            throw new IOException("Not an activity track file: " + file);
+        }
+        short version = buffer.getShort(4);
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported activity track file version " + version + ": " + file);
+        }
+        int size = buffer.getInt(14);
+        if (size < 0 || FILE_HEADER_SIZE + (long) size * FILE_POINT_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated activity track file: " + file);
+        }
+        ActivityTrack track = new ActivityTrack();
+        track.baseTime = new Date(buffer.getLong(6));
+        track.size = size;
+        track.mapped = buffer;
+        return track;
     }
 
-    public void setName(String name) {
-        this.name = name;
+    public static int toE6(double degrees) {
+        return (int) Math.round(degrees * E6);
+    }
+
+    private static int clampToShort(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private int pointPosition(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return FILE_HEADER_SIZE + index * FILE_POINT_SIZE;
+    }
+
+    private void checkWritable() {
+        if (mapped != null) {
+            throw new IllegalStateException("Track " + name + " is read only");
+        }
+    }
+
+    /**
+     * Iterates over the points of a track without allocating objects per point.
+     */
+    public class Cursor {
+        private int position = -1;
+
+        private Cursor() {
+        }
+
+        public boolean moveToNext() {
+            if (position < size) {
+                position++;
+            }
+            return position < size;
+        }
+
+        public boolean moveToPosition(int position) {
+            this.position = Math.max(-1, Math.min(position, size));
+            return this.position >= 0 && this.position < size;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public long getTime() {
+            return ActivityTrack.this.getTime(position);
+        }
+
+        public boolean hasLocation() {
+            return ActivityTrack.this.hasLocation(position);
+        }
+
+        public double getLatitude() {
+            return getLatitudeE6(position) / E6;
+        }
+
+        public double getLongitude() {
+            return getLongitudeE6(position) / E6;
+        }
+
+        public int getAltitude() {
+            return ActivityTrack.this.getAltitude(position);
+        }
+
+        public int getHeartRate() {
+            return ActivityTrack.this.getHeartRate(position);
+        }
+
+        @Nullable
+        public String getDescription() {
+            return ActivityTrack.this.getDescription(position);
+        }
     }
 }
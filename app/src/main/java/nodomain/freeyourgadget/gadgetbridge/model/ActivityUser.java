@@ -21,9 +21,8 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
 
 /**
  * Class holding the common user information needed by most activity trackers
@@ -42,7 +41,7 @@ public class ActivityUser {
     private int activityUserSleepDuration;
     private int activityUserStepsGoal;
 
-    private static final String defaultUserName = "gadgetbridge-user";
+    public static final String defaultUserName = "gadgetbridge-user";
     public static final int defaultUserGender = GENDER_FEMALE;
     public static final int defaultUserYearOfBirth = 0;
     public static final int defaultUserAge = 0;
@@ -119,14 +118,14 @@ public class ActivityUser {
     }
 
     private void fetchPreferences() {
-        Prefs prefs = GBApplication.getPrefs();
-        activityUserName = prefs.getString(PREF_USER_NAME, defaultUserName);
-        activityUserGender = prefs.getInt(PREF_USER_GENDER, defaultUserGender);
-        activityUserHeightCm = prefs.getInt(PREF_USER_HEIGHT_CM, defaultUserHeightCm);
-        activityUserWeightKg = prefs.getInt(PREF_USER_WEIGHT_KG, defaultUserWeightKg);
-        activityUserYearOfBirth = prefs.getInt(PREF_USER_YEAR_OF_BIRTH, defaultUserYearOfBirth);
-        activityUserSleepDuration = prefs.getInt(PREF_USER_SLEEP_DURATION, defaultUserSleepDuration);
-        activityUserStepsGoal = prefs.getInt(PREF_USER_STEPS_GOAL, defaultUserStepsGoal);
+        PrefsSnapshot prefs = PrefsSnapshot.get();
+        activityUserName = prefs.getUserName();
+        activityUserGender = prefs.getUserGender();
+        activityUserHeightCm = prefs.getUserHeightCm();
+        activityUserWeightKg = prefs.getUserWeightKg();
+        activityUserYearOfBirth = prefs.getUserYearOfBirth();
+        activityUserSleepDuration = prefs.getUserSleepDuration();
+        activityUserStepsGoal = prefs.getUserStepsGoal();
     }
 
     public Date getUserBirthday() {
@@ -16,28 +16,193 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.model;
 
+import android.support.annotation.Nullable;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Holds the latest weather. It is persisted in a small binary file, so that it
+ * survives restarts of Gadgetbridge, and responses built from it (e.g. the OWM
+ * JSON for the Pebble webview) can be cached until the next weather update.
+ */
 public class Weather {
     private static final Logger LOG = LoggerFactory.getLogger(Weather.class);
 
+    private static final int STORE_VERSION = 1;
+    // restored weather older than this is not shown anymore
+    private static final int MAX_RESTORE_AGE_SECONDS = 24 * 60 * 60;
+
     private WeatherSpec weatherSpec = null;
+    @Nullable
+    private File storeFile;
+    private final Map<String, byte[]> cachedReplies = new HashMap<>();
 
     private JSONObject reconstructedOWMForecast = null;
 
-    public WeatherSpec getWeatherSpec() {
+    public synchronized WeatherSpec getWeatherSpec() {
         return weatherSpec;
     }
 
-    public void setWeatherSpec(WeatherSpec weatherSpec) {
+    public synchronized void setWeatherSpec(WeatherSpec weatherSpec) {
         this.weatherSpec = weatherSpec;
+        cachedReplies.clear();
+        if (storeFile != null && weatherSpec != null) {
+            save(storeFile, weatherSpec);
+        }
+    }
+
+    /**
+     * Restores the weather from the given file and persists all further updates there.
+     */
+    public synchronized void load(File file) {
+        storeFile = file;
+        if (weatherSpec != null || !file.exists()) {
+            return; // an update arrived in the meantime, it is newer
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            WeatherSpec restored = read(in);
+            int age = (int) (System.currentTimeMillis() / 1000) - restored.timestamp;
+            if (age > MAX_RESTORE_AGE_SECONDS) {
+                LOG.info("Not restoring weather from " + age + " seconds ago");
+                return;
+            }
+            weatherSpec = restored;
+            LOG.debug("Restored weather for " + restored.location);
+        } catch (IOException e) {
+            LOG.warn("Unable to restore weather", e);
+        }
+    }
+
+    private static void save(File file, WeatherSpec weatherSpec) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            write(weatherSpec, out);
+        } catch (IOException e) {
+            LOG.warn("Unable to persist weather", e);
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            LOG.warn("Unable to replace " + file);
+        }
+    }
+
+    static void write(WeatherSpec weatherSpec, DataOutput out) throws IOException {
+        out.writeByte(STORE_VERSION);
+        out.writeInt(weatherSpec.timestamp);
+        writeString(weatherSpec.location, out);
+        out.writeInt(weatherSpec.currentTemp);
+        out.writeInt(weatherSpec.currentConditionCode);
+        writeString(weatherSpec.currentCondition, out);
+        out.writeInt(weatherSpec.currentHumidity);
+        out.writeInt(weatherSpec.todayMaxTemp);
+        out.writeInt(weatherSpec.todayMinTemp);
+        out.writeFloat(weatherSpec.windSpeed);
+        out.writeInt(weatherSpec.windDirection);
+        out.writeByte(weatherSpec.forecasts.size());
+        for (WeatherSpec.Forecast forecast : weatherSpec.forecasts) {
+            out.writeInt(forecast.minTemp);
+            out.writeInt(forecast.maxTemp);
+            out.writeInt(forecast.conditionCode);
+            out.writeInt(forecast.humidity);
+        }
+    }
+
+    static WeatherSpec read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != STORE_VERSION) {
+            throw new IOException("Unsupported weather store version: " + version);
+        }
+        WeatherSpec weatherSpec = new WeatherSpec();
+        weatherSpec.timestamp = in.readInt();
+        weatherSpec.location = readString(in);
+        weatherSpec.currentTemp = in.readInt();
+        weatherSpec.currentConditionCode = in.readInt();
+        weatherSpec.currentCondition = readString(in);
+        weatherSpec.currentHumidity = in.readInt();
+        weatherSpec.todayMaxTemp = in.readInt();
+        weatherSpec.todayMinTemp = in.readInt();
+        weatherSpec.windSpeed = in.readFloat();
+        weatherSpec.windDirection = in.readInt();
+        int forecasts = in.readUnsignedByte();
+        for (int i = 0; i < forecasts; i++) {
+            weatherSpec.forecasts.add(new WeatherSpec.Forecast(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+        }
+        return weatherSpec;
+    }
+
+    private static void writeString(@Nullable String value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Returns a hash of everything that is sent to a device. Of the timestamp, only the local
+     * day is included, because devices like the Amazfit Bip count the forecast days from it.
+     * Two weather updates with the same hash look identical on the device.
+     */
+    public static int getContentHash(WeatherSpec weatherSpec) {
+        long timestampMillis = weatherSpec.timestamp * 1000L;
+        long localDay = (timestampMillis + TimeZone.getDefault().getOffset(timestampMillis)) / (24 * 60 * 60 * 1000L);
+        int hash = Arrays.hashCode(new Object[]{
+                localDay,
+                weatherSpec.location,
+                weatherSpec.currentTemp,
+                weatherSpec.currentConditionCode,
+                weatherSpec.currentCondition,
+                weatherSpec.currentHumidity,
+                weatherSpec.todayMaxTemp,
+                weatherSpec.todayMinTemp,
+                weatherSpec.windSpeed,
+                weatherSpec.windDirection
+        });
+        for (WeatherSpec.Forecast forecast : weatherSpec.forecasts) {
+            hash = 31 * hash + Arrays.hashCode(new int[]{forecast.minTemp, forecast.maxTemp, forecast.conditionCode, forecast.humidity});
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a response that was built from the current weather before, or null.
+     */
+    @Nullable
+    public synchronized byte[] getCachedReply(String key) {
+        return cachedReplies.get(key);
+    }
+
+    /**
+     * Caches a response built from the current weather, until the weather changes.
+     */
+    public synchronized void putCachedReply(String key, byte[] reply) {
+        cachedReplies.put(key, reply);
     }
 
-    public JSONObject createReconstructedOWMWeatherReply() {
+    public synchronized JSONObject createReconstructedOWMWeatherReply() {
         if (weatherSpec == null) {
             return null;
         }
@@ -0,0 +1,266 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+
+/**
+ * Workout figures that are computed once from an ActivityTrack, in a single pass over
+ * its points, and stored with the activity summary: distance, per-km splits, time in
+ * heart rate zones, elevation gain and average and best pace.
+ * <p/>
+ * Intervals longer than {@link #MAX_GAP_SECONDS} are considered pauses and do not
+ * count as moving time or time in a heart rate zone.
+ */
+public class WorkoutAnalytics {
+    public static final int HEART_RATE_ZONES = 5;
+
+    static final int MAX_GAP_SECONDS = 60;
+    private static final double EARTH_RADIUS_METERS = 6371000;
+    private static final int SPLIT_METERS = 1000;
+    // the best pace is measured over stretches of at least this distance, single GPS fixes are too noisy
+    private static final int BEST_PACE_METERS = 200;
+    // altitude changes below this are considered GPS noise
+    private static final int ELEVATION_HYSTERESIS_METERS = 3;
+    private static final int DEFAULT_AGE = 30;
+
+    private float distanceMeters;
+    private float elevationGainMeters;
+    private int movingSeconds;
+    private float averagePace;
+    private float bestPace;
+    private final int[] heartRateZoneSeconds = new int[HEART_RATE_ZONES];
+    private final List<Integer> splitSeconds = new ArrayList<>();
+
+    private WorkoutAnalytics() {
+    }
+
+    /**
+     * Estimates the maximum heart rate with the common 220 - age formula.
+     */
+    public static int estimateMaxHeartRate(int age) {
+        return 220 - (age > 0 ? age : DEFAULT_AGE);
+    }
+
+    public static WorkoutAnalytics analyze(ActivityTrack track, int maxHeartRate) {
+        WorkoutAnalytics result = new WorkoutAnalytics();
+
+        double distance = 0;
+        double movingDistance = 0;
+        double moving = 0;
+        boolean hasLastLocation = false;
+        double lastLatitude = 0;
+        double lastLongitude = 0;
+        long lastLocationTime = 0;
+        double referenceAltitude = Double.NaN;
+        double elevationGain = 0;
+
+        double splitStartMoving = 0;
+        int nextSplit = SPLIT_METERS;
+        double stretchDistance = 0;
+        double stretchSeconds = 0;
+        double bestPace = 0;
+
+        int lastHeartRate = 0;
+        long lastHeartRateTime = 0;
+
+        ActivityTrack.Cursor point = track.cursor();
+        while (point.moveToNext()) {
+            long time = point.getTime();
+
+            int heartRate = point.getHeartRate();
+            if (heartRate > HeartRateUtils.MIN_HEART_RATE_VALUE && heartRate < HeartRateUtils.MAX_HEART_RATE_VALUE) {
+                if (lastHeartRate > 0) {
+                    long seconds = (time - lastHeartRateTime) / 1000;
+                    if (seconds > 0 && seconds <= MAX_GAP_SECONDS) {
+                        int zone = getHeartRateZone(lastHeartRate, maxHeartRate);
+                        if (zone >= 0) {
+                            result.heartRateZoneSeconds[zone] += seconds;
+                        }
+                    }
+                }
+                lastHeartRate = heartRate;
+                lastHeartRateTime = time;
+            }
+
+            if (!point.hasLocation()) {
+                continue;
+            }
+            double latitude = point.getLatitude();
+            double longitude = point.getLongitude();
+            if (hasLastLocation && time > lastLocationTime) {
+                double seconds = (time - lastLocationTime) / 1000d;
+                double meters = haversine(lastLatitude, lastLongitude, latitude, longitude);
+                boolean paused = seconds > MAX_GAP_SECONDS;
+                // the distance covered during a pause still counts, its time does not
+                double countedSeconds = paused ? 0 : seconds;
+                while (distance + meters >= nextSplit) {
+                    // interpolate the moment the split distance was passed
+                    double fraction = meters > 0 ? (nextSplit - distance) / meters : 1;
+                    double splitEndMoving = moving + fraction * countedSeconds;
+                    result.splitSeconds.add((int) Math.round(splitEndMoving - splitStartMoving));
+                    splitStartMoving = splitEndMoving;
+                    nextSplit += SPLIT_METERS;
+                }
+                moving += countedSeconds;
+                if (paused) {
+                    stretchDistance = 0;
+                    stretchSeconds = 0;
+                } else {
+                    movingDistance += meters;
+                    stretchDistance += meters;
+                    stretchSeconds += seconds;
+                    if (stretchDistance >= BEST_PACE_METERS) {
+                        double pace = stretchSeconds / stretchDistance * 1000;
+                        if (bestPace == 0 || pace < bestPace) {
+                            bestPace = pace;
+                        }
+                        stretchDistance = 0;
+                        stretchSeconds = 0;
+                    }
+                }
+                distance += meters;
+            }
+
+            double altitude = point.getAltitude();
+            if (Double.isNaN(referenceAltitude)) {
+                referenceAltitude = altitude;
+            } else if (altitude - referenceAltitude >= ELEVATION_HYSTERESIS_METERS) {
+                elevationGain += altitude - referenceAltitude;
+                referenceAltitude = altitude;
+            } else if (referenceAltitude - altitude >= ELEVATION_HYSTERESIS_METERS) {
+                referenceAltitude = altitude;
+            }
+
+            hasLastLocation = true;
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            lastLocationTime = time;
+        }
+
+        result.distanceMeters = (float) distance;
+        result.elevationGainMeters = (float) elevationGain;
+        result.movingSeconds = (int) Math.round(moving);
+        result.averagePace = movingDistance > 0 ? (float) (moving / movingDistance * 1000) : 0;
+        result.bestPace = (float) bestPace;
+        return result;
+    }
+
+    /**
+     * Returns the zone (0 = 50-60% of the maximum heart rate, ..., 4 = 90% and above),
+     * or -1 if the heart rate is below all zones.
+     */
+    static int getHeartRateZone(int heartRate, int maxHeartRate) {
+        int percent = heartRate * 100 / maxHeartRate;
+        if (percent < 50) {
+            return -1;
+        }
+        return Math.min((percent - 50) / 10, HEART_RATE_ZONES - 1);
+    }
+
+    /**
+     * Returns the great-circle distance between the given coordinates in meters.
+     */
+    static double haversine(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(toLongitude - fromLongitude);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    public void applyTo(BaseActivitySummary summary) {
+        summary.setDistanceMeters(distanceMeters);
+        summary.setElevationGain(elevationGainMeters);
+        summary.setAveragePace(averagePace);
+        summary.setMaxPace(bestPace);
+        summary.setHeartRateZones(formatSeconds(heartRateZoneSeconds));
+        int[] splits = new int[splitSeconds.size()];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = splitSeconds.get(i);
+        }
+        summary.setSplits(formatSeconds(splits));
+    }
+
+    static String formatSeconds(int[] seconds) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < seconds.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(seconds[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parses the comma separated values of the heartRateZones or splits columns.
+     */
+    public static int[] parseSeconds(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = value.split(",");
+        int[] seconds = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            seconds[i] = Integer.parseInt(parts[i]);
+        }
+        return seconds;
+    }
+
+    public float getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    public float getElevationGainMeters() {
+        return elevationGainMeters;
+    }
+
+    public int getMovingSeconds() {
+        return movingSeconds;
+    }
+
+    /**
+     * Returns the average pace in seconds per kilometer, or 0 if no distance was covered.
+     */
+    public float getAveragePace() {
+        return averagePace;
+    }
+
+    /**
+     * Returns the best pace in seconds per kilometer, or 0 if the track was too short.
+     */
+    public float getBestPace() {
+        return bestPace;
+    }
+
+    public int[] getHeartRateZoneSeconds() {
+        return heartRateZoneSeconds.clone();
+    }
+
+    public List<Integer> getSplitSeconds() {
+        return new ArrayList<>(splitSeconds);
+    }
+}
@@ -66,6 +66,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
+import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.receivers.GBAutoFetchReceiver;
 import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
@@ -168,6 +169,8 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     private BluetoothPairingRequestReceiver mBlueToothPairingRequestReceiver = null;
     private AlarmClockReceiver mAlarmClockReceiver = null;
     private GBAutoFetchReceiver mGBAutoFetchReceiver = null;
+    private SyncScheduler mSyncScheduler = null;
+    private WeatherSyncTracker mWeatherSyncTracker = null;
 
     private AlarmReceiver mAlarmReceiver = null;
     private CalendarReceiver mCalendarReceiver = null;
@@ -210,7 +213,24 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 if (mGBDevice != null && mGBDevice.equals(device)) {
                     mGBDevice = device;
                     boolean enableReceivers = mDeviceSupport != null && (mDeviceSupport.useAutoConnect() || mGBDevice.isInitialized());
-                    setReceiversEnableState(enableReceivers, mGBDevice.isInitialized(), DeviceHelper.getInstance().getCoordinator(device));
+                    DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(device);
+                    setReceiversEnableState(enableReceivers, mGBDevice.isInitialized(), coordinator);
+                    if (mGBAutoFetchReceiver != null) {
+                        mSyncScheduler.setDevice(mGBDevice, coordinator);
+                        if (mGBDevice.isInitialized()) {
+                            mSyncScheduler.onTrigger("device initialized");
+                        }
+                    }
+                    if (!mGBDevice.isInitialized()) {
+                        // the device may be reset before it is initialized again
+                        mWeatherSyncTracker.forget(mGBDevice);
+                    } else if (coordinator != null && coordinator.supportsWeather()) {
+                        // the weather may have changed while the device was disconnected or busy
+                        WeatherSpec weatherSpec = Weather.getInstance().getWeatherSpec();
+                        if (weatherSpec != null) {
+                            sendWeather(weatherSpec);
+                        }
+                    }
                 } else {
                     LOG.error("Got ACTION_DEVICE_CHANGED from unexpected device: " + device);
                 }
@@ -224,6 +244,8 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         super.onCreate();
         LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, new IntentFilter(GBDevice.ACTION_DEVICE_CHANGED));
         mFactory = getDeviceSupportFactory();
+        mSyncScheduler = new SyncScheduler(this, new Handler());
+        mWeatherSyncTracker = new WeatherSyncTracker(this);
 
         if (hasPrefs()) {
             getPrefs().getPreferences().registerOnSharedPreferenceChangeListener(this);
@@ -397,6 +419,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
             }
             case ACTION_FETCH_RECORDED_DATA: {
                 int dataTypes = intent.getIntExtra(EXTRA_RECORDED_DATA_TYPES, 0);
+                mSyncScheduler.onFetchStarted(mGBDevice, dataTypes);
                 mDeviceSupport.onFetchRecordedData(dataTypes);
                 break;
             }
@@ -520,7 +543,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
             case ACTION_SEND_WEATHER: {
                 WeatherSpec weatherSpec = intent.getParcelableExtra(EXTRA_WEATHER);
                 if (weatherSpec != null) {
-                    mDeviceSupport.onSendWeather(weatherSpec);
+                    sendWeather(weatherSpec);
                 }
                 break;
             }
@@ -529,6 +552,23 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         return START_STICKY;
     }
 
+    /**
+     * Sends the weather to the device, unless the device already has exactly this weather.
+     * A device that is not ready gets the latest weather as soon as it is.
+     */
+    private void sendWeather(WeatherSpec weatherSpec) {
+        if (!isInitialized() || mGBDevice.isBusy()) {
+            LOG.debug("Postponing weather update until the device is ready");
+            return;
+        }
+        if (!mWeatherSyncTracker.needsSync(mGBDevice, weatherSpec)) {
+            LOG.debug("Not sending unchanged weather");
+            return;
+        }
+        mDeviceSupport.onSendWeather(weatherSpec);
+        mWeatherSyncTracker.markSynced(mGBDevice, weatherSpec);
+    }
+
     /**
      * Disposes the current DeviceSupport instance (if any) and sets a new device support instance
      * (if not null).
@@ -537,6 +577,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
      */
     private void setDeviceSupport(@Nullable DeviceSupport deviceSupport) {
         if (deviceSupport != mDeviceSupport && mDeviceSupport != null) {
+            mWeatherSyncTracker.forget(mGBDevice);
             mDeviceSupport.dispose();
             mDeviceSupport = null;
             mGBDevice = null;
@@ -649,10 +690,10 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     //Nothing wrong, it just means we're not running on omnirom.
                 }
             }
-            if (GBApplication.getPrefs().getBoolean("auto_fetch_enabled", false) &&
+            if (mGBAutoFetchReceiver == null && GBApplication.getPrefs().getBoolean("auto_fetch_enabled", false) &&
                     coordinator != null && coordinator.supportsActivityDataFetching()) {
-                mGBAutoFetchReceiver = new GBAutoFetchReceiver();
-                registerReceiver(mGBAutoFetchReceiver, new IntentFilter("android.intent.action.USER_PRESENT"));
+                mGBAutoFetchReceiver = new GBAutoFetchReceiver(mSyncScheduler);
+                registerReceiver(mGBAutoFetchReceiver, GBAutoFetchReceiver.getIntentFilter());
             }
         } else {
             if (mPhoneCallReceiver != null) {
@@ -695,6 +736,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
             if (mGBAutoFetchReceiver != null) {
                 unregisterReceiver(mGBAutoFetchReceiver);
                 mGBAutoFetchReceiver = null;
+                mSyncScheduler.setDevice(null, null);
             }
         }
     }
@@ -0,0 +1,244 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+/**
+ * Decides when recorded data is fetched automatically from the connected device.
+ * <p/>
+ * Triggers (screen unlock, charger connected, device initialized) are coalesced
+ * and evaluated once after a short delay. A fetch is only started when the device
+ * is idle and the last sync (automatic or manual) is at least the configured
+ * interval ago. While the phone is unused and on battery, the fetch is postponed
+ * until the estimated backlog on the device gets large; an alarm triggers another
+ * evaluation at that time.
+ * <p/>
+ * All fetchable data types are requested in one session, so that the device
+ * support can chain the operations instead of being triggered repeatedly.
+ */
+public class SyncScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncScheduler.class);
+
+    public static final String PREF_MIN_INTERVAL = "auto_fetch_limit_fetches_time";
+    /**
+     * Sent by the alarm when a postponed fetch is due.
+     */
+    public static final String ACTION_POSTPONED_SYNC = "nodomain.freeyourgadget.gadgetbridge.action.POSTPONED_SYNC";
+    private static final String PREF_WATERMARK_PREFIX = "auto_fetch_last_sync_";
+
+    private static final int DEFAULT_MIN_INTERVAL_MINUTES = 30;
+    /**
+     * If the device has recorded more than this many minutes of data since the last sync,
+     * it is fetched even when the phone is not in use.
+     */
+    private static final int MAX_BACKLOG_MINUTES = 12 * 60;
+    private static final long COALESCE_DELAY_MILLIS = 5000;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    @Nullable
+    private GBDevice mDevice;
+    @Nullable
+    private DeviceCoordinator mCoordinator;
+    private boolean mScheduled;
+
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            evaluate();
+        }
+    };
+
+    public SyncScheduler(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Sets the device that is currently handled by the service, or null.
+     */
+    public void setDevice(@Nullable GBDevice device, @Nullable DeviceCoordinator coordinator) {
+        mDevice = device;
+        mCoordinator = coordinator;
+        if (device == null) {
+            cancel();
+        }
+    }
+
+    /**
+     * Requests a sync evaluation. Multiple requests in quick succession result in a single evaluation.
+     */
+    public void onTrigger(String reason) {
+        LOG.debug("sync triggered: " + reason);
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mEvaluateRunnable, COALESCE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Records that a fetch of the given data types was started for the given device, be it
+     * automatic or manual. Only activity fetches count as a sync.
+     */
+    public void onFetchStarted(@Nullable GBDevice device, int dataTypes) {
+        if (device != null && (dataTypes & RecordedDataTypes.TYPE_ACTIVITY) != 0) {
+            setLastSyncTime(device, System.currentTimeMillis());
+            cancelPostponedSync();
+        }
+    }
+
+    public void cancel() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        mScheduled = false;
+        cancelPostponedSync();
+    }
+
+    private void evaluate() {
+        GBDevice device = mDevice;
+        DeviceCoordinator coordinator = mCoordinator;
+        if (device == null || coordinator == null || !device.isInitialized() || !coordinator.supportsActivityDataFetching()) {
+            return;
+        }
+        if (device.isBusy()) {
+            LOG.info("Not syncing, device is busy with " + device.getBusyTask());
+            return;
+        }
+
+        long lastSyncTime = getLastSyncTime(device);
+        long elapsedMinutes = (System.currentTimeMillis() - lastSyncTime) / (60 * 1000);
+        if (elapsedMinutes < getMinInterval()) {
+            LOG.debug("Not syncing, last sync was " + elapsedMinutes + " minutes ago");
+            return;
+        }
+        long backlogMinutes = estimateBacklogMinutes(device, coordinator, lastSyncTime);
+        if (!isCharging() && !isScreenOn() && backlogMinutes < MAX_BACKLOG_MINUTES) {
+            LOG.debug("Not syncing while idle on battery, estimated backlog is only " + backlogMinutes + " minutes");
+            schedulePostponedSync(MAX_BACKLOG_MINUTES - backlogMinutes);
+            return;
+        }
+
+        int dataTypes = RecordedDataTypes.TYPE_ACTIVITY;
+        if (coordinator.supportsActivityTracks()) {
+            dataTypes |= RecordedDataTypes.TYPE_GPS_TRACKS;
+        }
+        LOG.info("Starting automatic sync of " + device.getName() + ", estimated backlog " + backlogMinutes + " minutes");
+        GBApplication.deviceService().onFetchRecordedData(dataTypes);
+    }
+
+    /**
+     * All supported devices record one sample per minute, so the backlog is the time since
+     * the older of the last sync and the latest stored sample. The latest sample catches
+     * syncs that were started but failed, the last sync catches realtime samples that were
+     * stored in the meantime. A device that was never synced has a huge backlog.
+     */
+    private long estimateBacklogMinutes(GBDevice device, DeviceCoordinator coordinator, long lastSyncTime) {
+        long syncedUntil = lastSyncTime;
+        try (DBHandler handler = GBApplication.acquireDB()) {
+            ActivitySample latest = coordinator.getSampleProvider(device, handler.getDaoSession()).getLatestActivitySample();
+            syncedUntil = Math.min(syncedUntil, latest != null ? latest.getTimestamp() * 1000L : 0);
+        } catch (Exception ex) {
+            LOG.warn("Unable to look up the latest sample, estimating the backlog from the last sync", ex);
+        }
+        return Math.max(0, (System.currentTimeMillis() - syncedUntil) / (60 * 1000));
+    }
+
+    /**
+     * Evaluates again once the backlog could have reached the limit, even if nothing else
+     * triggers an evaluation until then.
+     */
+    private void schedulePostponedSync(long delayMinutes) {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    SystemClock.elapsedRealtime() + Math.max(1, delayMinutes) * 60 * 1000, getPostponedSyncIntent());
+        }
+    }
+
+    private void cancelPostponedSync() {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) {
+            alarmManager.cancel(getPostponedSyncIntent());
+        }
+    }
+
+    private PendingIntent getPostponedSyncIntent() {
+        Intent intent = new Intent(ACTION_POSTPONED_SYNC).setPackage(mContext.getPackageName());
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private int getMinInterval() {
+        Prefs prefs = GBApplication.getPrefs();
+        int minutes = prefs.getInt(PREF_MIN_INTERVAL, DEFAULT_MIN_INTERVAL_MINUTES);
+        if (isCharging()) {
+            // no need to save power, so allow more frequent syncs
+            minutes /= 2;
+        }
+        return minutes;
+    }
+
+    private boolean isCharging() {
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) {
+            return true;
+        }
+        if (GBApplication.isRunningLollipopOrLater()) {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+
+    private long getLastSyncTime(GBDevice device) {
+        return GBApplication.getPrefs().getLong(PREF_WATERMARK_PREFIX + device.getAddress(), 0);
+    }
+
+    private void setLastSyncTime(GBDevice device, long timestamp) {
+        GBApplication.getPrefs().getPreferences().edit()
+                .putLong(PREF_WATERMARK_PREFIX + device.getAddress(), timestamp)
+                .apply();
+    }
+}
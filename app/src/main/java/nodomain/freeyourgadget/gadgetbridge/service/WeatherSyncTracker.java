@@ -0,0 +1,59 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.Weather;
+import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+
+/**
+ * Remembers, per device, which weather was last sent to it, so that weather updates
+ * that would not change anything on the device are not sent again while it stays connected.
+ * A device is forgotten when it disconnects, because it may have been reset in between,
+ * so it gets the current weather again once it is initialized.
+ * <p/>
+ * The devices only accept complete weather updates, so the comparison is done on
+ * the content hash of the whole WeatherSpec (with the day of its timestamp).
+ */
+public class WeatherSyncTracker {
+    private static final String PREFS_NAME = "weather_sync";
+
+    private final SharedPreferences mPrefs;
+
+    public WeatherSyncTracker(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public boolean needsSync(GBDevice device, WeatherSpec weatherSpec) {
+        String key = device.getAddress();
+        return !mPrefs.contains(key) || mPrefs.getInt(key, 0) != Weather.getContentHash(weatherSpec);
+    }
+
+    public void markSynced(GBDevice device, WeatherSpec weatherSpec) {
+        mPrefs.edit().putInt(device.getAddress(), Weather.getContentHash(weatherSpec)).apply();
+    }
+
+    public void forget(GBDevice device) {
+        if (device != null && mPrefs.contains(device.getAddress())) {
+            mPrefs.edit().remove(device.getAddress()).apply();
+        }
+    }
+
+}
@@ -53,13 +53,16 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.AbstractBlePro
  */
 public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport implements GattCallback {
     private BtLEQueue mQueue;
-    private Map<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics;
+    /**
+     * Index of the characteristics of all supported services, rebuilt on every discovery
+     * and replaced as a whole, so that lookups need no locking.
+     */
+    private volatile Map<UUID, BluetoothGattCharacteristic> mAvailableCharacteristics;
     private final Set<UUID> mSupportedServices = new HashSet<>(4);
     private Logger logger;
 
     private final List<AbstractBleProfile<?>> mSupportedProfiles = new ArrayList<>();
     public static final String BASE_UUID = "0000%s-0000-1000-8000-00805f9b34fb"; //this is common for all BTLE devices. see http://stackoverflow.com/questions/18699251/finding-out-android-bluetooth-le-gatt-profiles
-    private final Object characteristicsMonitor = new Object();
 
     public AbstractBTLEDeviceSupport(Logger logger) {
         this.logger = logger;
@@ -187,12 +190,11 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
      * @see #addSupportedService(UUID)
      */
     public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
-        synchronized (characteristicsMonitor) {
-            if (mAvailableCharacteristics == null) {
-                return null;
-            }
-            return mAvailableCharacteristics.get(uuid);
+        Map<UUID, BluetoothGattCharacteristic> characteristics = mAvailableCharacteristics;
+        if (characteristics == null) {
+            return null;
         }
+        return characteristics.get(uuid);
     }
 
     private void gattServicesDiscovered(List<BluetoothGattService> discoveredGattServices) {
@@ -210,20 +212,15 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
                     logger.warn("Supported LE service " + service.getUuid() + "did not return any characteristics");
                     continue;
                 }
-                HashMap<UUID, BluetoothGattCharacteristic> intmAvailableCharacteristics = new HashMap<>(characteristics.size());
                 for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    intmAvailableCharacteristics.put(characteristic.getUuid(), characteristic);
+                    newCharacteristics.put(characteristic.getUuid(), characteristic);
                     logger.info("    characteristic: " + BleNamesResolver.resolveCharacteristicName(characteristic.getUuid().toString()) + ": " + characteristic.getUuid());
                 }
-                newCharacteristics.putAll(intmAvailableCharacteristics);
-
-                synchronized (characteristicsMonitor) {
-                    mAvailableCharacteristics = newCharacteristics;
-                }
             } else {
                 logger.debug("discovered unsupported service: " + BleNamesResolver.resolveServiceName(service.getUuid().toString()) + ": " + service.getUuid());
             }
         }
+        mAvailableCharacteristics = newCharacteristics;
     }
 
     protected Set<UUID> getSupportedServices() {
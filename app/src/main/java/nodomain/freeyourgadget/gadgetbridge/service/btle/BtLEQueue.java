@@ -17,6 +17,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.btle;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -26,18 +27,22 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.support.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice.State;
@@ -54,7 +59,31 @@ public final class BtLEQueue {
     private final BluetoothAdapter mBluetoothAdapter;
     private BluetoothGatt mBluetoothGatt;
 
-    private final BlockingQueue<Transaction> mTransactions = new LinkedBlockingQueue<>();
+    private static final long CONNECTION_PRIORITY_IDLE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Orders transactions by priority and, within the same priority, by the order they
+     * were added. Transactions added with #insert() have a negative sequence and go first.
+     */
+    private static final Comparator<Transaction> TRANSACTION_ORDER = new Comparator<Transaction>() {
+        @Override
+        public int compare(Transaction lhs, Transaction rhs) {
+            boolean lhsInserted = lhs.getSequence() < 0;
+            boolean rhsInserted = rhs.getSequence() < 0;
+            if (lhsInserted != rhsInserted) {
+                return lhsInserted ? -1 : 1;
+            }
+            int result = lhs.getPriority().compareTo(rhs.getPriority());
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(lhs.getSequence(), rhs.getSequence());
+        }
+    };
+
+    private final BlockingQueue<Transaction> mTransactions = new PriorityBlockingQueue<>(16, TRANSACTION_ORDER);
+    private final AtomicLong mTailSequence = new AtomicLong();
+    private final AtomicLong mHeadSequence = new AtomicLong();
     private volatile boolean mDisposed;
     private volatile boolean mCrashed;
     private volatile boolean mAbortTransaction;
@@ -65,6 +94,9 @@ public final class BtLEQueue {
     private BluetoothGattCharacteristic mWaitCharacteristic;
     private final InternalGattCallback internalGattCallback;
     private boolean mAutoReconnect;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    @Nullable
+    private GattCallback mPreemptedGattCallback;
 
     private Thread dispatchThread = new Thread("Gadgetbridge GATT Dispatcher") {
 
@@ -74,7 +106,20 @@ public final class BtLEQueue {
 
             while (!mDisposed && !mCrashed) {
                 try {
-                    Transaction transaction = mTransactions.take();
+                    Transaction transaction;
+                    if (mConnectionPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+                        // linger a little with the fast connection interval, to avoid switching
+                        // back and forth for transactions that are queued in quick succession
+                        transaction = mTransactions.poll(CONNECTION_PRIORITY_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (transaction == null) {
+                            if (!mGbDevice.isBusy()) {
+                                requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                            }
+                            continue;
+                        }
+                    } else {
+                        transaction = mTransactions.take();
+                    }
 
                     if (!isConnected()) {
                         LOG.debug("not connected, waiting for connection...");
@@ -91,14 +136,33 @@ public final class BtLEQueue {
                         mConnectionLatch = null;
                     }
 
-                    internalGattCallback.setTransactionGattCallback(transaction.getGattCallback());
+                    GattCallback gattCallback = transaction.getGattCallback();
+                    if (transaction.getNextActionIndex() > 0) {
+                        // resuming a preempted transaction
+                        mPreemptedGattCallback = null;
+                    } else if (gattCallback == null) {
+                        // keep delivering events to a preempted transaction, it may still expect them
+                        gattCallback = mPreemptedGattCallback;
+                    }
+                    internalGattCallback.setTransactionGattCallback(gattCallback);
+                    updateConnectionPriority(transaction);
                     mAbortTransaction = false;
                     // Run all actions of the transaction until one doesn't succeed
-                    for (BtLEAction action : transaction.getActions()) {
+                    List<BtLEAction> actions = transaction.getActions();
+                    int firstActionIndex = transaction.getNextActionIndex();
+                    for (int i = firstActionIndex; i < actions.size(); i++) {
                         if (mAbortTransaction) { // got disconnected
                             LOG.info("Aborting running transaction");
                             break;
                         }
+                        if (i > firstActionIndex && shouldPreempt(transaction)) {
+                            LOG.info("Preempting transaction at action " + i + ": " + transaction);
+                            transaction.setNextActionIndex(i);
+                            mPreemptedGattCallback = gattCallback;
+                            mTransactions.add(transaction);
+                            break;
+                        }
+                        BtLEAction action = actions.get(i);
                         mWaitCharacteristic = action.getCharacteristic();
                         mWaitForActionResultLatch = new CountDownLatch(1);
                         if (LOG.isDebugEnabled()) {
@@ -213,6 +277,8 @@ public final class BtLEQueue {
         LOG.debug("handleDisconnected: " + status);
         internalGattCallback.reset();
         mTransactions.clear();
+        mPreemptedGattCallback = null;
+        mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
         mAbortTransaction = true;
         if (mWaitForActionResultLatch != null) {
             mWaitForActionResultLatch.countDown();
@@ -273,6 +339,7 @@ public final class BtLEQueue {
     public void add(Transaction transaction) {
         LOG.debug("about to add: " + transaction);
         if (!transaction.isEmpty()) {
+            transaction.setSequence(mTailSequence.incrementAndGet());
             mTransactions.add(transaction);
         }
     }
@@ -287,15 +354,55 @@ public final class BtLEQueue {
     public void insert(Transaction transaction) {
         LOG.debug("about to insert: " + transaction);
         if (!transaction.isEmpty()) {
-            List<Transaction> tail = new ArrayList<>(mTransactions.size() + 2);
-            mTransactions.drainTo(tail);
+            transaction.setSequence(mHeadSequence.decrementAndGet());
             mTransactions.add(transaction);
-            mTransactions.addAll(tail);
+        }
+    }
+
+    /**
+     * Returns true if the given, currently executing transaction should be interrupted
+     * because a transaction of a higher priority is waiting.
+     */
+    private boolean shouldPreempt(Transaction running) {
+        if (!running.isPreemptible()) {
+            return false;
+        }
+        Transaction next = mTransactions.peek();
+        return next != null && TRANSACTION_ORDER.compare(next, running) < 0;
+    }
+
+    /**
+     * Requests a fast connection interval for interactive and bulk transactions. Switching back
+     * to the balanced interval is done by the dispatch thread once the queue is idle and
+     * the device is not busy anymore.
+     */
+    private void updateConnectionPriority(Transaction transaction) {
+        switch (transaction.getPriority()) {
+            case INTERACTIVE:
+            case BULK:
+                requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                break;
+            default:
+                // a few writes are not worth the parameter update
+                break;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void requestConnectionPriority(int priority) {
+        if (priority == mConnectionPriority || !GBApplication.isRunningLollipopOrLater()) {
+            return;
+        }
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt != null && gatt.requestConnectionPriority(priority)) {
+            LOG.debug("requested connection priority " + priority);
+            mConnectionPriority = priority;
         }
     }
 
     public void clear() {
         mTransactions.clear();
+        mPreemptedGattCallback = null;
     }
 
     /**
@@ -364,10 +471,11 @@ public final class BtLEQueue {
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTED:
                     LOG.info("Connected to GATT server.");
+                    mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
                     setDeviceConnectionState(State.CONNECTED);
                     // Attempts to discover services after successful connection.
                     List<BluetoothGattService> cachedServices = gatt.getServices();
-                    if (cachedServices != null && cachedServices.size() > 0) {
+                    if (cachedServices != null && cachedServices.size() > 0 && GattLayoutCache.matches(mGbDevice, cachedServices)) {
                         LOG.info("Using cached services, skipping discovery");
                         onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
                     } else {
@@ -393,6 +501,7 @@ public final class BtLEQueue {
             }
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                GattLayoutCache.store(mGbDevice, gatt.getServices());
                 if (getCallbackToUse() != null) {
                     // only propagate the successful event
                     getCallbackToUse().onServicesDiscovered(gatt);
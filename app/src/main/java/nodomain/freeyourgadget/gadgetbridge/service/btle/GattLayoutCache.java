@@ -0,0 +1,135 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Remembers a fingerprint of the GATT layout (services, characteristics and their
+ * properties) that was last discovered for a device, together with the firmware
+ * version it was discovered with.
+ * <p/>
+ * Android keeps its own cache of the services of bonded devices, but that cache
+ * may be stale, e.g. after a firmware update. The cached services are only used
+ * if they match the fingerprint of the last real discovery for the same firmware.
+ * <p/>
+ * The fingerprints are kept in their own preferences file, so that they neither wake up
+ * the listeners of the app preferences nor end up in exported settings.
+ */
+public final class GattLayoutCache {
+    private static final String PREFS_NAME = "gatt_layouts";
+    // where the fingerprints were stored before, in the app preferences
+    private static final String LEGACY_PREF_PREFIX = "gatt_layout_";
+    private static final String SEPARATOR = "|";
+
+    private GattLayoutCache() {
+    }
+
+    /**
+     * Returns true if the given services, as cached by Android, match the layout
+     * that was last discovered for the device.
+     */
+    public static boolean matches(GBDevice device, List<BluetoothGattService> services) {
+        String stored = getPreferences().getString(getKey(device), null);
+        if (stored == null) {
+            return false;
+        }
+        int separator = stored.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            return false;
+        }
+        String firmware = stored.substring(0, separator);
+        String fingerprint = stored.substring(separator + 1);
+        String currentFirmware = device.getFirmwareVersion();
+        if (currentFirmware != null && !firmware.isEmpty() && !currentFirmware.equals(firmware)) {
+            return false;
+        }
+        return fingerprint.equals(computeFingerprint(services));
+    }
+
+    /**
+     * Stores the fingerprint of the given, discovered services for the device.
+     */
+    public static void store(GBDevice device, List<BluetoothGattService> services) {
+        String firmware = device.getFirmwareVersion();
+        String value = (firmware != null ? firmware : "") + SEPARATOR + computeFingerprint(services);
+        SharedPreferences prefs = getPreferences();
+        String key = getKey(device);
+        if (!value.equals(prefs.getString(key, null))) {
+            prefs.edit().putString(key, value).apply();
+        }
+        removeLegacyKey(device);
+    }
+
+    /**
+     * Forgets the stored layout, so that the next connection performs a full discovery.
+     */
+    public static void invalidate(GBDevice device) {
+        getPreferences().edit().remove(getKey(device)).apply();
+        removeLegacyKey(device);
+    }
+
+    /**
+     * Computes an order independent checksum over all service and characteristic UUIDs
+     * and the characteristic properties.
+     */
+    static String computeFingerprint(@Nullable List<BluetoothGattService> services) {
+        List<String> entries = new ArrayList<>();
+        if (services != null) {
+            for (BluetoothGattService service : services) {
+                entries.add(service.getUuid().toString());
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    entries.add(service.getUuid() + "/" + characteristic.getUuid() + ":" + characteristic.getProperties());
+                }
+            }
+        }
+        Collections.sort(entries);
+        CRC32 crc = new CRC32();
+        for (String entry : entries) {
+            crc.update(entry.getBytes());
+        }
+        return entries.size() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    private static String getKey(GBDevice device) {
+        return device.getAddress();
+    }
+
+    private static SharedPreferences getPreferences() {
+        return GBApplication.getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void removeLegacyKey(GBDevice device) {
+        SharedPreferences appPreferences = GBApplication.getPrefs().getPreferences();
+        String legacyKey = LEGACY_PREF_PREFIX + device.getAddress();
+        if (appPreferences.contains(legacyKey)) {
+            appPreferences.edit().remove(legacyKey).apply();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.zip.CRC32;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.PlainAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+
+/**
+ * Remembers hashes of the settings that were sent to a device during initialization,
+ * per device and firmware version. On reconnect, settings that did not change since
+ * they were last sent successfully can be skipped.
+ * <p/>
+ * A setting is captured as the actions a setter added to a scratch TransactionBuilder;
+ * its hash covers the action types, characteristics and written values. The hashes are
+ * only persisted once the transaction that sends them has run up to its end.
+ */
+public class SentSettingsCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SentSettingsCache.class);
+
+    private static final String PREFS_NAME_PREFIX = "sent_settings_";
+    private static final String KEY_FIRMWARE = "firmware";
+
+    private final SharedPreferences mPrefs;
+    private final GBDevice mDevice;
+
+    public SentSettingsCache(Context context, GBDevice device) {
+        mPrefs = getPreferences(context, device);
+        mDevice = device;
+    }
+
+    /**
+     * Returns true if settings were sent to the device with its current firmware before,
+     * i.e. if a fast reconnect may rely on them.
+     */
+    public boolean isValid() {
+        String firmware = mDevice.getFirmwareVersion();
+        return firmware != null && firmware.equals(mPrefs.getString(KEY_FIRMWARE, null));
+    }
+
+    /**
+     * Adds the actions of the given setting to the target builder, unless exactly the same
+     * setting was already sent before and {@code force} is false.
+     *
+     * @return true if the setting was added
+     */
+    public boolean add(TransactionBuilder target, String name, TransactionBuilder setting, boolean force) {
+        String hash = computeHash(setting.getTransaction());
+        if (!force && isSent(name, hash)) {
+            LOG.debug("Skipping unchanged setting " + name);
+            return false;
+        }
+        for (BtLEAction action : setting.getTransaction().getActions()) {
+            target.add(action);
+        }
+        target.add(new RememberSettingAction(name, hash));
+        return true;
+    }
+
+    /**
+     * Starts adding a sequence of settings to the given builder. Every call of
+     * {@link Batch#next(String)} returns a scratch builder for one setting, the
+     * previous setting is added to the target when the next one is started or
+     * the batch is finished.
+     */
+    public Batch begin(TransactionBuilder target, boolean force) {
+        return new Batch(target, force);
+    }
+
+    /**
+     * Starts comparing a sequence of settings with the ones that were sent before, without
+     * adding them anywhere. See {@link Batch#hasChanges()}.
+     */
+    public Batch compare() {
+        return new Batch(null, false);
+    }
+
+    private boolean isSent(String name, String hash) {
+        return isValid() && hash.equals(mPrefs.getString(name, null));
+    }
+
+    /**
+     * Makes the next initialization send all settings again, e.g. after a firmware update.
+     */
+    public static void invalidate(Context context, GBDevice device) {
+        getPreferences(context, device).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context, GBDevice device) {
+        return context.getSharedPreferences(PREFS_NAME_PREFIX + device.getAddress().replace(':', '_'), Context.MODE_PRIVATE);
+    }
+
+    private static String computeHash(Transaction transaction) {
+        CRC32 crc = new CRC32();
+        for (BtLEAction action : transaction.getActions()) {
+            crc.update(action.getClass().getName().getBytes());
+            if (action.getCharacteristic() != null) {
+                crc.update(action.getCharacteristic().getUuid().toString().getBytes());
+            }
+            if (action instanceof WriteAction) {
+                byte[] value = ((WriteAction) action).getValue();
+                if (value != null) {
+                    crc.update(value);
+                }
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    public class Batch {
+        private final TransactionBuilder mTarget;
+        private final boolean mForce;
+        private String mName;
+        private TransactionBuilder mSetting;
+        private int mSkipped;
+        private int mChanged;
+
+        private Batch(TransactionBuilder target, boolean force) {
+            mTarget = target;
+            mForce = force;
+        }
+
+        public TransactionBuilder next(String name) {
+            flush();
+            mName = name;
+            mSetting = new TransactionBuilder(name);
+            return mSetting;
+        }
+
+        public void finish() {
+            flush();
+            if (mSkipped > 0) {
+                LOG.info("Skipped " + mSkipped + " unchanged settings");
+            }
+            if (mChanged > 0) {
+                LOG.info(mChanged + " settings changed since they were sent");
+            }
+        }
+
+        /**
+         * Returns true if one of the compared settings differs from the one that was sent.
+         * Only meaningful for a batch started with {@link #compare()}, after {@link #finish()}.
+         */
+        public boolean hasChanges() {
+            return mChanged > 0;
+        }
+
+        private void flush() {
+            if (mSetting != null) {
+                if (mTarget == null) {
+                    if (!isSent(mName, computeHash(mSetting.getTransaction()))) {
+                        mChanged++;
+                    }
+                } else if (!add(mTarget, mName, mSetting, mForce)) {
+                    mSkipped++;
+                }
+            }
+            mSetting = null;
+        }
+    }
+
+    /**
+     * Persists the hash of a setting once all actions before it have run successfully.
+     */
+    private class RememberSettingAction extends PlainAction {
+        private final String mName;
+        private final String mHash;
+
+        RememberSettingAction(String name, String hash) {
+            mName = name;
+            mHash = hash;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            String firmware = mDevice.getFirmwareVersion();
+            SharedPreferences.Editor editor = mPrefs.edit();
+            if (firmware != null && !firmware.equals(mPrefs.getString(KEY_FIRMWARE, null))) {
+                // settings sent with another firmware are worthless
+                editor.clear();
+                editor.putString(KEY_FIRMWARE, firmware);
+            }
+            editor.putString(mName, mHash);
+            editor.apply();
+            return true;
+        }
+    }
+}
@@ -32,12 +32,41 @@ import java.util.Locale;
  * @author TREND
  */
 public class Transaction {
+    /**
+     * The scheduling class of a transaction. {@link BtLEQueue} executes queued transactions
+     * ordered by priority, transactions of the same priority in the order they were added.
+     */
+    public enum Priority {
+        /**
+         * Incoming calls, notifications and the device initialization they may depend on.
+         */
+        URGENT,
+        /**
+         * Something the user is waiting for, e.g. find device or a heart rate test.
+         * Requests a fast connection interval.
+         */
+        INTERACTIVE,
+        /**
+         * The default for everything else.
+         */
+        NORMAL,
+        /**
+         * Long running transfers, like fetching activity data or installing firmware.
+         * Requests a fast connection interval and may be preempted at action boundaries
+         * by transactions of a higher priority.
+         */
+        BULK
+    }
+
     private final String mName;
     private final List<BtLEAction> mActions = new ArrayList<>(4);
     private final long creationTimestamp = System.currentTimeMillis();
     private
     @Nullable
     GattCallback gattCallback;
+    private Priority mPriority = Priority.NORMAL;
+    private long mSequence;
+    private int mNextActionIndex;
 
     public Transaction(String taskName) {
         this.mName = taskName;
@@ -59,13 +88,49 @@ public class Transaction {
         return mActions.isEmpty();
     }
 
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Whether the queue may interrupt this transaction between two actions
+     * in order to execute a more important one.
+     */
+    public boolean isPreemptible() {
+        return mPriority == Priority.BULK;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * Returns the index of the first action that has not been executed yet.
+     * Only non-zero for transactions that have been preempted.
+     */
+    int getNextActionIndex() {
+        return mNextActionIndex;
+    }
+
+    void setNextActionIndex(int nextActionIndex) {
+        mNextActionIndex = nextActionIndex;
+    }
+
     protected String getCreationTime() {
         return DateFormat.getTimeInstance(DateFormat.MEDIUM).format(new Date(creationTimestamp));
     }
 
     @Override
     public String toString() {
-        return String.format(Locale.US, "%s: Transaction task: %s with %d actions", getCreationTime(), getTaskName(), mActions.size());
+        return String.format(Locale.US, "%s: Transaction task: %s with %d actions (%s)", getCreationTime(), getTaskName(), mActions.size(), mPriority);
     }
 
     public void setGattCallback(@Nullable GattCallback callback) {
@@ -94,6 +94,17 @@ public class TransactionBuilder {
         return mTransaction.getGattCallback();
     }
 
+    /**
+     * Sets the scheduling priority of the transaction, the default is
+     * {@link Transaction.Priority#NORMAL}.
+     *
+     * @param priority the priority to use when queueing the transaction
+     */
+    public TransactionBuilder setPriority(Transaction.Priority priority) {
+        mTransaction.setPriority(priority);
+        return this;
+    }
+
     /**
      * To be used as the final step to execute the transaction by the given queue.
      *
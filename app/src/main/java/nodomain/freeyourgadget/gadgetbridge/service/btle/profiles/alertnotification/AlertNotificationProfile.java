@@ -21,8 +21,14 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
@@ -39,6 +45,9 @@ public class AlertNotificationProfile<T extends AbstractBTLEDeviceSupport> exten
         super(support);
     }
 
+    /**
+     * Sets the maximum number of UTF-8 bytes of message text per alert frame.
+     */
     public void setMaxLength(int maxLength) {
         this.maxLength = maxLength;
     }
@@ -57,41 +66,21 @@ public class AlertNotificationProfile<T extends AbstractBTLEDeviceSupport> exten
         }
     }
 
+    /**
+     * Sends the given alert. The message is encoded as UTF-8 directly into frames of
+     * the alert header plus at most maxLength bytes of text, without splitting a character
+     * across frames. Depending on the strategy, only the first frame is sent or all of
+     * them, each as an alert of its own.
+     */
     public void newAlert(TransactionBuilder builder, NewAlert alert, OverflowStrategy strategy) {
         BluetoothGattCharacteristic characteristic = getCharacteristic(GattCharacteristic.UUID_CHARACTERISTIC_NEW_ALERT);
-        if (characteristic != null) {
-            String message = StringUtils.ensureNotNull(alert.getMessage());
-            if (message.length() > maxLength && strategy == OverflowStrategy.TRUNCATE) {
-                message = StringUtils.truncate(message, maxLength);
-            }
-
-            int numChunks = message.length() / maxLength;
-            if (message.length() % maxLength > 0) {
-                numChunks++;
-            }
-
-            try {
-                boolean hasAlerted = false;
-                for (int i = 0; i < numChunks; i++) {
-                    int offset = i * maxLength;
-                    int restLength = message.length() - offset;
-                    message = message.substring(offset, offset + Math.min(maxLength, restLength));
-                    if (hasAlerted && message.length() == 0) {
-                        // no need to do it again when there is no text content
-                        break;
-                    }
-                    builder.write(characteristic, getAlertMessage(alert, message, 1));
-                    hasAlerted = true;
-                }
-                if (!hasAlerted) {
-                    builder.write(characteristic, getAlertMessage(alert, "", 1));
-                }
-            } catch (IOException ex) {
-                // ain't gonna happen
-                LOG.error("Error writing alert message to ByteArrayOutputStream");
-            }
-        } else {
+        if (characteristic == null) {
             LOG.warn("NEW_ALERT characteristic not available");
+            return;
+        }
+
+        for (byte[] frame : createAlertFrames(alert, strategy)) {
+            builder.write(characteristic, frame);
         }
     }
 
@@ -99,20 +88,36 @@ public class AlertNotificationProfile<T extends AbstractBTLEDeviceSupport> exten
         newAlert(builder, alert, OverflowStrategy.TRUNCATE);
     }
 
-    protected byte[] getAlertMessage(NewAlert alert, String message, int chunk) throws IOException {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(100);
-        stream.write(BLETypeConversions.fromUint8(alert.getCategory().getId()));
-        stream.write(BLETypeConversions.fromUint8(alert.getNumAlerts()));
-        if (alert.getCategory() == AlertCategory.CustomHuami) {
-            stream.write(BLETypeConversions.fromUint8(alert.getCustomIcon()));
-        }
+    List<byte[]> createAlertFrames(NewAlert alert, OverflowStrategy strategy) {
+        byte[] header = getAlertHeader(alert);
+        CharBuffer text = CharBuffer.wrap(StringUtils.ensureNotNull(alert.getMessage()));
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer frame = ByteBuffer.allocate(header.length + maxLength);
+
+        List<byte[]> frames = new ArrayList<>(1);
+        do {
+            frame.clear();
+            frame.put(header);
+            int start = text.position();
+            // stops with an overflow before a character that does not fit into the frame anymore
+            encoder.encode(text, frame, true);
+            if (text.position() == start && !frames.isEmpty()) {
+                LOG.warn("Alert frame too small for the next character, dropping the rest of the message");
+                break;
+            }
+            frames.add(Arrays.copyOf(frame.array(), frame.position()));
+        } while (text.hasRemaining() && strategy == OverflowStrategy.MAKE_MULTIPLE);
+        return frames;
+    }
 
-        if (message.length() > 0) {
-            stream.write(BLETypeConversions.toUtf8s(message));
-        } else {
-            // some write a null byte instead of leaving out this optional value
-//                stream.write(new byte[] {0});
+    private byte[] getAlertHeader(NewAlert alert) {
+        byte category = BLETypeConversions.fromUint8(alert.getCategory().getId());
+        byte numAlerts = BLETypeConversions.fromUint8(alert.getNumAlerts());
+        if (alert.getCategory() == AlertCategory.CustomHuami) {
+            return new byte[] {category, numAlerts, BLETypeConversions.fromUint8(alert.getCustomIcon())};
         }
-        return stream.toByteArray();
+        return new byte[] {category, numAlerts};
     }
 }
@@ -23,6 +23,9 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
+import nodomain.freeyourgadget.gadgetbridge.database.HeartRateStore;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattCharacteristic;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
@@ -63,7 +66,8 @@ public class HeartRateProfile<T extends AbstractBTLEDeviceSupport> extends Abstr
     @Override
     public boolean onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         if (GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
+            // the flags are the first byte of the value, not the characteristic properties
+            int flag = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
             int format = -1;
             if ((flag & 0x01) != 0) {
                 format = BluetoothGattCharacteristic.FORMAT_UINT16;
@@ -72,6 +76,11 @@ public class HeartRateProfile<T extends AbstractBTLEDeviceSupport> extends Abstr
             }
             final int heartRate = characteristic.getIntValue(format, 1);
             LOG.info("Heart rate: " + heartRate, Toast.LENGTH_LONG, GB.INFO);
+            try {
+                HeartRateStore.getInstance().add(getDevice().getAddress(), (int) (System.currentTimeMillis() / 1000), heartRate);
+            } catch (IOException ex) {
+                LOG.warn("Unable to store heart rate", ex);
+            }
         }
         return false;
     }
@@ -19,15 +19,11 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.huami.amazfitbip;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.Date;
 
 import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
-import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 
 public class ActivityDetailsParser {
@@ -41,7 +37,8 @@ public class ActivityDetailsParser {
     private static final byte TYPE_SPEED5 = 5;
     private static final byte TYPE_GPS_SPEED6 = 6;
 
-    public static final BigDecimal HUAMI_TO_DECIMAL_DEGREES_DIVISOR = new BigDecimal(3000000.0);
+    // huami coordinates are in 1/3000000 degrees, the track stores 1e-6 degrees
+    public static final int HUAMI_TO_E6_DIVISOR = 3;
     private final BaseActivitySummary summary;
     private final ActivityTrack activityTrack;
 //    private final int version;
@@ -49,7 +46,7 @@ public class ActivityDetailsParser {
     private long baseLongitude;
     private long baseLatitude;
     private int baseAltitude;
-    private ActivityPoint lastActivityPoint;
+    private int lastPointIndex = -1;
 
     public boolean getSkipCounterByte() {
         return skipCounterByte;
@@ -72,6 +69,7 @@ public class ActivityDetailsParser {
         this.baseDate = summary.getStartTime();
 
         this.activityTrack = new ActivityTrack();
+        activityTrack.setBaseTime(baseDate);
         activityTrack.setUser(summary.getUser());
         activityTrack.setDevice(summary.getDevice());
         activityTrack.setName(summary.getName() + "-" + summary.getId());
@@ -139,21 +137,24 @@ public class ActivityDetailsParser {
         baseLatitude += latitudeDelta;
         baseAltitude += altitudeDelta;
 
-        GPSCoordinate coordinate = new GPSCoordinate(
-                convertHuamiValueToDecimalDegrees(baseLongitude),
-                convertHuamiValueToDecimalDegrees(baseLatitude),
+        int index = getPointFor(timeOffset);
+        activityTrack.setLocationE6(index,
+                convertHuamiValueToE6(baseLatitude),
+                convertHuamiValueToE6(baseLongitude),
                 baseAltitude);
 
-        ActivityPoint ap = getActivityPointFor(timeOffset);
-        ap.setLocation(coordinate);
-        add(ap);
-
         return i;
     }
 
-    private double convertHuamiValueToDecimalDegrees(long huamiValue) {
-        BigDecimal result = new BigDecimal(huamiValue).divide(HUAMI_TO_DECIMAL_DEGREES_DIVISOR, GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP);
-        return result.doubleValue();
+    /**
+     * Converts to 1e-6 degrees, rounding half up like the former BigDecimal based conversion.
+     */
+    static int convertHuamiValueToE6(long huamiValue) {
+        long half = HUAMI_TO_E6_DIVISOR / 2;
+        if (huamiValue >= 0) {
+            return (int) ((huamiValue + half) / HUAMI_TO_E6_DIVISOR);
+        }
+        return (int) -((-huamiValue + half) / HUAMI_TO_E6_DIVISOR);
     }
 
     private int consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) {
@@ -168,46 +169,25 @@ public class ActivityDetailsParser {
             // new version
 //            LOG.info("detected heart rate in 'new' version, where version is: " + summary.getVersion());
             LOG.info("detected heart rate in 'new' version format");
-            ActivityPoint ap = getActivityPointFor(timeOffsetSeconds);
-            ap.setHeartRate(v1);
-            add(ap);
+            activityTrack.setHeartRate(getPointFor(timeOffsetSeconds), v1);
         } else {
-            ActivityPoint ap = getActivityPointFor(v1);
-            ap.setHeartRate(v2);
-            add(ap);
-
-            ap = getActivityPointFor(v3);
-            ap.setHeartRate(v4);
-            add(ap);
-
-            ap = getActivityPointFor(v5);
-            ap.setHeartRate(v6);
-            add(ap);
+            activityTrack.setHeartRate(getPointFor(v1), v2);
+            activityTrack.setHeartRate(getPointFor(v3), v4);
+            activityTrack.setHeartRate(getPointFor(v5), v6);
         }
         return 6;
     }
 
-    private ActivityPoint getActivityPointFor(long timeOffsetSeconds) {
-        Date time = makeAbsolute(timeOffsetSeconds);
-        if (lastActivityPoint != null) {
-            if (lastActivityPoint.getTime().equals(time)) {
-                return lastActivityPoint;
-            }
-        }
-        return new ActivityPoint(time);
-    }
-
-    private Date makeAbsolute(long timeOffsetSeconds) {
-        return new Date(baseDate.getTime() + timeOffsetSeconds * 1000);
-    }
-
-    private void add(ActivityPoint ap) {
-        if (ap != lastActivityPoint) {
-            lastActivityPoint = ap;
-            activityTrack.addTrackPoint(ap);
-        } else {
-            LOG.info("skipping point!");
+    /**
+     * Returns the index of the point for the given time, consecutive values for the
+     * same time are merged into one point.
+     */
+    private int getPointFor(long timeOffsetSeconds) {
+        if (lastPointIndex >= 0 && activityTrack.getTimeOffset(lastPointIndex) == timeOffsetSeconds) {
+            return lastPointIndex;
         }
+        lastPointIndex = activityTrack.appendPoint((int) timeOffsetSeconds);
+        return lastPointIndex;
     }
 
     private int consumeUnknown2(byte[] bytes, int offset) {
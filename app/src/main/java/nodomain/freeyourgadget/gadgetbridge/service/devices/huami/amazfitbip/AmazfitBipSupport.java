@@ -27,6 +27,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.SimpleTimeZone;
@@ -45,6 +48,8 @@ import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.Transaction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.ConditionalWriteAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.alertnotification.AlertCategory;
@@ -54,6 +59,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.amazfitbip.ope
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiIcon;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.NotificationStrategy;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.MiBand2Support;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.AbstractFetchOperation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.FetchActivityOperation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.FetchSportsSummaryOperation;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
@@ -82,16 +88,18 @@ public class AmazfitBipSupport extends MiBand2Support {
 
         String senderOrTiltle = StringUtils.getFirstOf(notificationSpec.sender, notificationSpec.title);
 
-        String message = StringUtils.truncate(senderOrTiltle, 32) + "\0";
+        StringBuilder message = new StringBuilder(300);
+        message.append(StringUtils.truncate(senderOrTiltle, 32)).append('\0');
         if (notificationSpec.subject != null) {
-            message += StringUtils.truncate(notificationSpec.subject, 128) + "\n\n";
+            message.append(StringUtils.truncate(notificationSpec.subject, 128)).append("\n\n");
         }
         if (notificationSpec.body != null) {
-            message += StringUtils.truncate(notificationSpec.body, 128);
+            message.append(StringUtils.truncate(notificationSpec.body, 128));
         }
 
         try {
             TransactionBuilder builder = performInitialized("new notification");
+            builder.setPriority(Transaction.Priority.URGENT);
             AlertNotificationProfile<?> profile = new AlertNotificationProfile(this);
             profile.setMaxLength(230);
 
@@ -108,7 +116,7 @@ public class AmazfitBipSupport extends MiBand2Support {
                 alertCategory = AlertCategory.Email;
             }
 
-            NewAlert alert = new NewAlert(alertCategory, 1, message, customIconId);
+            NewAlert alert = new NewAlert(alertCategory, 1, message.toString(), customIconId);
             profile.newAlert(builder, alert);
             builder.queue(getQueue());
         } catch (IOException ex) {
@@ -204,6 +212,10 @@ public class AmazfitBipSupport extends MiBand2Support {
         builder.write(getCharacteristic(MiBand2Service.UUID_CHARACTERISTIC_3_CONFIGURATION), command);
     }
 
+    /**
+     * Sends current weather, air quality (Bip only), forecast and location (Cor only)
+     * in a single transaction. Every condition string is encoded only once.
+     */
     @Override
     public void onSendWeather(WeatherSpec weatherSpec) {
         if (gbDevice.getFirmwareVersion() == null) {
@@ -217,80 +229,43 @@ public class AmazfitBipSupport extends MiBand2Support {
             supportsConditionString = true;
         }
         int tz_offset_hours = SimpleTimeZone.getDefault().getOffset(weatherSpec.timestamp * 1000L) / (1000 * 60 * 60);
+        BluetoothGattCharacteristic characteristic = getCharacteristic(AmazfitBipService.UUID_CHARACTERISTIC_WEATHER);
         try {
-            TransactionBuilder builder;
-            builder = performInitialized("Sending current temp");
-
+            TransactionBuilder builder = performInitialized("Sending weather");
+            byte[] currentCondition = supportsConditionString ? toCString(weatherSpec.currentCondition) : new byte[0];
             byte condition = HuamiWeatherConditions.mapToAmazfitBipWeatherCode(weatherSpec.currentConditionCode);
 
-            int length = 8;
-            if (supportsConditionString) {
-                length += weatherSpec.currentCondition.getBytes().length + 1;
-            }
-            ByteBuffer buf = ByteBuffer.allocate(length);
+            ByteBuffer buf = ByteBuffer.allocate(8 + currentCondition.length);
             buf.order(ByteOrder.LITTLE_ENDIAN);
-
             buf.put((byte) 2);
             buf.putInt(weatherSpec.timestamp);
             buf.put((byte) (tz_offset_hours * 4));
             buf.put(condition);
             buf.put((byte) (weatherSpec.currentTemp - 273));
+            buf.put(currentCondition);
+            builder.write(characteristic, buf.array());
 
-            if (supportsConditionString) {
-                buf.put(weatherSpec.currentCondition.getBytes());
-                buf.put((byte) 0);
-            }
-
-            builder.write(getCharacteristic(AmazfitBipService.UUID_CHARACTERISTIC_WEATHER), buf.array());
-            builder.queue(getQueue());
-        } catch (Exception ex) {
-            LOG.error("Error sending current weather", ex);
-        }
-
-        if (gbDevice.getType() == DeviceType.AMAZFITBIP) {
-            try {
-                TransactionBuilder builder;
-                builder = performInitialized("Sending air quality index");
-                int length = 8;
-                String aqiString = "(n/a)";
-                if (supportsConditionString) {
-                    length += aqiString.getBytes().length + 1;
-                }
-                ByteBuffer buf = ByteBuffer.allocate(length);
+            if (gbDevice.getType() == DeviceType.AMAZFITBIP) {
+                byte[] aqiString = supportsConditionString ? toCString("(n/a)") : new byte[0];
+                buf = ByteBuffer.allocate(8 + aqiString.length);
                 buf.order(ByteOrder.LITTLE_ENDIAN);
                 buf.put((byte) 4);
                 buf.putInt(weatherSpec.timestamp);
                 buf.put((byte) (tz_offset_hours * 4));
                 buf.putShort((short) 0);
-                if (supportsConditionString) {
-                    buf.put(aqiString.getBytes());
-                    buf.put((byte) 0);
-                }
-                builder.write(getCharacteristic(AmazfitBipService.UUID_CHARACTERISTIC_WEATHER), buf.array());
-                builder.queue(getQueue());
-            } catch (IOException ex) {
-                LOG.error("Error sending air quality");
+                buf.put(aqiString);
+                builder.write(characteristic, buf.array());
             }
-        }
-
-        try {
-            TransactionBuilder builder = performInitialized("Sending weather forecast");
 
             final byte NR_DAYS = (byte) (1 + weatherSpec.forecasts.size());
-            int bytesPerDay = 4;
-
-            int conditionsLength = 0;
-            if (supportsConditionString) {
-                bytesPerDay = 5;
-                conditionsLength = weatherSpec.currentCondition.getBytes().length;
-                for (WeatherSpec.Forecast forecast : weatherSpec.forecasts) {
-                    conditionsLength += Weather.getConditionString(forecast.conditionCode).getBytes().length;
-                }
+            byte[][] forecastConditions = new byte[weatherSpec.forecasts.size()][];
+            int conditionsLength = currentCondition.length;
+            for (int i = 0; i < forecastConditions.length; i++) {
+                forecastConditions[i] = supportsConditionString ? toCString(Weather.getConditionString(weatherSpec.forecasts.get(i).conditionCode)) : new byte[0];
+                conditionsLength += forecastConditions[i].length;
             }
 
-            int length = 7 + bytesPerDay * NR_DAYS + conditionsLength;
-            ByteBuffer buf = ByteBuffer.allocate(length);
-
+            buf = ByteBuffer.allocate(7 + 4 * NR_DAYS + conditionsLength);
             buf.order(ByteOrder.LITTLE_ENDIAN);
             buf.put((byte) 1);
             buf.putInt(weatherSpec.timestamp);
@@ -298,72 +273,64 @@ public class AmazfitBipSupport extends MiBand2Support {
 
             buf.put(NR_DAYS);
 
-            byte condition = HuamiWeatherConditions.mapToAmazfitBipWeatherCode(weatherSpec.currentConditionCode);
             buf.put(condition);
             buf.put(condition);
             buf.put((byte) (weatherSpec.todayMaxTemp - 273));
             buf.put((byte) (weatherSpec.todayMinTemp - 273));
-            if (supportsConditionString) {
-                buf.put(weatherSpec.currentCondition.getBytes());
-                buf.put((byte) 0);
-            }
+            buf.put(currentCondition);
 
-            for (WeatherSpec.Forecast forecast : weatherSpec.forecasts) {
+            for (int i = 0; i < forecastConditions.length; i++) {
+                WeatherSpec.Forecast forecast = weatherSpec.forecasts.get(i);
                 condition = HuamiWeatherConditions.mapToAmazfitBipWeatherCode(forecast.conditionCode);
 
                 buf.put(condition);
                 buf.put(condition);
                 buf.put((byte) (forecast.maxTemp - 273));
                 buf.put((byte) (forecast.minTemp - 273));
-                if (supportsConditionString) {
-                    buf.put(Weather.getConditionString(forecast.conditionCode).getBytes());
-                    buf.put((byte) 0);
-                }
+                buf.put(forecastConditions[i]);
+            }
+            builder.write(characteristic, buf.array());
+
+            if (gbDevice.getType() == DeviceType.AMAZFITCOR) {
+                byte[] location = toCString(weatherSpec.location);
+                buf = ByteBuffer.allocate(1 + location.length);
+                buf.put((byte) 8);
+                buf.put(location);
+                builder.write(characteristic, buf.array());
             }
 
-            builder.write(getCharacteristic(AmazfitBipService.UUID_CHARACTERISTIC_WEATHER), buf.array());
             builder.queue(getQueue());
         } catch (Exception ex) {
-            LOG.error("Error sending weather forecast", ex);
+            LOG.error("Error sending weather", ex);
         }
+    }
 
-        if (gbDevice.getType() == DeviceType.AMAZFITCOR) {
-            try {
-                TransactionBuilder builder;
-                builder = performInitialized("Sending forecast location");
-
-                int length = 2 + weatherSpec.location.getBytes().length;
-                ByteBuffer buf = ByteBuffer.allocate(length);
-                buf.order(ByteOrder.LITTLE_ENDIAN);
-                buf.put((byte) 8);
-                buf.put(weatherSpec.location.getBytes());
-                buf.put((byte) 0);
-
-                builder.write(getCharacteristic(AmazfitBipService.UUID_CHARACTERISTIC_WEATHER), buf.array());
-                builder.queue(getQueue());
-            } catch (Exception ex) {
-                LOG.error("Error sending current forecast location", ex);
-            }
-        }
+    /**
+     * Returns the UTF-8 encoding of the given string, followed by a null byte.
+     */
+    private static byte[] toCString(String value) {
+        byte[] bytes = BLETypeConversions.toUtf8s(StringUtils.ensureNotNull(value));
+        return Arrays.copyOf(bytes, bytes.length + 1);
     }
 
     @Override
     public void onFetchRecordedData(int dataTypes) {
-        try {
-            // FIXME: currently only one data type supported, these are meant to be flags
-            if (dataTypes == RecordedDataTypes.TYPE_ACTIVITY) {
-                new FetchActivityOperation(this).perform();
-            } else if (dataTypes == RecordedDataTypes.TYPE_GPS_TRACKS) {
-                new FetchSportsSummaryOperation(this).perform();
-            } else if (dataTypes == RecordedDataTypes.TYPE_DEBUGLOGS) {
-                new AmazfitBipFetchLogsOperation(this).perform();
-            }
-            else {
-                LOG.warn("fetching multiple data types at once is not supported yet");
-            }
-        } catch (IOException ex) {
-            LOG.error("Unable to fetch recorded data types" + dataTypes, ex);
+        // the operations are chained, so that all requested types are fetched in one go
+        List<AbstractFetchOperation> operations = new ArrayList<>(3);
+        if ((dataTypes & RecordedDataTypes.TYPE_ACTIVITY) != 0) {
+            operations.add(new FetchActivityOperation(this));
+        }
+        if ((dataTypes & RecordedDataTypes.TYPE_GPS_TRACKS) != 0) {
+            operations.add(new FetchSportsSummaryOperation(this));
+        }
+        if ((dataTypes & RecordedDataTypes.TYPE_DEBUGLOGS) != 0) {
+            operations.add(new AmazfitBipFetchLogsOperation(this));
+        }
+        if (operations.isEmpty()) {
+            LOG.warn("Unsupported recorded data types: " + dataTypes);
+            return;
         }
+        performFetchOperations(operations);
     }
 
     @Override
@@ -82,6 +82,7 @@ public class Mi2TextNotificationStrategy extends Mi2NotificationStrategy {
             category = simpleNotification.getAlertCategory();
         }
         NewAlert alert = new NewAlert(category, 1, simpleNotification.getMessage());
-        profile.newAlert(builder, alert, OverflowStrategy.MAKE_MULTIPLE);
+        // every frame is a separate alert on the band, so long messages are truncated
+        profile.newAlert(builder, alert, OverflowStrategy.TRUNCATE);
     }
 }
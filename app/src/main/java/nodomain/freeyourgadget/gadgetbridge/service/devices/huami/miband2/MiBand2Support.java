@@ -34,9 +34,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Deque;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Set;
@@ -51,6 +53,7 @@ import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.SettingsActivity;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.HeartRateStore;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventCallControl;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventFindPhone;
@@ -75,6 +78,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBAlarm;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice.State;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
@@ -92,6 +96,8 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattCharacteristic;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattService;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.SentSettingsCache;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.Transaction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.AbortTransactionAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceStateAction;
@@ -104,6 +110,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiDeviceEve
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.NotificationStrategy;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeSamplesSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.actions.StopNotificationAction;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.AbstractFetchOperation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.FetchActivityOperation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.FetchSportsSummaryOperation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations.InitOperation;
@@ -111,6 +118,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operat
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.NotificationUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
 import nodomain.freeyourgadget.gadgetbridge.util.Version;
 
 import static nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst.DEFAULT_VALUE_FLASH_COLOUR;
@@ -149,6 +157,11 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
             String s = intent.getAction();
             if (s.equals(DeviceInfoProfile.ACTION_DEVICE_INFO)) {
                 handleDeviceInfo((nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.deviceinfo.DeviceInfo) intent.getParcelableExtra(DeviceInfoProfile.EXTRA_DEVICE_INFO));
+            } else if (s.equals(GBDevice.ACTION_DEVICE_CHANGED)) {
+                GBDevice device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
+                if (device != null && device.equals(getDevice()) && !device.isConnected()) {
+                    flushHeartRateStore();
+                }
             }
         }
     };
@@ -156,6 +169,8 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     BluetoothGattCharacteristic characteristicHRControlPoint;
 
     private boolean needsAuth;
+    private boolean forceSendSettings;
+    private SentSettingsCache sentSettingsCache;
     private volatile boolean telephoneRinging;
     private volatile boolean isLocatingDevice;
 
@@ -166,6 +181,9 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     private RealtimeSamplesSupport realtimeSamplesSupport;
     private boolean alarmClockRinging;
 
+    private final Deque<AbstractFetchOperation> pendingFetchOperations = new ArrayDeque<>();
+    private boolean fetchOperationRunning;
+
     public MiBand2Support() {
         this(LOG);
     }
@@ -192,6 +210,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(DeviceInfoProfile.ACTION_DEVICE_INFO);
         intentFilter.addAction(DeviceService.ACTION_MIBAND2_AUTH);
+        intentFilter.addAction(GBDevice.ACTION_DEVICE_CHANGED);
         broadcastManager.registerReceiver(mReceiver, intentFilter);
     }
 
@@ -199,6 +218,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     public void dispose() {
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getContext());
         broadcastManager.unregisterReceiver(mReceiver);
+        flushHeartRateStore();
         super.dispose();
     }
 
@@ -207,6 +227,8 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         try {
             boolean authenticate = needsAuth;
             needsAuth = false;
+            forceSendSettings = authenticate;
+            resetFetchOperations();
             new InitOperation(authenticate, this, builder).perform();
             characteristicHRControlPoint = getCharacteristic(GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT);
         } catch (IOException e) {
@@ -251,16 +273,6 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         return this;
     }
 
-    public MiBand2Support setLowLatency(TransactionBuilder builder) {
-        // TODO: low latency?
-        return this;
-    }
-
-    public MiBand2Support setHighLatency(TransactionBuilder builder) {
-        // TODO: high latency?
-        return this;
-    }
-
     /**
      * Last action of initialization sequence. Sets the device to initialized.
      * It is only invoked if all other actions were successfully run, so the device
@@ -335,7 +347,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
                 return new Mi2NotificationStrategy(this);
             }
         }
-        if (GBApplication.getPrefs().getBoolean(MiBandConst.PREF_MI2_ENABLE_TEXT_NOTIFICATIONS, true)) {
+        if (PrefsSnapshot.get().isMi2TextNotifications()) {
             return new Mi2TextNotificationStrategy(this);
         }
         return new Mi2NotificationStrategy(this);
@@ -539,6 +551,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     private void performDefaultNotification(String task, SimpleNotification simpleNotification, short repeat, BtLEAction extraAction) {
         try {
             TransactionBuilder builder = performInitialized(task);
+            builder.setPriority(Transaction.Priority.INTERACTIVE);
             sendDefaultNotification(builder, simpleNotification, repeat, extraAction);
             builder.queue(getQueue());
         } catch (IOException ex) {
@@ -549,6 +562,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     protected void performPreferredNotification(String task, String notificationOrigin, SimpleNotification simpleNotification, int alertLevel, BtLEAction extraAction) {
         try {
             TransactionBuilder builder = performInitialized(task);
+            builder.setPriority(Transaction.Priority.URGENT);
             Prefs prefs = GBApplication.getPrefs();
             int vibrateDuration = getPreferredVibrateDuration(notificationOrigin, prefs);
             int vibratePause = getPreferredVibratePause(notificationOrigin, prefs);
@@ -693,6 +707,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     private void stopCurrentNotification() {
         try {
             TransactionBuilder builder = performInitialized("stop notification");
+            builder.setPriority(Transaction.Priority.URGENT);
             getNotificationStrategy().stopCurrentNotification(builder);
             builder.queue(getQueue());
         } catch (IOException e) {
@@ -740,6 +755,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         }
         try {
             TransactionBuilder builder = performInitialized("HeartRateTest");
+            builder.setPriority(Transaction.Priority.INTERACTIVE);
             builder.write(characteristicHRControlPoint, stopHeartMeasurementContinuous);
             builder.write(characteristicHRControlPoint, stopHeartMeasurementManual);
             builder.write(characteristicHRControlPoint, startHeartMeasurementManual);
@@ -756,6 +772,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         }
         try {
             TransactionBuilder builder = performInitialized("Enable realtime heart rate measurement");
+            builder.setPriority(Transaction.Priority.INTERACTIVE);
             BluetoothGattCharacteristic heartrateCharacteristic = getCharacteristic(GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT);
             if (heartrateCharacteristic != null) {
                 builder.notify(heartrateCharacteristic, enable);
@@ -796,13 +813,58 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
 
     @Override
     public void onFetchRecordedData(int dataTypes) {
+        List<AbstractFetchOperation> operations = new ArrayList<>(1);
+        operations.add(new FetchActivityOperation(this));
+        performFetchOperations(operations);
+    }
+
+    /**
+     * Performs the given fetch operations one after another, after any fetch
+     * operations that are still running or pending. This avoids that several
+     * fetches on the same characteristics are started at the same time.
+     */
+    protected synchronized void performFetchOperations(List<AbstractFetchOperation> operations) {
+        pendingFetchOperations.addAll(operations);
+        if (!fetchOperationRunning) {
+            performNextFetchOperation();
+        }
+    }
+
+    /**
+     * Lets the given operation run directly after the current one, e.g. to fetch
+     * the details of a summary that was just fetched.
+     */
+    public synchronized void insertFetchOperation(AbstractFetchOperation operation) {
+        pendingFetchOperations.addFirst(operation);
+    }
+
+    /**
+     * Called by each fetch operation when it has finished, successful or not.
+     */
+    public synchronized void onFetchOperationFinished(AbstractFetchOperation operation) {
+        fetchOperationRunning = false;
+        performNextFetchOperation();
+    }
+
+    private void performNextFetchOperation() {
+        AbstractFetchOperation operation = pendingFetchOperations.poll();
+        if (operation == null) {
+            return;
+        }
+        fetchOperationRunning = true;
         try {
-            new FetchActivityOperation(this).perform();
+            operation.perform();
         } catch (IOException ex) {
-            LOG.error("Unable to fetch MI activity data", ex);
+            LOG.error("Unable to perform " + operation.getName(), ex);
+            resetFetchOperations();
         }
     }
 
+    private synchronized void resetFetchOperations() {
+        pendingFetchOperations.clear();
+        fetchOperationRunning = false;
+    }
+
     @Override
     public void onEnableRealtimeSteps(boolean enable) {
         try {
@@ -896,21 +958,23 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     }
 
     public void runButtonAction() {
-        Prefs prefs = GBApplication.getPrefs();
+        PrefsSnapshot prefs = PrefsSnapshot.get();
 
         if (currentButtonTimerActivationTime != currentButtonPressTime) {
             return;
         }
 
-        String requiredButtonPressMessage = prefs.getString(MiBandConst.PREF_MIBAND_BUTTON_PRESS_BROADCAST,
-                this.getContext().getString(R.string.mi2_prefs_button_press_broadcast_default_value));
+        String requiredButtonPressMessage = prefs.getButtonPressBroadcast();
+        if (requiredButtonPressMessage == null) {
+            requiredButtonPressMessage = this.getContext().getString(R.string.mi2_prefs_button_press_broadcast_default_value);
+        }
 
         Intent in = new Intent();
         in.setAction(requiredButtonPressMessage);
         in.putExtra("button_id", currentButtonActionId);
         LOG.info("Sending " + requiredButtonPressMessage + " with button_id " + currentButtonActionId);
         this.getContext().getApplicationContext().sendBroadcast(in);
-        if (prefs.getBoolean(MiBandConst.PREF_MIBAND_BUTTON_ACTION_VIBRATE, false)) {
+        if (prefs.isButtonActionVibrate()) {
             performPreferredNotification(null, null, null, MiBand2Service.ALERT_LEVEL_VIBRATE_ONLY, null);
         }
 
@@ -992,14 +1056,14 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         ///logMessageContent(value);
 
         // If disabled we return from function immediately
-        Prefs prefs = GBApplication.getPrefs();
-        if (!prefs.getBoolean(MiBandConst.PREF_MIBAND_BUTTON_ACTION_ENABLE, false)) {
+        PrefsSnapshot prefs = PrefsSnapshot.get();
+        if (!prefs.isButtonActionEnabled()) {
             return;
         }
 
-        int buttonPressMaxDelay = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_PRESS_MAX_DELAY, 2000);
-        int buttonActionDelay = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_ACTION_DELAY, 0);
-        int requiredButtonPressCount = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_PRESS_COUNT, 0);
+        int buttonPressMaxDelay = prefs.getButtonPressMaxDelay();
+        int buttonActionDelay = prefs.getButtonActionDelay();
+        int requiredButtonPressCount = prefs.getButtonPressCount();
 
         if (requiredButtonPressCount > 0) {
             long timeSinceLastPress = System.currentTimeMillis() - currentButtonPressTime;
@@ -1162,6 +1226,15 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
             if (realtimeSamplesSupport != null) {
                 realtimeSamplesSupport.stop();
             }
+            flushHeartRateStore();
+        }
+    }
+
+    private void flushHeartRateStore() {
+        try {
+            HeartRateStore.getInstance().flush();
+        } catch (IOException ex) {
+            LOG.warn("Unable to flush heart rate store", ex);
         }
     }
 
@@ -1178,6 +1251,8 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     private RealtimeSamplesSupport getRealtimeSamplesSupport() {
         if (realtimeSamplesSupport == null) {
             realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
+                private int lastStoredMinute = -1;
+
                 @Override
                 public void doCurrentSample() {
 
@@ -1194,7 +1269,13 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
                         sample.setRawIntensity(ActivitySample.NOT_MEASURED);
                         sample.setRawKind(HuamiConst.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
 
-                        provider.addGBActivitySample(sample);
+                        // the heart rate of every second ends up in the HeartRateStore (via the
+                        // HeartRateProfile), one activity sample per minute is enough for the charts
+                        int minute = ts / 60;
+                        if (minute != lastStoredMinute || !isRunning()) {
+                            provider.addGBActivitySample(sample);
+                            lastStoredMinute = minute;
+                        }
 
                         // set the steps only afterwards, since realtime steps are also recorded
                         // in the regular samples and we must not count them twice
@@ -1600,27 +1681,76 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         requestBatteryInfo(builder);
     }
 
+    /**
+     * Sends the user settings to the device. Settings that were already sent with the
+     * current firmware are skipped, unless the device was just paired.
+     */
     public void phase3Initialize(TransactionBuilder builder) {
         LOG.info("phase3Initialize...");
-        setDateDisplay(builder);
-        setTimeFormat(builder);
-        setUserInfo(builder);
-        setDistanceUnit(builder);
-        setWearLocation(builder);
-        setFitnessGoal(builder);
-        setDisplayItems(builder);
-        setDoNotDisturb(builder);
-        setRotateWristToSwitchInfo(builder);
-        setActivateDisplayOnLiftWrist(builder);
-        setDisplayCaller(builder);
-        setGoalNotification(builder);
-        setInactivityWarnings(builder);
-        setHeartrateSleepSupport(builder);
-        setHeartrateMeasurementInterval(builder, getHeartRateMeasurementInterval());
+        SentSettingsCache.Batch settings = getSentSettingsCache().begin(builder, forceSendSettings);
+        addSettings(settings);
+        settings.finish();
+    }
+
+    private void addSettings(SentSettingsCache.Batch settings) {
+        setDateDisplay(settings.next("date_display"));
+        setTimeFormat(settings.next("time_format"));
+        setUserInfo(settings.next("user_info"));
+        setDistanceUnit(settings.next("distance_unit"));
+        setWearLocation(settings.next("wear_location"));
+        setFitnessGoal(settings.next("fitness_goal"));
+        setDisplayItems(settings.next("display_items"));
+        setDoNotDisturb(settings.next("do_not_disturb"));
+        setRotateWristToSwitchInfo(settings.next("rotate_wrist_to_switch_info"));
+        setActivateDisplayOnLiftWrist(settings.next("activate_display_on_lift_wrist"));
+        setDisplayCaller(settings.next("display_caller"));
+        setGoalNotification(settings.next("goal_notification"));
+        setInactivityWarnings(settings.next("inactivity_warnings"));
+        setHeartrateSleepSupport(settings.next("heartrate_sleep_support"));
+        setHeartrateMeasurementInterval(settings.next("heartrate_measurement_interval"), getHeartRateMeasurementInterval());
+    }
+
+    /**
+     * Returns true if all settings were already sent to the device with its current firmware
+     * and did not change since, so that on reconnect the device can be marked initialized
+     * right after authentication, with the remaining initialization deferred.
+     *
+     * @see #performDeferredInitialization()
+     */
+    public boolean canInitializeFast() {
+        SentSettingsCache cache = getSentSettingsCache();
+        if (forceSendSettings || !cache.isValid()) {
+            return false;
+        }
+        // the settings are only built to compare their hashes, nothing is sent
+        SentSettingsCache.Batch settings = cache.compare();
+        addSettings(settings);
+        settings.finish();
+        return !settings.hasChanges();
+    }
+
+    /**
+     * The part of the initialization that is skipped on a fast reconnect: device info and
+     * battery reads and changed settings. Queued with normal priority, so that pending
+     * notifications go first.
+     */
+    public void performDeferredInitialization() {
+        TransactionBuilder builder = createTransactionBuilder("deferred initialization");
+        requestDeviceInfo(builder);
+        phase2Initialize(builder);
+        phase3Initialize(builder);
+        builder.queue(getQueue());
+    }
+
+    private SentSettingsCache getSentSettingsCache() {
+        if (sentSettingsCache == null) {
+            sentSettingsCache = new SentSettingsCache(getContext(), getDevice());
+        }
+        return sentSettingsCache;
     }
 
     private int getHeartRateMeasurementInterval() {
-        return GBApplication.getPrefs().getInt("heartrate_measurement_interval", 0) / 60;
+        return PrefsSnapshot.get().getHeartRateMeasurementInterval() / 60;
     }
 
     public HuamiFWHelper createFWHelper(Uri uri, Context context) throws IOException {
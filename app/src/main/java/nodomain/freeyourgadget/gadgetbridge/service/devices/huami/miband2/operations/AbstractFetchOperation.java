@@ -38,6 +38,7 @@ import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.Transaction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.AbstractMiBand2Operation;
@@ -81,7 +82,7 @@ public abstract class AbstractFetchOperation extends AbstractMiBand2Operation {
         lastPacketCounter = -1;
 
         TransactionBuilder builder = performInitialized(getName());
-        getSupport().setLowLatency(builder);
+        builder.setPriority(Transaction.Priority.BULK);
         if (fetchCount == 0) {
             builder.add(new SetDeviceBusyAction(getDevice(), getContext().getString(R.string.busy_task_fetch_activity_data), getContext()));
         }
@@ -121,6 +122,7 @@ public abstract class AbstractFetchOperation extends AbstractMiBand2Operation {
         GB.updateTransferNotification(null,"",false,100,getContext());
         operationFinished();
         unsetBusy();
+        getSupport().onFetchOperationFinished(this);
     }
 
     /**
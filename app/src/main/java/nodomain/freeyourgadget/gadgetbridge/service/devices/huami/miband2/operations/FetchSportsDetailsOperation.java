@@ -17,7 +17,9 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.operations;
 
+import android.content.Intent;
 import android.support.annotation.NonNull;
+import android.support.v4.content.LocalBroadcastManager;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
@@ -35,8 +37,12 @@ import nodomain.freeyourgadget.gadgetbridge.devices.huami.amazfitbip.AmazfitBipS
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter;
+import nodomain.freeyourgadget.gadgetbridge.export.BinaryTrackExporter;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
+import nodomain.freeyourgadget.gadgetbridge.model.WorkoutAnalytics;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WaitAction;
@@ -98,21 +104,34 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
             parser.setSkipCounterByte(false); // is already stripped
             try {
                 ActivityTrack track = parser.parse(buffer.toByteArray());
+                WorkoutAnalytics analytics = WorkoutAnalytics.analyze(track, WorkoutAnalytics.estimateMaxHeartRate(new ActivityUser().getAge()));
+                analytics.applyTo(summary);
+
+                String baseName = "gadgetbridge-track-" + DateTimeUtils.formatIso8601(summary.getStartTime());
+                try {
+                    File binaryFile = new File(FileUtils.getExternalFilesDir(), FileUtils.makeValidFileName(baseName + BinaryTrackExporter.FILE_EXTENSION));
+                    new BinaryTrackExporter().performExport(track, binaryFile);
+                    summary.setBinaryTrack(binaryFile.getAbsolutePath());
+                } catch (ActivityTrackExporter.GPXTrackEmptyException ex) {
+                    LOG.info("Activity details do not contain any points");
+                }
+
                 ActivityTrackExporter exporter = createExporter();
-                String fileName = FileUtils.makeValidFileName("gadgetbridge-track-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ".gpx");
+                String fileName = FileUtils.makeValidFileName(baseName + ".gpx");
                 File targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
 
                 try {
                     exporter.performExport(track, targetFile);
-
-                    try (DBHandler dbHandler = GBApplication.acquireDB()) {
-                        summary.setGpxTrack(targetFile.getAbsolutePath());
-                        dbHandler.getDaoSession().getBaseActivitySummaryDao().update(summary);
-                    }
+                    summary.setGpxTrack(targetFile.getAbsolutePath());
                 } catch (ActivityTrackExporter.GPXTrackEmptyException ex) {
                     GB.toast(getContext(), "This activity does not contain GPX tracks.", Toast.LENGTH_LONG, GB.ERROR, ex);
                 }
 
+                try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                    dbHandler.getDaoSession().getBaseActivitySummaryDao().update(summary);
+                }
+                LocalBroadcastManager.getInstance(getContext()).sendBroadcast(new Intent(ActivitySummary.ACTION_SUMMARIES_CHANGED));
+
                 GregorianCalendar endTime = BLETypeConversions.createCalendar();
                 endTime.setTime(summary.getEndTime());
                 saveLastSyncTimestamp(endTime);
@@ -18,13 +18,14 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.huami.miband2.opera
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Date;
@@ -42,6 +43,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WaitAction;
@@ -100,21 +102,18 @@ public class FetchSportsSummaryOperation extends AbstractFetchOperation {
                 summary.setDevice(device);
                 summary.setUser(user);
                 session.getBaseActivitySummaryDao().insertOrReplace(summary);
+                LocalBroadcastManager.getInstance(getContext()).sendBroadcast(new Intent(ActivitySummary.ACTION_SUMMARIES_CHANGED));
             } catch (Exception ex) {
                 GB.toast(getContext(), "Error saving activity summary", Toast.LENGTH_LONG, GB.ERROR, ex);
             }
         }
 
-        super.handleActivityFetchFinish(success);
-
         if (summary != null) {
-            FetchSportsDetailsOperation nextOperation = new FetchSportsDetailsOperation(summary, getSupport(), getLastSyncTimeKey());
-            try {
-                nextOperation.perform();
-            } catch (IOException ex) {
-                GB.toast(getContext(), "Unable to fetch activity details: " + ex.getMessage(), Toast.LENGTH_LONG, GB.ERROR, ex);
-            }
+            // must be queued before finishing, so that it runs before any other pending fetch
+            getSupport().insertFetchOperation(new FetchSportsDetailsOperation(summary, getSupport(), getLastSyncTimeKey()));
         }
+
+        super.handleActivityFetchFinish(success);
     }
 
     @Override
@@ -114,14 +114,24 @@ public class InitOperation extends AbstractBTLEOperation<MiBand2Support> {
                 } else if (value[0] == MiBand2Service.AUTH_RESPONSE &&
                         value[1] == MiBand2Service.AUTH_SEND_ENCRYPTED_AUTH_NUMBER &&
                         value[2] == MiBand2Service.AUTH_SUCCESS) {
-                    TransactionBuilder builder = createTransactionBuilder("Authenticated, now initialize phase 2");
-                    builder.add(new SetDeviceStateAction(getDevice(), GBDevice.State.INITIALIZING, getContext()));
-                    getSupport().requestDeviceInfo(builder);
-                    getSupport().enableFurtherNotifications(builder, true);
-                    getSupport().phase2Initialize(builder);
-                    getSupport().phase3Initialize(builder);
-                    getSupport().setInitialized(builder);
-                    getSupport().performImmediately(builder);
+                    if (getSupport().canInitializeFast()) {
+                        // reconnect: the settings are already on the device, be usable asap
+                        TransactionBuilder builder = createTransactionBuilder("Authenticated, fast initialization");
+                        builder.add(new SetDeviceStateAction(getDevice(), GBDevice.State.INITIALIZING, getContext()));
+                        getSupport().enableFurtherNotifications(builder, true);
+                        getSupport().setInitialized(builder);
+                        getSupport().performImmediately(builder);
+                        getSupport().performDeferredInitialization();
+                    } else {
+                        TransactionBuilder builder = createTransactionBuilder("Authenticated, now initialize phase 2");
+                        builder.add(new SetDeviceStateAction(getDevice(), GBDevice.State.INITIALIZING, getContext()));
+                        getSupport().requestDeviceInfo(builder);
+                        getSupport().enableFurtherNotifications(builder, true);
+                        getSupport().phase2Initialize(builder);
+                        getSupport().phase3Initialize(builder);
+                        getSupport().setInitialized(builder);
+                        getSupport().performImmediately(builder);
+                    }
                 } else {
                     return super.onCharacteristicChanged(gatt, characteristic);
                 }
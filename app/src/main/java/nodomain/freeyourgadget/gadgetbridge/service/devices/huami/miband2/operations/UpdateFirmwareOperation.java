@@ -35,6 +35,9 @@ import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventDisplayMes
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.GattLayoutCache;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.SentSettingsCache;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.Transaction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetProgressAction;
@@ -158,6 +161,9 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
                     }
                     case MiBand2Service.COMMAND_FIRMWARE_REBOOT: {
                         LOG.info("Reboot command successfully sent.");
+                        // the new firmware may come with a different GATT layout and defaults
+                        GattLayoutCache.invalidate(getDevice());
+                        SentSettingsCache.invalidate(getContext(), getDevice());
                         GB.updateInstallNotification(getContext().getString(R.string.updatefirmwareoperation_update_complete), false, 100, getContext());
 //                    getSupport().onReboot();
                         done();
@@ -240,9 +246,7 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
             int firmwareProgress = 0;
 
             TransactionBuilder builder = performInitialized("send firmware packet");
-            if (prefs.getBoolean("mi_low_latency_fw_update", true)) {
-                getSupport().setLowLatency(builder);
-            }
+            builder.setPriority(Transaction.Priority.BULK);
             builder.write(fwCControlChar, new byte[] { MiBand2Service.COMMAND_FIRMWARE_START_DATA });
 
             for (int i = 0; i < packets; i++) {
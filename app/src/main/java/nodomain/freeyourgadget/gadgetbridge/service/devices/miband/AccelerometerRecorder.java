@@ -0,0 +1,361 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+/**
+ * Records the raw accelerometer stream of the Mi Band 1 sensor data characteristic.
+ * <p/>
+ * Each notification carries a 16 bit packet counter and a number of x/y/z samples.
+ * The samples are decoded as milli-g into a ring of primitive arrays, without any
+ * allocation on the Bluetooth thread. A writer thread drains the ring in batches,
+ * appends them to the recording file and hands them to the registered listeners.
+ * The band cannot be slowed down, so when the writer falls behind (e.g. because of a
+ * slow listener), new samples are dropped and the drop is reported to the listeners.
+ * <p/>
+ * The file starts with a header (magic, version, start time) followed by records of
+ * the unwrapped packet counter, the number of samples and the samples themselves,
+ * all little endian. The counter is the time base of the recording, gaps in it are
+ * packets that were lost over the air.
+ */
+public class AccelerometerRecorder implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AccelerometerRecorder.class);
+
+    public static final String RECORDINGS_DIR = "sensor-recordings";
+    public static final double GRAVITY = 9.81;
+
+    static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final int MAGIC = 0x47424143; // "GBAC"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 1;
+    private static final int SAMPLE_SIZE = 6;
+    private static final int MAX_SAMPLES_PER_RECORD = 0xff;
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface Listener {
+        /**
+         * Called with a batch of samples in milli-g. The arrays are reused after the call returns.
+         *
+         * @param packets the unwrapped packet counter of each sample
+         */
+        void onSamples(int[] packets, short[] x, short[] y, short[] z, int count);
+
+        /**
+         * Called when samples had to be dropped because the consumers did not keep up.
+         */
+        void onOverflow(int droppedSamples);
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final Thread writerThread;
+
+    private final Object lock = new Object();
+    private final int[] ringPackets = new int[CAPACITY];
+    private final short[] ringX = new short[CAPACITY];
+    private final short[] ringY = new short[CAPACITY];
+    private final short[] ringZ = new short[CAPACITY];
+    private int head;
+    private int size;
+    private int pendingDropped;
+    private boolean closed;
+
+    private boolean hasCounter;
+    private int lastCounter;
+    private int packet;
+    private int lostPackets;
+    private int malformedPackets;
+    private int droppedSamples;
+    private long recordedSamples;
+
+    private final int[] batchPackets = new int[BATCH_SIZE];
+    private final short[] batchX = new short[BATCH_SIZE];
+    private final short[] batchY = new short[BATCH_SIZE];
+    private final short[] batchZ = new short[BATCH_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_SIZE * (RECORD_HEADER_SIZE + SAMPLE_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean writeFailed;
+
+    /**
+     * Starts a new recording for the given device in the recordings directory.
+     */
+    public static AccelerometerRecorder start(GBDevice device) throws IOException {
+        File dir = new File(FileUtils.getExternalFilesDir(), RECORDINGS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        String name = "accelerometer_" + device.getAddress().replace(":", "") + "_" + time + ".bin";
+        return new AccelerometerRecorder(new File(dir, name));
+    }
+
+    public AccelerometerRecorder(File file) throws IOException {
+        this.file = file;
+        channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).put(VERSION).putLong(System.currentTimeMillis());
+        header.flip();
+        try {
+            writeFully(header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        writerThread = new Thread("Accelerometer recorder") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        writerThread.start();
+        LOG.info("Recording accelerometer data to " + file);
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Decodes the samples of a sensor data notification into the ring. Called on the
+     * Bluetooth thread, so it must neither block nor allocate.
+     */
+    public void addPacket(byte[] value) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (value.length < 2 || (value.length - 2) % SAMPLE_SIZE != 0) {
+                malformedPackets++;
+                return;
+            }
+            int counter = (value[0] & 0xff) | ((value[1] & 0xff) << 8);
+            if (hasCounter) {
+                int delta = (counter - lastCounter) & 0xffff;
+                if (delta > 1) {
+                    lostPackets += delta - 1;
+                }
+                packet += delta;
+            }
+            hasCounter = true;
+            lastCounter = counter;
+
+            for (int offset = 2; offset < value.length; offset += SAMPLE_SIZE) {
+                if (size == CAPACITY) {
+                    pendingDropped++;
+                    droppedSamples++;
+                    continue;
+                }
+                int index = (head + size) % CAPACITY;
+                ringPackets[index] = packet;
+                ringX[index] = decodeAxis(value, offset);
+                ringY[index] = decodeAxis(value, offset + 2);
+                ringZ[index] = decodeAxis(value, offset + 4);
+                size++;
+            }
+            lock.notify();
+        }
+    }
+
+    /**
+     * Decodes one axis value in milli-g. Each value is 16 bits long and looks like
+     * ttssvvvvvvvvvvvv, where tt is the type of data (00=x, 01=y, 10=z, 11=temperature),
+     * ss the sign and v the value.
+     * <p/>
+     * TODO: Because each accelerometer is different, all values should be calibrated with
+     * a scale factor and an offset factor
+     */
+    static short decodeAxis(byte[] value, int offset) {
+        int raw = (value[offset] & 0xff) | ((value[offset + 1] & 0xff) << 8);
+        int magnitude = raw & 0xfff;
+        return (short) ((raw & 0x3000) == 0 ? magnitude : magnitude - 4097);
+    }
+
+    public static double toMetersPerSecondSquared(short milliG) {
+        return milliG / 1000.0 * GRAVITY;
+    }
+
+    private void drain() {
+        while (true) {
+            int count;
+            int dropped;
+            synchronized (lock) {
+                while (size == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (size == 0) {
+                    return;
+                }
+                count = Math.min(size, BATCH_SIZE);
+                for (int i = 0; i < count; i++) {
+                    int index = (head + i) % CAPACITY;
+                    batchPackets[i] = ringPackets[index];
+                    batchX[i] = ringX[index];
+                    batchY[i] = ringY[index];
+                    batchZ[i] = ringZ[index];
+                }
+                head = (head + count) % CAPACITY;
+                size -= count;
+                dropped = pendingDropped;
+                pendingDropped = 0;
+            }
+
+            writeBatch(count);
+            for (Listener listener : listeners) {
+                if (dropped > 0) {
+                    listener.onOverflow(dropped);
+                }
+                listener.onSamples(batchPackets, batchX, batchY, batchZ, count);
+            }
+        }
+    }
+
+    private void writeBatch(int count) {
+        if (writeFailed) {
+            return;
+        }
+        buffer.clear();
+        int i = 0;
+        while (i < count) {
+            int packet = batchPackets[i];
+            int end = i + 1;
+            while (end < count && batchPackets[end] == packet && end - i < MAX_SAMPLES_PER_RECORD) {
+                end++;
+            }
+            buffer.putInt(packet).put((byte) (end - i));
+            for (; i < end; i++) {
+                buffer.putShort(batchX[i]).putShort(batchY[i]).putShort(batchZ[i]);
+            }
+        }
+        buffer.flip();
+        try {
+            writeFully(buffer);
+            recordedSamples += count;
+        } catch (IOException e) {
+            LOG.error("Unable to write accelerometer recording, continuing without file", e);
+            writeFailed = true;
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Stops the recording after all pending samples have been written.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notify();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while finishing accelerometer recording");
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing accelerometer recording", e);
+        }
+        LOG.info("Recorded " + recordedSamples + " accelerometer samples to " + file + ", lost packets: " + lostPackets
+                + ", malformed packets: " + malformedPackets + ", dropped samples: " + droppedSamples);
+    }
+
+    /**
+     * Reads a recording and hands its samples to the given listener, one record at a time.
+     *
+     * @return the start time of the recording in milliseconds
+     */
+    public static long read(File file, Listener listener) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.get() != VERSION) {
+                throw new IOException("Not an accelerometer recording: " + file);
+            }
+            long startTime = data.getLong();
+
+            int[] packets = new int[MAX_SAMPLES_PER_RECORD];
+            short[] x = new short[MAX_SAMPLES_PER_RECORD];
+            short[] y = new short[MAX_SAMPLES_PER_RECORD];
+            short[] z = new short[MAX_SAMPLES_PER_RECORD];
+            while (data.remaining() >= RECORD_HEADER_SIZE) {
+                int packet = data.getInt();
+                int count = data.get() & 0xff;
+                if (data.remaining() < count * SAMPLE_SIZE) {
+                    LOG.warn("Truncated accelerometer recording: " + file);
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    packets[i] = packet;
+                    x[i] = data.getShort();
+                    y[i] = data.getShort();
+                    z[i] = data.getShort();
+                }
+                listener.onSamples(packets, x, y, z, count);
+            }
+            return startTime;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.UUID;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
@@ -63,11 +64,11 @@ class DatalogSessionHealthOverlayData extends DatalogSessionPebbleHealth {
 
         int recordCount = length / itemSize;
         OverlayRecord[] overlayRecords = new OverlayRecord[recordCount];
-        byte[] tempRecord = new byte[itemSize];
 
         for (int recordIdx = 0; recordIdx < recordCount; recordIdx++) {
             beginOfRecordPosition = initialPosition + recordIdx * itemSize;
             datalogMessage.position(beginOfRecordPosition);//we may not consume all the bytes of a record
+            byte[] tempRecord = new byte[itemSize]; // kept by the record, must not be shared
             datalogMessage.get(tempRecord);
             overlayRecords[recordIdx] = new OverlayRecord(tempRecord);
         }
@@ -86,7 +87,7 @@ class DatalogSessionHealthOverlayData extends DatalogSessionPebbleHealth {
 
             List<PebbleHealthActivityOverlay> overlayList = new ArrayList<>();
             for (OverlayRecord overlayRecord : overlayRecords) {
-                overlayList.add(new PebbleHealthActivityOverlay(overlayRecord.timestampStart, overlayRecord.timestampStart + overlayRecord.durationSeconds, overlayRecord.type, deviceId, userId, overlayRecord.getRawData()));
+                overlayList.add(new PebbleHealthActivityOverlay(overlayRecord.timestampStart, overlayRecord.timestampStart + overlayRecord.durationSeconds, overlayRecord.type, deviceId, userId, null, archiveRawRecord(deviceId, overlayRecord.timestampStart, RawSampleArchive.TYPE_PEBBLE_HEALTH_OVERLAY, overlayRecord.rawData)));
             }
             overlayDao.insertOrReplaceInTx(overlayList);
         } catch (Exception ex) {
@@ -116,12 +117,5 @@ class DatalogSessionHealthOverlayData extends DatalogSessionPebbleHealth {
             this.timestampStart = record.getInt();
             this.durationSeconds = record.getInt();
         }
-
-        byte[] getRawData() {
-            if (storePebbleHealthRawRecord()) {
-                return rawData;
-            }
-            return null;
-        }
     }
 }
\ No newline at end of file
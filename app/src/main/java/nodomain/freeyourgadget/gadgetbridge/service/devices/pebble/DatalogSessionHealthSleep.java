@@ -29,6 +29,7 @@ import java.util.UUID;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
@@ -62,11 +63,11 @@ class DatalogSessionHealthSleep extends DatalogSessionPebbleHealth {
 
         int recordCount = length / itemSize;
         SleepRecord[] sleepRecords = new SleepRecord[recordCount];
-        byte[] tempRecord = new byte[itemSize];
 
         for (int recordIdx = 0; recordIdx < recordCount; recordIdx++) {
             beginOfRecordPosition = initialPosition + recordIdx * itemSize;
             datalogMessage.position(beginOfRecordPosition);//we may not consume all the bytes of a record
+            byte[] tempRecord = new byte[itemSize]; // kept by the record, must not be shared
             datalogMessage.get(tempRecord);
 
             sleepRecords[recordIdx] = new SleepRecord(tempRecord);
@@ -87,7 +88,7 @@ class DatalogSessionHealthSleep extends DatalogSessionPebbleHealth {
             List<PebbleHealthActivityOverlay> overlayList = new ArrayList<>();
             for (SleepRecord sleepRecord : sleepRecords) {
                 //TODO: check the firmware version and don't use the sleep record if overlay is available?
-                overlayList.add(new PebbleHealthActivityOverlay(sleepRecord.bedTimeStart, sleepRecord.bedTimeEnd, sleepRecord.type, deviceId, userId, sleepRecord.getRawData()));
+                overlayList.add(new PebbleHealthActivityOverlay(sleepRecord.bedTimeStart, sleepRecord.bedTimeEnd, sleepRecord.type, deviceId, userId, null, archiveRawRecord(deviceId, sleepRecord.bedTimeStart, RawSampleArchive.TYPE_PEBBLE_HEALTH_OVERLAY, sleepRecord.rawData)));
             }
             overlayDao.insertOrReplaceInTx(overlayList);
         } catch (Exception ex) {
@@ -118,13 +119,6 @@ class DatalogSessionHealthSleep extends DatalogSessionPebbleHealth {
             this.bedTimeEnd = record.getInt();
             this.deepSleepSeconds = record.getInt();
         }
-
-        byte[] getRawData() {
-            if (storePebbleHealthRawRecord()) {
-                return rawData;
-            }
-            return null;
-        }
     }
 
 }
\ No newline at end of file
@@ -28,6 +28,7 @@ import java.util.UUID;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
@@ -78,10 +79,10 @@ class DatalogSessionHealthSteps extends DatalogSessionPebbleHealth {
 
             beginOfRecordPosition = datalogMessage.position();
             StepsRecord[] stepsRecords = new StepsRecord[recordNum];
-            byte[] tempRecord = new byte[recordLength];
 
             for (int recordIdx = 0; recordIdx < recordNum; recordIdx++) {
                 datalogMessage.position(beginOfRecordPosition + recordIdx * recordLength); //we may not consume all the bytes of a record
+                byte[] tempRecord = new byte[recordLength]; // kept by the record, must not be shared
                 datalogMessage.get(tempRecord);
                 stepsRecords[recordIdx] = new StepsRecord(timestamp, recordVersion, tempRecord);
                 timestamp += 60;
@@ -105,10 +106,11 @@ class DatalogSessionHealthSteps extends DatalogSessionPebbleHealth {
                 samples[j] = new PebbleHealthActivitySample(
                         stepsRecord.timestamp,
                         deviceId, userId,
-                        stepsRecord.getRawData(),
+                        null,
                         stepsRecord.intensity,
                         stepsRecord.steps,
-                        stepsRecord.heart_rate
+                        stepsRecord.heart_rate,
+                        archiveRawRecord(deviceId, stepsRecord.timestamp, RawSampleArchive.TYPE_PEBBLE_HEALTH_SAMPLE, stepsRecord.rawData)
                 );
                 samples[j].setProvider(sampleProvider);
             }
@@ -152,13 +154,6 @@ class DatalogSessionHealthSteps extends DatalogSessionPebbleHealth {
                 this.heart_rate = record.get() & 0xff;
             }
         }
-
-        byte[] getRawData() {
-            if (storePebbleHealthRawRecord()) {
-                return rawData;
-            }
-            return null;
-        }
     }
 
 }
\ No newline at end of file
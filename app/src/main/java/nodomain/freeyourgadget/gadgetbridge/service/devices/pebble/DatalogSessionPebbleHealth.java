@@ -17,13 +17,19 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.RawSampleArchive;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
 abstract class DatalogSessionPebbleHealth extends DatalogSession {
+    private static final Logger LOG = LoggerFactory.getLogger(DatalogSessionPebbleHealth.class);
 
     private final GBDevice mDevice;
 
@@ -45,4 +51,21 @@ abstract class DatalogSessionPebbleHealth extends DatalogSession {
         Prefs prefs = GBApplication.getPrefs();
         return prefs.getBoolean("pebble_health_store_raw", true);
     }
-}
\ No newline at end of file
+
+    /**
+     * Appends the raw record to the RawSampleArchive if storing raw records is enabled.
+     *
+     * @return the archive offset to store with the sample, or null
+     */
+    Long archiveRawRecord(long deviceId, int timestamp, byte type, byte[] rawData) {
+        if (rawData == null || !storePebbleHealthRawRecord()) {
+            return null;
+        }
+        try {
+            return RawSampleArchive.getInstance().append(deviceId, timestamp, type, rawData);
+        } catch (IOException ex) {
+            LOG.warn("Unable to archive raw health record", ex);
+            return null;
+        }
+    }
+}
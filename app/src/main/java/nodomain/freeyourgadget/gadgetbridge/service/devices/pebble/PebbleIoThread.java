@@ -36,8 +36,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
@@ -64,13 +62,12 @@ import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
 import nodomain.freeyourgadget.gadgetbridge.util.WebViewSingleton;
 
 class PebbleIoThread extends GBDeviceIoThread {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleIoThread.class);
 
-    private final Prefs prefs = GBApplication.getPrefs();
 
     private final PebbleProtocol mPebbleProtocol;
     private final PebbleSupport mPebbleSupport;
@@ -146,8 +143,8 @@ class PebbleIoThread extends GBDeviceIoThread {
         mPebbleProtocol = (PebbleProtocol) gbDeviceProtocol;
         mBtAdapter = btAdapter;
         mPebbleSupport = pebbleSupport;
-        mEnablePebblekit = prefs.getBoolean("pebble_enable_pebblekit", false);
-        mPebbleProtocol.setAlwaysACKPebbleKit(prefs.getBoolean("pebble_always_ack_pebblekit", false));
+        mEnablePebblekit = PrefsSnapshot.get().isPebbleKitEnabled();
+        mPebbleProtocol.setAlwaysACKPebbleKit(PrefsSnapshot.get().isPebbleAlwaysAckPebbleKit());
         mPebbleProtocol.setEnablePebbleKit(mEnablePebblekit);
     }
 
@@ -176,15 +173,15 @@ class PebbleIoThread extends GBDeviceIoThread {
                 mOutStream = mTCPSocket.getOutputStream();
             } else {
                 mIsTCP = false;
-                if (gbDevice.getVolatileAddress() != null && prefs.getBoolean("pebble_force_le", false)) {
+                if (gbDevice.getVolatileAddress() != null && PrefsSnapshot.get().isPebbleForceLe()) {
                     deviceAddress = gbDevice.getVolatileAddress();
                 }
                 BluetoothDevice btDevice = mBtAdapter.getRemoteDevice(deviceAddress);
                 if (btDevice.getType() == BluetoothDevice.DEVICE_TYPE_LE) {
                     LOG.info("This is a Pebble 2 or Pebble-LE/Pebble Time LE, will use BLE");
-                    mInStream = new PipedInputStream();
-                    mOutStream = new PipedOutputStream();
-                    mPebbleLESupport = new PebbleLESupport(this.getContext(), btDevice, (PipedInputStream) mInStream, (PipedOutputStream) mOutStream);
+                    mPebbleLESupport = new PebbleLESupport(this.getContext(), btDevice);
+                    mInStream = mPebbleLESupport.getInputStream();
+                    mOutStream = mPebbleLESupport.getOutputStream();
                 } else {
                     ParcelUuid uuids[] = btDevice.getUuids();
                     if (uuids == null) {
@@ -222,7 +219,7 @@ class PebbleIoThread extends GBDeviceIoThread {
             return false;
         }
 
-        mPebbleProtocol.setForceProtocol(prefs.getBoolean("pebble_force_protocol", false));
+        mPebbleProtocol.setForceProtocol(PrefsSnapshot.get().isPebbleForceProtocol());
 
         mIsConnected = true;
         write(mPebbleProtocol.encodeFirmwareVersionReq());
@@ -382,7 +379,7 @@ class PebbleIoThread extends GBDeviceIoThread {
                 if (e.getMessage() != null && (e.getMessage().equals("broken pipe") || e.getMessage().contains("socket closed"))) { //FIXME: this does not feel right
                     LOG.info(e.getMessage());
                     mIsConnected = false;
-                    int reconnectAttempts = prefs.getInt("pebble_reconnect_attempts", 10);
+                    int reconnectAttempts = PrefsSnapshot.get().getPebbleReconnectAttempts();
                     if (!mQuit && GBApplication.getGBPrefs().getAutoReconnect() && reconnectAttempts > 0) {
                         gbDevice.setState(GBDevice.State.WAITING_FOR_RECONNECT);
                         gbDevice.sendDeviceUpdateIntent(getContext());
@@ -466,6 +463,9 @@ class PebbleIoThread extends GBDeviceIoThread {
         } catch (IOException e) {
             LOG.error("Error writing.", e.getMessage());
         }
+        if (mPebbleLESupport != null) {
+            return; // PPoGATT paces itself, writes block while its buffer is full
+        }
         try {
             Thread.sleep(100);
         } catch (InterruptedException ignored) {
@@ -488,11 +488,11 @@ class PebbleIoThread extends GBDeviceIoThread {
     private boolean evaluateGBDeviceEventPebble(GBDeviceEvent deviceEvent) {
 
         if (deviceEvent instanceof GBDeviceEventVersionInfo) {
-            if (prefs.getBoolean("datetime_synconconnect", true)) {
+            if (PrefsSnapshot.get().isSyncTimeOnConnect()) {
                 LOG.info("syncing time");
                 write(mPebbleProtocol.encodeSetTime());
             }
-            write(mPebbleProtocol.encodeEnableAppLogs(prefs.getBoolean("pebble_enable_applogs", false)));
+            write(mPebbleProtocol.encodeEnableAppLogs(PrefsSnapshot.get().isPebbleAppLogsEnabled()));
             write(mPebbleProtocol.encodeReportDataLogSessions());
             gbDevice.setState(GBDevice.State.INITIALIZED);
             return false;
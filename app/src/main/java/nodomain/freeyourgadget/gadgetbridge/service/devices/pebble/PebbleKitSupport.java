@@ -16,10 +16,15 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
 
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Base64;
 
 import org.json.JSONArray;
@@ -27,11 +32,31 @@ import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventAppMessage;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.pebble.GBDeviceEventDataLogging;
 
+/**
+ * Bridges the Pebble to companion apps using the PebbleKit intents.
+ * <p/>
+ * All broadcasts are sent from a dedicated thread, so neither the Pebble connection nor
+ * the main thread wait for the Binder calls, and the ACK for an app message is pipelined
+ * behind the write of that message to the Pebble.
+ * <p/>
+ * Companion apps that receive a lot of data logging items can register their package for
+ * an app UUID with {@link #ACTION_REGISTER_BULK}. For registered UUIDs, all intents are
+ * sent explicitly to that package, which skips the broadcast resolution, and data logging
+ * items are delivered in bulk intents of up to {@link #MAX_BULK_ITEMS} items instead of
+ * one intent per item. The app may ACK once per bulk intent, with the last data id.
+ * Everything else stays PebbleKit compatible.
+ * <p/>
+ * The registering package is taken from the creator of the PendingIntent the app passes
+ * along, so an app can only register itself, and a UUID that is registered to another
+ * installed package can only be unregistered by that package. Registrations of packages
+ * that are uninstalled are removed.
+ */
 class PebbleKitSupport {
     //private static final String PEBBLEKIT_ACTION_PEBBLE_CONNECTED = "com.getpebble.action.PEBBLE_CONNECTED";
     //private static final String PEBBLEKIT_ACTION_PEBBLE_DISCONNECTED = "com.getpebble.action.PEBBLE_DISCONNECTED";
@@ -50,11 +75,31 @@ class PebbleKitSupport {
     //private static final String PEBBLEKIT_ACTION_DL_REQUEST_DATA = "com.getpebble.action.dl.REQUEST_DATA";
     private static final String PEBBLEKIT_ACTION_DL_FINISH_SESSION = "com.getpebble.action.dl.FINISH_SESSION_NEW";
 
+    /**
+     * Registers the calling package for bulk delivery, extras: "uuid" (UUID) and "app"
+     * (a PendingIntent created by the calling package, only used to identify it).
+     */
+    static final String ACTION_REGISTER_BULK = "nodomain.freeyourgadget.gadgetbridge.pebblekit.action.REGISTER_BULK";
+    /**
+     * Reverts to PebbleKit compatible delivery, extras: "uuid" (UUID) and "app" (PendingIntent).
+     */
+    static final String ACTION_UNREGISTER_BULK = "nodomain.freeyourgadget.gadgetbridge.pebblekit.action.UNREGISTER_BULK";
+    /**
+     * Like RECEIVE_DATA_NEW, but with "pbl_data_id" being the id of the first item and
+     * "pbl_data_objects" being an array (String[] of base64 for byte arrays, long[] or int[]).
+     */
+    static final String ACTION_DL_RECEIVE_DATA_BULK = "nodomain.freeyourgadget.gadgetbridge.pebblekit.action.dl.RECEIVE_DATA_BULK";
+    static final int MAX_BULK_ITEMS = 256;
+    private static final String PREFS_BULK_RECEIVERS = "pebblekit_bulk_receivers";
+
     private static final Logger LOG = LoggerFactory.getLogger(PebbleKitSupport.class);
 
     private final PebbleProtocol mPebbleProtocol;
     private final Context mContext;
     private final PebbleIoThread mPebbleIoThread;
+    private final SharedPreferences mBulkReceivers;
+    private final HandlerThread mSenderThread;
+    private final Handler mSender;
 
     private int dataLogTransactionId = 1;
 
@@ -66,7 +111,7 @@ class PebbleKitSupport {
                 LOG.warn("got empty action from PebbleKit Intent - ignoring");
                 return;
             }
-            LOG.info("Got action: " + action);
+            LOG.debug("Got action: " + action);
             UUID uuid;
             switch (action) {
                 case PEBBLEKIT_ACTION_APP_START:
@@ -80,13 +125,15 @@ class PebbleKitSupport {
                     int transaction_id = intent.getIntExtra("transaction_id", -1);
                     uuid = (UUID) intent.getSerializableExtra("uuid");
                     String jsonString = intent.getStringExtra("msg_data");
-                    LOG.info("json string: " + jsonString);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("json string: " + jsonString);
+                    }
 
                     try {
                         JSONArray jsonArray = new JSONArray(jsonString);
                         mPebbleIoThread.write(mPebbleProtocol.encodeApplicationMessageFromJSON(uuid, jsonArray));
                         //  if (transaction_id >= 0 && transaction_id <= 255) {
-                        sendAppMessageAck(transaction_id);
+                        sendAppMessageAck(uuid, transaction_id);
                         //  }
                     } catch (JSONException e) {
                         LOG.error("failed decoding JSON", e);
@@ -103,7 +150,23 @@ class PebbleKitSupport {
                     }
                     break;
                 case PEBBLEKIT_ACTION_DL_ACK_DATA:
-                    LOG.info("GOT DL DATA ACK");
+                    LOG.debug("GOT DL DATA ACK");
+                    break;
+                case ACTION_REGISTER_BULK:
+                    uuid = (UUID) intent.getSerializableExtra("uuid");
+                    String packageName = getCallingPackage(intent);
+                    if (uuid != null && packageName != null && isAllowedToChange(uuid, packageName)) {
+                        LOG.info("Delivering PebbleKit intents for " + uuid + " in bulk to " + packageName);
+                        mBulkReceivers.edit().putString(uuid.toString(), packageName).apply();
+                    }
+                    break;
+                case ACTION_UNREGISTER_BULK:
+                    uuid = (UUID) intent.getSerializableExtra("uuid");
+                    packageName = getCallingPackage(intent);
+                    if (uuid != null && packageName != null && isAllowedToChange(uuid, packageName)) {
+                        LOG.info("Delivering PebbleKit intents for " + uuid + " as broadcasts again");
+                        mBulkReceivers.edit().remove(uuid.toString()).apply();
+                    }
                     break;
                 default:
                     LOG.warn("Unhandled PebbleKit action: " + action);
@@ -112,10 +175,24 @@ class PebbleKitSupport {
         }
     };
 
+    private final BroadcastReceiver mPackageRemovedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                removeBulkReceivers(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
     PebbleKitSupport(Context context, PebbleIoThread pebbleIoThread, PebbleProtocol pebbleProtocol) {
         mContext = context;
         mPebbleIoThread = pebbleIoThread;
         mPebbleProtocol = pebbleProtocol;
+        mBulkReceivers = context.getSharedPreferences(PREFS_BULK_RECEIVERS, Context.MODE_PRIVATE);
+
+        mSenderThread = new HandlerThread("PebbleKit sender");
+        mSenderThread.start();
+        mSender = new Handler(mSenderThread.getLooper());
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(PEBBLEKIT_ACTION_APP_ACK);
@@ -124,46 +201,55 @@ class PebbleKitSupport {
         intentFilter.addAction(PEBBLEKIT_ACTION_APP_START);
         intentFilter.addAction(PEBBLEKIT_ACTION_APP_STOP);
         intentFilter.addAction(PEBBLEKIT_ACTION_DL_ACK_DATA);
+        intentFilter.addAction(ACTION_REGISTER_BULK);
+        intentFilter.addAction(ACTION_UNREGISTER_BULK);
         mContext.registerReceiver(mPebbleKitReceiver, intentFilter);
+
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageRemovedReceiver, packageFilter);
+        removeUninstalledBulkReceivers();
     }
 
     void sendAppMessageIntent(GBDeviceEventAppMessage appMessage) {
-        Intent intent = new Intent();
-        intent.setAction(PEBBLEKIT_ACTION_APP_RECEIVE);
+        Intent intent = createIntent(PEBBLEKIT_ACTION_APP_RECEIVE, appMessage.appUUID);
         intent.putExtra("uuid", appMessage.appUUID);
         intent.putExtra("msg_data", appMessage.message);
         intent.putExtra("transaction_id", appMessage.id);
-        LOG.info("broadcasting to uuid " + appMessage.appUUID + " transaction id: " + appMessage.id + " JSON: " + appMessage.message);
-        mContext.sendBroadcast(intent);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("broadcasting to uuid " + appMessage.appUUID + " transaction id: " + appMessage.id + " JSON: " + appMessage.message);
+        }
+        broadcast(intent);
     }
 
-    private void sendAppMessageAck(int transactionId) {
-        Intent intent = new Intent();
-        intent.setAction(PEBBLEKIT_ACTION_APP_RECEIVE_ACK);
+    private void sendAppMessageAck(UUID uuid, int transactionId) {
+        Intent intent = createIntent(PEBBLEKIT_ACTION_APP_RECEIVE_ACK, uuid);
         intent.putExtra("transaction_id", transactionId);
-        LOG.info("broadcasting ACK (transaction id " + transactionId + ")");
-        mContext.sendBroadcast(intent);
+        LOG.debug("broadcasting ACK (transaction id " + transactionId + ")");
+        broadcast(intent);
     }
 
     void close() {
         try {
             mContext.unregisterReceiver(mPebbleKitReceiver);
+            mContext.unregisterReceiver(mPackageRemovedReceiver);
         } catch (IllegalArgumentException ignore) {
         }
+        // intents that were already queued are still sent
+        mSenderThread.quitSafely();
     }
 
     void sendDataLoggingIntent(GBDeviceEventDataLogging dataLogging) {
-        Intent intent = new Intent();
-        intent.putExtra("data_log_timestamp", dataLogging.timestamp);
-        intent.putExtra("uuid", dataLogging.appUUID);
-        intent.putExtra("data_log_uuid", dataLogging.appUUID); // Is that really the same?
-        intent.putExtra("data_log_tag", dataLogging.tag);
-
+        String bulkPackage = getBulkPackage(dataLogging.appUUID);
         switch (dataLogging.command) {
             case GBDeviceEventDataLogging.COMMAND_RECEIVE_DATA:
-                intent.setAction(PEBBLEKIT_ACTION_DL_RECEIVE_DATA_NEW);
-                intent.putExtra("pbl_data_type", dataLogging.pebbleDataType);
+                if (bulkPackage != null) {
+                    sendDataLoggingBulk(dataLogging, bulkPackage);
+                    break;
+                }
                 for (Object dataObject : dataLogging.data) {
+                    Intent intent = createDataLoggingIntent(PEBBLEKIT_ACTION_DL_RECEIVE_DATA_NEW, dataLogging, null);
+                    intent.putExtra("pbl_data_type", dataLogging.pebbleDataType);
                     intent.putExtra("pbl_data_id", dataLogTransactionId++);
                     switch (dataLogging.pebbleDataType) {
                         case PebbleProtocol.TYPE_BYTEARRAY:
@@ -176,17 +262,152 @@ class PebbleKitSupport {
                             intent.putExtra("pbl_data_object", (Integer) dataObject);
                             break;
                     }
-                    LOG.info("broadcasting datalogging to uuid " + dataLogging.appUUID + " tag: " + dataLogging.tag + "transaction id: " + dataLogTransactionId + " type: " + dataLogging.pebbleDataType);
-                    mContext.sendBroadcast(intent);
+                    broadcast(intent);
                 }
+                LOG.debug("broadcasting " + dataLogging.data.length + " datalogging items to uuid " + dataLogging.appUUID + " tag: " + dataLogging.tag + " type: " + dataLogging.pebbleDataType);
                 break;
             case GBDeviceEventDataLogging.COMMAND_FINISH_SESSION:
-                intent.setAction(PEBBLEKIT_ACTION_DL_FINISH_SESSION);
                 LOG.info("broadcasting datalogging finish session to uuid " + dataLogging.appUUID + " tag: " + dataLogging.tag);
-                mContext.sendBroadcast(intent);
+                broadcast(createDataLoggingIntent(PEBBLEKIT_ACTION_DL_FINISH_SESSION, dataLogging, bulkPackage));
                 break;
             default:
                 LOG.warn("invalid datalog command");
         }
     }
+
+    private void sendDataLoggingBulk(GBDeviceEventDataLogging dataLogging, String bulkPackage) {
+        Object[] data = dataLogging.data;
+        for (int start = 0; start < data.length; start += MAX_BULK_ITEMS) {
+            int count = Math.min(MAX_BULK_ITEMS, data.length - start);
+            Intent intent = createDataLoggingIntent(ACTION_DL_RECEIVE_DATA_BULK, dataLogging, bulkPackage);
+            intent.putExtra("pbl_data_type", dataLogging.pebbleDataType);
+            intent.putExtra("pbl_data_id", dataLogTransactionId);
+            dataLogTransactionId += count;
+            switch (dataLogging.pebbleDataType) {
+                case PebbleProtocol.TYPE_BYTEARRAY:
+                    String[] strings = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        strings[i] = Base64.encodeToString((byte[]) data[start + i], Base64.NO_WRAP);
+                    }
+                    intent.putExtra("pbl_data_objects", strings);
+                    break;
+                case PebbleProtocol.TYPE_UINT:
+                    long[] longs = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        longs[i] = (Long) data[start + i];
+                    }
+                    intent.putExtra("pbl_data_objects", longs);
+                    break;
+                case PebbleProtocol.TYPE_INT:
+                    int[] ints = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        ints[i] = (Integer) data[start + i];
+                    }
+                    intent.putExtra("pbl_data_objects", ints);
+                    break;
+            }
+            broadcast(intent);
+        }
+        LOG.debug("sent " + data.length + " datalogging items in bulk to " + bulkPackage + " for uuid " + dataLogging.appUUID);
+    }
+
+    private Intent createDataLoggingIntent(String action, GBDeviceEventDataLogging dataLogging, String bulkPackage) {
+        Intent intent = new Intent(action);
+        if (bulkPackage != null) {
+            intent.setPackage(bulkPackage);
+        }
+        intent.putExtra("data_log_timestamp", dataLogging.timestamp);
+        intent.putExtra("uuid", dataLogging.appUUID);
+        intent.putExtra("data_log_uuid", dataLogging.appUUID); // Is that really the same?
+        intent.putExtra("data_log_tag", dataLogging.tag);
+        return intent;
+    }
+
+    /**
+     * Creates an intent that is sent explicitly to the package registered for the given app, if any.
+     */
+    private Intent createIntent(String action, UUID uuid) {
+        Intent intent = new Intent(action);
+        String bulkPackage = getBulkPackage(uuid);
+        if (bulkPackage != null) {
+            intent.setPackage(bulkPackage);
+        }
+        return intent;
+    }
+
+    private String getBulkPackage(UUID uuid) {
+        return uuid != null ? mBulkReceivers.getString(uuid.toString(), null) : null;
+    }
+
+    /**
+     * Returns the package that created the PendingIntent in the "app" extra. Unlike a package
+     * name passed as a string, this cannot be forged by the sender.
+     */
+    private String getCallingPackage(Intent intent) {
+        PendingIntent app = intent.getParcelableExtra("app");
+        if (app == null) {
+            LOG.warn("Ignoring " + intent.getAction() + " without a PendingIntent to identify the caller");
+            return null;
+        }
+        return app.getCreatorPackage();
+    }
+
+    private boolean isAllowedToChange(UUID uuid, String packageName) {
+        String registered = getBulkPackage(uuid);
+        if (registered == null || registered.equals(packageName) || !isInstalled(registered)) {
+            return true;
+        }
+        LOG.warn("Ignoring " + packageName + " for " + uuid + ", which is registered to " + registered);
+        return false;
+    }
+
+    private boolean isInstalled(String packageName) {
+        try {
+            mContext.getPackageManager().getPackageInfo(packageName, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void removeUninstalledBulkReceivers() {
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mBulkReceivers.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String) || !isInstalled((String) entry.getValue())) {
+                LOG.info("Removing bulk registration of uninstalled package " + entry.getValue() + " for " + entry.getKey());
+                if (editor == null) {
+                    editor = mBulkReceivers.edit();
+                }
+                editor.remove(entry.getKey());
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private void removeBulkReceivers(String packageName) {
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mBulkReceivers.getAll().entrySet()) {
+            if (packageName.equals(entry.getValue())) {
+                LOG.info("Removing bulk registration of uninstalled package " + packageName + " for " + entry.getKey());
+                if (editor == null) {
+                    editor = mBulkReceivers.edit();
+                }
+                editor.remove(entry.getKey());
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private void broadcast(final Intent intent) {
+        mSender.post(new Runnable() {
+            @Override
+            public void run() {
+                mContext.sendBroadcast(intent);
+            }
+        });
+    }
 }
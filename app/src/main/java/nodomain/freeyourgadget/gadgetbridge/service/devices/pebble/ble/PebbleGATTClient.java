@@ -28,7 +28,6 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
@@ -63,8 +62,6 @@ class PebbleGATTClient extends BluetoothGattCallback {
     private boolean removeBond = false;
     private BluetoothGatt mBluetoothGatt;
 
-    private CountDownLatch mWaitWriteCompleteLatch;
-
     PebbleGATTClient(PebbleLESupport pebbleLESupport, Context context, BluetoothDevice btDevice) {
         mContext = context;
         mPebbleLESupport = pebbleLESupport;
@@ -126,11 +123,7 @@ class PebbleGATTClient extends BluetoothGattCallback {
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 LOG.error("something went wrong when writing to PPoGATT characteristics");
             }
-            if (mWaitWriteCompleteLatch != null) {
-                mWaitWriteCompleteLatch.countDown();
-            } else {
-                LOG.warn("mWaitWriteCompleteLatch is null!");
-            }
+            mPebbleLESupport.onPacketSent();
         } else if (characteristic.getUuid().equals(PAIRING_TRIGGER_CHARACTERISTIC) || characteristic.getUuid().equals(CONNECTIVITY_CHARACTERISTIC)) {
             //mBtDevice.createBond(); // did not work when last tried
 
@@ -275,21 +268,22 @@ class PebbleGATTClient extends BluetoothGattCallback {
         writeCharacteristics = gatt.getService(PPOGATT_SERVICE_UUID).getCharacteristic(PPOGATT_CHARACTERISTIC_WRITE);
     }
 
-    synchronized void sendDataToPebble(byte[] data) {
-        mWaitWriteCompleteLatch = new CountDownLatch(1);
-        writeCharacteristics.setValue(data.clone());
+    /**
+     * Hands the given packet to the Bluetooth stack, {@link PebbleLESupport#onPacketSent()}
+     * is called once it was written.
+     */
+    boolean sendDataToPebble(byte[] data) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || writeCharacteristics == null) {
+            return false;
+        }
+        writeCharacteristics.setValue(data);
 
-        boolean success = mBluetoothGatt.writeCharacteristic(writeCharacteristics);
+        boolean success = gatt.writeCharacteristic(writeCharacteristics);
         if (!success) {
             LOG.error("could not send data to pebble (error writing characteristic)");
-        } else {
-            try {
-                mWaitWriteCompleteLatch.await();
-            } catch (InterruptedException e) {
-                LOG.warn("interrupted while waiting for write complete latch");
-            }
         }
-        mWaitWriteCompleteLatch = null;
+        return success;
     }
 
     public void close() {
@@ -30,7 +30,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 
 class PebbleGATTServer extends BluetoothGattServerCallback {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleGATTServer.class);
@@ -44,7 +43,6 @@ class PebbleGATTServer extends BluetoothGattServerCallback {
     private Context mContext;
     private BluetoothGattServer mBluetoothGattServer;
     private BluetoothGattCharacteristic writeCharacteristics;
-    private CountDownLatch mWaitWriteCompleteLatch;
 
     PebbleGATTServer(PebbleLESupport pebbleLESupport, Context context, BluetoothDevice btDevice) {
         mContext = context;
@@ -74,21 +72,18 @@ class PebbleGATTServer extends BluetoothGattServerCallback {
         return true;
     }
 
-    synchronized void sendDataToPebble(byte[] data) {
-        mWaitWriteCompleteLatch = new CountDownLatch(1);
-        writeCharacteristics.setValue(data.clone());
+    /**
+     * Hands the given packet to the Bluetooth stack, {@link PebbleLESupport#onPacketSent()}
+     * is called once it was sent.
+     */
+    boolean sendDataToPebble(byte[] data) {
+        writeCharacteristics.setValue(data);
 
         boolean success = mBluetoothGattServer.notifyCharacteristicChanged(mBtDevice, writeCharacteristics, false);
         if (!success) {
             LOG.error("could not send data to pebble (error writing characteristic)");
-        } else {
-            try {
-                mWaitWriteCompleteLatch.await();
-            } catch (InterruptedException e) {
-                LOG.warn("interrupted while waiting for write complete latch");
-            }
-        }
-        mWaitWriteCompleteLatch = null;
+        }
+        return success;
     }
 
     public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
@@ -177,11 +172,7 @@ class PebbleGATTServer extends BluetoothGattServerCallback {
         if (status != BluetoothGatt.GATT_SUCCESS) {
             LOG.error("something went wrong when writing to PPoGATT characteristics");
         }
-        if (mWaitWriteCompleteLatch != null) {
-            mWaitWriteCompleteLatch.countDown();
-        } else {
-            LOG.warn("mWaitWriteCompleteLatch is null!");
-        }
+        mPebbleLESupport.onPacketSent();
 //        LOG.info("onNotificationSent() status = " + status + " to device " + bluetoothDevice.getAddress());
     }
 
@@ -20,24 +20,51 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
+
+/**
+ * PPoGATT transport: carries the Pebble Protocol byte stream in GATT packets with a one
+ * byte header (serial << 3 | command).
+ * <p/>
+ * Outgoing frames are cut into packets straight from a ring buffer, without a thread
+ * that parses them again. Up to the negotiated window of packets may be unacknowledged,
+ * the next packet is sent as soon as the previous one was handed to the Bluetooth stack
+ * (onNotificationSent or onCharacteristicWrite). Acknowledgements are cumulative in both
+ * directions; incoming packets are acknowledged once half of our window is used or
+ * after {@link #ACK_DELAY_MILLIS}, whatever comes first.
+ * <p/>
+ * All packets are sent from the write handler thread, one at a time.
+ */
 public class PebbleLESupport {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleLESupport.class);
+
+    private static final int COMMAND_DATA = 0;
+    private static final int COMMAND_ACK = 1;
+    private static final int COMMAND_RESET_REQUEST = 2;
+    private static final int COMMAND_RESET_COMPLETE = 3;
+    private static final int SERIAL_MODULO = 32;
+    // offered to the Pebble and requested from it in the reset complete packet
+    private static final int WINDOW_SIZE = 0x19;
+    private static final long ACK_DELAY_MILLIS = 50;
+    // the Pebble did not acknowledge anything for this long, carry on like before windowing
+    private static final long ACK_TIMEOUT_MILLIS = 2000;
+    private static final long RETRY_DELAY_MILLIS = 50;
+    private static final int BUFFER_SIZE = 16384;
+    private static final int MAX_MTU = 512;
+
     private final BluetoothDevice mBtDevice;
-    private PipeReader mPipeReader;
     private PebbleGATTServer mPebbleGATTServer;
     private PebbleGATTClient mPebbleGATTClient;
-    private PipedInputStream mPipedInputStream;
-    private PipedOutputStream mPipedOutputStream;
     private int mMTU = 20;
     private int mMTULimit = Integer.MAX_VALUE;
     public boolean clientOnly = false; // currently experimental, and only possible for Pebble 2
@@ -45,26 +72,65 @@ public class PebbleLESupport {
     private HandlerThread mWriteHandlerThread;
     private Handler mWriteHandler;
 
-    public PebbleLESupport(Context context, final BluetoothDevice btDevice, PipedInputStream pipedInputStream, PipedOutputStream pipedOutputStream) throws IOException {
-        mBtDevice = btDevice;
-        mPipedInputStream = new PipedInputStream();
-        mPipedOutputStream = new PipedOutputStream();
-        try {
-            pipedOutputStream.connect(mPipedInputStream);
-            pipedInputStream.connect(mPipedOutputStream);
-        } catch (IOException e) {
-            LOG.warn("could not connect input stream");
+    private final RingBuffer mRxBuffer = new RingBuffer(BUFFER_SIZE);
+    private final RingBuffer mTxBuffer = new RingBuffer(BUFFER_SIZE);
+    private final OutputStream mOutputStream = new TxOutputStream();
+
+    // guards the PPoGATT state below, which is accessed from the binder and write handler threads
+    private final Object mLock = new Object();
+    private boolean mClosed;
+    private boolean mTxEnabled;
+    private int mTxWindow = WINDOW_SIZE;
+    private int mNextTxSerial;
+    private int mOldestUnackedSerial;
+    private int mUnacked;
+    private long mLastAckTime;
+    // bytes of the current Pebble Protocol frame that have not been packed yet
+    private int mFrameRemaining;
+    // bytes of a frame that was cut off by a reset and are still to be dropped
+    private int mTxDiscard;
+    private int mRxAckThreshold = 1;
+    private int mLastRxSerial;
+    private int mRxUnacked;
+    private boolean mAckDue;
+    private boolean mAckScheduled;
+    private byte[] mResetComplete;
+    private byte[] mInFlight;
+    private byte[] mRetryPacket;
+    // packets are handed to the stack one at a time, so one buffer per packet length is enough
+    private final byte[][] mPacketPool = new byte[MAX_MTU][];
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private final Runnable mSendAck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mAckScheduled = false;
+                mAckDue = true;
+            }
+            pump();
         }
+    };
+
+    public PebbleLESupport(Context context, final BluetoothDevice btDevice) throws IOException {
+        mBtDevice = btDevice;
 
         mWriteHandlerThread = new HandlerThread("write handler thread");
         mWriteHandlerThread.start();
         mWriteHandler = new Handler(mWriteHandlerThread.getLooper());
 
-        mMTULimit = GBApplication.getPrefs().getInt("pebble_mtu_limit", 512);
+        PrefsSnapshot prefs = PrefsSnapshot.get();
+        mMTULimit = prefs.getPebbleMtuLimit();
         mMTULimit = Math.max(mMTULimit, 20);
-        mMTULimit = Math.min(mMTULimit, 512);
+        mMTULimit = Math.min(mMTULimit, MAX_MTU);
 
-        clientOnly = GBApplication.getPrefs().getBoolean("pebble_gatt_clientonly", false);
+        clientOnly = prefs.isPebbleGattClientOnly();
 
         if (!clientOnly) {
             mPebbleGATTServer = new PebbleGATTServer(this, context, mBtDevice);
@@ -85,16 +151,38 @@ public class PebbleLESupport {
         throw new IOException("connection failed");
     }
 
-    private void writeToPipedOutputStream(byte[] value, int offset, int count) {
-        try {
-            mPipedOutputStream.write(value, offset, count);
-        } catch (IOException e) {
-            LOG.warn("error writing to output stream", e);
-        }
+    /**
+     * For tests: no GATT connection, packets are sent with {@link #sendDataToPebble(byte[])}
+     * on the given looper.
+     */
+    PebbleLESupport(Looper looper, int mtu) {
+        mBtDevice = null;
+        mWriteHandler = new Handler(looper);
+        mMTU = mtu;
+        mMTULimit = MAX_MTU;
+        mIsConnected = true;
+    }
+
+    /**
+     * The Pebble Protocol stream received from the Pebble.
+     */
+    public InputStream getInputStream() {
+        return mRxBuffer.getInputStream();
+    }
+
+    /**
+     * Takes Pebble Protocol frames to be sent to the Pebble.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
     }
 
     synchronized public void close() {
-        destroyPipedInputReader();
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        mRxBuffer.close();
+        mTxBuffer.close();
         if (mPebbleGATTServer != null) {
             mPebbleGATTServer.close();
             mPebbleGATTServer = null;
@@ -103,42 +191,15 @@ public class PebbleLESupport {
             mPebbleGATTClient.close();
             mPebbleGATTClient = null;
         }
-        try {
-            mPipedInputStream.close();
-        } catch (IOException ignore) {
-        }
-        try {
-            mPipedOutputStream.close();
-        } catch (IOException ignore) {
-        }
         if (mWriteHandlerThread != null) {
             mWriteHandlerThread.quit();
         }
     }
 
-    private synchronized void createPipedInputReader() {
-        if (mPipeReader == null) {
-            mPipeReader = new PipeReader();
-        }
-        if (!mPipeReader.isAlive()) {
-            mPipeReader.start();
-        }
-    }
-
-    synchronized private void destroyPipedInputReader() {
-        if (mPipeReader != null) {
-            mPipeReader.interrupt();
-            try {
-                mPipeReader.join();
-            } catch (InterruptedException e) {
-                LOG.error(e.getMessage());
-            }
-            mPipeReader = null;
-        }
-    }
-
     void setMTU(int mtu) {
-        mMTU = Math.min(mtu, mMTULimit);
+        synchronized (mLock) {
+            mMTU = Math.min(mtu, mMTULimit);
+        }
     }
 
     public void handlePPoGATTPacket(byte[] value) {
@@ -148,105 +209,225 @@ public class PebbleLESupport {
                 this.notify();
             }
         }
-        //LOG.info("write request: offset = " + offset + " value = " + GB.hexdump(value, 0, -1));
         int header = value[0] & 0xff;
         int command = header & 7;
         int serial = header >> 3;
-        if (command == 0x01) {
-            LOG.info("got ACK for serial = " + serial);
+        switch (command) {
+            case COMMAND_DATA:
+                try {
+                    mRxBuffer.write(value, 1, value.length - 1);
+                } catch (IOException e) {
+                    LOG.warn("error buffering received data", e);
+                    return;
+                }
+                boolean ackNow;
+                synchronized (mLock) {
+                    mLastRxSerial = serial;
+                    mRxUnacked++;
+                    ackNow = mRxUnacked >= mRxAckThreshold;
+                    if (ackNow) {
+                        mAckDue = true;
+                    } else if (!mAckScheduled) {
+                        mAckScheduled = true;
+                        mWriteHandler.postDelayed(mSendAck, ACK_DELAY_MILLIS);
+                    }
+                }
+                if (!ackNow) {
+                    return;
+                }
+                break;
+            case COMMAND_ACK:
+                synchronized (mLock) {
+                    handleAck(serial);
+                }
+                break;
+            case COMMAND_RESET_REQUEST:
+                LOG.info("got PPoGATT reset request");
+                synchronized (mLock) {
+                    mNextTxSerial = 0;
+                    mOldestUnackedSerial = 0;
+                    mUnacked = 0;
+                    // the Pebble drops a partially received frame, so do not send the rest of it
+                    mTxDiscard += mFrameRemaining;
+                    mFrameRemaining = 0;
+                    mRetryPacket = null;
+                    mLastRxSerial = 0;
+                    mRxUnacked = 0;
+                    mAckDue = false;
+                    if (mAckScheduled) {
+                        mAckScheduled = false;
+                        mWriteHandler.removeCallbacks(mSendAck);
+                    }
+                    if (value.length > 1) {
+                        mResetComplete = new byte[]{COMMAND_RESET_COMPLETE, WINDOW_SIZE, WINDOW_SIZE};
+                        mTxWindow = WINDOW_SIZE;
+                        mRxAckThreshold = WINDOW_SIZE / 2;
+                        mTxEnabled = true;
+                    } else {
+                        mResetComplete = new byte[]{COMMAND_RESET_COMPLETE};
+                        mRxAckThreshold = 1;
+                    }
+                }
+                break;
+            default:
+                LOG.info("unknown PPoGATT command " + command);
+                return;
         }
-        if (command == 0x02) { // some request?
-            LOG.info("got command 0x02");
-            if (value.length > 1) {
-                sendDataToPebble(new byte[]{0x03, 0x19, 0x19}); // no we don't know what that means
-                createPipedInputReader(); // FIXME: maybe not here
-            } else {
-                sendDataToPebble(new byte[]{0x03}); // no we don't know what that means
-            }
-        } else if (command == 0) { // normal package
-            LOG.info("got PPoGATT package serial = " + serial + " sending ACK");
-
-            sendAckToPebble(serial);
+        mWriteHandler.post(mPump);
+    }
 
-            writeToPipedOutputStream(value, 1, value.length - 1);
+    /**
+     * Called when the previous packet was handed to the Bluetooth stack.
+     */
+    void onPacketSent() {
+        synchronized (mLock) {
+            mInFlight = null;
         }
+        mWriteHandler.post(mPump);
     }
 
-    private void sendAckToPebble(int serial) {
-        sendDataToPebble(new byte[]{(byte) (((serial << 3) | 1) & 0xff)});
+    private void handleAck(int serial) {
+        int acked = (serial - mOldestUnackedSerial + SERIAL_MODULO) % SERIAL_MODULO + 1;
+        if (acked > mUnacked) {
+            LOG.debug("ignoring unexpected ACK for serial " + serial);
+            return;
+        }
+        mUnacked -= acked;
+        mOldestUnackedSerial = (serial + 1) % SERIAL_MODULO;
+        mLastAckTime = SystemClock.elapsedRealtime();
     }
 
-    private synchronized void sendDataToPebble(final byte[] bytes) {
-        if (mPebbleGATTServer != null) {
-            mWriteHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mPebbleGATTServer.sendDataToPebble(bytes);
-                }
-            });
-        } else {
-            // For now only in experimental client only code
-            mWriteHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mPebbleGATTClient.sendDataToPebble(bytes);
-                }
-            });
+    private void pump() {
+        byte[] packet;
+        synchronized (mLock) {
+            if (mClosed || mInFlight != null) {
+                return;
+            }
+            packet = nextPacket();
+            if (packet == null) {
+                return;
+            }
+            mInFlight = packet;
+        }
+        if (!sendDataToPebble(packet)) {
+            synchronized (mLock) {
+                mInFlight = null;
+                mRetryPacket = packet;
+            }
+            mWriteHandler.postDelayed(mPump, RETRY_DELAY_MILLIS);
         }
     }
 
-    private class PipeReader extends Thread {
-        int mmSequence = 0;
+    /**
+     * Returns the next packet to send, with control packets first, or null if there is
+     * nothing to send or the window is full. Must be called with mLock held.
+     */
+    private byte[] nextPacket() {
+        if (mRetryPacket != null) {
+            byte[] packet = mRetryPacket;
+            mRetryPacket = null;
+            return packet;
+        }
+        if (mResetComplete != null) {
+            byte[] packet = mResetComplete;
+            mResetComplete = null;
+            return packet;
+        }
+        if (mAckDue) {
+            mAckDue = false;
+            if (mRxUnacked > 0) {
+                mRxUnacked = 0;
+                byte[] packet = obtainPacket(1);
+                packet[0] = header(mLastRxSerial, COMMAND_ACK);
+                return packet;
+            }
+        }
+        if (!mTxEnabled) {
+            return null;
+        }
 
-        @Override
-        public void run() {
-            byte[] buf = new byte[8192];
-            int bytesRead;
-            while (true) {
-                try {
-                    // this code is very similar to iothread, that is bad
-                    // because we are the ones who prepared the buffer, there should be no
-                    // need to do crazy stuff just to find out the PP boundaries again.
-                    bytesRead = mPipedInputStream.read(buf, 0, 4);
-                    while (bytesRead < 4) {
-                        bytesRead += mPipedInputStream.read(buf, bytesRead, 4 - bytesRead);
-                    }
+        if (mUnacked >= mTxWindow) {
+            long waited = SystemClock.elapsedRealtime() - mLastAckTime;
+            if (waited < ACK_TIMEOUT_MILLIS) {
+                mWriteHandler.removeCallbacks(mPump);
+                mWriteHandler.postDelayed(mPump, ACK_TIMEOUT_MILLIS - waited);
+                return null;
+            }
+            LOG.warn("no PPoGATT ACK for " + waited + "ms, continuing with serial " + mNextTxSerial);
+            mUnacked = 0;
+            mOldestUnackedSerial = mNextTxSerial;
+        }
 
-                    int length = (buf[0] & 0xff) << 8 | (buf[1] & 0xff);
-                    bytesRead = mPipedInputStream.read(buf, 4, length);
+        int available = mTxBuffer.available();
+        if (mTxDiscard > 0) {
+            int skipped = mTxBuffer.skip(mTxDiscard);
+            mTxDiscard -= skipped;
+            available -= skipped;
+            if (mTxDiscard > 0) {
+                return null;
+            }
+        }
+        if (mFrameRemaining == 0) {
+            if (available < 2) {
+                return null;
+            }
+            // the length field does not include the 4 byte header
+            mFrameRemaining = ((mTxBuffer.peek(0) << 8) | mTxBuffer.peek(1)) + 4;
+        }
+        int length = Math.min(Math.min(mFrameRemaining, available), mMTU - 4);
+        if (length <= 0) {
+            return null;
+        }
+        byte[] packet = obtainPacket(length + 1);
+        packet[0] = header(mNextTxSerial, COMMAND_DATA);
+        mTxBuffer.poll(packet, 1, length);
+        mFrameRemaining -= length;
 
-                    while (bytesRead < length) {
-                        bytesRead += mPipedInputStream.read(buf, bytesRead + 4, length - bytesRead);
-                    }
+        if (mUnacked == 0) {
+            mLastAckTime = SystemClock.elapsedRealtime();
+        }
+        mUnacked++;
+        mNextTxSerial = (mNextTxSerial + 1) % SERIAL_MODULO;
+        return packet;
+    }
 
+    private byte[] obtainPacket(int length) {
+        byte[] packet = mPacketPool[length];
+        if (packet == null) {
+            packet = new byte[length];
+            mPacketPool[length] = packet;
+        }
+        return packet;
+    }
 
-                    int payloadToSend = bytesRead + 4;
-                    int srcPos = 0;
-                    while (payloadToSend > 0) {
-                        int chunkSize = (payloadToSend < (mMTU - 4)) ? payloadToSend : mMTU - 4;
-                        byte[] outBuf = new byte[chunkSize + 1];
-                        outBuf[0] = (byte) ((mmSequence++ << 3) & 0xff);
-                        System.arraycopy(buf, srcPos, outBuf, 1, chunkSize);
-                        sendDataToPebble(outBuf);
-                        srcPos += chunkSize;
-                        payloadToSend -= chunkSize;
-                    }
-                } catch (IOException e) {
-                    LOG.info(e.getMessage());
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-            LOG.info("Pipereader thread shut down");
+    private static byte header(int serial, int command) {
+        return (byte) (((serial << 3) | command) & 0xff);
+    }
+
+    boolean sendDataToPebble(byte[] bytes) {
+        PebbleGATTServer server = mPebbleGATTServer;
+        if (server != null) {
+            return server.sendDataToPebble(bytes);
+        }
+        // For now only in experimental client only code
+        PebbleGATTClient client = mPebbleGATTClient;
+        return client != null && client.sendDataToPebble(bytes);
+    }
+
+    private class TxOutputStream extends OutputStream {
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
         }
 
         @Override
-        public void interrupt() {
-            super.interrupt();
-            try {
-                LOG.info("closing piped inputstream");
-                mPipedInputStream.close();
-            } catch (IOException ignore) {
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                // the packets are cut while the rest of a large frame is still being written
+                int length = mTxBuffer.writeSome(buffer, offset, count);
+                mWriteHandler.post(mPump);
+                offset += length;
+                count -= length;
             }
         }
     }
@@ -259,4 +440,3 @@ public class PebbleLESupport {
         return true;
     }
 }
-
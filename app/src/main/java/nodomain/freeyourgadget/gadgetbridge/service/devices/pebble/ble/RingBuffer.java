@@ -0,0 +1,188 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.ble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A fixed size byte buffer between one writing and one reading thread. Unlike a
+ * PipedInputStream/PipedOutputStream pair, a blocked reader or writer is woken up
+ * as soon as data or space is available instead of polling once per second, and
+ * the reader may look at the data before taking it.
+ */
+class RingBuffer {
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            return RingBuffer.this.read(buffer, offset, count);
+        }
+
+        @Override
+        public int available() {
+            return RingBuffer.this.available();
+        }
+
+        @Override
+        public void close() {
+            RingBuffer.this.close();
+        }
+    };
+
+    RingBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * Appends the given bytes, blocking while the buffer is full.
+     *
+     * @throws IOException if the buffer is or gets closed
+     */
+    synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+        while (count > 0) {
+            int length = writeSome(buffer, offset, count);
+            offset += length;
+            count -= length;
+        }
+    }
+
+    /**
+     * Appends as many of the given bytes as fit, blocking until at least one byte fits.
+     *
+     * @return the number of bytes written
+     * @throws IOException if the buffer is or gets closed
+     */
+    synchronized int writeSome(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        while (mSize == mBuffer.length && !mClosed) {
+            waitForChange();
+        }
+        if (mClosed) {
+            throw new IOException("ring buffer closed");
+        }
+        int written = 0;
+        while (written < count && mSize < mBuffer.length) {
+            int tail = (mHead + mSize) % mBuffer.length;
+            int length = Math.min(count - written, Math.min(mBuffer.length - mSize, mBuffer.length - tail));
+            System.arraycopy(buffer, offset + written, mBuffer, tail, length);
+            mSize += length;
+            written += length;
+        }
+        notifyAll();
+        return written;
+    }
+
+    /**
+     * Takes up to count bytes, blocking until at least one byte is available.
+     *
+     * @return the number of bytes read, or -1 if the buffer is closed and empty
+     */
+    synchronized int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        while (mSize == 0) {
+            if (mClosed) {
+                return -1;
+            }
+            waitForChange();
+        }
+        return poll(buffer, offset, count);
+    }
+
+    /**
+     * Takes up to count bytes without blocking.
+     *
+     * @return the number of bytes taken
+     */
+    synchronized int poll(byte[] buffer, int offset, int count) {
+        int length = Math.min(count, mSize);
+        int first = Math.min(length, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, buffer, offset, first);
+        System.arraycopy(mBuffer, 0, buffer, offset + first, length - first);
+        mHead = (mHead + length) % mBuffer.length;
+        mSize -= length;
+        if (length > 0) {
+            notifyAll();
+        }
+        return length;
+    }
+
+    /**
+     * Drops up to count bytes without blocking.
+     *
+     * @return the number of bytes dropped
+     */
+    synchronized int skip(int count) {
+        int length = Math.min(count, mSize);
+        mHead = (mHead + length) % mBuffer.length;
+        mSize -= length;
+        if (length > 0) {
+            notifyAll();
+        }
+        return length;
+    }
+
+    /**
+     * Returns the unsigned byte at the given position without taking it.
+     */
+    synchronized int peek(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException(index + " >= " + mSize);
+        }
+        return mBuffer[(mHead + index) % mBuffer.length] & 0xff;
+    }
+
+    synchronized int available() {
+        return mSize;
+    }
+
+    /**
+     * Wakes up blocked threads. The reader can still take the remaining bytes.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -39,6 +39,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Map;
@@ -154,6 +156,14 @@ public class GBWebClient extends WebViewClient {
         }
 
         CurrentPosition currentPosition = new CurrentPosition();
+        // the reply only changes with the weather, the units, the day (sunrise/sunset) and the position
+        String cacheKey = type + '|' + units + '|' + new GregorianCalendar().get(Calendar.DAY_OF_YEAR)
+                + '|' + Math.round(currentPosition.getLatitude() * 100) + '|' + Math.round(currentPosition.getLongitude() * 100);
+        byte[] cachedReply = Weather.getInstance().getCachedReply(cacheKey);
+        if (cachedReply != null) {
+            LOG.debug("WEBVIEW - serving cached openweather response");
+            return createJSONResponse(cachedReply);
+        }
 
         try {
             JSONObject resp = Weather.getInstance().createReconstructedOWMWeatherReply();
@@ -186,18 +196,10 @@ public class GBWebClient extends WebViewClient {
                 return null;
             }
 
+            byte[] reply = resp.toString().getBytes(Charset.forName("UTF-8"));
             LOG.info("WEBVIEW - mimic openweather response" + resp.toString());
-            Map<String, String> headers = new HashMap<>();
-            headers.put("Access-Control-Allow-Origin", "*");
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                return new WebResourceResponse("application/json", "utf-8", 200, "OK",
-                        headers,
-                        new ByteArrayInputStream(resp.toString().getBytes())
-                );
-            } else {
-                return new WebResourceResponse("application/json", "utf-8", new ByteArrayInputStream(resp.toString().getBytes()));
-            }
+            Weather.getInstance().putCachedReply(cacheKey, reply);
+            return createJSONResponse(reply);
         } catch (JSONException e) {
             LOG.warn("Error building the JSON weather message.", e);
         }
@@ -206,6 +208,20 @@ public class GBWebClient extends WebViewClient {
 
     }
 
+    private static WebResourceResponse createJSONResponse(byte[] reply) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Access-Control-Allow-Origin", "*");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new WebResourceResponse("application/json", "utf-8", 200, "OK",
+                    headers,
+                    new ByteArrayInputStream(reply)
+            );
+        } else {
+            return new WebResourceResponse("application/json", "utf-8", new ByteArrayInputStream(reply));
+        }
+    }
+
 
     private static JSONObject sysObject(CurrentPosition currentPosition) throws JSONException {
         GregorianCalendar[] sunrise = SPA.calculateSunriseTransitSet(new GregorianCalendar(), currentPosition.getLatitude(), currentPosition.getLongitude(), DeltaT.estimate(new GregorianCalendar()));
@@ -19,21 +19,37 @@ package nodomain.freeyourgadget.gadgetbridge.service.receivers;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
-
+import nodomain.freeyourgadget.gadgetbridge.service.SyncScheduler;
 
+/**
+ * Forwards screen unlock and charger events, and the alarm of a postponed fetch,
+ * to the SyncScheduler, which decides whether a fetch is actually due.
+ */
 public class GBAutoFetchReceiver extends BroadcastReceiver {
     private static final Logger LOG = LoggerFactory.getLogger(GBAutoFetchReceiver.class);
 
+    private final SyncScheduler mSyncScheduler;
+
+    public GBAutoFetchReceiver(SyncScheduler syncScheduler) {
+        mSyncScheduler = syncScheduler;
+    }
+
+    public static IntentFilter getIntentFilter() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(SyncScheduler.ACTION_POSTPONED_SYNC);
+        return filter;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        //LOG.info("User is present!");
-        GBApplication.deviceService().onFetchRecordedData(RecordedDataTypes.TYPE_ACTIVITY);
+        mSyncScheduler.onTrigger(intent.getAction());
     }
 }
 
@@ -0,0 +1,249 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+
+/**
+ * Resolves phone numbers to contact names for call and SMS notifications, with an LRU
+ * cache keyed by the normalized number (negative results are cached, too, failed lookups
+ * are not, e.g. before the contacts permission was granted). Lookups run
+ * on a background thread, so that callers that cannot afford a content provider round
+ * trip can give up waiting and use the number instead; the name is cached when the
+ * lookup completes anyway.
+ * <p/>
+ * The cache is dropped whenever the contacts change. If {@link #PREF_PRELOAD} is set,
+ * the numbers of starred and frequently contacted contacts are loaded in bulk, so that
+ * they are already cached when they call.
+ */
+public class ContactResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(ContactResolver.class);
+
+    public static final String PREF_PRELOAD = "pref_contacts_preload";
+
+    private static final int CACHE_SIZE = 256;
+    private static final int PRELOAD_LIMIT = CACHE_SIZE / 2;
+    // cached for numbers that do not belong to a contact
+    private static final String NO_CONTACT = "";
+
+    private static ContactResolver instance;
+
+    private final ContentResolver mContentResolver;
+    private final LruCache<String, String> mCache = new LruCache<>(CACHE_SIZE);
+    private final ConcurrentHashMap<String, Future<String>> mPending = new ConcurrentHashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // separate from the lookups, so that a bulk preload never delays a ringing call
+    private final ExecutorService mPreloadExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mPreloadNeeded;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            LOG.debug("Contacts changed, dropping cached names");
+            mCache.evictAll();
+            mPreloadNeeded = true;
+        }
+    };
+
+    public static synchronized ContactResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactResolver(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    ContactResolver(Context context) {
+        mContentResolver = context.getContentResolver();
+        try {
+            mContentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, mContactsObserver);
+        } catch (SecurityException e) {
+            LOG.info("Unable to observe the contacts: " + e.getMessage());
+        }
+        mPreloadNeeded = true;
+        preloadIfNeeded();
+    }
+
+    /**
+     * Returns the name of the contact with the given number, or the number if there is
+     * no such contact. Waits for the lookup if the number is not cached.
+     */
+    public String getDisplayName(@Nullable String number) {
+        return getDisplayName(number, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the name of the contact with the given number, or the number if there is
+     * no such contact or the lookup takes longer than the given time.
+     */
+    public String getDisplayName(@Nullable String number, long timeoutMillis) {
+        if (number == null || number.isEmpty()) {
+            return number;
+        }
+        preloadIfNeeded();
+        final String key = normalize(number);
+        String name = mCache.get(key);
+        if (name != null) {
+            return toDisplayName(name, number);
+        }
+
+        Future<String> lookup = mPending.get(key);
+        if (lookup == null) {
+            final String lookupNumber = number;
+            lookup = mExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        String result = lookup(lookupNumber);
+                        if (result == null) {
+                            return NO_CONTACT;
+                        }
+                        mCache.put(key, result);
+                        return result;
+                    } finally {
+                        mPending.remove(key);
+                    }
+                }
+            });
+            Future<String> other = mPending.putIfAbsent(key, lookup);
+            if (other != null) {
+                lookup = other;
+            }
+        }
+        try {
+            return toDisplayName(lookup.get(timeoutMillis, TimeUnit.MILLISECONDS), number);
+        } catch (TimeoutException e) {
+            LOG.info("Contact lookup is taking longer than " + timeoutMillis + "ms, using the number");
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("Contact lookup failed", e);
+        }
+        return number;
+    }
+
+    private static String toDisplayName(String name, String number) {
+        return NO_CONTACT.equals(name) ? number : name;
+    }
+
+    /**
+     * Returns the name of the contact with the given number, {@link #NO_CONTACT} if there
+     * is no such contact, or null if the contacts cannot be read.
+     */
+    @Nullable
+    private String lookup(String number) {
+        Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        try (Cursor contactLookup = mContentResolver.query(uri, new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME}, null, null, null)) {
+            if (contactLookup != null && contactLookup.moveToFirst()) {
+                String name = contactLookup.getString(0);
+                if (name != null && !name.isEmpty()) {
+                    return name;
+                }
+            }
+        } catch (SecurityException e) {
+            LOG.info("Unable to look up contact: " + e.getMessage());
+            return null;
+        }
+        return NO_CONTACT;
+    }
+
+    private void preloadIfNeeded() {
+        if (!mPreloadNeeded) {
+            return;
+        }
+        mPreloadNeeded = false;
+        Prefs prefs = GBApplication.getPrefs();
+        if (prefs == null || !prefs.getBoolean(PREF_PRELOAD, true)) {
+            return;
+        }
+        mPreloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preload();
+            }
+        });
+    }
+
+    /**
+     * Caches the numbers of starred and frequently contacted contacts.
+     */
+    private void preload() {
+        String[] projection = new String[]{
+                ContactsContract.CommonDataKinds.Phone.NUMBER,
+                ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER,
+                ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME
+        };
+        String selection = ContactsContract.CommonDataKinds.Phone.STARRED + "=1 OR "
+                + ContactsContract.CommonDataKinds.Phone.TIMES_CONTACTED + ">0";
+        String sortOrder = ContactsContract.CommonDataKinds.Phone.STARRED + " DESC, "
+                + ContactsContract.CommonDataKinds.Phone.TIMES_CONTACTED + " DESC";
+        int count = 0;
+        try (Cursor cursor = mContentResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projection, selection, null, sortOrder)) {
+            while (cursor != null && cursor.moveToNext() && count < PRELOAD_LIMIT) {
+                String name = cursor.getString(2);
+                if (name == null || name.isEmpty()) {
+                    continue;
+                }
+                // incoming numbers come both in the stored and the international format
+                for (int column = 0; column < 2; column++) {
+                    String number = cursor.getString(column);
+                    if (number != null && !number.isEmpty()) {
+                        mCache.put(normalize(number), name);
+                    }
+                }
+                count++;
+            }
+        } catch (SecurityException e) {
+            LOG.info("Unable to preload contacts: " + e.getMessage());
+            return;
+        }
+        LOG.info("Preloaded " + count + " contacts");
+    }
+
+    /**
+     * Removes everything but digits and a leading plus sign.
+     */
+    static String normalize(String number) {
+        StringBuilder normalized = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if ((c >= '0' && c <= '9') || (c == '+' && normalized.length() == 0)) {
+                normalized.append(c);
+            }
+        }
+        // not a phone number, e.g. a sender name of a messenger
+        return normalized.length() > 0 ? normalized.toString() : number;
+    }
+}
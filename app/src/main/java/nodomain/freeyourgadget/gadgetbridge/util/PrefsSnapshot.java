@@ -0,0 +1,312 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
+
+/**
+ * Immutable, already parsed copy of the preferences that are read in hot paths, e.g. for
+ * every notification or intent. Prefs tries the native type of a value and falls back to
+ * parsing a string, which is too costly to repeat over and over again.
+ * <p/>
+ * The snapshot is created once and replaced as a whole whenever a preference changes, so
+ * readers always see a consistent set of values without any locking.
+ */
+public final class PrefsSnapshot {
+    // DO NOT use slf4j logger here, this would break its configuration via GBApplication
+
+    // all preferences read by the constructor, changes to others do not replace the snapshot
+    private static final Set<String> KEYS = new HashSet<>(Arrays.asList(
+            ActivityUser.PREF_USER_NAME,
+            ActivityUser.PREF_USER_GENDER,
+            ActivityUser.PREF_USER_YEAR_OF_BIRTH,
+            ActivityUser.PREF_USER_HEIGHT_CM,
+            ActivityUser.PREF_USER_WEIGHT_KG,
+            ActivityUser.PREF_USER_SLEEP_DURATION,
+            ActivityUser.PREF_USER_STEPS_GOAL,
+            "transliteration",
+            LanguageUtils.PREF_TRANSLITERATION_LANGUAGES,
+            "autoremove_notifications",
+            "notification_mode_sms",
+            "notifications_generic_whenscreenon",
+            "pebble_enable_pebblekit",
+            "pebble_always_ack_pebblekit",
+            "pebble_force_le",
+            "pebble_force_protocol",
+            "pebble_reconnect_attempts",
+            "pebble_enable_applogs",
+            "pebble_mtu_limit",
+            "pebble_gatt_clientonly",
+            "datetime_synconconnect",
+            "heartrate_measurement_interval",
+            MiBandConst.PREF_MI2_ENABLE_TEXT_NOTIFICATIONS,
+            MiBandConst.PREF_MIBAND_BUTTON_ACTION_ENABLE,
+            MiBandConst.PREF_MIBAND_BUTTON_ACTION_VIBRATE,
+            MiBandConst.PREF_MIBAND_BUTTON_PRESS_MAX_DELAY,
+            MiBandConst.PREF_MIBAND_BUTTON_ACTION_DELAY,
+            MiBandConst.PREF_MIBAND_BUTTON_PRESS_COUNT,
+            MiBandConst.PREF_MIBAND_BUTTON_PRESS_BROADCAST));
+
+    private static volatile PrefsSnapshot current;
+    private static SharedPreferences registeredPreferences;
+
+    // strongly referenced, SharedPreferences only keeps weak references to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // key is null when all preferences were cleared
+            if (key == null || KEYS.contains(key)) {
+                current = new PrefsSnapshot(new Prefs(sharedPreferences));
+            }
+        }
+    };
+
+    private final String userName;
+    private final int userGender;
+    private final int userYearOfBirth;
+    private final int userHeightCm;
+    private final int userWeightKg;
+    private final int userSleepDuration;
+    private final int userStepsGoal;
+
+    private final boolean transliteration;
+    @Nullable
+    private final Set<String> transliterationLanguages;
+
+    private final boolean autoremoveNotifications;
+    private final String notificationModeSms;
+    private final boolean notificationsWhenScreenOn;
+
+    private final boolean pebbleKitEnabled;
+    private final boolean pebbleAlwaysAckPebbleKit;
+    private final boolean pebbleForceLe;
+    private final boolean pebbleForceProtocol;
+    private final int pebbleReconnectAttempts;
+    private final boolean pebbleAppLogsEnabled;
+    private final int pebbleMtuLimit;
+    private final boolean pebbleGattClientOnly;
+    private final boolean syncTimeOnConnect;
+
+    private final int heartRateMeasurementInterval;
+    private final boolean mi2TextNotifications;
+    private final boolean buttonActionEnabled;
+    private final boolean buttonActionVibrate;
+    private final int buttonPressMaxDelay;
+    private final int buttonActionDelay;
+    private final int buttonPressCount;
+    @Nullable
+    private final String buttonPressBroadcast;
+
+    // keep KEYS in sync when adding a preference here
+    private PrefsSnapshot(Prefs prefs) {
+        userName = prefs.getString(ActivityUser.PREF_USER_NAME, ActivityUser.defaultUserName);
+        userGender = prefs.getInt(ActivityUser.PREF_USER_GENDER, ActivityUser.defaultUserGender);
+        userYearOfBirth = prefs.getInt(ActivityUser.PREF_USER_YEAR_OF_BIRTH, ActivityUser.defaultUserYearOfBirth);
+        userHeightCm = prefs.getInt(ActivityUser.PREF_USER_HEIGHT_CM, ActivityUser.defaultUserHeightCm);
+        userWeightKg = prefs.getInt(ActivityUser.PREF_USER_WEIGHT_KG, ActivityUser.defaultUserWeightKg);
+        userSleepDuration = prefs.getInt(ActivityUser.PREF_USER_SLEEP_DURATION, ActivityUser.defaultUserSleepDuration);
+        userStepsGoal = prefs.getInt(ActivityUser.PREF_USER_STEPS_GOAL, ActivityUser.defaultUserStepsGoal);
+
+        transliteration = prefs.getBoolean("transliteration", false);
+        Set<String> languages = prefs.getPreferences().getStringSet(LanguageUtils.PREF_TRANSLITERATION_LANGUAGES, null);
+        transliterationLanguages = languages != null ? Collections.unmodifiableSet(new HashSet<>(languages)) : null;
+
+        autoremoveNotifications = prefs.getBoolean("autoremove_notifications", false);
+        notificationModeSms = prefs.getString("notification_mode_sms", "when_screen_off");
+        notificationsWhenScreenOn = prefs.getBoolean("notifications_generic_whenscreenon", false);
+
+        pebbleKitEnabled = prefs.getBoolean("pebble_enable_pebblekit", false);
+        pebbleAlwaysAckPebbleKit = prefs.getBoolean("pebble_always_ack_pebblekit", false);
+        pebbleForceLe = prefs.getBoolean("pebble_force_le", false);
+        pebbleForceProtocol = prefs.getBoolean("pebble_force_protocol", false);
+        pebbleReconnectAttempts = prefs.getInt("pebble_reconnect_attempts", 10);
+        pebbleAppLogsEnabled = prefs.getBoolean("pebble_enable_applogs", false);
+        pebbleMtuLimit = prefs.getInt("pebble_mtu_limit", 512);
+        pebbleGattClientOnly = prefs.getBoolean("pebble_gatt_clientonly", false);
+        syncTimeOnConnect = prefs.getBoolean("datetime_synconconnect", true);
+
+        heartRateMeasurementInterval = prefs.getInt("heartrate_measurement_interval", 0);
+        mi2TextNotifications = prefs.getBoolean(MiBandConst.PREF_MI2_ENABLE_TEXT_NOTIFICATIONS, true);
+        buttonActionEnabled = prefs.getBoolean(MiBandConst.PREF_MIBAND_BUTTON_ACTION_ENABLE, false);
+        buttonActionVibrate = prefs.getBoolean(MiBandConst.PREF_MIBAND_BUTTON_ACTION_VIBRATE, false);
+        buttonPressMaxDelay = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_PRESS_MAX_DELAY, 2000);
+        buttonActionDelay = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_ACTION_DELAY, 0);
+        buttonPressCount = prefs.getInt(MiBandConst.PREF_MIBAND_BUTTON_PRESS_COUNT, 0);
+        buttonPressBroadcast = prefs.getString(MiBandConst.PREF_MIBAND_BUTTON_PRESS_BROADCAST, null);
+    }
+
+    /**
+     * Creates the first snapshot of the given preferences and keeps it up to date.
+     */
+    public static synchronized void install(Prefs prefs) {
+        if (registeredPreferences != null) {
+            registeredPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+        registeredPreferences = prefs.getPreferences();
+        registeredPreferences.registerOnSharedPreferenceChangeListener(listener);
+        current = new PrefsSnapshot(prefs);
+    }
+
+    /**
+     * Returns the current snapshot. Do not hold on to it, it is replaced when a preference changes.
+     */
+    public static PrefsSnapshot get() {
+        PrefsSnapshot snapshot = current;
+        if (snapshot == null) {
+            install(GBApplication.getPrefs());
+            snapshot = current;
+        }
+        return snapshot;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public int getUserGender() {
+        return userGender;
+    }
+
+    public int getUserYearOfBirth() {
+        return userYearOfBirth;
+    }
+
+    public int getUserHeightCm() {
+        return userHeightCm;
+    }
+
+    public int getUserWeightKg() {
+        return userWeightKg;
+    }
+
+    public int getUserSleepDuration() {
+        return userSleepDuration;
+    }
+
+    public int getUserStepsGoal() {
+        return userStepsGoal;
+    }
+
+    public boolean isTransliterationEnabled() {
+        return transliteration;
+    }
+
+    /**
+     * Returns the selected transliteration languages, or null if none were selected yet.
+     */
+    @Nullable
+    public Set<String> getTransliterationLanguages() {
+        return transliterationLanguages;
+    }
+
+    public boolean isAutoremoveNotifications() {
+        return autoremoveNotifications;
+    }
+
+    public String getNotificationModeSms() {
+        return notificationModeSms;
+    }
+
+    public boolean isNotificationsWhenScreenOn() {
+        return notificationsWhenScreenOn;
+    }
+
+    public boolean isPebbleKitEnabled() {
+        return pebbleKitEnabled;
+    }
+
+    public boolean isPebbleAlwaysAckPebbleKit() {
+        return pebbleAlwaysAckPebbleKit;
+    }
+
+    public boolean isPebbleForceLe() {
+        return pebbleForceLe;
+    }
+
+    public boolean isPebbleForceProtocol() {
+        return pebbleForceProtocol;
+    }
+
+    public int getPebbleReconnectAttempts() {
+        return pebbleReconnectAttempts;
+    }
+
+    public boolean isPebbleAppLogsEnabled() {
+        return pebbleAppLogsEnabled;
+    }
+
+    public int getPebbleMtuLimit() {
+        return pebbleMtuLimit;
+    }
+
+    public boolean isPebbleGattClientOnly() {
+        return pebbleGattClientOnly;
+    }
+
+    public boolean isSyncTimeOnConnect() {
+        return syncTimeOnConnect;
+    }
+
+    /**
+     * Returns the heart rate measurement interval in seconds, 0 if disabled.
+     */
+    public int getHeartRateMeasurementInterval() {
+        return heartRateMeasurementInterval;
+    }
+
+    public boolean isMi2TextNotifications() {
+        return mi2TextNotifications;
+    }
+
+    public boolean isButtonActionEnabled() {
+        return buttonActionEnabled;
+    }
+
+    public boolean isButtonActionVibrate() {
+        return buttonActionVibrate;
+    }
+
+    public int getButtonPressMaxDelay() {
+        return buttonPressMaxDelay;
+    }
+
+    public int getButtonActionDelay() {
+        return buttonActionDelay;
+    }
+
+    public int getButtonPressCount() {
+        return buttonPressCount;
+    }
+
+    /**
+     * Returns the configured broadcast action for button presses, or null for the default.
+     */
+    @Nullable
+    public String getButtonPressBroadcast() {
+        return buttonPressBroadcast;
+    }
+}
@@ -0,0 +1,205 @@
+/*  Copyright (C) 2018 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import org.apache.commons.lang3.text.WordUtils;
+
+import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces characters that devices cannot display with their english equivalents, using
+ * the rule sets of the selected languages, and removes diacritics from everything else.
+ * <p/>
+ * The rules are compiled once into a table indexed by the character, with pages of 256
+ * characters that are only allocated when used. An upper case character gets the
+ * capitalized replacement of its lower case form. Characters without a rule are stripped
+ * of their diacritics when they are first seen, and the result is stored in the table.
+ * Text that is plain ASCII is returned as it is; everything else is converted in a single
+ * pass into a buffer that is reused per thread.
+ */
+public final class Transliterator {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_BUFFER_SIZE = 16384;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}");
+
+    private static final Map<String, String[]> RULES = createRules();
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final String[][] pages = new String[(Character.MAX_VALUE + 1) >> PAGE_BITS][];
+
+    private Transliterator() {
+    }
+
+    /**
+     * Returns the names of all rule sets.
+     */
+    public static Collection<String> getLanguages() {
+        return Collections.unmodifiableSet(RULES.keySet());
+    }
+
+    /**
+     * Compiles the rule sets of the given languages, unknown languages are ignored.
+     */
+    public static Transliterator compile(Collection<String> languages) {
+        Map<Character, String> rules = new HashMap<>();
+        for (String language : languages) {
+            String[] pairs = RULES.get(language);
+            if (pairs == null) {
+                continue;
+            }
+            for (int i = 0; i < pairs.length; i += 2) {
+                rules.put(pairs[i].charAt(0), pairs[i + 1]);
+            }
+        }
+
+        Transliterator transliterator = new Transliterator();
+        if (rules.isEmpty()) {
+            return transliterator;
+        }
+        for (int c = 0x80; c <= Character.MAX_VALUE; c++) {
+            char lowerChar = Character.toLowerCase((char) c);
+            String replacement = rules.get(lowerChar);
+            if (replacement != null) {
+                if (lowerChar != c) {
+                    replacement = WordUtils.capitalize(replacement);
+                }
+                transliterator.put((char) c, flatten(replacement));
+            }
+        }
+        return transliterator;
+    }
+
+    /**
+     * Returns the transliterated text, or the given text itself if there is nothing to replace.
+     */
+    public String transliterate(String text) {
+        if (text == null) {
+            return null;
+        }
+        int length = text.length();
+        int asciiLength = 0;
+        while (asciiLength < length && text.charAt(asciiLength) < 0x80) {
+            asciiLength++;
+        }
+        if (asciiLength == length) {
+            return text;
+        }
+
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        buffer.append(text, 0, asciiLength);
+        for (int i = asciiLength; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80 || Character.isSurrogate(c)) {
+                buffer.append(c);
+            } else {
+                buffer.append(lookup(c));
+            }
+        }
+        String result = buffer.toString();
+        if (buffer.capacity() > MAX_BUFFER_SIZE) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    private String lookup(char c) {
+        String[] page = pages[c >> PAGE_BITS];
+        if (page == null) {
+            // may race with another thread, that only costs flattening a character twice
+            page = new String[PAGE_SIZE];
+            pages[c >> PAGE_BITS] = page;
+        }
+        String replacement = page[c & (PAGE_SIZE - 1)];
+        if (replacement == null) {
+            replacement = flatten(String.valueOf(c));
+            page[c & (PAGE_SIZE - 1)] = replacement;
+        }
+        return replacement;
+    }
+
+    private void put(char c, String replacement) {
+        String[] page = pages[c >> PAGE_BITS];
+        if (page == null) {
+            page = new String[PAGE_SIZE];
+            pages[c >> PAGE_BITS] = page;
+        }
+        page[c & (PAGE_SIZE - 1)] = replacement;
+    }
+
+    /**
+     * Removes the diacritics.
+     */
+    private static String flatten(String string) {
+        string = Normalizer.normalize(string, Normalizer.Form.NFD);
+        return MARKS.matcher(string).replaceAll("");
+    }
+
+    private static Map<String, String[]> createRules() {
+        Map<String, String[]> rules = new LinkedHashMap<>();
+        addRules(rules, "extended_ascii",
+                "æ", "ae", "œ", "oe", "ª", "a", "º", "o", "«", "\"", "»", "\"");
+        addRules(rules, "german",
+                "ä", "ae", "ö", "oe", "ü", "ue", "Ä", "Ae", "Ö", "Oe", "Ü", "Üe", "ß", "ss", "ẞ", "SS");
+        addRules(rules, "russian",
+                "а", "a", "б", "b", "в", "v", "г", "g", "д", "d", "е", "e", "ё", "jo", "ж", "zh", "з", "z", "и", "i",
+                "й", "jj", "к", "k", "л", "l", "м", "m", "н", "n", "о", "o", "п", "p", "р", "r", "с", "s", "т", "t",
+                "у", "u", "ф", "f", "х", "kh", "ц", "c", "ч", "ch", "ш", "sh", "щ", "shh", "ъ", "\"", "ы", "y",
+                "ь", "'", "э", "eh", "ю", "ju", "я", "ja");
+        addRules(rules, "hebrew",
+                "א", "a", "ב", "b", "ג", "g", "ד", "d", "ה", "h", "ו", "u", "ז", "z", "ח", "kh", "ט", "t", "י", "y",
+                "כ", "c", "ל", "l", "מ", "m", "נ", "n", "ס", "s", "ע", "'", "פ", "p", "צ", "ts", "ק", "k", "ר", "r",
+                "ש", "sh", "ת", "th", "ף", "f", "ץ", "ts", "ך", "ch", "ם", "m", "ן", "n");
+        addRules(rules, "greek",
+                "α", "a", "ά", "a", "β", "v", "γ", "g", "δ", "d", "ε", "e", "έ", "e", "ζ", "z", "η", "i", "ή", "i",
+                "θ", "th", "ι", "i", "ί", "i", "ϊ", "i", "ΐ", "i", "κ", "k", "λ", "l", "μ", "m", "ν", "n", "ξ", "ks",
+                "ο", "o", "ό", "o", "π", "p", "ρ", "r", "σ", "s", "ς", "s", "τ", "t", "υ", "y", "ύ", "y", "ϋ", "y",
+                "ΰ", "y", "φ", "f", "χ", "ch", "ψ", "ps", "ω", "o", "ώ", "o", "Α", "A", "Ά", "A", "Β", "B", "Γ", "G",
+                "Δ", "D", "Ε", "E", "Έ", "E", "Ζ", "Z", "Η", "I", "Ή", "I", "Θ", "TH", "Ι", "I", "Ί", "I", "Ϊ", "I",
+                "Κ", "K", "Λ", "L", "Μ", "M", "Ν", "N", "Ξ", "KS", "Ο", "O", "Ό", "O", "Π", "P", "Ρ", "R", "Σ", "S",
+                "Τ", "T", "Υ", "Y", "Ύ", "Y", "Ϋ", "Y", "Φ", "F", "Χ", "CH", "Ψ", "PS", "Ω", "O", "Ώ", "O");
+        addRules(rules, "ukrainian",
+                "ґ", "gh", "є", "je", "і", "i", "ї", "ji", "Ґ", "GH", "Є", "JE", "І", "I", "Ї", "JI");
+        addRules(rules, "arabic",
+                "ا", "a", "ب", "b", "ت", "t", "ث", "th", "ج", "j", "ح", "7", "خ", "5", "د", "d", "ذ", "th", "ر", "r",
+                "ز", "z", "س", "s", "ش", "sh", "ص", "9", "ض", "9'", "ط", "6", "ظ", "6'", "ع", "3", "غ", "3'", "ف", "f",
+                "ق", "q", "ك", "k", "ل", "l", "م", "m", "ن", "n", "ه", "h", "و", "w", "ي", "y", "ى", "a", "ﺓ", "",
+                "آ", "2", "ئ", "2", "إ", "2", "ؤ", "2", "أ", "2", "ء", "2");
+        addRules(rules, "farsi",
+                "پ", "p", "چ", "ch", "ڜ", "ch", "ڤ", "v", "ڥ", "v", "ڨ", "g", "گ", "g", "ݣ", "g");
+        addRules(rules, "polish",
+                "Ł", "L", "ł", "l");
+        return rules;
+    }
+
+    private static void addRules(Map<String, String[]> rules, String language, String... pairs) {
+        rules.put(language, pairs);
+    }
+}
@@ -0,0 +1,58 @@
+package nodomain.freeyourgadget.gadgetbridge;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AppStartupTest extends TestBase {
+
+    @Test
+    public void testDependencyOrder() {
+        final List<String> order = new CopyOnWriteArrayList<>();
+        AppStartup startup = new AppStartup(false);
+        AppStartup.Task immediate = new RecordingTask("immediate", false, order);
+        AppStartup.Task first = new RecordingTask("first", true, order, immediate);
+        AppStartup.Task second = new RecordingTask("second", true, order, first);
+        AppStartup.Task other = new RecordingTask("other", true, order);
+        startup.add(immediate).add(first).add(second).add(other);
+
+        startup.run();
+        // immediate tasks are done when run() returns
+        assertTrue(immediate.isDone());
+        assertEquals("immediate", order.get(0));
+
+        second.await();
+        other.await();
+        assertTrue(first.isDone());
+        assertEquals(4, order.size());
+        assertTrue(order.indexOf("first") < order.indexOf("second"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testImmediateMustNotWaitForDeferred() {
+        List<String> order = Collections.emptyList();
+        AppStartup.Task deferred = new RecordingTask("deferred", true, order);
+        new AppStartup(false).add(deferred).add(new RecordingTask("immediate", false, order, deferred));
+    }
+
+    private static class RecordingTask extends AppStartup.Task {
+        private final List<String> order;
+
+        RecordingTask(String name, boolean deferred, List<String> order, AppStartup.Task... dependencies) {
+            super(name, deferred, dependencies);
+            this.order = order;
+        }
+
+        @Override
+        protected void run() {
+            order.add(getName());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ActivityDataImporterTest extends TestBase {
+    private static final int SAMPLE_COUNT = 100;
+
+    @Test
+    public void testMergeColumnarExport() throws Exception {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(createDummyGDevice("00:00:00:00:10"), daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(sampleProvider.getDevice(), daoSession);
+        MiBandActivitySample[] samples = new MiBandActivitySample[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            MiBandActivitySample sample = sampleProvider.createActivitySample();
+            sample.setTimestamp(1000 + i * 60);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(device.getId());
+            sample.setSteps(i);
+            samples[i] = sample;
+        }
+        sampleProvider.addGBActivitySamples(samples);
+
+        BaseActivitySummary summary = new BaseActivitySummary();
+        summary.setStartTime(new Date(1000000));
+        summary.setEndTime(new Date(2000000));
+        summary.setActivityKind(ActivityKind.TYPE_RUNNING);
+        summary.setDeviceId(device.getId());
+        summary.setUserId(user.getId());
+        daoSession.getBaseActivitySummaryDao().insert(summary);
+
+        File export = new ColumnarExporter(daoSession).export(FileUtils.createTempDir("merge"));
+
+        // drop half of the samples, the merge must bring them back
+        for (int i = 0; i < SAMPLE_COUNT; i += 2) {
+            daoSession.getMiBandActivitySampleDao().delete(samples[i]);
+        }
+        assertEquals(SAMPLE_COUNT / 2, daoSession.getMiBandActivitySampleDao().count());
+
+        ActivityDataImporter importer = new ActivityDataImporter(getContext());
+        assertEquals(SAMPLE_COUNT + 1, importer.importFrom(export, null));
+        assertFalse(importer.isResumable(export));
+
+        daoSession.clear();
+        assertEquals(SAMPLE_COUNT, daoSession.getMiBandActivitySampleDao().count());
+        MiBandActivitySample merged = daoSession.getMiBandActivitySampleDao().queryBuilder()
+                .where(MiBandActivitySampleDao.Properties.Timestamp.eq(1000 + 4 * 60)).unique();
+        assertEquals(4, merged.getSteps());
+        // matched by device and start time instead of being duplicated
+        assertEquals(1, daoSession.getBaseActivitySummaryDao().count());
+    }
+}
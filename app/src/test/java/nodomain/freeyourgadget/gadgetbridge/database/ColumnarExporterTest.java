@@ -0,0 +1,119 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarExporterTest extends TestBase {
+    private static final int SAMPLE_COUNT = ColumnarFormat.BLOCK_ROWS + 100;
+
+    @Test
+    public void testZigzag() {
+        long[] values = new long[]{0, 1, -1, 60, -60, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long value : values) {
+            assertEquals(value, ColumnarFormat.unzigzag(ColumnarFormat.zigzag(value)));
+        }
+        assertEquals(2, ColumnarFormat.zigzag(1));
+        assertEquals(1, ColumnarFormat.zigzag(-1));
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(createDummyGDevice("00:00:00:00:10"), daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(sampleProvider.getDevice(), daoSession);
+        MiBandActivitySample[] samples = new MiBandActivitySample[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            MiBandActivitySample sample = sampleProvider.createActivitySample();
+            sample.setTimestamp(1000 + i * 60);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(device.getId());
+            sample.setSteps(i % 7);
+            samples[i] = sample;
+        }
+        sampleProvider.addGBActivitySamples(samples);
+
+        File dir = new ColumnarExporter(daoSession).export(FileUtils.createTempDir("columnar"));
+
+        String tableName = daoSession.getMiBandActivitySampleDao().getTablename();
+        JSONObject manifest = new JSONObject(new String(readFully(new File(dir, ColumnarFormat.MANIFEST_FILE_NAME)), "UTF-8"));
+        JSONArray tables = manifest.getJSONArray("tables");
+        JSONObject sampleTable = null;
+        for (int i = 0; i < tables.length(); i++) {
+            if (tableName.equals(tables.getJSONObject(i).getString("name"))) {
+                sampleTable = tables.getJSONObject(i);
+            }
+        }
+        assertTrue(sampleTable != null);
+        assertEquals(SAMPLE_COUNT, sampleTable.getLong("rows"));
+
+        // decode the timestamp column of all blocks
+        InputStream in = new ByteArrayInputStream(readFully(new File(dir, sampleTable.getString("file"))));
+        assertEquals(ColumnarFormat.MAGIC, new DataInputStream(in).readInt());
+        assertEquals(ColumnarFormat.VERSION, in.read());
+        int columnCount = (int) ColumnarFormat.readVarint(in);
+        int timestampColumn = -1;
+        for (int c = 0; c < columnCount; c++) {
+            byte[] name = new byte[(int) ColumnarFormat.readVarint(in)];
+            assertEquals(name.length, in.read(name));
+            if (MiBandActivitySampleDao.Properties.Timestamp.columnName.equals(new String(name, "UTF-8"))) {
+                timestampColumn = c;
+            }
+            in.read(); // type
+        }
+        assertTrue(timestampColumn >= 0);
+
+        int row = 0;
+        long timestamp = 0;
+        int blockRows;
+        while ((blockRows = (int) ColumnarFormat.readVarint(in)) > 0) {
+            for (int c = 0; c < columnCount; c++) {
+                byte[] raw = new byte[(int) ColumnarFormat.readVarint(in)];
+                byte[] deflated = new byte[(int) ColumnarFormat.readVarint(in)];
+                assertEquals(deflated.length, in.read(deflated));
+                if (c != timestampColumn) {
+                    continue;
+                }
+                Inflater inflater = new Inflater();
+                inflater.setInput(deflated);
+                assertEquals(raw.length, inflater.inflate(raw));
+                inflater.end();
+
+                InputStream values = new ByteArrayInputStream(raw);
+                assertEquals(0, values.read()); // no nulls
+                for (int i = 0; i < blockRows; i++) {
+                    timestamp += ColumnarFormat.unzigzag(ColumnarFormat.readVarint(values));
+                    assertEquals(1000 + (row + i) * 60, timestamp);
+                }
+            }
+            row += blockRows;
+        }
+        assertEquals(SAMPLE_COUNT, row);
+    }
+
+    private static byte[] readFully(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,87 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeartRateStoreTest extends TestBase {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final int START = 1500000000 / HeartRateStore.SECONDS_PER_SEGMENT * HeartRateStore.SECONDS_PER_SEGMENT;
+
+    @Test
+    public void testQueryBuckets() throws Exception {
+        File directory = FileUtils.createTempDir("heartrate");
+        HeartRateStore store = new HeartRateStore(directory);
+
+        // 120 seconds at 1 Hz: 60 at 60 bpm, then 60 alternating between 80 and 100 bpm
+        for (int i = 0; i < 60; i++) {
+            store.add(ADDRESS, START + i, 60);
+        }
+        for (int i = 60; i < 120; i++) {
+            store.add(ADDRESS, START + i, i % 2 == 0 ? 80 : 100);
+        }
+        // out of order and duplicate measurements are ignored
+        store.add(ADDRESS, START + 10, 200);
+        store.add(ADDRESS, START + 119, 200);
+
+        List<HeartRateStore.Bucket> buckets = store.query(ADDRESS, START, START + 3600, 60);
+        assertEquals(2, buckets.size());
+
+        HeartRateStore.Bucket first = buckets.get(0);
+        assertEquals(START, first.getTimestamp());
+        assertEquals(60, first.getMin());
+        assertEquals(60, first.getMax());
+        assertEquals(60, first.getAverage());
+        assertEquals(60, first.getSeconds());
+
+        HeartRateStore.Bucket second = buckets.get(1);
+        assertEquals(START + 60, second.getTimestamp());
+        assertEquals(80, second.getMin());
+        assertEquals(100, second.getMax());
+        assertEquals(90, second.getAverage());
+        assertEquals(60, second.getSeconds());
+    }
+
+    @Test
+    public void testContinueAfterReopen() throws Exception {
+        File directory = FileUtils.createTempDir("heartrate");
+        HeartRateStore store = new HeartRateStore(directory);
+        store.add(ADDRESS, START + 100, 70);
+        store.add(ADDRESS, START + 101, 70);
+        store.flush();
+
+        store = new HeartRateStore(directory);
+        store.add(ADDRESS, START + 50, 90); // before the stored measurements
+        store.add(ADDRESS, START + 102, 72);
+        // the next day goes into another segment
+        store.add(ADDRESS, START + HeartRateStore.SECONDS_PER_SEGMENT + 5, 75);
+
+        List<HeartRateStore.Bucket> buckets = store.query(ADDRESS, START, START + 2 * HeartRateStore.SECONDS_PER_SEGMENT, 3600);
+        assertEquals(2, buckets.size());
+        assertEquals(70, buckets.get(0).getMin());
+        assertEquals(72, buckets.get(0).getMax());
+        assertEquals(3, buckets.get(0).getSeconds());
+        assertEquals(START + HeartRateStore.SECONDS_PER_SEGMENT, buckets.get(1).getTimestamp());
+        assertEquals(75, buckets.get(1).getAverage());
+    }
+
+    @Test
+    public void testPeriodicFlush() throws Exception {
+        File directory = FileUtils.createTempDir("heartrate");
+        HeartRateStore store = new HeartRateStore(directory);
+        for (int i = 0; i <= HeartRateStore.FLUSH_INTERVAL_SECONDS; i++) {
+            store.add(ADDRESS, START + i, 65);
+        }
+
+        // a new instance only sees what was written, like after the process died
+        List<HeartRateStore.Bucket> buckets = new HeartRateStore(directory).query(ADDRESS, START, START + 3600, 3600);
+        assertEquals(1, buckets.size());
+        assertEquals(HeartRateStore.FLUSH_INTERVAL_SECONDS + 1, buckets.get(0).getSeconds());
+    }
+}
@@ -0,0 +1,77 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class IdentityCacheTest extends TestBase {
+
+    @Test
+    public void testLookupsAreCached() {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:80");
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+
+        assertSame(user, DBHelper.getUser(daoSession));
+        assertSame(device, DBHelper.getDevice(gbDevice, daoSession));
+        assertSame(device, DBHelper.findDevice(gbDevice, daoSession));
+    }
+
+    @Test
+    public void testLookupAfterImport() {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:81");
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+
+        // the imported database has the same user and device, with other ids
+        User importedUser = new User();
+        importedUser.setId(user.getId() + 10);
+        importedUser.setName(user.getName());
+        importedUser.setBirthday(user.getBirthday());
+        importedUser.setGender(user.getGender());
+        daoSession.getUserDao().insert(importedUser);
+        daoSession.getUserDao().delete(user);
+        Device importedDevice = copyWithId(device, device.getId() + 10);
+        daoSession.getDeviceDao().delete(device);
+        daoSession.clear();
+        IdentityCache.invalidate();
+
+        assertEquals(importedUser.getId(), DBHelper.getUser(daoSession).getId());
+        assertEquals(importedDevice.getId(), DBHelper.findDevice(gbDevice, daoSession).getId());
+        assertEquals(importedDevice.getId(), DBHelper.getDevice(gbDevice, daoSession).getId());
+    }
+
+    @Test
+    public void testLookupAfterDeviceDeletion() {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:82");
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+        // another device, so that the id of the deleted one is not reused
+        DBHelper.getDevice(createDummyGDevice("00:00:00:00:83"), daoSession);
+
+        daoSession.getDeviceDao().delete(device);
+        DBHelper.clearIdentityCache();
+
+        Device recreated = DBHelper.getDevice(gbDevice, daoSession);
+        assertNotEquals(device.getId(), recreated.getId());
+        assertEquals(recreated.getId(), DBHelper.findDevice(gbDevice, daoSession).getId());
+    }
+
+    private Device copyWithId(Device device, long id) {
+        Device copy = new Device();
+        copy.setId(id);
+        copy.setIdentifier(device.getIdentifier());
+        copy.setName(device.getName());
+        copy.setManufacturer(device.getManufacturer());
+        copy.setType(device.getType());
+        copy.setModel(device.getModel());
+        daoSession.getDeviceDao().insert(copy);
+        return copy;
+    }
+}
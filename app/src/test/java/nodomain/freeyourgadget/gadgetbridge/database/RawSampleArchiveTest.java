@@ -0,0 +1,81 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RawSampleArchiveTest extends TestBase {
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        File file = File.createTempFile("rawsamples", ".bin");
+        file.deleteOnExit();
+
+        RawSampleArchive archive = new RawSampleArchive(file);
+        byte[] first = new byte[]{1, 2, 3, 4};
+        byte[] second = new byte[]{5, 6, 7, 8, 9, 10};
+        long firstOffset = archive.append(1, 1000, RawSampleArchive.TYPE_PEBBLE_HEALTH_SAMPLE, first);
+        assertArrayEquals(first, archive.read(firstOffset, 1, 1000));
+
+        // the second read must extend the mapping
+        long secondOffset = archive.append(1, 1060, RawSampleArchive.TYPE_PEBBLE_HEALTH_SAMPLE, second);
+        assertArrayEquals(second, archive.read(secondOffset, 1, 1060));
+        assertArrayEquals(first, archive.read(firstOffset, 1, 1000));
+        archive.close();
+
+        // offsets stay valid after reopening
+        archive = new RawSampleArchive(file);
+        assertArrayEquals(second, archive.read(secondOffset, 1, 1060));
+        archive.close();
+    }
+
+    @Test
+    public void testReadForeignOffset() throws Exception {
+        File file = File.createTempFile("rawsamples", ".bin");
+        file.deleteOnExit();
+
+        RawSampleArchive archive = new RawSampleArchive(file);
+        long offset = archive.append(1, 1000, RawSampleArchive.TYPE_PEBBLE_HEALTH_OVERLAY, new byte[]{1, 2, 3});
+        assertNull(archive.read(offset, 2, 1000));
+        assertNull(archive.read(offset, 1, 1001));
+        assertNull(archive.read(offset + 1, 1, 1000));
+        assertNull(archive.read(offset + 1000, 1, 1000));
+        archive.close();
+    }
+
+    @Test
+    public void testRestoreFromArchive() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:70");
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+
+        File file = File.createTempFile("rawsamples", ".bin");
+        file.deleteOnExit();
+        RawSampleArchive archive = new RawSampleArchive(file);
+        byte[] raw = new byte[]{1, 2, 3, 4, 5};
+        long offset = archive.append(device.getId(), 1000, RawSampleArchive.TYPE_PEBBLE_HEALTH_SAMPLE, raw);
+        provider.addGBActivitySample(new PebbleHealthActivitySample(1000, device.getId(), user.getId(), null, 10, 20, 0, offset));
+
+        // what exports do with their copy of the database
+        archive.restoreFromArchive(daoSession.getDatabase());
+        daoSession.clear();
+
+        PebbleHealthActivitySample sample = provider.getAllActivitySamples(1000, 1000).get(0);
+        assertArrayEquals(raw, sample.getRawPebbleHealthData());
+        assertNull(sample.getRawDataOffset());
+        assertEquals(20, sample.getSteps());
+        archive.close();
+    }
+}
@@ -0,0 +1,148 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleLogTest extends TestBase {
+    private static final int START = 1500000000;
+
+    private MiBandSampleProvider sampleProvider;
+    private User user;
+    private Device device;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        GBDevice dummyGBDevice = createDummyGDevice("00:00:00:00:50");
+        sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        user = DBHelper.getUser(daoSession);
+        device = DBHelper.getDevice(dummyGBDevice, daoSession);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        SampleLog.deleteStore(app);
+        super.tearDown();
+    }
+
+    @Test
+    public void testMoveToSampleLogAndBack() throws Exception {
+        sampleProvider.addGBActivitySamples(createSamples(START, 1000));
+
+        assertEquals(1000, sampleProvider.moveToSampleLog());
+        assertTrue(SampleLog.getInstance().isEnabled(device.getId()));
+        assertTrue(sampleProvider.getSampleDao().queryBuilder().list().isEmpty());
+
+        List<MiBandActivitySample> samples = sampleProvider.getAllActivitySamples(START + 100 * 60, START + 199 * 60);
+        assertEquals(100, samples.size());
+        assertEquals(START + 100 * 60, samples.get(0).getTimestamp());
+        assertEquals(device.getId(), samples.get(0).getDeviceId());
+        assertEquals(START + 999 * 60, sampleProvider.getLatestActivitySample().getTimestamp());
+
+        // new samples go to the log and replace existing ones
+        MiBandActivitySample[] update = createSamples(START + 150 * 60, 1);
+        update[0].setSteps(42);
+        sampleProvider.addGBActivitySamples(update);
+        samples = sampleProvider.getAllActivitySamples(START + 150 * 60, START + 150 * 60);
+        assertEquals(1, samples.size());
+        assertEquals(42, samples.get(0).getSteps());
+        assertTrue(sampleProvider.getSampleDao().queryBuilder().list().isEmpty());
+
+        assertEquals(1000, sampleProvider.moveToDatabase());
+        assertFalse(SampleLog.getInstance().isEnabled(device.getId()));
+        assertEquals(1000, sampleProvider.getSampleDao().queryBuilder().list().size());
+        assertEquals(42, sampleProvider.getAllActivitySamples(START + 150 * 60, START + 150 * 60).get(0).getSteps());
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        File directory = new File(app.getCacheDir(), "sample-log-test");
+        SampleLog log = new SampleLog(directory);
+        SampleLog.Importer importer = log.beginImport(1);
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        Collections.addAll(samples, createSamples(START, 10));
+        importer.append(samples);
+        importer.commit();
+        log.close();
+
+        File segment = new File(directory, "1/00000001.seg");
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(length);
+            file.write(new byte[SampleLog.RECORD_SIZE / 2]);
+        }
+
+        log = new SampleLog(directory);
+        assertEquals(10, log.read(1, START, START + 10 * 60, sampleProvider).size());
+        assertEquals(length, segment.length());
+        log.delete(1);
+    }
+
+    @Test
+    public void testCompactRemovesReplacedSamples() throws Exception {
+        File directory = new File(app.getCacheDir(), "sample-log-test");
+        SampleLog log = new SampleLog(directory);
+        SampleLog.Importer importer = log.beginImport(1);
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        Collections.addAll(samples, createSamples(START, 100));
+        importer.append(samples);
+        importer.commit();
+        File segment = new File(directory, "1/00000001.seg");
+        long length = segment.length();
+
+        // an overlapping fetch replaces the last 20 minutes
+        MiBandActivitySample[] update = createSamples(START + 80 * 60, 30);
+        for (MiBandActivitySample sample : update) {
+            sample.setSteps(99);
+        }
+        log.append(1, Arrays.asList(update));
+        log.compact(1);
+        assertEquals(length + 10 * SampleLog.RECORD_SIZE, segment.length());
+
+        List<MiBandActivitySample> read = log.read(1, START, START + 200 * 60, sampleProvider);
+        assertEquals(110, read.size());
+        assertEquals(START + 109 * 60, read.get(read.size() - 1).getTimestamp());
+        assertEquals(99, read.get(80).getSteps());
+        assertEquals(79 % 50, read.get(79).getSteps());
+        log.close();
+
+        // the compacted segment is valid when opened again
+        log = new SampleLog(directory);
+        assertEquals(110, log.read(1, START, START + 200 * 60, sampleProvider).size());
+        log.delete(1);
+    }
+
+    private MiBandActivitySample[] createSamples(int start, int minutes) {
+        MiBandActivitySample[] samples = new MiBandActivitySample[minutes];
+        for (int i = 0; i < minutes; i++) {
+            MiBandActivitySample sample = sampleProvider.createActivitySample();
+            sample.setProvider(sampleProvider);
+            sample.setRawKind(MiBandSampleProvider.TYPE_ACTIVITY);
+            sample.setTimestamp(start + i * 60);
+            sample.setRawIntensity(10);
+            sample.setSteps(i % 50);
+            sample.setHeartRate(70);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(device.getId());
+            samples[i] = sample;
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,133 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.SleepSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SleepSessionStoreTest extends TestBase {
+    private static final int NIGHT = 1500000000;
+
+    private MiBandSampleProvider sampleProvider;
+    private User user;
+    private Device device;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        GBDevice dummyGBDevice = createDummyGDevice("00:00:00:00:40");
+        sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        user = DBHelper.getUser(daoSession);
+        device = DBHelper.getDevice(dummyGBDevice, daoSession);
+    }
+
+    @Test
+    public void testDetect() {
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        addMinutes(samples, NIGHT - 30 * 60, 30, MiBandSampleProvider.TYPE_ACTIVITY);
+        addMinutes(samples, NIGHT, 120, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+        addMinutes(samples, NIGHT + 120 * 60, 60, MiBandSampleProvider.TYPE_DEEP_SLEEP);
+        // woken up for a while, the night goes on
+        addMinutes(samples, NIGHT + 180 * 60, 20, MiBandSampleProvider.TYPE_ACTIVITY);
+        addMinutes(samples, NIGHT + 200 * 60, 100, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+        // up for the day, with a short nap in the afternoon
+        addMinutes(samples, NIGHT + 300 * 60, 400, MiBandSampleProvider.TYPE_ACTIVITY);
+        addMinutes(samples, NIGHT + 700 * 60, 10, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+        addMinutes(samples, NIGHT + 710 * 60, 60, MiBandSampleProvider.TYPE_ACTIVITY);
+
+        List<SleepSession> sessions = SleepSessionStore.detect(samples);
+        assertEquals(1, sessions.size());
+        SleepSession night = sessions.get(0);
+        assertEquals(NIGHT, night.getStartTime());
+        assertEquals(NIGHT + 300 * 60, night.getEndTime());
+        assertEquals(220 * 60, night.getLightSleepSeconds());
+        assertEquals(60 * 60, night.getDeepSleepSeconds());
+        assertEquals(20 * 60, night.getAwakeSeconds());
+    }
+
+    @Test
+    public void testLongAwakeSplitsSessions() {
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        addMinutes(samples, NIGHT, 60, MiBandSampleProvider.TYPE_DEEP_SLEEP);
+        addMinutes(samples, NIGHT + 60 * 60, 90, MiBandSampleProvider.TYPE_ACTIVITY);
+        addMinutes(samples, NIGHT + 150 * 60, 60, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+
+        List<SleepSession> sessions = SleepSessionStore.detect(samples);
+        assertEquals(2, sessions.size());
+        assertEquals(0, sessions.get(0).getAwakeSeconds());
+        assertEquals(NIGHT + 60 * 60, sessions.get(0).getEndTime());
+        assertEquals(NIGHT + 150 * 60, sessions.get(1).getStartTime());
+    }
+
+    @Test
+    public void testSessionsFollowInsertedSamples() {
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        addMinutes(samples, NIGHT, 120, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+        sampleProvider.addGBActivitySamples(samples.toArray(new MiBandActivitySample[0]));
+
+        List<SleepSession> sessions = SleepSessionStore.getSessions(daoSession, device.getId(), NIGHT, NIGHT + 1);
+        assertEquals(1, sessions.size());
+        assertEquals(120 * 60, sessions.get(0).getLightSleepSeconds());
+
+        // the rest of the night is fetched later, the session grows instead of being duplicated
+        samples.clear();
+        addMinutes(samples, NIGHT + 120 * 60, 120, MiBandSampleProvider.TYPE_DEEP_SLEEP);
+        addMinutes(samples, NIGHT + 240 * 60, 30, MiBandSampleProvider.TYPE_ACTIVITY);
+        sampleProvider.addGBActivitySamples(samples.toArray(new MiBandActivitySample[0]));
+
+        sessions = SleepSessionStore.getSessions(daoSession, device.getId(), NIGHT - 24 * 60 * 60, NIGHT + 24 * 60 * 60);
+        assertEquals(1, sessions.size());
+        SleepSession night = sessions.get(0);
+        assertEquals(NIGHT, night.getStartTime());
+        assertEquals(NIGHT + 240 * 60, night.getEndTime());
+        assertEquals(120 * 60, night.getDeepSleepSeconds());
+        assertEquals(device.getId(), night.getDeviceId());
+        assertEquals(user.getId(), night.getUserId());
+
+        List<SleepSession> latest = SleepSessionStore.getLatestSessions(daoSession, 7);
+        assertEquals(1, latest.size());
+        assertTrue(SleepSessionStore.getSessionsEndingBetween(daoSession, device.getId(), NIGHT, NIGHT + 60).isEmpty());
+    }
+
+    @Test
+    public void testSingleSamplesInvalidateAnalyzedRange() {
+        int day = 24 * 60 * 60;
+        SleepSessionStore.ensureAnalyzed(daoSession, sampleProvider, device, NIGHT - day, NIGHT + day);
+        assertTrue(SleepSessionStore.getSessions(daoSession, device.getId(), NIGHT - day, NIGHT + day).isEmpty());
+
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        addMinutes(samples, NIGHT, 30, MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+        for (MiBandActivitySample sample : samples) {
+            sampleProvider.addGBActivitySample(sample);
+        }
+
+        SleepSessionStore.ensureAnalyzed(daoSession, sampleProvider, device, NIGHT - day, NIGHT + day);
+        List<SleepSession> sessions = SleepSessionStore.getSessions(daoSession, device.getId(), NIGHT - day, NIGHT + day);
+        assertEquals(1, sessions.size());
+        assertEquals(30 * 60, sessions.get(0).getLightSleepSeconds());
+    }
+
+    private void addMinutes(List<MiBandActivitySample> samples, int start, int minutes, int rawKind) {
+        for (int i = 0; i < minutes; i++) {
+            MiBandActivitySample sample = sampleProvider.createActivitySample();
+            sample.setProvider(sampleProvider);
+            sample.setRawKind(rawKind);
+            sample.setTimestamp(start + i * 60);
+            sample.setRawIntensity(10);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(device.getId());
+            samples.add(sample);
+        }
+    }
+}
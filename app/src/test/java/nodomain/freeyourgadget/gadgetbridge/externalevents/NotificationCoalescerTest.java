@@ -0,0 +1,136 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.service.notification.StatusBarNotification;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NotificationCoalescerTest extends TestBase {
+    private static final String KEY = "com.example.chat|null|1";
+
+    private final List<NotificationSpec> delivered = new ArrayList<>();
+    private final List<Integer> deleted = new ArrayList<>();
+    private NotificationCoalescer coalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        coalescer = new NotificationCoalescer(new Handler(Looper.getMainLooper()), new NotificationCoalescer.Receiver() {
+            @Override
+            public void onNotification(NotificationSpec notificationSpec) {
+                delivered.add(notificationSpec);
+            }
+
+            @Override
+            public void onDeleteNotification(int handle) {
+                deleted.add(handle);
+            }
+        });
+    }
+
+    @Test
+    public void testMergesRepeatedPosts() {
+        coalescer.post(KEY, createSpec("1 new message"));
+        assertEquals(1, delivered.size());
+
+        // a burst of updates within the window, only the latest one is delivered
+        coalescer.post(KEY, createSpec("2 new messages"));
+        coalescer.post(KEY, createSpec("3 new messages"));
+        assertEquals(1, delivered.size());
+
+        ShadowLooper.idleMainLooper(NotificationCoalescer.COALESCE_WINDOW_MILLIS);
+        assertEquals(2, delivered.size());
+        assertEquals("3 new messages", delivered.get(1).body);
+
+        // after the window, an update is delivered right away
+        ShadowLooper.idleMainLooper(NotificationCoalescer.COALESCE_WINDOW_MILLIS);
+        coalescer.post(KEY, createSpec("4 new messages"));
+        assertEquals(3, delivered.size());
+    }
+
+    @Test
+    public void testDropsUnchangedUpdates() {
+        coalescer.post(KEY, createSpec("1 new message"));
+        ShadowLooper.idleMainLooper(NotificationCoalescer.COALESCE_WINDOW_MILLIS);
+        coalescer.post(KEY, createSpec("1 new message"));
+        ShadowLooper.idleMainLooper(NotificationCoalescer.COALESCE_WINDOW_MILLIS);
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testRemoveBeforeFlush() {
+        coalescer.post(KEY, createSpec("1 new message"));
+        coalescer.post(KEY, createSpec("2 new messages"));
+        int handle = delivered.get(0).id;
+
+        coalescer.remove(KEY);
+        assertEquals(1, deleted.size());
+        assertEquals(handle, (int) deleted.get(0));
+
+        // the pending update must not bring the notification back
+        ShadowLooper.idleMainLooper(NotificationCoalescer.COALESCE_WINDOW_MILLIS);
+        assertEquals(1, delivered.size());
+
+        // a removal is only forwarded once
+        coalescer.remove(KEY);
+        assertEquals(1, deleted.size());
+    }
+
+    @Test
+    public void testRemoveOfUndeliveredNotification() {
+        coalescer.getHandle(createStatusBarNotification("com.example.chat", 1));
+        coalescer.remove(KEY);
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testHandleReuse() {
+        StatusBarNotification sbn = createStatusBarNotification("com.example.chat", 1);
+        int handle = coalescer.getHandle(sbn);
+        assertTrue(handle > 0);
+        // updates of the same notification keep their handle
+        assertEquals(handle, coalescer.getHandle(createStatusBarNotification("com.example.chat", 1)));
+        assertTrue(coalescer.hasHandle(sbn, handle));
+
+        int otherHandle = coalescer.getHandle(createStatusBarNotification("com.example.chat", 2));
+        assertNotEquals(handle, otherHandle);
+
+        // once forgotten, the notification gets a new handle
+        coalescer.forget(NotificationCoalescer.getKey(sbn));
+        assertFalse(coalescer.hasHandle(sbn, handle));
+        assertNotEquals(handle, coalescer.getHandle(sbn));
+    }
+
+    private NotificationSpec createSpec(String body) {
+        NotificationSpec spec = new NotificationSpec();
+        spec.id = coalescer.getHandle(createStatusBarNotification("com.example.chat", 1));
+        spec.sourceName = "Chat";
+        spec.title = "Alice";
+        spec.body = body;
+        return spec;
+    }
+
+    private static StatusBarNotification createStatusBarNotification(String packageName, int id) {
+        StatusBarNotification sbn = mock(StatusBarNotification.class);
+        when(sbn.getPackageName()).thenReturn(packageName);
+        when(sbn.getTag()).thenReturn(null);
+        when(sbn.getId()).thenReturn(id);
+        return sbn;
+    }
+}
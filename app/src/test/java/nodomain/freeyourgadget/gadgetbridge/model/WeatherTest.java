@@ -0,0 +1,91 @@
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Calendar;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class WeatherTest extends TestBase {
+
+    @Test
+    public void testStoreRoundTrip() throws Exception {
+        WeatherSpec weatherSpec = createWeatherSpec();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Weather.write(weatherSpec, new DataOutputStream(bytes));
+        WeatherSpec restored = Weather.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(weatherSpec.timestamp, restored.timestamp);
+        assertEquals(weatherSpec.location, restored.location);
+        assertNull(restored.currentCondition);
+        assertEquals(weatherSpec.windSpeed, restored.windSpeed, 0);
+        assertEquals(2, restored.forecasts.size());
+        assertEquals(Weather.getContentHash(weatherSpec), Weather.getContentHash(restored));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File file = new File(app.getCacheDir(), "weather-test");
+        file.delete();
+
+        Weather weather = new Weather();
+        weather.load(file);
+        assertNull(weather.getWeatherSpec());
+        weather.putCachedReply("key", new byte[]{1});
+        weather.setWeatherSpec(createWeatherSpec());
+        assertNull(weather.getCachedReply("key"));
+
+        Weather restarted = new Weather();
+        restarted.load(file);
+        assertNotNull(restarted.getWeatherSpec());
+        assertEquals("Berlin", restarted.getWeatherSpec().location);
+        file.delete();
+    }
+
+    @Test
+    public void testContentHash() {
+        WeatherSpec weatherSpec = createWeatherSpec();
+        Calendar noon = Calendar.getInstance();
+        noon.set(Calendar.HOUR_OF_DAY, 12);
+        weatherSpec.timestamp = (int) (noon.getTimeInMillis() / 1000);
+        int hash = Weather.getContentHash(weatherSpec);
+
+        weatherSpec.timestamp += 600;
+        assertEquals(hash, Weather.getContentHash(weatherSpec));
+
+        // the forecast days are counted from the day of the timestamp
+        weatherSpec.timestamp += 24 * 60 * 60;
+        assertNotEquals(hash, Weather.getContentHash(weatherSpec));
+        weatherSpec.timestamp -= 24 * 60 * 60;
+
+        weatherSpec.forecasts.get(1).maxTemp++;
+        assertNotEquals(hash, Weather.getContentHash(weatherSpec));
+    }
+
+    private static WeatherSpec createWeatherSpec() {
+        WeatherSpec weatherSpec = new WeatherSpec();
+        weatherSpec.timestamp = (int) (System.currentTimeMillis() / 1000);
+        weatherSpec.location = "Berlin";
+        weatherSpec.currentTemp = 290;
+        weatherSpec.currentConditionCode = 800;
+        weatherSpec.currentHumidity = 40;
+        weatherSpec.todayMaxTemp = 295;
+        weatherSpec.todayMinTemp = 280;
+        weatherSpec.windSpeed = 12.5f;
+        weatherSpec.windDirection = 270;
+        weatherSpec.forecasts.add(new WeatherSpec.Forecast(281, 296, 801, 50));
+        weatherSpec.forecasts.add(new WeatherSpec.Forecast(283, 293, 500, 80));
+        return weatherSpec;
+    }
+}
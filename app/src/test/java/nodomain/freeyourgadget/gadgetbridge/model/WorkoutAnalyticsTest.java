@@ -0,0 +1,60 @@
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WorkoutAnalyticsTest extends TestBase {
+    // one thousandth of a degree of latitude
+    private static final double METERS_PER_STEP = 111.195;
+
+    @Test
+    public void testHaversine() {
+        assertEquals(METERS_PER_STEP, WorkoutAnalytics.haversine(52.0, 13.0, 52.001, 13.0), 0.01);
+    }
+
+    @Test
+    public void testHeartRateZones() {
+        assertEquals(-1, WorkoutAnalytics.getHeartRateZone(90, 200));
+        assertEquals(0, WorkoutAnalytics.getHeartRateZone(100, 200));
+        assertEquals(2, WorkoutAnalytics.getHeartRateZone(150, 200));
+        assertEquals(4, WorkoutAnalytics.getHeartRateZone(200, 200));
+    }
+
+    @Test
+    public void testAnalyze() {
+        ActivityTrack track = new ActivityTrack();
+        long start = 1500000000000L;
+        // 20 steps of ~111m every 10 seconds, climbing 1m per step
+        for (int i = 0; i <= 20; i++) {
+            ActivityPoint point = new ActivityPoint(new Date(start + i * 10000L));
+            point.setLocation(new GPSCoordinate(13.0, 52.0 + i * 0.001, 100 + i));
+            point.setHeartRate(150);
+            track.addTrackPoint(point);
+        }
+        // a pause, then one more step
+        ActivityPoint afterPause = new ActivityPoint(new Date(start + 400000L));
+        afterPause.setLocation(new GPSCoordinate(13.0, 52.021, 120));
+        track.addTrackPoint(afterPause);
+
+        WorkoutAnalytics analytics = WorkoutAnalytics.analyze(track, 200);
+
+        assertEquals(21 * METERS_PER_STEP, analytics.getDistanceMeters(), 1);
+        assertEquals(200, analytics.getMovingSeconds());
+        assertEquals(18, analytics.getElevationGainMeters(), 0.01);
+        assertEquals(200 / (20 * METERS_PER_STEP) * 1000, analytics.getAveragePace(), 1);
+        assertEquals(10 / METERS_PER_STEP * 1000, analytics.getBestPace(), 1);
+        assertArrayEquals(new int[]{0, 0, 200, 0, 0}, analytics.getHeartRateZoneSeconds());
+
+        List<Integer> splits = analytics.getSplitSeconds();
+        assertEquals(2, splits.size());
+        assertEquals(90, (int) splits.get(0));
+        assertEquals(90, (int) splits.get(1));
+    }
+}
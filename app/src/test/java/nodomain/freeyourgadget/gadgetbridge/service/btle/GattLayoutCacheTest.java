@@ -0,0 +1,53 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class GattLayoutCacheTest extends TestBase {
+    private static final UUID SERVICE_1 = UUID.fromString("0000fee0-0000-1000-8000-00805f9b34fb");
+    private static final UUID SERVICE_2 = UUID.fromString("0000fee1-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC_1 = UUID.fromString("00000001-0000-3512-2118-0009af100700");
+    private static final UUID CHARACTERISTIC_2 = UUID.fromString("00000002-0000-3512-2118-0009af100700");
+
+    @Test
+    public void testFingerprintIsOrderIndependent() {
+        List<BluetoothGattService> services = new ArrayList<>();
+        services.add(createService(SERVICE_1, CHARACTERISTIC_1, BluetoothGattCharacteristic.PROPERTY_NOTIFY));
+        services.add(createService(SERVICE_2, CHARACTERISTIC_2, BluetoothGattCharacteristic.PROPERTY_WRITE));
+
+        List<BluetoothGattService> reversed = new ArrayList<>();
+        reversed.add(createService(SERVICE_2, CHARACTERISTIC_2, BluetoothGattCharacteristic.PROPERTY_WRITE));
+        reversed.add(createService(SERVICE_1, CHARACTERISTIC_1, BluetoothGattCharacteristic.PROPERTY_NOTIFY));
+
+        assertEquals(GattLayoutCache.computeFingerprint(services), GattLayoutCache.computeFingerprint(reversed));
+    }
+
+    @Test
+    public void testFingerprintChangesWithLayout() {
+        List<BluetoothGattService> services = new ArrayList<>();
+        services.add(createService(SERVICE_1, CHARACTERISTIC_1, BluetoothGattCharacteristic.PROPERTY_NOTIFY));
+
+        List<BluetoothGattService> otherProperties = new ArrayList<>();
+        otherProperties.add(createService(SERVICE_1, CHARACTERISTIC_1, BluetoothGattCharacteristic.PROPERTY_READ));
+
+        assertNotEquals(GattLayoutCache.computeFingerprint(services), GattLayoutCache.computeFingerprint(otherProperties));
+        assertNotEquals(GattLayoutCache.computeFingerprint(services), GattLayoutCache.computeFingerprint(null));
+    }
+
+    private BluetoothGattService createService(UUID serviceUuid, UUID characteristicUuid, int properties) {
+        BluetoothGattService service = new BluetoothGattService(serviceUuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(new BluetoothGattCharacteristic(characteristicUuid, properties, 0));
+        return service;
+    }
+}
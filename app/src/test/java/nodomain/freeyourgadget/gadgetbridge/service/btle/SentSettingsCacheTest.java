@@ -0,0 +1,57 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.PlainAction;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SentSettingsCacheTest extends TestBase {
+    private static final BluetoothGattCharacteristic CONFIGURATION = new BluetoothGattCharacteristic(
+            UUID.fromString("00000003-0000-3512-2118-0009af100700"), BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+
+    @Test
+    public void testCompareDetectsChangedSettings() {
+        GBDevice device = createDummyGDevice("00:00:00:00:70");
+        SentSettingsCache cache = new SentSettingsCache(getContext(), device);
+        assertFalse(cache.isValid());
+
+        TransactionBuilder builder = new TransactionBuilder("settings");
+        SentSettingsCache.Batch settings = cache.begin(builder, false);
+        settings.next("first").write(CONFIGURATION, new byte[]{1});
+        settings.next("second").write(CONFIGURATION, new byte[]{2});
+        settings.finish();
+        // as if the transaction was sent, the writes themselves need a connection
+        for (BtLEAction action : builder.getTransaction().getActions()) {
+            if (action instanceof PlainAction) {
+                action.run(null);
+            }
+        }
+        assertTrue(cache.isValid());
+
+        settings = cache.compare();
+        settings.next("first").write(CONFIGURATION, new byte[]{1});
+        settings.next("second").write(CONFIGURATION, new byte[]{2});
+        settings.finish();
+        assertFalse(settings.hasChanges());
+
+        settings = cache.compare();
+        settings.next("first").write(CONFIGURATION, new byte[]{1});
+        settings.next("second").write(CONFIGURATION, new byte[]{3});
+        settings.finish();
+        assertTrue(settings.hasChanges());
+
+        // a setting that was never sent counts as changed
+        settings = cache.compare();
+        settings.next("third").write(CONFIGURATION, new byte[]{1});
+        settings.finish();
+        assertTrue(settings.hasChanges());
+    }
+}
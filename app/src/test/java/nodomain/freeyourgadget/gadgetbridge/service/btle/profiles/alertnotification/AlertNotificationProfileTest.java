@@ -0,0 +1,56 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.alertnotification;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AlertNotificationProfileTest extends TestBase {
+
+    @Test
+    public void testFramesDoNotSplitCharacters() {
+        AlertNotificationProfile<AbstractBTLEDeviceSupport> profile = new AlertNotificationProfile<>(null);
+        profile.setMaxLength(5);
+        // 2 + 2 + 2 + 4 bytes
+        String message = "\u00e4\u00f6\u00fc\uD83D\uDE00";
+        List<byte[]> frames = profile.createAlertFrames(new NewAlert(AlertCategory.SMS, 1, message), OverflowStrategy.MAKE_MULTIPLE);
+
+        assertEquals(3, frames.size());
+        StringBuilder decoded = new StringBuilder();
+        for (byte[] frame : frames) {
+            assertEquals(AlertCategory.SMS.getId(), frame[0]);
+            assertEquals(1, frame[1]);
+            decoded.append(new String(Arrays.copyOfRange(frame, 2, frame.length), StandardCharsets.UTF_8));
+        }
+        assertEquals(message, decoded.toString());
+        assertEquals(2 + 4, frames.get(0).length);
+        assertEquals(2 + 2, frames.get(1).length);
+        assertEquals(2 + 4, frames.get(2).length);
+    }
+
+    @Test
+    public void testTruncate() {
+        AlertNotificationProfile<AbstractBTLEDeviceSupport> profile = new AlertNotificationProfile<>(null);
+        profile.setMaxLength(4);
+        List<byte[]> frames = profile.createAlertFrames(new NewAlert(AlertCategory.SMS, 1, "abcdef"), OverflowStrategy.TRUNCATE);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[]{(byte) AlertCategory.SMS.getId(), 1, 'a', 'b', 'c', 'd'}, frames.get(0));
+    }
+
+    @Test
+    public void testEmptyMessage() {
+        AlertNotificationProfile<AbstractBTLEDeviceSupport> profile = new AlertNotificationProfile<>(null);
+        List<byte[]> frames = profile.createAlertFrames(new NewAlert(AlertCategory.IncomingCall, 1, null), OverflowStrategy.MAKE_MULTIPLE);
+
+        assertEquals(1, frames.size());
+        assertEquals(2, frames.get(0).length);
+    }
+}
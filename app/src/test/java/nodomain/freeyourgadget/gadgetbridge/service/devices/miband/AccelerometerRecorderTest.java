@@ -0,0 +1,73 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AccelerometerRecorderTest {
+
+    @Test
+    public void testDecodeAxis() {
+        assertEquals(1000, AccelerometerRecorder.decodeAxis(new byte[]{(byte) 0xe8, 0x03}, 0));
+        // type bits are ignored, sign bits make the value negative
+        assertEquals(1000, AccelerometerRecorder.decodeAxis(new byte[]{(byte) 0xe8, (byte) 0x83}, 0));
+        assertEquals(1000 - 4097, AccelerometerRecorder.decodeAxis(new byte[]{(byte) 0xe8, 0x33}, 0));
+    }
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        File file = File.createTempFile("accelerometer", ".bin");
+        file.deleteOnExit();
+
+        AccelerometerRecorder recorder = new AccelerometerRecorder(file);
+        recorder.addPacket(createPacket(0xfffe, 1, 2));
+        // the counter wraps around, one packet is lost
+        recorder.addPacket(createPacket(0x0000, 3));
+        recorder.addPacket(new byte[]{1, 2, 3});
+        recorder.close();
+
+        final List<int[]> samples = new ArrayList<>();
+        AccelerometerRecorder.read(file, new AccelerometerRecorder.Listener() {
+            @Override
+            public void onSamples(int[] packets, short[] x, short[] y, short[] z, int count) {
+                for (int i = 0; i < count; i++) {
+                    samples.add(new int[]{packets[i], x[i], y[i], z[i]});
+                }
+            }
+
+            @Override
+            public void onOverflow(int droppedSamples) {
+            }
+        });
+
+        assertEquals(3, samples.size());
+        assertSample(samples.get(0), 0, 1);
+        assertSample(samples.get(1), 0, 2);
+        assertSample(samples.get(2), 2, 3);
+    }
+
+    private static void assertSample(int[] sample, int packet, int value) {
+        assertEquals(packet, sample[0]);
+        assertEquals(value, sample[1]);
+        assertEquals(value + 100, sample[2]);
+        assertEquals(value + 200, sample[3]);
+    }
+
+    private static byte[] createPacket(int counter, int... values) {
+        byte[] packet = new byte[2 + values.length * 6];
+        packet[0] = (byte) counter;
+        packet[1] = (byte) (counter >> 8);
+        for (int i = 0; i < values.length; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                int value = (values[i] + axis * 100) | (axis << 14);
+                packet[2 + i * 6 + axis * 2] = (byte) value;
+                packet[3 + i * 6 + axis * 2] = (byte) (value >> 8);
+            }
+        }
+        return packet;
+    }
+}
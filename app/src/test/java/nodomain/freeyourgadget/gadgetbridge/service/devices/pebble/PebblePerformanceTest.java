@@ -0,0 +1,98 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
+import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.test.perf.Benchmark;
+import nodomain.freeyourgadget.gadgetbridge.test.perf.PerformanceTestBase;
+import nodomain.freeyourgadget.gadgetbridge.test.perf.SyntheticData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class PebblePerformanceTest extends PerformanceTestBase {
+    private static final int HEALTH_STEPS_TAG = 81;
+    // a week of steps, as synced after the phone was away for a while
+    private static final int SESSION_PACKETS = 7 * SyntheticData.MINUTES_PER_DAY / SyntheticData.PEBBLE_STEPS_RECORDS_PER_PACKET;
+    private static final int PACKETS_PER_MESSAGE = 4;
+    private static final int ENCODE_COUNT = 1000;
+
+    @Test
+    public void testDatalogSession() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:62");
+        int start = SyntheticData.midnight(7);
+        final ByteBuffer message = SyntheticData.createPebbleStepsMessage(start, SESSION_PACKETS);
+        final DatalogSessionHealthSteps session = new DatalogSessionHealthSteps((byte) 1, new UUID(0, 0), start,
+                HEALTH_STEPS_TAG, (byte) 2, (short) SyntheticData.PEBBLE_STEPS_ITEM_SIZE, gbDevice);
+
+        measure("pebble.datalog.steps", 1, 3, new Benchmark.Task() {
+            @Override
+            public void run() {
+                int messageSize = PACKETS_PER_MESSAGE * SyntheticData.PEBBLE_STEPS_ITEM_SIZE;
+                for (int offset = 0; offset < message.capacity(); offset += messageSize) {
+                    message.position(offset);
+                    assertNotNull(session.handleMessage(message, Math.min(messageSize, message.capacity() - offset)));
+                }
+            }
+        });
+
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        assertEquals(SESSION_PACKETS * SyntheticData.PEBBLE_STEPS_RECORDS_PER_PACKET, provider.getSampleDao().count());
+    }
+
+    @Test
+    public void testProtocolEncoding() throws Exception {
+        final PebbleProtocol protocol = new PebbleProtocol(createDummyGDevice("00:00:00:00:63"));
+        protocol.mFwMajor = 4;
+
+        final NotificationSpec notificationSpec = new NotificationSpec();
+        notificationSpec.id = 42;
+        notificationSpec.title = "Synthetic sender";
+        notificationSpec.body = "A message body that is about as long as a typical chat message, with some ümlauts.";
+        notificationSpec.sourceName = "Messenger";
+        notificationSpec.type = NotificationType.GENERIC_SMS;
+        notificationSpec.cannedReplies = new String[]{"Yes", "No", "Later"};
+        measure("pebble.encode.notification", 2, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ENCODE_COUNT; i++) {
+                    protocol.encodeNotification(notificationSpec);
+                }
+            }
+        });
+
+        final WeatherSpec weatherSpec = new WeatherSpec();
+        weatherSpec.timestamp = SyntheticData.midnight(0);
+        weatherSpec.location = "Berlin";
+        weatherSpec.currentTemp = 290;
+        weatherSpec.currentConditionCode = 800;
+        weatherSpec.currentCondition = "clear sky";
+        weatherSpec.todayMaxTemp = 295;
+        weatherSpec.todayMinTemp = 280;
+        weatherSpec.forecasts.add(new WeatherSpec.Forecast(281, 296, 801, 50));
+        measure("pebble.encode.weather", 2, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ENCODE_COUNT; i++) {
+                    protocol.encodeSendWeather(weatherSpec);
+                }
+            }
+        });
+
+        measure("pebble.encode.time", 2, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ENCODE_COUNT; i++) {
+                    protocol.encodeSetTime();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.ble;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PebbleLESupportTest extends TestBase {
+    private static final int MTU = 24;
+    // bytes of the Pebble Protocol stream in one data packet
+    private static final int CHUNK = MTU - 4;
+    private static final int WINDOW = 0x19;
+
+    private TestSupport support;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Robolectric.getForegroundThreadScheduler().pause();
+        support = new TestSupport();
+    }
+
+    @Test
+    public void testWindowExhaustion() throws IOException {
+        reset();
+        support.getOutputStream().write(frame(30 * CHUNK, 1));
+        sendAll();
+        assertDataPackets(0, WINDOW);
+
+        // nothing more until the Pebble acknowledges
+        ShadowLooper.idleMainLooper(1000);
+        sendAll();
+        assertEquals(WINDOW, support.sent.size());
+
+        support.handlePPoGATTPacket(new byte[]{header(WINDOW - 1, 1)});
+        sendAll();
+        assertDataPackets(WINDOW, 5);
+    }
+
+    @Test
+    public void testContinuesAfterAckTimeout() throws IOException {
+        reset();
+        support.getOutputStream().write(frame(30 * CHUNK, 1));
+        sendAll();
+        assertEquals(WINDOW, support.sent.size());
+
+        ShadowLooper.idleMainLooper(2000);
+        sendAll();
+        assertDataPackets(WINDOW, 5);
+    }
+
+    @Test
+    public void testResend() throws IOException {
+        reset();
+        support.failures = 1;
+        support.getOutputStream().write(frame(2 * CHUNK, 1));
+        sendAll();
+        assertEquals(0, support.sent.size());
+
+        ShadowLooper.idleMainLooper(50);
+        sendAll();
+        assertDataPackets(0, 2);
+        byte[] expected = new byte[CHUNK + 1];
+        System.arraycopy(frame(2 * CHUNK, 1), 0, expected, 1, CHUNK);
+        assertArrayEquals(expected, support.sent.get(0));
+    }
+
+    @Test
+    public void testCumulativeAck() throws IOException {
+        reset();
+        support.getOutputStream().write(frame(40 * CHUNK, 1));
+        sendAll();
+        assertDataPackets(0, WINDOW);
+
+        // acknowledges serials 0 to 9 at once
+        support.handlePPoGATTPacket(new byte[]{header(9, 1)});
+        sendAll();
+        assertDataPackets(WINDOW, 10);
+
+        // already acknowledged, must not open the window
+        support.handlePPoGATTPacket(new byte[]{header(5, 1)});
+        sendAll();
+        assertEquals(WINDOW + 10, support.sent.size());
+
+        // the serial of the last packet sent, after wrapping around
+        support.handlePPoGATTPacket(new byte[]{header((WINDOW + 9) % 32, 1)});
+        sendAll();
+        assertDataPackets(WINDOW + 10, 5);
+    }
+
+    @Test
+    public void testResetMidFrame() throws IOException {
+        reset();
+        // the Pebble sent something that is not acknowledged yet
+        support.handlePPoGATTPacket(new byte[]{header(3, 0), 0x42});
+
+        byte[] first = frame(5 * CHUNK, 1);
+        support.getOutputStream().write(first, 0, CHUNK + 10);
+        ShadowLooper.runUiThreadTasks();
+        assertDataPackets(0, 1);
+
+        support.handlePPoGATTPacket(new byte[]{0x02, WINDOW});
+        sendAll();
+        assertArrayEquals(new byte[]{0x03, WINDOW, WINDOW}, support.sent.get(1));
+        support.sent.clear();
+
+        // the rest of the first frame is written after the reset
+        support.getOutputStream().write(first, CHUNK + 10, first.length - CHUNK - 10);
+        byte[] second = frame(CHUNK, 2);
+        support.getOutputStream().write(second);
+        ShadowLooper.idleMainLooper(100);
+        sendAll();
+
+        assertEquals(1, support.sent.size());
+        byte[] expected = new byte[CHUNK + 1];
+        expected[0] = header(0, 0);
+        System.arraycopy(second, 0, expected, 1, CHUNK);
+        assertArrayEquals(expected, support.sent.get(0));
+    }
+
+    private void reset() {
+        support.handlePPoGATTPacket(new byte[]{0x02, WINDOW});
+        sendAll();
+        assertEquals(1, support.sent.size());
+        assertArrayEquals(new byte[]{0x03, WINDOW, WINDOW}, support.sent.get(0));
+        support.sent.clear();
+    }
+
+    /**
+     * Runs the write handler, reporting each packet as sent, until no more packets come.
+     */
+    private void sendAll() {
+        ShadowLooper.runUiThreadTasks();
+        while (support.inFlight) {
+            support.inFlight = false;
+            support.onPacketSent();
+            ShadowLooper.runUiThreadTasks();
+        }
+    }
+
+    private void assertDataPackets(int first, int count) {
+        assertEquals(first + count, support.sent.size());
+        for (int i = first; i < first + count; i++) {
+            byte[] packet = support.sent.get(i);
+            assertEquals(header(i % 32, 0), packet[0]);
+            assertEquals(CHUNK + 1, packet.length);
+        }
+    }
+
+    private static byte header(int serial, int command) {
+        return (byte) ((serial << 3) | command);
+    }
+
+    /**
+     * A Pebble Protocol frame of the given total length.
+     */
+    private static byte[] frame(int length, int endpoint) {
+        byte[] frame = new byte[length];
+        frame[0] = (byte) ((length - 4) >> 8);
+        frame[1] = (byte) (length - 4);
+        frame[2] = (byte) (endpoint >> 8);
+        frame[3] = (byte) endpoint;
+        for (int i = 4; i < length; i++) {
+            frame[i] = (byte) (endpoint + i);
+        }
+        return frame;
+    }
+
+    private static class TestSupport extends PebbleLESupport {
+        final List<byte[]> sent = new ArrayList<>();
+        int failures;
+        boolean inFlight;
+
+        TestSupport() {
+            super(Looper.getMainLooper(), MTU);
+        }
+
+        @Override
+        boolean sendDataToPebble(byte[] bytes) {
+            if (failures > 0) {
+                failures--;
+                return false;
+            }
+            // the packets are reused
+            sent.add(bytes.clone());
+            inFlight = true;
+            return true;
+        }
+    }
+}
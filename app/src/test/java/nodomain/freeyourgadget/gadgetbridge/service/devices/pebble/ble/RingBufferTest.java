@@ -0,0 +1,72 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.ble;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RingBufferTest {
+
+    @Test
+    public void testWrapAround() throws IOException {
+        RingBuffer buffer = new RingBuffer(8);
+        buffer.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        byte[] read = new byte[4];
+        assertEquals(4, buffer.poll(read, 0, 4));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, read);
+
+        // head is at 4, so this wraps around the end of the array
+        assertEquals(5, buffer.writeSome(new byte[]{7, 8, 9, 10, 11}, 0, 5));
+        assertEquals(7, buffer.available());
+        assertEquals(5, buffer.peek(0));
+        assertEquals(8, buffer.peek(3));
+        assertEquals(11, buffer.peek(6));
+
+        read = new byte[7];
+        assertEquals(7, buffer.poll(read, 0, 7));
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10, 11}, read);
+        assertEquals(0, buffer.available());
+    }
+
+    @Test
+    public void testWriteSomeWhenAlmostFull() throws IOException {
+        RingBuffer buffer = new RingBuffer(8);
+        buffer.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        assertEquals(2, buffer.writeSome(new byte[]{7, 8, 9}, 0, 3));
+        assertEquals(8, buffer.available());
+        assertEquals(8, buffer.peek(7));
+    }
+
+    @Test
+    public void testSkipWrapsAround() throws IOException {
+        RingBuffer buffer = new RingBuffer(8);
+        buffer.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        assertEquals(5, buffer.skip(5));
+        buffer.write(new byte[]{7, 8, 9, 10}, 0, 4);
+        assertEquals(3, buffer.skip(3));
+        assertEquals(2, buffer.skip(10));
+        assertEquals(0, buffer.available());
+
+        buffer.write(new byte[]{11}, 0, 1);
+        assertEquals(11, buffer.peek(0));
+    }
+
+    @Test
+    public void testReadAfterClose() throws IOException {
+        RingBuffer buffer = new RingBuffer(8);
+        buffer.write(new byte[]{1, 2}, 0, 2);
+        buffer.close();
+
+        byte[] read = new byte[4];
+        assertEquals(2, buffer.read(read, 0, 4));
+        assertEquals(-1, buffer.read(read, 0, 4));
+        try {
+            buffer.write(new byte[]{3}, 0, 1);
+            fail("write to closed buffer");
+        } catch (IOException expected) {
+        }
+    }
+}
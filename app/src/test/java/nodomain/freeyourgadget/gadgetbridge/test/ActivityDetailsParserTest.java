@@ -13,6 +13,7 @@ import java.util.List;
 import nodomain.freeyourgadget.gadgetbridge.devices.amazfitbip.BipActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.export.BinaryTrackExporter;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
@@ -22,6 +23,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -101,6 +103,38 @@ public class ActivityDetailsParserTest extends TestBase {
 
     }
 
+    @Test
+    public void testBinaryTrackRoundTrip() throws Exception {
+        BipActivitySummary summary = createSummary();
+
+        ActivityDetailsParser parser = new ActivityDetailsParser(summary);
+        parser.setSkipCounterByte(true);
+        try (InputStream in = getContents(DETAILS_1)) {
+            ActivityTrack track = parser.parse(FileUtils.readAll(in, MAX_DETAILS));
+
+            File targetFile = File.createTempFile("gadgetbridge-track", BinaryTrackExporter.FILE_EXTENSION);
+            targetFile.deleteOnExit();
+            new BinaryTrackExporter().performExport(track, targetFile);
+
+            ActivityTrack mapped = ActivityTrack.map(targetFile);
+            assertEquals(track.size(), mapped.size());
+            assertEquals(track.getBaseTime(), mapped.getBaseTime());
+
+            ActivityTrack.Cursor expected = track.cursor();
+            ActivityTrack.Cursor actual = mapped.cursor();
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                assertEquals(expected.getTime(), actual.getTime());
+                assertEquals(expected.hasLocation(), actual.hasLocation());
+                assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+                assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+                assertEquals(expected.getAltitude(), actual.getAltitude());
+                assertEquals(expected.getHeartRate(), actual.getHeartRate());
+            }
+            assertFalse(actual.moveToNext());
+        }
+    }
+
     private InputStream getContents(URL hexFile) throws IOException {
         return new HexToBinaryInputStream(hexFile.openStream());
     }
@@ -2,6 +2,9 @@ package nodomain.freeyourgadget.gadgetbridge.test;
 
 import android.content.SharedPreferences;
 
+import java.util.Collections;
+import java.util.Set;
+
 import org.junit.Test;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -9,6 +12,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -66,6 +70,27 @@ public class LanguageUtilsTest extends TestBase {
         assertTrue("Transliteration option fail! Expected 'On', but result is 'Off'", LanguageUtils.transliterate());
     }
 
+    @Test
+    public void testTransliterateLanguages() {
+        String input = "Grüße Привет";
+        assertEquals("Gruesse Privet", LanguageUtils.transliterate(input));
+
+        setTransliterationLanguages(Collections.singleton("russian"));
+        // characters of other languages are only stripped of their diacritics
+        assertEquals("Gruße Privet", LanguageUtils.transliterate(input));
+
+        setTransliterationLanguages(Collections.<String>emptySet());
+        assertEquals("Gruße Привет", LanguageUtils.transliterate(input));
+
+        String ascii = "plain ascii";
+        assertSame(ascii, LanguageUtils.transliterate(ascii));
+    }
+
+    private void setTransliterationLanguages(Set<String> languages) {
+        SharedPreferences settings = GBApplication.getPrefs().getPreferences();
+        settings.edit().putStringSet(LanguageUtils.PREF_TRANSLITERATION_LANGUAGES, languages).apply();
+    }
+
     private void setDefaultTransliteration() {
         SharedPreferences settings = GBApplication.getPrefs().getPreferences();
         SharedPreferences.Editor editor = settings.edit();
@@ -0,0 +1,41 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
+import nodomain.freeyourgadget.gadgetbridge.util.PrefsSnapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PrefsSnapshotTest extends TestBase {
+
+    @Test
+    public void testSnapshotFollowsChanges() {
+        SharedPreferences preferences = GBApplication.getPrefs().getPreferences();
+        preferences.edit().remove(ActivityUser.PREF_USER_HEIGHT_CM).apply();
+        PrefsSnapshot snapshot = PrefsSnapshot.get();
+        assertEquals(ActivityUser.defaultUserHeightCm, snapshot.getUserHeightCm());
+        assertSame(snapshot, PrefsSnapshot.get());
+
+        // values of ListPreferences and EditTextPreferences are stored as strings
+        preferences.edit().putString(ActivityUser.PREF_USER_HEIGHT_CM, "181").apply();
+        assertNotSame(snapshot, PrefsSnapshot.get());
+        assertEquals(181, PrefsSnapshot.get().getUserHeightCm());
+        assertEquals(181, new ActivityUser().getHeightCm());
+        // a snapshot that was taken before does not change
+        assertEquals(ActivityUser.defaultUserHeightCm, snapshot.getUserHeightCm());
+    }
+
+    @Test
+    public void testSnapshotIgnoresOtherPreferences() {
+        SharedPreferences preferences = GBApplication.getPrefs().getPreferences();
+        PrefsSnapshot snapshot = PrefsSnapshot.get();
+        preferences.edit().putString("prefs_snapshot_test_unrelated", "changed").apply();
+        assertSame(snapshot, PrefsSnapshot.get());
+    }
+}
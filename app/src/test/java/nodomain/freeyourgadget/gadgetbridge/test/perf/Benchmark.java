@@ -0,0 +1,238 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Measures the latency and the allocations of a piece of code and compares them with
+ * the baselines in src/test/resources/perf-baselines.properties.
+ * <p/>
+ * Latencies are not stored in milliseconds but relative to a fixed calibration workload
+ * that is measured in the same JVM, so that baselines recorded on one machine can be
+ * checked on another one. Allocations are the bytes allocated by the calling thread,
+ * which does not depend on the machine at all, and are therefore checked more strictly.
+ * Only allocations fail the check by default, latencies are just reported, because they
+ * vary too much on shared build machines.
+ * <p/>
+ * Controlled with system properties, which build.gradle passes on to the tests:
+ * <ul>
+ * <li>-DGBPerf=check runs the benchmarks and fails if one allocates more than its baseline
+ * or has no allocation baseline (./gradlew perfCheck),</li>
+ * <li>-DGBPerf=record runs the benchmarks and stores the results as the new baselines
+ * (./gradlew perfRecord),</li>
+ * <li>-DGBPerfTolerance=0.5 overrides the allowed latency regression (default 50%),</li>
+ * <li>-DGBPerfStrictLatency=true makes latency regressions and missing latency baselines
+ * fail the check, too, e.g. on a dedicated machine.</li>
+ * </ul>
+ * Without GBPerf the performance tests are skipped.
+ */
+public class Benchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(Benchmark.class);
+
+    public static final String PROP_MODE = "GBPerf";
+    public static final String PROP_BASELINES = "GBPerfBaselines";
+    public static final String PROP_TOLERANCE = "GBPerfTolerance";
+    public static final String PROP_STRICT_LATENCY = "GBPerfStrictLatency";
+
+    private static final String MODE_CHECK = "check";
+    private static final String MODE_RECORD = "record";
+
+    private static final double DEFAULT_LATENCY_TOLERANCE = 0.5;
+    private static final double ALLOCATION_TOLERANCE = 0.2;
+    // allocations below this are noise, e.g. from a lazily initialized class
+    private static final long ALLOCATION_SLACK_BYTES = 64 * 1024;
+
+    private static final int CALIBRATION_ROUNDS = 15;
+    private static final int CALIBRATION_SIZE = 200000;
+
+    private static double calibrationNanos;
+    // written by the calibration, so that the JIT cannot eliminate the workload
+    private static volatile int calibrationSink;
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        /** the median latency, relative to the calibration workload */
+        public final double latency;
+        /** the median number of bytes allocated per run, -1 if not supported by the JVM */
+        public final long allocatedBytes;
+        public final double medianMillis;
+
+        Result(String name, double latency, long allocatedBytes, double medianMillis) {
+            this.name = name;
+            this.latency = latency;
+            this.allocatedBytes = allocatedBytes;
+            this.medianMillis = medianMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.3f ms (%.2f units), %d bytes allocated", name, medianMillis, latency, allocatedBytes);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    public static boolean isEnabled() {
+        String mode = System.getProperty(PROP_MODE);
+        return MODE_CHECK.equals(mode) || MODE_RECORD.equals(mode);
+    }
+
+    private static boolean isRecording() {
+        return MODE_RECORD.equals(System.getProperty(PROP_MODE));
+    }
+
+    /**
+     * Runs the task warmups + iterations times and returns the medians of the measured runs.
+     */
+    public static Result measure(String name, int warmups, int iterations, Task task) throws Exception {
+        double calibration = getCalibrationNanos();
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+
+        long[] nanos = new long[iterations];
+        long[] allocated = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            task.run();
+            nanos[i] = System.nanoTime() - start;
+            allocated[i] = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
+        }
+
+        long medianNanos = median(nanos);
+        return new Result(name, medianNanos / calibration, median(allocated), medianNanos / 1000000d);
+    }
+
+    /**
+     * Compares the result with its baselines, or records it as the new baselines.
+     *
+     * @return a description of each regression or missing baseline that fails the check,
+     * empty if the result is within the tolerance. Latency problems are only logged unless
+     * {@link #PROP_STRICT_LATENCY} is set.
+     */
+    public static synchronized List<String> check(Result result) throws IOException {
+        File file = getBaselinesFile();
+        Properties baselines = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                baselines.load(in);
+            }
+        }
+
+        String latencyKey = result.name + ".latency";
+        String allocationKey = result.name + ".allocation";
+        if (isRecording()) {
+            baselines.setProperty(latencyKey, String.format(Locale.US, "%.4g", result.latency));
+            if (result.allocatedBytes >= 0) {
+                baselines.setProperty(allocationKey, String.valueOf(result.allocatedBytes));
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                baselines.store(out, "Gadgetbridge performance baselines, see " + Benchmark.class.getName());
+            }
+            return new ArrayList<>();
+        }
+
+        List<String> regressions = new ArrayList<>();
+        List<String> latencyRegressions = Boolean.getBoolean(PROP_STRICT_LATENCY) ? regressions : new ArrayList<String>();
+        String latencyBaseline = baselines.getProperty(latencyKey);
+        if (latencyBaseline == null) {
+            latencyRegressions.add(result.name + ": no latency baseline, record it with -D" + PROP_MODE + "=" + MODE_RECORD);
+        } else {
+            double tolerance = Double.parseDouble(System.getProperty(PROP_TOLERANCE, String.valueOf(DEFAULT_LATENCY_TOLERANCE)));
+            double maxLatency = Double.parseDouble(latencyBaseline) * (1 + tolerance);
+            if (result.latency > maxLatency) {
+                latencyRegressions.add(String.format(Locale.US, "%s: latency %.2f exceeds baseline %s by more than %d%%",
+                        result.name, result.latency, latencyBaseline, Math.round(tolerance * 100)));
+            }
+        }
+        if (latencyRegressions != regressions) {
+            for (String regression : latencyRegressions) {
+                LOG.warn(regression);
+            }
+        }
+
+        if (result.allocatedBytes >= 0) {
+            String allocationBaseline = baselines.getProperty(allocationKey);
+            if (allocationBaseline == null) {
+                regressions.add(result.name + ": no allocation baseline, record it with -D" + PROP_MODE + "=" + MODE_RECORD);
+            } else {
+                long maxAllocation = (long) (Long.parseLong(allocationBaseline) * (1 + ALLOCATION_TOLERANCE)) + ALLOCATION_SLACK_BYTES;
+                if (result.allocatedBytes > maxAllocation) {
+                    regressions.add(String.format(Locale.US, "%s: allocated %d bytes, baseline is %s",
+                            result.name, result.allocatedBytes, allocationBaseline));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    private static File getBaselinesFile() {
+        String path = System.getProperty(PROP_BASELINES);
+        if (path != null) {
+            return new File(path);
+        }
+        return new File(System.getProperty("user.dir"), "src/test/resources/perf-baselines.properties");
+    }
+
+    /**
+     * Returns the median time of a fixed, deterministic workload of array sorting and
+     * hashing, which all latencies are expressed in.
+     */
+    private static synchronized double getCalibrationNanos() {
+        if (calibrationNanos == 0) {
+            Random random = new Random(42);
+            int[] data = new int[CALIBRATION_SIZE];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt();
+            }
+            long[] nanos = new long[CALIBRATION_ROUNDS];
+            for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+                long start = System.nanoTime();
+                int[] copy = data.clone();
+                Arrays.sort(copy);
+                calibrationSink += Arrays.hashCode(copy);
+                nanos[round] = System.nanoTime() - start;
+            }
+            calibrationNanos = Math.max(1, median(nanos));
+        }
+        return calibrationNanos;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
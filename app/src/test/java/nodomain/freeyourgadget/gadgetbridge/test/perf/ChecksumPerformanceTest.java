@@ -0,0 +1,43 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.STM32CRC;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
+
+public class ChecksumPerformanceTest extends PerformanceTestBase {
+    // about the size of Huami and Pebble firmware files
+    private static final int FIRMWARE_SIZE = 1024 * 1024;
+    private static final int RESOURCES_SIZE = 64 * 1024;
+
+    @Test
+    public void testChecksums() throws Exception {
+        final byte[] firmware = new byte[FIRMWARE_SIZE];
+        new Random(FIRMWARE_SIZE).nextBytes(firmware);
+        final byte[] resources = new byte[RESOURCES_SIZE];
+        new Random(RESOURCES_SIZE).nextBytes(resources);
+
+        measure("checksum.crc16", 3, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                CheckSums.getCRC16(firmware);
+            }
+        });
+        measure("checksum.crc8", 3, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                CheckSums.getCRC8(resources);
+            }
+        });
+        measure("checksum.stm32crc", 3, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                STM32CRC crc = new STM32CRC();
+                crc.addData(firmware, firmware.length);
+                crc.getResult();
+            }
+        });
+    }
+}
@@ -0,0 +1,57 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.WorkoutAnalytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExportPerformanceTest extends PerformanceTestBase {
+    // a marathon, one point per second
+    private static final int TRACK_SECONDS = 4 * 60 * 60;
+
+    @Test
+    public void testTrackExport() throws Exception {
+        User user = new User();
+        user.setName("Perf");
+        Device device = new Device();
+        device.setName("Synthetic");
+        final ActivityTrack track = SyntheticData.createGpsTrack(user, device, TRACK_SECONDS);
+        final File gpxFile = new File(app.getCacheDir(), "perf.gpx");
+        final File trackFile = new File(app.getCacheDir(), "perf.track");
+
+        measure("export.gpx", 2, 5, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                GPXExporter exporter = new GPXExporter();
+                exporter.setCreator("Gadgetbridge");
+                exporter.performExport(track, gpxFile);
+            }
+        });
+        assertTrue(gpxFile.length() > 0);
+
+        measure("export.track", 2, 5, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                track.writeTo(trackFile);
+                assertEquals(TRACK_SECONDS, ActivityTrack.map(trackFile).size());
+            }
+        });
+        measure("export.analyze", 2, 5, new Benchmark.Task() {
+            @Override
+            public void run() {
+                assertTrue(WorkoutAnalytics.analyze(track, 190).getDistanceMeters() > 0);
+            }
+        });
+
+        gpxFile.delete();
+        trackFile.delete();
+    }
+}
@@ -0,0 +1,56 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import org.junit.Assume;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Base class for the performance tests. They are skipped unless the tests are run
+ * with -DGBPerf=check or -DGBPerf=record, see {@link Benchmark}.
+ * <p/>
+ * All benchmarks of a test are run, regressions are reported together at the end.
+ */
+public abstract class PerformanceTestBase extends TestBase {
+    private static final Logger LOG = LoggerFactory.getLogger(PerformanceTestBase.class);
+
+    private final List<String> regressions = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        Assume.assumeTrue("performance tests are only run with -D" + Benchmark.PROP_MODE + "=check", Benchmark.isEnabled());
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (!Benchmark.isEnabled()) {
+            return; // setUp was skipped
+        }
+        super.tearDown();
+        if (!regressions.isEmpty()) {
+            fail("Performance regressions:\n" + join(regressions));
+        }
+    }
+
+    protected Benchmark.Result measure(String name, int warmups, int iterations, Benchmark.Task task) throws Exception {
+        Benchmark.Result result = Benchmark.measure(name, warmups, iterations, task);
+        LOG.info(result.toString());
+        regressions.addAll(Benchmark.check(result));
+        return result;
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
+    }
+}
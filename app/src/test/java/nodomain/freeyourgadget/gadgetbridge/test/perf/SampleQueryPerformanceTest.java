@@ -0,0 +1,99 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+import static nodomain.freeyourgadget.gadgetbridge.test.perf.SyntheticData.MINUTES_PER_DAY;
+import static nodomain.freeyourgadget.gadgetbridge.test.perf.SyntheticData.SECONDS_PER_DAY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SampleQueryPerformanceTest extends PerformanceTestBase {
+    private static final int MIBAND_DAYS = 2 * 365;
+    private static final int PEBBLE_DAYS = 90;
+
+    @Test
+    public void testMiBandSampleQueries() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:60");
+        final MiBandSampleProvider provider = new MiBandSampleProvider(gbDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+        final int start = SyntheticData.midnight(MIBAND_DAYS);
+        SyntheticData.insertMiBandSamples(provider, user, device, start, MIBAND_DAYS);
+
+        final int lastDay = start + (MIBAND_DAYS - 1) * SECONDS_PER_DAY;
+        measure("miband.query.day", 3, 20, new Benchmark.Task() {
+            @Override
+            public void run() {
+                List<MiBandActivitySample> samples = provider.getAllActivitySamples(lastDay, lastDay + SECONDS_PER_DAY - 1);
+                assertEquals(MINUTES_PER_DAY, samples.size());
+            }
+        });
+        final int lastWeek = start + (MIBAND_DAYS - 7) * SECONDS_PER_DAY;
+        measure("miband.query.week", 2, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                List<MiBandActivitySample> samples = provider.getAllActivitySamples(lastWeek, lastWeek + 7 * SECONDS_PER_DAY - 1);
+                assertEquals(7 * MINUTES_PER_DAY, samples.size());
+            }
+        });
+        final int lastMonth = start + (MIBAND_DAYS - 30) * SECONDS_PER_DAY;
+        measure("miband.query.month", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run() {
+                List<MiBandActivitySample> samples = provider.getAllActivitySamples(lastMonth, lastMonth + 30 * SECONDS_PER_DAY - 1);
+                assertEquals(30 * MINUTES_PER_DAY, samples.size());
+            }
+        });
+        measure("miband.query.sleep", 3, 20, new Benchmark.Task() {
+            @Override
+            public void run() {
+                assertNotNull(provider.getSleepSamples(lastWeek, lastWeek + 7 * SECONDS_PER_DAY - 1));
+            }
+        });
+        measure("miband.query.latest", 3, 20, new Benchmark.Task() {
+            @Override
+            public void run() {
+                assertNotNull(provider.getLatestActivitySample());
+            }
+        });
+    }
+
+    @Test
+    public void testPebbleOverlayMerging() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:61");
+        final PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(gbDevice, daoSession);
+        int start = SyntheticData.midnight(PEBBLE_DAYS);
+        SyntheticData.insertPebbleHealthSamples(provider, user, device, start, PEBBLE_DAYS);
+        SyntheticData.insertPebbleHealthOverlays(daoSession, user, device, start, PEBBLE_DAYS);
+
+        final int lastDay = start + (PEBBLE_DAYS - 1) * SECONDS_PER_DAY;
+        measure("pebble.overlay.day", 3, 20, new Benchmark.Task() {
+            @Override
+            public void run() {
+                List<PebbleHealthActivitySample> samples = provider.getAllActivitySamples(lastDay, lastDay + SECONDS_PER_DAY - 1);
+                assertEquals(MINUTES_PER_DAY, samples.size());
+            }
+        });
+        final int lastWeek = start + (PEBBLE_DAYS - 7) * SECONDS_PER_DAY;
+        measure("pebble.overlay.week", 2, 10, new Benchmark.Task() {
+            @Override
+            public void run() {
+                List<PebbleHealthActivitySample> samples = provider.getAllActivitySamples(lastWeek, lastWeek + 7 * SECONDS_PER_DAY - 1);
+                assertEquals(7 * MINUTES_PER_DAY, samples.size());
+            }
+        });
+    }
+}
@@ -0,0 +1,200 @@
+package nodomain.freeyourgadget.gadgetbridge.test.perf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+
+/**
+ * Deterministic generators for large, realistic looking data sets: one sample per
+ * minute with nightly sleep and daytime activity, Pebble Health overlays and datalog
+ * messages, and GPS tracks with one point per second.
+ */
+public class SyntheticData {
+    public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Pebble Health steps packets: short version, int timestamp, byte unknown, byte record length, byte record count
+    public static final int PEBBLE_STEPS_RECORD_VERSION = 13;
+    public static final int PEBBLE_STEPS_RECORD_LENGTH = 15;
+    public static final int PEBBLE_STEPS_RECORDS_PER_PACKET = 15;
+    public static final int PEBBLE_STEPS_ITEM_SIZE = 2 + 4 + 1 + 1 + 1 + PEBBLE_STEPS_RECORD_LENGTH * PEBBLE_STEPS_RECORDS_PER_PACKET;
+
+    // samples are inserted in chunks, so that years of samples never have to be in memory at once
+    private static final int INSERT_CHUNK_DAYS = 7;
+    private static final int SLEEP_START_MINUTE = 23 * 60;
+    private static final int SLEEP_END_MINUTE = 7 * 60;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Returns a timestamp at midnight UTC, the generated days start there.
+     */
+    public static int midnight(int daysAgo) {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        return (now / SECONDS_PER_DAY - daysAgo) * SECONDS_PER_DAY;
+    }
+
+    public static void insertMiBandSamples(MiBandSampleProvider provider, User user, Device device, int start, int days) {
+        Random random = new Random(start);
+        for (int day = 0; day < days; day += INSERT_CHUNK_DAYS) {
+            int chunkDays = Math.min(INSERT_CHUNK_DAYS, days - day);
+            MiBandActivitySample[] samples = new MiBandActivitySample[chunkDays * MINUTES_PER_DAY];
+            for (int i = 0; i < samples.length; i++) {
+                int minute = i % MINUTES_PER_DAY;
+                MiBandActivitySample sample = provider.createActivitySample();
+                sample.setProvider(provider);
+                sample.setTimestamp(start + (day * MINUTES_PER_DAY + i) * 60);
+                sample.setUserId(user.getId());
+                sample.setDeviceId(device.getId());
+                if (isSleeping(minute)) {
+                    sample.setRawKind(isDeepSleep(minute) ? MiBandSampleProvider.TYPE_DEEP_SLEEP : MiBandSampleProvider.TYPE_LIGHT_SLEEP);
+                    sample.setRawIntensity(random.nextInt(10));
+                    sample.setSteps(0);
+                    sample.setHeartRate(50 + random.nextInt(10));
+                } else {
+                    int steps = getSteps(random);
+                    sample.setRawKind(MiBandSampleProvider.TYPE_ACTIVITY);
+                    sample.setRawIntensity(steps + random.nextInt(20));
+                    sample.setSteps(steps);
+                    sample.setHeartRate(60 + steps / 2 + random.nextInt(10));
+                }
+                samples[i] = sample;
+            }
+            provider.addGBActivitySamples(samples);
+        }
+    }
+
+    public static void insertPebbleHealthSamples(PebbleHealthSampleProvider provider, User user, Device device, int start, int days) {
+        Random random = new Random(start);
+        for (int day = 0; day < days; day += INSERT_CHUNK_DAYS) {
+            int chunkDays = Math.min(INSERT_CHUNK_DAYS, days - day);
+            PebbleHealthActivitySample[] samples = new PebbleHealthActivitySample[chunkDays * MINUTES_PER_DAY];
+            for (int i = 0; i < samples.length; i++) {
+                int minute = i % MINUTES_PER_DAY;
+                int steps = isSleeping(minute) ? 0 : getSteps(random);
+                samples[i] = new PebbleHealthActivitySample(start + (day * MINUTES_PER_DAY + i) * 60,
+                        device.getId(), user.getId(), null, steps * 40 + random.nextInt(200), steps, 0, null);
+                samples[i].setProvider(provider);
+            }
+            provider.addGBActivitySamples(samples);
+        }
+    }
+
+    /**
+     * Inserts one overlay per sleep cycle and a few walks and runs per day, the way
+     * Pebble Health reports them.
+     */
+    public static void insertPebbleHealthOverlays(DaoSession session, User user, Device device, int start, int days) {
+        Random random = new Random(start);
+        List<PebbleHealthActivityOverlay> overlays = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            int dayStart = start + day * SECONDS_PER_DAY;
+            // the night from 23:00 to 07:00, in 90 minute cycles of light and deep sleep
+            int sleepStart = dayStart + SLEEP_START_MINUTE * 60;
+            for (int cycle = 0; cycle < 5; cycle++) {
+                int cycleStart = sleepStart + cycle * 90 * 60;
+                overlays.add(createOverlay(user, device, cycleStart, cycleStart + 60 * 60, PebbleHealthSampleProvider.TYPE_LIGHT_SLEEP));
+                overlays.add(createOverlay(user, device, cycleStart + 60 * 60, cycleStart + 90 * 60, PebbleHealthSampleProvider.TYPE_DEEP_SLEEP));
+            }
+            for (int walk = 0; walk < 4; walk++) {
+                int walkStart = dayStart + (8 + walk * 3) * 60 * 60 + random.nextInt(60) * 60;
+                int type = walk == 3 ? PebbleHealthSampleProvider.TYPE_RUN : PebbleHealthSampleProvider.TYPE_WALK;
+                overlays.add(createOverlay(user, device, walkStart, walkStart + (10 + random.nextInt(30)) * 60, type));
+            }
+        }
+        session.getPebbleHealthActivityOverlayDao().insertOrReplaceInTx(overlays);
+    }
+
+    private static PebbleHealthActivityOverlay createOverlay(User user, Device device, int from, int to, int rawKind) {
+        return new PebbleHealthActivityOverlay(from, to, rawKind, device.getId(), user.getId(), null, null);
+    }
+
+    /**
+     * Returns a datalog message with the given number of Pebble Health steps packets of
+     * {@link #PEBBLE_STEPS_ITEM_SIZE} bytes, each covering {@link #PEBBLE_STEPS_RECORDS_PER_PACKET} minutes.
+     */
+    public static ByteBuffer createPebbleStepsMessage(int start, int packets) {
+        Random random = new Random(start);
+        ByteBuffer buffer = ByteBuffer.allocate(packets * PEBBLE_STEPS_ITEM_SIZE);
+        for (int packet = 0; packet < packets; packet++) {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putShort((short) PEBBLE_STEPS_RECORD_VERSION);
+            buffer.putInt(start + packet * PEBBLE_STEPS_RECORDS_PER_PACKET * 60);
+            buffer.put((byte) 0);
+            buffer.put((byte) PEBBLE_STEPS_RECORD_LENGTH);
+            buffer.put((byte) PEBBLE_STEPS_RECORDS_PER_PACKET);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (int record = 0; record < PEBBLE_STEPS_RECORDS_PER_PACKET; record++) {
+                int steps = getSteps(random);
+                buffer.put((byte) steps); // steps
+                buffer.put((byte) random.nextInt(256)); // orientation
+                buffer.putShort((short) (steps * 40 + random.nextInt(200))); // intensity
+                buffer.put((byte) random.nextInt(256)); // light intensity
+                buffer.put(new byte[7]);
+                buffer.put((byte) (60 + random.nextInt(60))); // heart rate
+                buffer.put(new byte[PEBBLE_STEPS_RECORD_LENGTH - 13]);
+            }
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Returns a run with one point per second, moving at about 3 m/s. Every tenth
+     * point has no heart rate, so that exporters have to look for the nearest one.
+     */
+    public static ActivityTrack createGpsTrack(User user, Device device, int seconds) {
+        Random random = new Random(seconds);
+        ActivityTrack track = new ActivityTrack();
+        track.setBaseTime(new Date(1500000000000L));
+        track.setUser(user);
+        track.setDevice(device);
+        track.setName("Synthetic run");
+
+        double latitude = 52.5;
+        double longitude = 13.4;
+        double heading = 0;
+        int altitude = 40;
+        for (int second = 0; second < seconds; second++) {
+            heading += (random.nextDouble() - 0.5) * 0.2;
+            latitude += Math.cos(heading) * 0.000027;
+            longitude += Math.sin(heading) * 0.000044;
+            altitude = Math.max(0, altitude + random.nextInt(3) - 1);
+            int index = track.appendPoint(second);
+            track.setLocationE6(index, ActivityTrack.toE6(latitude), ActivityTrack.toE6(longitude), altitude);
+            if (second % 10 != 0) {
+                track.setHeartRate(index, 140 + random.nextInt(30));
+            }
+        }
+        return track;
+    }
+
+    private static boolean isSleeping(int minuteOfDay) {
+        return minuteOfDay >= SLEEP_START_MINUTE || minuteOfDay < SLEEP_END_MINUTE;
+    }
+
+    private static boolean isDeepSleep(int minuteOfDay) {
+        int sleepMinute = (minuteOfDay - SLEEP_START_MINUTE + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        return sleepMinute % 90 >= 60;
+    }
+
+    private static int getSteps(Random random) {
+        // mostly idle, sometimes walking
+        return random.nextInt(4) == 0 ? 60 + random.nextInt(60) : random.nextInt(5);
+    }
+}
@@ -0,0 +1,116 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+
+import org.junit.Test;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContactResolverTest extends TestBase {
+
+    @Test
+    public void testNormalize() {
+        assertEquals("+4930123456", ContactResolver.normalize("+49 (30) 123-456"));
+        assertEquals("0301234", ContactResolver.normalize("030/1234"));
+        // only a leading plus sign counts
+        assertEquals("12", ContactResolver.normalize("1+2"));
+        // not a phone number, kept as it is
+        assertEquals("Alice", ContactResolver.normalize("Alice"));
+    }
+
+    @Test
+    public void testCachesHitsAndMisses() {
+        FakeContactsProvider provider = register();
+        provider.contacts.put("+4930123456", "Alice");
+        ContactResolver resolver = new ContactResolver(getContext());
+
+        assertEquals("Alice", resolver.getDisplayName("+49 30 123456"));
+        // another format of the same number
+        assertEquals("Alice", resolver.getDisplayName("+49 (30) 123456"));
+        assertEquals(1, provider.lookups);
+
+        assertEquals("+49 30 999", resolver.getDisplayName("+49 30 999"));
+        assertEquals("+49 30 999", resolver.getDisplayName("+49 30 999"));
+        assertEquals(2, provider.lookups);
+    }
+
+    @Test
+    public void testFailedLookupIsNotCached() {
+        FakeContactsProvider provider = register();
+        provider.contacts.put("+4930123456", "Alice");
+        provider.denied = true;
+        ContactResolver resolver = new ContactResolver(getContext());
+
+        assertEquals("+49 30 123456", resolver.getDisplayName("+49 30 123456"));
+
+        // e.g. the permission was granted meanwhile
+        provider.denied = false;
+        assertEquals("Alice", resolver.getDisplayName("+49 30 123456"));
+        assertEquals(2, provider.lookups);
+    }
+
+    private static FakeContactsProvider register() {
+        FakeContactsProvider provider = new FakeContactsProvider();
+        ShadowContentResolver.registerProviderInternal(ContactsContract.AUTHORITY, provider);
+        return provider;
+    }
+
+    private static class FakeContactsProvider extends ContentProvider {
+        final Map<String, String> contacts = new HashMap<>();
+        volatile boolean denied;
+        volatile int lookups;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            if (!uri.toString().startsWith(ContactsContract.PhoneLookup.CONTENT_FILTER_URI.toString())) {
+                return null; // the preload finds nothing
+            }
+            lookups++;
+            if (denied) {
+                throw new SecurityException("no contacts permission");
+            }
+            MatrixCursor cursor = new MatrixCursor(new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME});
+            String name = contacts.get(ContactResolver.normalize(uri.getLastPathSegment()));
+            if (name != null) {
+                cursor.addRow(new Object[]{name});
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+}